@@ -1,7 +1,14 @@
 package ru.yandex.qatools.camelot.api;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  */
@@ -17,4 +24,31 @@ public interface LockableStorage {
      * Unlocks the key within storage. Method is not blocking and returns instantly.
      */
     void unlock(String key);
+
+    /**
+     * Tries to lock all the keys within storage within the given timeout.
+     * The keys are locked in their natural order, so the concurrent batches do not deadlock each other.
+     * If any of the keys is not locked within the timeout, the locked ones are released and false is returned.
+     */
+    default boolean lockAll(Collection<String> keys, long timeout, TimeUnit ofUnit) {
+        final long deadline = nanoTime() + ofUnit.toNanos(timeout);
+        final List<String> locked = new ArrayList<>(keys.size());
+        for (String key : new TreeSet<>(keys)) {
+            if (!lock(key, Math.max(0, deadline - nanoTime()), NANOSECONDS)) {
+                unlockAll(locked);
+                return false;
+            }
+            locked.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Unlocks all the keys within storage.
+     */
+    default void unlockAll(Collection<String> keys) {
+        for (String key : keys) {
+            unlock(key);
+        }
+    }
 }
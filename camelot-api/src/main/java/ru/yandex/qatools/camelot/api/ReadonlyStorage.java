@@ -1,8 +1,10 @@
 package ru.yandex.qatools.camelot.api;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * Storage that allows only read operations
@@ -17,6 +19,21 @@ public interface ReadonlyStorage<T> {
      */
     T get(String key);
 
+    /**
+     * Get the values of the keys. The keys having no value are absent in the result.
+     * The storages fetching the values remotely should override it to read all the keys at once
+     */
+    default Map<String, T> getAll(Collection<String> keys) {
+        Map<String, T> result = new HashMap<>(keys.size(), 1);
+        for (String key : keys) {
+            final T value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
     /**
      * Get the list of the keys in the storage
      */
@@ -33,11 +50,19 @@ public interface ReadonlyStorage<T> {
      * Returns a map of all keys to the corresponding states
      */
     default Map<String, T> valuesMap() {
-        Set<String> keys = keys();
-        Map<String, T> result = new HashMap<>(keys.size(), 1);
-        for (String key : keys) {
-            result.put(key, get(key));
+        return getAll(keys());
+    }
+
+    /**
+     * Passes each key with its value to the action.
+     * The values are read lazily during the iteration, so the storage is never loaded into memory at once
+     */
+    default void forEach(BiConsumer<String, ? super T> action) {
+        for (String key : keys()) {
+            final T value = get(key);
+            if (value != null) {
+                action.accept(key, value);
+            }
         }
-        return result;
     }
 }
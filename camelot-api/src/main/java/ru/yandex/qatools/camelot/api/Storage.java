@@ -1,5 +1,8 @@
 package ru.yandex.qatools.camelot.api;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Storage, allowing the read/write operations
  *
@@ -7,7 +10,31 @@ package ru.yandex.qatools.camelot.api;
  */
 public interface Storage<T> extends ReadonlyStorage<T>, LockableStorage {
     /**
-     * Putting the value into the key
+     * Putting the value into the key. The null value removes the key
      */
     void put(String key, T value);
+
+    /**
+     * Removing the value of the key
+     */
+    void remove(String key);
+
+    /**
+     * Putting the values into the keys. The keys having the null value are removed.
+     * The storages writing the values remotely should override it to write all the values at once
+     */
+    default void putAll(Map<String, T> values) {
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removing the values of the keys
+     */
+    default void removeAll(Collection<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
 }
@@ -6,10 +6,25 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * Annotation indicating the method, which should calculate the aggregation key
+ * Annotation indicating the method, which should calculate the aggregation key.
+ * Being put on the aggregator class, declares the aggregation key without the method:
+ * the key is taken from the header of the message or from the property of the event,
+ * so the aggregator does not need to be instantiated to calculate it.
+ *
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  */
-@Target({ElementType.METHOD})
+@Target({ElementType.METHOD, ElementType.TYPE})
 @Retention(RetentionPolicy.RUNTIME)
 public @interface AggregationKey {
+
+    /**
+     * Indicates the name of the message header containing the aggregation key (aggregator class only)
+     */
+    String header() default "";
+
+    /**
+     * Indicates the path of the event property containing the aggregation key,
+     * e.g. "test.methodName" (aggregator class only)
+     */
+    String property() default "";
 }
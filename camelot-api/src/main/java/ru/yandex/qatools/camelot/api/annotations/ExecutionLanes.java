@@ -0,0 +1,29 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the processing of the aggregator's events within the single-threaded lanes.
+ * All the events having the same correlation key are processed by the same lane one by one,
+ * so the states of the repository keeping them on the current node are accessed without the locks.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ExecutionLanes {
+
+    /**
+     * Indicates the number of the lanes (camelot.lanes.count is used if not set)
+     */
+    int count() default 0;
+
+    /**
+     * Indicates the maximum number of the events waiting within each lane
+     * (camelot.lanes.queueSize is used if not set)
+     */
+    int queueSize() default 0;
+}
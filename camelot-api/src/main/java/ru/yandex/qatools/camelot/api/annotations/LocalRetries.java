@@ -0,0 +1,34 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the in-process retries of the aggregator's events instead of the delayed route of the broker.
+ * The events failed because of the lock waits or of the unreachable repository are retried
+ * with the exponential backoff and jitter, the retries of the same correlation key are coalesced.
+ * When too many retries are pending, the events are resent via the delayed route.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LocalRetries {
+
+    /**
+     * Indicates the delay before the first retry (camelot.retries.initialDelayMs is used if not set)
+     */
+    long initialDelayMs() default 0;
+
+    /**
+     * Indicates the maximum delay between the retries (camelot.retries.maxDelayMs is used if not set)
+     */
+    long maxDelayMs() default 0;
+
+    /**
+     * Indicates the maximum number of the pending retries (camelot.retries.maxPending is used if not set)
+     */
+    int maxPending() default 0;
+}
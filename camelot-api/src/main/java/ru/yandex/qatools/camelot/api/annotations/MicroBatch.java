@@ -0,0 +1,32 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the micro-batching of the aggregator's events.
+ * The events having the same correlation key are collected until the batch has reached the maximum size
+ * or no new events were received within the timeout. Then the events of the batch are fired to the FSM
+ * in the order of their arrival with a single lock/get/add cycle of the repository.
+ * The collected events are kept in memory until the batch is completed.
+ * The completed batches are processed by the execution lanes of the aggregator (the default ones
+ * if it has no {@link ExecutionLanes}), so the batches of the same key are processed in the order of their completion.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MicroBatch {
+
+    /**
+     * Indicates the maximum number of the events within the batch
+     */
+    int size() default 100;
+
+    /**
+     * Indicates the time (ms) to wait for the next event of the batch
+     */
+    long timeoutMs() default 100;
+}
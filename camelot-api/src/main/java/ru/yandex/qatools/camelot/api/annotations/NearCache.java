@@ -0,0 +1,36 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the cache of the plugin's states and storage values on the current node for the readonly reads
+ * (the injected {@link Repository}, the readonly timers and the reads of the {@link PluginStorage})
+ * when the repository supports it (e.g. the Hazelcast repository). The cached values are invalidated
+ * when they are changed on the other nodes, so the readonly reads may see the previous value for a short time.
+ * The processing of the events always reads the actual states.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NearCache {
+
+    /**
+     * Indicates the maximum number of the cached values (the default of the repository is used if not set)
+     */
+    int maxSize() default 0;
+
+    /**
+     * Indicates the maximum time (seconds) the value stays cached (the default of the repository is used if not set)
+     */
+    int timeToLiveSec() default -1;
+
+    /**
+     * Indicates the maximum time (seconds) the value stays cached without reads
+     * (the default of the repository is used if not set)
+     */
+    int maxIdleSec() default -1;
+}
@@ -0,0 +1,17 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates the method of the aggregator, that will be called with the final state
+ * right before the state is evicted as expired (see {@link StateExpiry})
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OnExpire {
+}
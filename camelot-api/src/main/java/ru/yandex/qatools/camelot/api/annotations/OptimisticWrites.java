@@ -0,0 +1,26 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the optimistic writes of the aggregator's states when the repository supports them
+ * (e.g. the Hazelcast repository). The state is read without locking the key and is written only if it was not
+ * updated in the meantime; on conflict the event is applied to the fresh state again within the process.
+ * The transitions may be run several times for the same event, so they must not have the side effects.
+ * Not applied to the aggregators with {@link StateCache} or {@link MicroBatch}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OptimisticWrites {
+
+    /**
+     * Indicates the maximum number of the attempts to write the state before the event is resent
+     * (camelot.optimistic.maxAttempts is used if not set)
+     */
+    int maxAttempts() default 0;
+}
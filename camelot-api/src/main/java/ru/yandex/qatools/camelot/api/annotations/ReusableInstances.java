@@ -0,0 +1,18 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the plugin class as stateless, so its instances may be reused for the subsequent events.
+ * The instance is created and injected once per processing thread. For each next event only
+ * the fields annotated with {@link InjectHeader} and {@link InjectHeaders} are refreshed.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReusableInstances {
+}
@@ -0,0 +1,37 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the in-process cache of the live (deserialized) aggregation states for the aggregator.
+ * The cached state is reused while the repository still contains the version it was built from,
+ * so the state is not deserialized again for each event.
+ * If the repository keeps its states on the current node only, the serialization of the state is also
+ * deferred until one of the flush conditions is met (the number of events, the flush interval,
+ * the completion of the state or the shutdown). Readonly access to the repository may see
+ * the previously flushed version of the state within this window.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StateCache {
+
+    /**
+     * Indicates the maximum number of the live states kept in memory
+     */
+    int maxSize() default 1000;
+
+    /**
+     * Indicates the number of the events after which the state must be written to the repository
+     */
+    int flushEveryEvents() default 100;
+
+    /**
+     * Indicates the maximum time (ms) the state may stay not written to the repository
+     */
+    long flushIntervalMs() default 5000;
+}
@@ -0,0 +1,22 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the eviction of the aggregator's states which did not receive any event for the idle time.
+ * The methods annotated with {@link OnExpire} are called with the state before its eviction.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StateExpiry {
+
+    /**
+     * Indicates the time since the last event after which the state is evicted
+     */
+    long idleMs();
+}
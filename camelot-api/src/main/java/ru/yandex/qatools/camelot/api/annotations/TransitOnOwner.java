@@ -0,0 +1,21 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables applying the events to the aggregator's states on the node owning the state, without locking the state,
+ * when the repository is able to do so (e.g. the Hazelcast repository). The event is sent to the owner
+ * and the transition is run there; if the owner does not have the plugin, the event is processed as usual.
+ * The transitions are run within the thread of the repository owning the state, so they must be short
+ * and must not access the repositories and the storages. Not applied to the aggregators with
+ * {@link StateCache} or {@link MicroBatch}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface TransitOnOwner {
+}
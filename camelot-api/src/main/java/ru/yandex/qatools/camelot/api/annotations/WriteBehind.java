@@ -0,0 +1,33 @@
+package ru.yandex.qatools.camelot.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the write-behind of the aggregator's states when the repository supports it
+ * (e.g. the MongoDB repository). The key is locked within the current node only and is released right after
+ * the event is processed, the changed states are written to the database in background by batches.
+ * The reads of the key on the current node see the pending writes, but the states changed within the last
+ * flush interval are lost if the node fails. The plugin must run on a single node: the repository rejects the
+ * plugin if it is already running on another node.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface WriteBehind {
+
+    /**
+     * Indicates the maximum time (milliseconds) the changed state stays unwritten, i.e. the maximum
+     * data-loss window (the default of the repository is used if not set)
+     */
+    long flushIntervalMs() default 0;
+
+    /**
+     * Indicates the number of the pending states which triggers the write before the flush interval elapses
+     * (the default of the repository is used if not set)
+     */
+    int batchSize() default 0;
+}
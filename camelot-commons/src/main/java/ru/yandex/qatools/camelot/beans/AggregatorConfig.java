@@ -7,4 +7,14 @@ import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
  */
 public interface AggregatorConfig extends RouteConfig {
     AggregationKeyStrategy getStrategyInstance();
+
+    /**
+     * Returns the maximum number of the events within the micro-batch (0 if micro-batching is disabled)
+     */
+    int getBatchSize();
+
+    /**
+     * Returns the time (ms) to wait for the next event of the micro-batch
+     */
+    long getBatchTimeoutMs();
 }
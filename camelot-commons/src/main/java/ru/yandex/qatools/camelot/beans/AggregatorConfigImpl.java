@@ -7,6 +7,8 @@ import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
  */
 public class AggregatorConfigImpl extends RouteConfigImpl implements AggregatorConfig {
     private AggregationKeyStrategy strategyInstance;
+    private int batchSize;
+    private long batchTimeoutMs;
 
     public AggregatorConfigImpl(RouteConfig routeConfig) {
         this.setFilterInstanceOf(routeConfig.getFilterInstanceOf());
@@ -22,4 +24,22 @@ public class AggregatorConfigImpl extends RouteConfigImpl implements AggregatorC
     public void setStrategyInstance(AggregationKeyStrategy strategyInstance) {
         this.strategyInstance = strategyInstance;
     }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public long getBatchTimeoutMs() {
+        return batchTimeoutMs;
+    }
+
+    public void setBatchTimeoutMs(long batchTimeoutMs) {
+        this.batchTimeoutMs = batchTimeoutMs;
+    }
 }
@@ -22,6 +22,7 @@ public abstract class AbstractPluginMethodStrategy<A extends Annotation> {
     protected final PluginContext pluginContext;
     protected final Class pluginClass;
     private final Class<A> annClass;
+    private final PluginInstances<Object> instances;
     private Object defaultResult = null;
 
     public AbstractPluginMethodStrategy(PluginContext pluginContext, Class<A> methodAnnotation) {
@@ -30,6 +31,7 @@ public abstract class AbstractPluginMethodStrategy<A extends Annotation> {
         try {
             pluginClass = pluginContext.getClassLoader()
                     .loadClass(pluginContext.getPluginClass());
+            instances = new PluginInstances<>(pluginClass);
             if (Metadata.getMeta(pluginClass).getAnnotatedMethods(methodAnnotation).length < 1) {
                 this.defaultResult = defaultReturn();
             }
@@ -55,8 +57,8 @@ public abstract class AbstractPluginMethodStrategy<A extends Annotation> {
                 return defaultResult;
             }
             pluginContext.getMessagesSerializer().preProcess(exchange, pluginContext.getClassLoader());
-            Object aggregator = pluginClass.newInstance();
-            pluginContext.getInjector().inject(aggregator, pluginContext, exchange);
+            Object aggregator = instances.get(exchange,
+                    instance -> pluginContext.getInjector().inject(instance, pluginContext, exchange));
             event = exchange.getIn().getBody();
             final Map<Method, Object> res = new AnnotatedMethodDispatcher(
                     aggregator, Metadata.getMeta(pluginClass)
@@ -0,0 +1,197 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.spi.AggregationRepository;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.String.format;
+import static java.lang.Thread.currentThread;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The single-threaded lanes executing the tasks of the aggregator.
+ * All the tasks for the same key are executed by the same lane in the order of their submission.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationLanes {
+    private static final Logger LOGGER = getLogger(AggregationLanes.class);
+    private static final long SPACE_POLL_MS = 100;
+
+    private final String name;
+    private final int queueSize;
+    private final ThreadPoolExecutor[] lanes;
+    private final Thread[] threads;
+    private final AtomicLongArray processed;
+    private volatile AggregationRepository repo;
+    private volatile AggregationRepository lockFreeRepo;
+    private volatile long shutdownDeadline;
+
+    public AggregationLanes(String name, int count, int queueSize) {
+        this.name = name;
+        this.queueSize = queueSize;
+        this.lanes = new ThreadPoolExecutor[count];
+        this.threads = new Thread[count];
+        this.processed = new AtomicLongArray(count);
+        for (int i = 0; i < count; i++) {
+            final int lane = i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                    task -> {
+                        threads[lane] = new Thread(task, "camelot-lane-" + name + "-" + lane);
+                        threads[lane].setDaemon(true);
+                        return threads[lane];
+                    },
+                    (task, executor) -> waitForSpace(task, executor));
+            lanes[i].prestartCoreThread();
+        }
+    }
+
+    /**
+     * Executes the task within the lane of the key.
+     * Blocks while the queue of the lane is full.
+     */
+    public void execute(String key, Runnable task) {
+        final int lane = lane(key);
+        lanes[lane].execute(() -> {
+            try {
+                task.run();
+            } finally {
+                processed.incrementAndGet(lane);
+            }
+        });
+    }
+
+    /**
+     * Executes the task within the lane of the key and waits for its result.
+     * The task is executed by the calling thread if it is already the lane of the key
+     * or if the lanes are stopped: then the queued tasks of the lane are awaited first (within the timeout
+     * of the shutdown), so the task never runs concurrently with them.
+     *
+     * @throws RejectedExecutionException if the lanes are stopped and the lane has not completed its tasks
+     */
+    public <T> T call(String key, Callable<T> task) throws Exception { //NOSONAR
+        final int lane = lane(key);
+        if (threads[lane] == currentThread()) {
+            return task.call();
+        }
+        if (lanes[lane].isShutdown()) {
+            if (!lanes[lane].awaitTermination(shutdownDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new RejectedExecutionException(format("Lane %d of '%s' is stopped", lane, name));
+            }
+            return task.call();
+        }
+        final FutureTask<T> future = new FutureTask<>(task);
+        execute(key, future);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Returns the view of the repository to be used within the lanes.
+     * The states of the local repository are accessed without the locks.
+     */
+    public AggregationRepository repository(AggregationRepository repo) {
+        if (!(repo instanceof LocalAggregationRepository)) {
+            return repo;
+        }
+        if (this.repo != repo) {
+            this.lockFreeRepo = new LockFreeAggregationRepository((LocalAggregationRepository) repo);
+            this.repo = repo;
+        }
+        return lockFreeRepo;
+    }
+
+    /**
+     * Stops accepting the new tasks and waits for the queued ones to complete
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        shutdownDeadline = deadline;
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i].awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                LOGGER.warn("Lane {} of '{}' did not complete {} tasks within timeout",
+                        i, name, lanes[i].getQueue().size());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the lanes are stopped (their queued tasks may still be executing)
+     */
+    public boolean isShutdown() {
+        return lanes[0].isShutdown();
+    }
+
+    public int getCount() {
+        return lanes.length;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Returns the number of the tasks waiting within the lane
+     */
+    public int getDepth(int lane) {
+        return lanes[lane].getQueue().size();
+    }
+
+    /**
+     * Returns the number of the tasks waiting within each lane
+     */
+    public int[] getDepths() {
+        final int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = getDepth(i);
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the number of the tasks executed by the lane
+     */
+    public long getProcessed(int lane) {
+        return processed.get(lane);
+    }
+
+    int lane(String key) {
+        return (key == null) ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Waits for the space within the queue of the lane, rechecking the lane is not stopped meanwhile:
+     * the task queued to the stopped lane may never be executed, so it is taken back and rejected
+     */
+    private static void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+        try {
+            while (!executor.isShutdown()) {
+                if (executor.getQueue().offer(task, SPACE_POLL_MS, MILLISECONDS)) {
+                    if (executor.isShutdown() && executor.remove(task)) {
+                        break;
+                    }
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the lane", e);
+        }
+        throw new RejectedExecutionException("Lane is stopped");
+    }
+}
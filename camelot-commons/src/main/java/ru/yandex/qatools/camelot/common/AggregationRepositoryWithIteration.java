@@ -0,0 +1,18 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+
+import java.util.function.BiConsumer;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface AggregationRepositoryWithIteration {
+
+    /**
+     * Passes each key with its state to the action without locking.
+     * The states are read lazily during the iteration instead of being loaded at once
+     */
+    void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action);
+}
@@ -0,0 +1,14 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.spi.OptimisticLockingAggregationRepository;
+
+/**
+ * Marks the repository honoring the contract of the optimistic locking:
+ * {@link #add(org.apache.camel.CamelContext, String, org.apache.camel.Exchange, org.apache.camel.Exchange)}
+ * does not require the key to be locked and fails if the state was updated since the old exchange was read
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface AggregationRepositoryWithOptimisticLocking extends OptimisticLockingAggregationRepository,
+        AggregationRepositoryWithLocks {
+}
@@ -0,0 +1,25 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+
+import java.util.Map;
+
+/**
+ * Marks the repository able to serve the readonly reads of the states from the cache of the current node.
+ * The cached states may be slightly outdated, so they must never be used to update the states.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface AggregationRepositoryWithReadCache {
+
+    /**
+     * Returns the state of the key, possibly from the cache
+     */
+    Exchange getCached(CamelContext camelContext, String key);
+
+    /**
+     * Returns a map of all keys to the corresponding states, possibly from the cache
+     */
+    Map<String, Exchange> valuesCached(CamelContext camelContext);
+}
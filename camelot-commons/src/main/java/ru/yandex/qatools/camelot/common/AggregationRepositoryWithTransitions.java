@@ -0,0 +1,25 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+
+/**
+ * Marks the repository able to apply the events to the states atomically where the states are kept,
+ * without locking the keys
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface AggregationRepositoryWithTransitions {
+
+    /**
+     * Registers the transition of the plugin on the current node
+     */
+    void registerTransition(CamelContext camelContext, ClassLoader classLoader, StateTransition transition);
+
+    /**
+     * Applies the registered transition to the state of the key. The resulting state is returned only
+     * when it is completed. Returns null if the transition could not be applied,
+     * so the caller must fall back to locking the key.
+     */
+    StateTransition.Result transit(CamelContext camelContext, String key, Exchange message);
+}
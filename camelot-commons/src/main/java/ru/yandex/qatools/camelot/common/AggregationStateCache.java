@@ -0,0 +1,345 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.AggregationRepository;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Keeps the live (deserialized) aggregation states of the plugin between the events
+ * (enabled by the {@link ru.yandex.qatools.camelot.api.annotations.StateCache} annotation).
+ * The cached state is used only while the repository contains exactly the version of the state
+ * it was built from. For the {@link LocalAggregationRepository} the writes of the state are deferred
+ * and performed in background by the flusher unless the repository is the {@link PersistentAggregationRepository}.
+ * All the operations with the key must be performed while holding the repository lock for this key.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationStateCache {
+    private static final Logger LOGGER = getLogger(AggregationStateCache.class);
+
+    private final CamelContext camelContext;
+    private final PluginContext context;
+    private final int maxSize;
+    private final int flushEveryEvents;
+    private final long flushIntervalMs;
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> evicted = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong deferredWrites = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile ScheduledExecutorService flusher;
+    private volatile boolean closed = false;
+
+    public AggregationStateCache(CamelContext camelContext, PluginContext context,
+                                 int maxSize, int flushEveryEvents, long flushIntervalMs) {
+        this.camelContext = camelContext;
+        this.context = context;
+        this.maxSize = maxSize;
+        this.flushEveryEvents = flushEveryEvents;
+        this.flushIntervalMs = flushIntervalMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > AggregationStateCache.this.maxSize) {
+                    if (eldest.getValue().isDirty()) {
+                        evicted.put(eldest.getKey(), eldest.getValue());
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the live state for the key if it was built from the stored body of the state
+     * (or null if there is no such state in the cache)
+     */
+    public Object get(String key, Object storedBody) {
+        Entry entry = entry(key);
+        if (entry != null && entry.isBuiltFrom(storedBody)) {
+            hits.incrementAndGet();
+            return entry.state;
+        }
+        if (entry != null) {
+            invalidate(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Tries to defer the write of the state to the repository.
+     * Returns false if the state must be written immediately.
+     */
+    public boolean defer(String key, Object storedBody, Object state, Exchange result) {
+        if (closed || storedBody == null || !isDeferrable(context.getAggregationRepo())) {
+            return false;
+        }
+        Entry entry = entry(key);
+        if (entry == null || !entry.isBuiltFrom(storedBody)) {
+            entry = new Entry(state, storedBody);
+        }
+        if (entry.dirtyEvents + 1 >= flushEveryEvents
+                || (entry.isDirty() && currentTimeMillis() - entry.dirtySince >= flushIntervalMs)) {
+            return false;
+        }
+        if (!entry.isDirty()) {
+            entry.dirtySince = currentTimeMillis();
+        }
+        entry.state = state;
+        entry.unflushed = result;
+        entry.dirtyEvents++;
+        put(key, entry);
+        deferredWrites.incrementAndGet();
+        startFlusher();
+        return true;
+    }
+
+    /**
+     * Remembers the state which has just been written to the repository
+     */
+    public void written(String key, Object state, Object storedBody) {
+        if (storedBody == null) {
+            invalidate(key);
+        } else {
+            put(key, new Entry(state, storedBody));
+        }
+    }
+
+    /**
+     * Returns the stored exchange containing the deferred changes of the state (if any).
+     * The state is removed from the cache as the caller is going to change it in the repository.
+     */
+    public Exchange materialize(String key, Exchange stored) {
+        final Entry entry = remove(key);
+        if (entry != null && entry.isDirty() && stored != null && entry.isBuiltFrom(stored.getIn().getBody())) {
+            return serialize(entry);
+        }
+        return stored;
+    }
+
+    /**
+     * Removes the state from the cache
+     */
+    public void invalidate(String key) {
+        remove(key);
+    }
+
+    private static boolean isDeferrable(Object repo) {
+        return repo instanceof LocalAggregationRepository && !(repo instanceof PersistentAggregationRepository);
+    }
+
+    private Entry remove(String key) {
+        final Entry evictedEntry = evicted.remove(key);
+        synchronized (entries) {
+            final Entry entry = entries.remove(key);
+            return (entry != null) ? entry : evictedEntry;
+        }
+    }
+
+    /**
+     * Removes the state from the cache unless it contains the deferred changes
+     */
+    public void discard(String key) {
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && !entry.isDirty()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Writes all the deferred states to the repository
+     */
+    public void flushAll() {
+        flush(true);
+    }
+
+    /**
+     * Writes all the deferred states to the repository and stops deferring the writes
+     */
+    public void close() {
+        closed = true;
+        flushAll();
+        if (flusher != null) {
+            camelContext.getExecutorServiceManager().shutdown(flusher);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getDeferredWrites() {
+        return deferredWrites.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    private Entry entry(String key) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            return entry;
+        }
+        final Entry evictedEntry = evicted.remove(key);
+        if (evictedEntry != null) {
+            put(key, evictedEntry);
+        }
+        return evictedEntry;
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+            evicted.remove(key);
+        }
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            synchronized (this) {
+                if (flusher == null) {
+                    final long period = max(flushIntervalMs / 2, 1);
+                    flusher = camelContext.getExecutorServiceManager()
+                            .newSingleThreadScheduledExecutor(this, "camelot-state-cache-" + context.getId());
+                    flusher.scheduleWithFixedDelay(() -> flush(false), period, period, MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void flush(boolean all) {
+        final List<String> keys = new ArrayList<>(evicted.keySet());
+        synchronized (entries) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().isDirty()
+                        && (all || currentTimeMillis() - entry.getValue().dirtySince >= flushIntervalMs)) {
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+        final AggregationLanes lanes = context.getLanes();
+        for (String key : keys) {
+            try {
+                if (lanes != null) {
+                    lanes.call(key, () -> {
+                        flush(key, lanes.repository(context.getAggregationRepo()));
+                        return null;
+                    });
+                } else {
+                    flush(key, context.getAggregationRepo());
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to flush the state of plugin '{}' with key '{}'", context.getId(), key, e);
+            }
+        }
+    }
+
+    private void flush(String key, AggregationRepository repo) {
+        try {
+            final Exchange stored = repo.get(camelContext, key);
+            final Entry evictedEntry = evicted.remove(key);
+            final Entry entry;
+            synchronized (entries) {
+                entry = (evictedEntry != null) ? evictedEntry : entries.get(key);
+            }
+            if (entry == null || !entry.isDirty()) {
+                return;
+            }
+            if (stored == null || !entry.isBuiltFrom(stored.getIn().getBody())) {
+                LOGGER.warn("The state of plugin '{}' with key '{}' has been changed in the repository, "
+                        + "dropping {} deferred events", context.getId(), key, entry.dirtyEvents);
+                invalidate(key);
+                return;
+            }
+            final Exchange result;
+            try {
+                result = serialize(entry);
+            } catch (Exception e) {
+                invalidate(key);
+                throw e;
+            }
+            repo.add(camelContext, key, result);
+            flushes.incrementAndGet();
+            if (evictedEntry == null) {
+                written(key, entry.state, result.getIn().getBody());
+            }
+        } finally {
+            if (repo instanceof AggregationRepositoryWithLocks) {
+                ((AggregationRepositoryWithLocks) repo).unlockQuietly(key);
+            }
+        }
+    }
+
+    private Exchange serialize(Entry entry) {
+        final Exchange result = entry.unflushed.copy();
+        return context.getMessagesSerializer().postProcess(result, context.getClassLoader());
+    }
+
+    /**
+     * The live state with the version of the stored state it was built from
+     */
+    static class Entry {
+        private final Object storedBody;
+        private volatile Object state;
+        private volatile Exchange unflushed;
+        private volatile int dirtyEvents;
+        private volatile long dirtySince;
+
+        Entry(Object state, Object storedBody) {
+            this.state = state;
+            this.storedBody = storedBody;
+        }
+
+        boolean isDirty() {
+            return dirtyEvents > 0;
+        }
+
+        boolean isBuiltFrom(Object body) {
+            if (body == null || storedBody == null) {
+                return false;
+            }
+            if (body == storedBody) {
+                return true;
+            }
+            if (body instanceof byte[] && storedBody instanceof byte[]) {
+                return Arrays.equals((byte[]) body, (byte[]) storedBody);
+            }
+            return body.equals(storedBody);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.AggregationRepository;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.annotations.OnExpire;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.currentTimeMillis;
+import static org.slf4j.LoggerFactory.getLogger;
+import static ru.yandex.qatools.camelot.util.ServiceUtil.forEachAnnotatedMethod;
+
+/**
+ * Evicts the states of the aggregator which did not receive any event for the idle time.
+ * The deadlines of the states are kept within the timer wheel, so the expiry does not scan the repository:
+ * each state has a single timeout which is moved forward lazily when it is due while the state was updated.
+ * The time of the last update is also stored within the state to respect the updates made by other nodes.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationStateExpiry {
+    public static final String UPDATED_AT_PROPERTY = "camelotStateUpdatedAt";
+    private static final Logger LOGGER = getLogger(AggregationStateExpiry.class);
+
+    private final CamelContext camelContext;
+    private final PluginContext context;
+    private final long idleMs;
+    private final long tickMs;
+    private final TimerWheel<String> wheel;
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    private final List<Method> callbacks = new ArrayList<>();
+    private final ExecutorService evictor;
+    private final Thread ticker;
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong callbackFailures = new AtomicLong();
+    private volatile boolean tracksStored;
+    private volatile boolean stopped;
+
+    public AggregationStateExpiry(CamelContext camelContext, PluginContext context, long idleMs,
+                                  long tickMs, int wheelSize) throws Exception { //NOSONAR
+        this.camelContext = camelContext;
+        this.context = context;
+        this.idleMs = idleMs;
+        this.tickMs = tickMs;
+        this.wheel = new TimerWheel<>(wheelSize);
+        final Class<?> pluginClass = context.getClassLoader().loadClass(context.getPluginClass());
+        forEachAnnotatedMethod(pluginClass, OnExpire.class, (method, annotation) ->
+                (method.getParameterTypes().length == 1) && callbacks.add(method));
+        this.evictor = Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "camelot-expiry-" + context.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = TimerWheel.startTicker("camelot-expiry-" + context.getId() + "-wheel",
+                tickMs, () -> stopped, this::tick);
+    }
+
+    /**
+     * Marks the state of the key as updated now
+     */
+    public void touch(String key) {
+        deadlines.put(key, currentTimeMillis() + idleMs);
+        schedule(key, idleMs);
+    }
+
+    /**
+     * Stops tracking the state of the key (e.g. when it is completed)
+     */
+    public void forget(String key) {
+        deadlines.remove(key);
+    }
+
+    /**
+     * Stops the expiry
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        stopped = true;
+        ticker.interrupt();
+        evictor.shutdown();
+        evictor.awaitTermination(timeout, unit);
+        LOGGER.info("Expiry of {} stopped: expired={}, callback failures={}, tracked={}",
+                context.getId(), getExpired(), getCallbackFailures(), getTracked());
+    }
+
+    /**
+     * Returns the number of the evicted states
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Returns the number of the failed {@link OnExpire} callbacks
+     */
+    public long getCallbackFailures() {
+        return callbackFailures.get();
+    }
+
+    /**
+     * Returns the number of the states being tracked
+     */
+    public int getTracked() {
+        return deadlines.size();
+    }
+
+    private void schedule(String key, long delayMs) {
+        if (scheduled.add(key)) {
+            synchronized (wheel) {
+                wheel.schedule(key, (delayMs + tickMs - 1) / tickMs);
+            }
+        }
+    }
+
+    private void tick() {
+        if (!tracksStored) {
+            tracksStored = true;
+            trackStored();
+        }
+        final List<String> due;
+        synchronized (wheel) {
+            due = wheel.advance();
+        }
+        final long now = currentTimeMillis();
+        for (String key : due) {
+            scheduled.remove(key);
+            final Long deadline = deadlines.get(key);
+            if (deadline == null) {
+                continue;
+            }
+            if (deadline > now) {
+                schedule(key, deadline - now);
+                continue;
+            }
+            try {
+                evictor.execute(() -> expire(key));
+            } catch (RejectedExecutionException e) { //NOSONAR
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts tracking the states which are already stored (e.g. before the restart)
+     */
+    private void trackStored() {
+        try {
+            for (String key : context.getAggregationRepo().getKeys()) {
+                if (!deadlines.containsKey(key)) {
+                    touch(key);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to track the stored states of {}", context.getId(), e);
+        }
+    }
+
+    private void expire(String key) {
+        final AggregationLanes lanes = context.getLanes();
+        try {
+            if (lanes != null) {
+                lanes.call(key, () -> {
+                    expire(lanes.repository(context.getAggregationRepo()), key);
+                    return null;
+                });
+            } else {
+                expire(context.getAggregationRepo(), key);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to expire the state of {} with key '{}', will try later", context.getId(), key, e);
+            if (deadlines.containsKey(key)) {
+                schedule(key, idleMs);
+            }
+        }
+    }
+
+    private void expire(AggregationRepository repo, String key) {
+        final Long deadline = deadlines.get(key);
+        if (deadline == null) {
+            return;
+        }
+        if (deadline > currentTimeMillis()) {
+            schedule(key, deadline - currentTimeMillis());
+            return;
+        }
+        try {
+            final Exchange stored = repo.get(camelContext, key);
+            if (stored == null) {
+                deadlines.remove(key, deadline);
+                return;
+            }
+            final Long updatedAt = stored.getProperty(UPDATED_AT_PROPERTY, Long.class);
+            if (updatedAt != null && updatedAt + idleMs > currentTimeMillis()) {
+                deadlines.put(key, updatedAt + idleMs);
+                schedule(key, updatedAt + idleMs - currentTimeMillis());
+                return;
+            }
+            final AggregationStateCache cache = context.getStateCache();
+            final Exchange state = (cache != null) ? cache.materialize(key, stored) : stored;
+            onExpire(key, state);
+            repo.remove(camelContext, key, state);
+            deadlines.remove(key, deadline);
+            expired.incrementAndGet();
+            LOGGER.debug("Expired the state of {} with key '{}'", context.getId(), key);
+        } finally {
+            if (repo instanceof AggregationRepositoryWithLocks) {
+                ((AggregationRepositoryWithLocks) repo).unlockQuietly(key);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onExpire(String key, Exchange state) {
+        if (callbacks.isEmpty()) {
+            return;
+        }
+        try {
+            final Exchange exchange = state.copy();
+            context.getMessagesSerializer().preProcess(exchange, context.getClassLoader());
+            final Object instance = context.getClassLoader().loadClass(context.getPluginClass()).newInstance();
+            context.getInjector().inject(instance, context, exchange);
+            for (Method method : callbacks) {
+                method.invoke(instance, exchange.getIn().getBody());
+            }
+        } catch (Exception e) {
+            callbackFailures.incrementAndGet();
+            LOGGER.error("Failed to call the expiry callback of {} for key '{}'", context.getId(), key, e);
+        }
+    }
+}
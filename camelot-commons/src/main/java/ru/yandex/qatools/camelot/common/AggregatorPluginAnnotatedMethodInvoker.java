@@ -40,8 +40,25 @@ public class AggregatorPluginAnnotatedMethodInvoker extends PluginAnnotatedMetho
         LOGGER.debug("Invoking method {} of plugin {}, repo class {}",
                 method.getName(), plugin.getId(), repo.getClass().getName());
 
+        final AggregationLanes lanes = plugin.getContext().getLanes();
         for (String key : keys) {
-            invokeForKey(repo, key, method, args);
+            if (lanes != null && !readOnly) {
+                invokeWithinLane(lanes, key, method, args);
+            } else {
+                invokeForKey(repo, key, method, args);
+            }
+        }
+    }
+
+    private void invokeWithinLane(AggregationLanes lanes, String key, Method method, Object[] args) {
+        try {
+            lanes.call(key, () -> {
+                invokeForKey(lanes.repository(plugin.getContext().getAggregationRepo()), key, method, args);
+                return null;
+            });
+        } catch (Exception e) {
+            LOGGER.error("Failed to process the plugin's '{}' method '{}' invocation within lane!",
+                    plugin.getId(), method.getName(), e);
         }
     }
 
@@ -83,10 +100,16 @@ public class AggregatorPluginAnnotatedMethodInvoker extends PluginAnnotatedMetho
 
     private Exchange getExchange(AggregationRepository repo, String key) {
         Exchange exchange;
-        if (readOnly && repo instanceof AggregationRepositoryWithLocks) {
+        if (readOnly && repo instanceof AggregationRepositoryWithReadCache) {
+            exchange = ((AggregationRepositoryWithReadCache) repo).getCached(camelContext, key);
+        } else if (readOnly && repo instanceof AggregationRepositoryWithLocks) {
             exchange = ((AggregationRepositoryWithLocks) repo).getWithoutLock(camelContext, key);
         } else {
             exchange = repo.get(camelContext, key);
+            final AggregationStateCache cache = plugin.getContext().getStateCache();
+            if (cache != null && !readOnly) {
+                exchange = cache.materialize(key, exchange);
+            }
         }
         return exchange;
     }
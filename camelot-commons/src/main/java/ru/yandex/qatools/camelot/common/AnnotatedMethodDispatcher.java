@@ -3,18 +3,26 @@ package ru.yandex.qatools.camelot.common;
 import ru.yandex.qatools.camelot.error.DispatchException;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.format;
+import static java.lang.invoke.MethodType.genericMethodType;
 import static java.util.Arrays.asList;
 
 /**
+ * Dispatches the parameters to the methods annotated with the given annotation.
+ * The methods to be called are resolved once per annotation and classes of the parameters.
+ *
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  */
 public class AnnotatedMethodDispatcher {
 
+    private static final Map<DispatchKey, DispatchCall[]> DISPATCH_CACHE = new ConcurrentHashMap<>();
+
     private final Object instance;
     private final MetadataClassInfo cache;
 
@@ -24,91 +32,88 @@ public class AnnotatedMethodDispatcher {
     }
 
     public Map<Method, Object> dispatch(Class<? extends Annotation> annClass, boolean singleCall, Object... params) throws Exception { //NOSONAR
-        final List<Class> paramTypes = new ArrayList<>();
-        final List<Object> paramList = new ArrayList<>();
-        for (Object value : params) {
-            paramTypes.add(value.getClass());
-            paramList.add(value);
-        }
-        if (paramTypes.isEmpty()) {
+        if (params.length == 0) {
             throw new DispatchException(format("Failed to invoke methods annotated with @%s: parameters are empty!", annClass));
         }
+        final Class[] paramTypes = new Class[params.length];
+        for (int i = 0; i < params.length; i++) {
+            paramTypes[i] = params[i].getClass();
+        }
+        final DispatchKey key = new DispatchKey(cache, annClass, singleCall, paramTypes);
+        DispatchCall[] calls = DISPATCH_CACHE.get(key);
+        if (calls == null) {
+            calls = resolveCalls(annClass, singleCall, paramTypes);
+            DISPATCH_CACHE.put(key, calls);
+        }
+        if (calls.length == 1) {
+            return Collections.singletonMap(calls[0].method, calls[0].call(instance, params));
+        }
         final Map<Method, Object> called = new HashMap<>();
+        for (DispatchCall call : calls) {
+            called.put(call.method, call.call(instance, params));
+        }
+        return called;
+    }
+
+    /**
+     * Resolves the methods to be called for the parameter classes in the order of their calls
+     */
+    private DispatchCall[] resolveCalls(Class<? extends Annotation> annClass, boolean singleCall,
+                                        Class[] types) throws Exception { //NOSONAR
+        final List<Class> paramTypes = asList(types);
+        final Map<Method, DispatchCall> called = new LinkedHashMap<>();
         for (int i = 0; i <= paramTypes.size(); ++i) {
             for (int j = paramTypes.size(); j >= i; --j) {
                 final List<Class> typesSubList = paramTypes.subList(i, j);
                 final Deque<Class[]> typesStack = new ArrayDeque<>();
                 typesStack.push(typesSubList.toArray(new Class[typesSubList.size()]));
-                call(annClass, typesStack, paramList.subList(i, j), singleCall, called, 0);
+                resolve(annClass, typesStack, i, singleCall, called, 0);
                 if (singleCall && !called.isEmpty()) {
-                    return called;
+                    return called.values().toArray(new DispatchCall[called.size()]);
                 }
             }
         }
-        return called;
+        return called.values().toArray(new DispatchCall[called.size()]);
     }
 
+    protected void resolve(Class<? extends Annotation> annClass, Deque<Class[]> typesStack, int paramsFrom,
+                           boolean singleCall, Map<Method, DispatchCall> called, int paramIdx) throws Exception { //NOSONAR
+        if (singleCall && !called.isEmpty()) {
+            return;
+        }
+        List<Class> paramTypes = new ArrayList<>();
+        paramTypes.addAll(asList(typesStack.peek()));
+        if (paramIdx >= paramTypes.size() || paramTypes.get(paramIdx) == Object.class) {
+            return;
+        }
+        for (Class paramType : cache.getSuperClasses(paramTypes.get(paramIdx))) {
+            paramTypes.set(paramIdx, paramType);
 
-    protected void call(Class<? extends Annotation> annClass, Deque<Class[]> typesStack, List<Object> params,
-                        boolean singleCall, Map<Method, Object> called, int paramIdx) throws Exception { //NOSONAR
-        try {
+            findSuitableMethods(annClass, paramTypes, paramsFrom, singleCall, called);
+            typesStack.push(paramTypes.toArray(new Class[paramTypes.size()]));
+            resolve(annClass, typesStack, paramsFrom, singleCall, called, paramIdx + 1);
+            typesStack.pop();
             if (singleCall && !called.isEmpty()) {
                 return;
             }
-            List<Class> paramTypes = new ArrayList<>();
-            paramTypes.addAll(asList(typesStack.peek()));
-            if (paramIdx >= paramTypes.size() || paramTypes.get(paramIdx) == Object.class) {
-                return;
-            }
-            for (Class paramType : cache.getSuperClasses(paramTypes.get(paramIdx))) {
-                paramTypes.set(paramIdx, paramType);
-
-                findSuitableMethodAndCall(annClass, paramTypes, params, singleCall, called);
-                typesStack.push(paramTypes.toArray(new Class[paramTypes.size()]));
-                call(annClass, typesStack, params, singleCall, called, paramIdx + 1);
-                typesStack.pop();
-                if (singleCall && !called.isEmpty()) {
-                    return;
-                }
-            }
-        } catch (IllegalArgumentException | IllegalAccessException e) {
-            throw wrapThrowableIfRequired(e, e.getCause());
-        } catch (InvocationTargetException e) {
-            throw wrapThrowableIfRequired(e, e.getTargetException());
-        }
-    }
-
-    private Exception wrapThrowableIfRequired(Throwable e, Throwable cause) throws Exception { //NOSONAR
-        if (cause == null) {
-            return new Exception(e);
         }
-        return (cause instanceof Exception) ? (Exception) cause : new Exception(cause);
     }
 
-    @SuppressWarnings("unchecked")
-    private void findSuitableMethodAndCall(Class<? extends Annotation> annClass, List<Class> paramTypes, List<Object> params,
-                                           boolean singleCall, Map<Method, Object> called) throws Exception { //NOSONAR
+    private void findSuitableMethods(Class<? extends Annotation> annClass, List<Class> paramTypes, int paramsFrom,
+                                     boolean singleCall, Map<Method, DispatchCall> called) throws Exception { //NOSONAR
         final Class[] mParamTypes = paramTypes.toArray(new Class[paramTypes.size()]);
         final Collection<Method> methods = cache.getMethodsByParamTypes(annClass, mParamTypes);
         for (Method method : methods) {
-            if (checkMethodParams(method.getParameterTypes(), paramTypes)) {
-                callMethod(method, paramTypes, params, called);
-                if (singleCall && !called.isEmpty()) {
+            if (checkMethodParams(method.getParameterTypes(), paramTypes)
+                    && paramTypes.size() == method.getParameterTypes().length && !called.containsKey(method)) {
+                called.put(method, new DispatchCall(method, paramsFrom));
+                if (singleCall) {
                     return;
                 }
             }
         }
     }
 
-    private void callMethod(Method method, List<Class> types, List<Object> params, Map<Method, Object> called) throws IllegalAccessException, InvocationTargetException {
-        if (types.size() == method.getParameterTypes().length && !called.containsKey(method)) {
-            called.put(
-                    method,
-                    method.invoke(instance, params.toArray(new Object[types.size()]))
-            );
-        }
-    }
-
     private boolean checkMethodParams(Class[] paramTypes, List<Class> types) {
         if (types.size() > paramTypes.length) {
             return false;
@@ -120,4 +125,75 @@ public class AnnotatedMethodDispatcher {
         }
         return true;
     }
+
+    /**
+     * The method to be called with the sublist of the dispatched parameters
+     */
+    private static final class DispatchCall {
+        private final Method method;
+        private final MethodHandle handle;
+        private final int paramsFrom;
+        private final int paramsCount;
+
+        private DispatchCall(Method method, int paramsFrom) throws IllegalAccessException {
+            this.method = method;
+            this.paramsFrom = paramsFrom;
+            this.paramsCount = method.getParameterCount();
+            method.setAccessible(true);
+            this.handle = MethodHandles.lookup().unreflect(method)
+                    .asType(genericMethodType(paramsCount + 1))
+                    .asSpreader(Object[].class, paramsCount);
+        }
+
+        private Object call(Object instance, Object[] params) throws Exception { //NOSONAR
+            final Object[] args = (paramsFrom == 0 && paramsCount == params.length)
+                    ? params : Arrays.copyOfRange(params, paramsFrom, paramsFrom + paramsCount);
+            try {
+                return (Object) handle.invokeExact(instance, args);
+            } catch (Exception e) {
+                throw e;
+            } catch (Throwable e) { //NOSONAR
+                throw new Exception(e);
+            }
+        }
+    }
+
+    /**
+     * The annotation and the classes of the parameters of the dispatch within the class
+     */
+    private static final class DispatchKey {
+        private final MetadataClassInfo meta;
+        private final Class<? extends Annotation> annClass;
+        private final boolean singleCall;
+        private final Class[] paramTypes;
+        private final int hashCode;
+
+        private DispatchKey(MetadataClassInfo meta, Class<? extends Annotation> annClass,
+                            boolean singleCall, Class[] paramTypes) {
+            this.meta = meta;
+            this.annClass = annClass;
+            this.singleCall = singleCall;
+            this.paramTypes = paramTypes;
+            this.hashCode = 31 * (31 * (31 * System.identityHashCode(meta) + annClass.hashCode())
+                    + Boolean.hashCode(singleCall)) + Arrays.hashCode(paramTypes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DispatchKey)) {
+                return false;
+            }
+            final DispatchKey that = (DispatchKey) o;
+            return meta == that.meta && annClass == that.annClass && singleCall == that.singleCall
+                    && Arrays.equals(paramTypes, that.paramTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
@@ -1,27 +1,40 @@
 package ru.yandex.qatools.camelot.common;
 
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
-import org.apache.camel.Processor;
+import org.apache.camel.Message;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.spi.AggregationRepository;
+import org.apache.camel.spi.OptimisticLockingAggregationRepository.OptimisticLockingException;
 import ru.yandex.qatools.camelot.api.error.*;
 import ru.yandex.qatools.camelot.config.PluginContext;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
+import static java.lang.String.format;
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonList;
 import static org.apache.camel.util.ExchangeHelper.createCorrelatedCopy;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.FINISHED_EXCHANGE;
+import static ru.yandex.qatools.camelot.common.AggregationStateExpiry.UPDATED_AT_PROPERTY;
+import static ru.yandex.qatools.camelot.common.MicroBatchAggregationStrategy.BATCH_PROPERTY;
 import static ru.yandex.qatools.camelot.util.ExceptionUtil.formatStackTrace;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  * @author Innokenty Shuvalov (mailto: innokenty@yandex-team.ru)
  */
-public class CamelotAggregationStrategy extends FSMAggregationStrategy implements Processor {
+public class CamelotAggregationStrategy extends FSMAggregationStrategy implements AsyncProcessor {
 
     private static final String MESSAGE_RESENT_ID_HEADER = "MESSAGE_RESENT_ID";
+    private static final String MESSAGE_RETRY_ATTEMPT_HEADER = "MESSAGE_RETRY_ATTEMPT";
 
     private final PluginContext context;
     private volatile ProducerTemplate retryProducer;
@@ -33,11 +46,43 @@ public class CamelotAggregationStrategy extends FSMAggregationStrategy implement
         super(classLoader, classLoader.loadClass(context.getPluginClass()), fsmEngineBuilder, context.getMessagesSerializer());
         this.setCamelContext(camelContext);
         this.context = context;
+        if (context.getRetries() != null) {
+            context.getRetries().handleWith(this::retryNow, this::resendWithDelay);
+        }
+        if (context.isTransitOnOwner() && context.getAggregationRepo() instanceof AggregationRepositoryWithTransitions) {
+            ((AggregationRepositoryWithTransitions) context.getAggregationRepo())
+                    .registerTransition(camelContext, classLoader, this::transit);
+        }
+    }
+
+    @Override
+    public boolean process(Exchange message, AsyncCallback callback) {
+        final AggregationLanes lanes = context.getLanes();
+        final String key = (String) message.getIn().getHeader(CORRELATION_KEY);
+        if (lanes == null || isEmpty(key)) {
+            processAndCallback(message, callback, true);
+            return true;
+        }
+        try {
+            lanes.execute(key, () -> processAndCallback(message, callback, false));
+            return false;
+        } catch (RejectedExecutionException e) { //NOSONAR
+            logger.warn("Lanes are stopped, resending message for plugin '{}' with key '{}'", context.getId(), key);
+            resendWithDelay(copyAll(messagesOf(message)));
+            message.getIn().setBody(null);
+            callback.done(true);
+            return true;
+        }
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void process(Exchange message) {
-        final Exchange originalMessage = message.copy();
+        final List<Exchange> batch = message.getProperty(BATCH_PROPERTY, List.class);
+        // keep the references to the untouched input, the copies are made only when the message is resent
+        final Message originalIn = message.getIn();
+        final Object originalBody = originalIn.getBody();
+        final Object[] originalBatchBodies = (batch != null) ? bodiesOf(batch) : null;
         final String resentId = (String) message.getIn().getHeader(MESSAGE_RESENT_ID_HEADER);
         if (resentId != null) {
             logger.debug("Handling previously resent message for plugin '{}' with id '{}'", context.getId(), resentId);
@@ -52,39 +97,177 @@ public class CamelotAggregationStrategy extends FSMAggregationStrategy implement
         if (context.isShuttingDown()) {
             logger.warn("Context is shutting down, resending message for plugin '{}' with key '{}'",
                     context.getId(), key);
-            resendWithDelay(originalMessage);
+            resendOriginals(message, originalIn, originalBody, batch, originalBatchBodies);
         }
 
-        final AggregationRepository repo = context.getAggregationRepo();
+        final AggregationRepository repo = aggregationRepo();
+        boolean locked = true;
+        boolean eachEvent = false;
         try {
-            processOrDie(message, key, repo);
+            if (batch != null) {
+                processBatchOrDie(message, batch, key, repo);
+            } else if (transitOnOwner(message, key)) {
+                locked = false;
+            } else if (isOptimistic()) {
+                locked = false;
+                processOptimisticOrDie(message, key, originalIn, originalBody);
+            } else {
+                processOrDie(message, key, repo);
+            }
         } catch (RepositoryLockWaitException e) { //NOSONAR
             logger.warn("Unable to lock the entry, forcing unlock and resending message "
                             + "for plugin '{}' and key '{}', because of: {}",
                     context.getId(), key, e.getMessage());
             repo.confirm(camelContext, key);
-            resendWithDelay(originalMessage);
+            resendOriginals(message, originalIn, originalBody, batch, originalBatchBodies);
         } catch (RepositoryUnreachableException | RepositoryNeedRestartException | RepositoryDirtyWriteAttemptException e) { //NOSONAR
             // resend with delay
             logger.warn("Repository is unreachable/dirty write, resending message "
                     + "for plugin '{}' with key '{}', because of: {}", context.getId(), key, e.getMessage());
-            resendWithDelay(originalMessage);
+            resendOriginals(message, originalIn, originalBody, batch, originalBatchBodies);
         } catch (RepositoryFailureException e) {
-            // skip message
-            logger.error("Repository failure occurred, SKIPPING MESSAGE for plugin '{}' with key '{}'",
-                    context.getId(), key, e);
+            if (batch != null && batch.size() > 1) {
+                eachEvent = true;
+                logger.warn("Repository failure occurred, processing the batch event by event "
+                        + "for plugin '{}' with key '{}'", context.getId(), key, e);
+            } else {
+                // skip message
+                logger.error("Repository failure occurred, SKIPPING MESSAGE for plugin '{}' with key '{}'",
+                        context.getId(), key, e);
+            }
         } catch (InvocationTargetException e) { //NOSONAR
             logger.error("Failed to aggregate, SKIPPING MESSAGE for plugin '{}' with key '{}': \n {}",
                     context.getId(), key, formatStackTrace(e.getTargetException()), e.getTargetException());
         } catch (Exception e) {
-            logger.error("Failed to aggregate, SKIPPING MESSAGE for plugin '{}' with key '{}'",
-                    context.getId(), key, e);
+            if (batch != null && batch.size() > 1) {
+                eachEvent = true;
+                logger.warn("Failed to aggregate, processing the batch event by event for plugin '{}' with key '{}'",
+                        context.getId(), key, e);
+            } else {
+                logger.error("Failed to aggregate, SKIPPING MESSAGE for plugin '{}' with key '{}'",
+                        context.getId(), key, e);
+            }
         } finally {
-            unlockQuietly(repo, key);
+            if (locked) {
+                unlockQuietly(repo, key);
+            }
+        }
+        if (eachEvent) {
+            processEachEvent(message, batch, originalBatchBodies);
+        }
+    }
+
+    /**
+     * Processes the events of the failed batch one by one (nothing of the batch has been written),
+     * so the failure of a single event skips or resends that event only
+     */
+    private void processEachEvent(Exchange message, List<Exchange> batch, Object[] originalBatchBodies) {
+        final List<Message> output = new ArrayList<>();
+        for (int i = 0; i < originalBatchBodies.length; i++) {
+            final Exchange event = batch.get(i);
+            event.getIn().setBody(originalBatchBodies[i]);
+            event.getIn().removeHeader(FINISHED_EXCHANGE);
+            process(event);
+            if (event.getIn().getBody() != null) {
+                output.add(event.getIn());
+            }
+        }
+        message.getIn().setBody(output);
+    }
+
+    /**
+     * Applies the message to the state, this is the transition run by the repository on the owner of the state
+     */
+    private StateTransition.Result transit(Exchange state, Exchange message) throws Exception { //NOSONAR
+        final Exchange result = createCorrelatedCopy(super.aggregate(state, message), false);
+        copyEmptyProperties(state, result);
+        if (isCompleted(result)) {
+            return new StateTransition.Result(result, true);
+        }
+        if (context.getExpiry() != null) {
+            result.setProperty(UPDATED_AT_PROPERTY, currentTimeMillis());
+        }
+        return new StateTransition.Result(result, false);
+    }
+
+    /**
+     * Lets the repository apply the message to the state on its owner.
+     * Returns false if the message must be processed with the key locked.
+     */
+    private boolean transitOnOwner(Exchange message, String key) {
+        final AggregationRepository repo = context.getAggregationRepo();
+        if (!context.isTransitOnOwner() || context.getStateCache() != null
+                || !(repo instanceof AggregationRepositoryWithTransitions)) {
+            return false;
+        }
+        final StateTransition.Result result = ((AggregationRepositoryWithTransitions) repo)
+                .transit(camelContext, key, message);
+        if (result == null) {
+            return false;
+        }
+        if (result.isCompleted()) {
+            message.setIn(result.getState().getIn());
+            completed(key);
+        } else {
+            message.getIn().setBody(null);
+            if (context.getExpiry() != null) {
+                context.getExpiry().touch(key);
+            }
+        }
+        return true;
+    }
+
+    private boolean isOptimistic() {
+        return context.getOptimisticAttempts() > 0 && context.getStateCache() == null
+                && context.getAggregationRepo() instanceof AggregationRepositoryWithOptimisticLocking;
+    }
+
+    /**
+     * Applies the message to the state read without locking and writes the result only if the state
+     * was not updated in the meantime. Applies the message to the fresh state again on conflict.
+     */
+    private void processOptimisticOrDie(Exchange message, String key, Message originalIn, Object originalBody)
+            throws Exception { //NOSONAR
+        final AggregationRepositoryWithOptimisticLocking repo =
+                (AggregationRepositoryWithOptimisticLocking) context.getAggregationRepo();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final Exchange state = repo.getWithoutLock(camelContext, key);
+                final Exchange result = createCorrelatedCopy(super.aggregate(state, message), false);
+                copyEmptyProperties(state, result);
+                if (isCompleted(result)) {
+                    repo.remove(camelContext, key, result);
+                    message.setIn(result.getIn());
+                    completed(key);
+                } else {
+                    updated(key, result);
+                    repo.add(camelContext, key, state, result);
+                    message.getIn().setBody(null);
+                }
+                return;
+            } catch (OptimisticLockingException | RepositoryDirtyWriteAttemptException e) { //NOSONAR
+                if (attempt >= context.getOptimisticAttempts()) {
+                    message.getIn().setBody(null);
+                    throw new RepositoryDirtyWriteAttemptException(format(
+                            "Failed to write the state of the key '%s' within %d attempts", key, attempt), e);
+                }
+                logger.debug("State was updated concurrently, retrying for plugin '{}' with key '{}'",
+                        context.getId(), key);
+                originalIn.setBody(originalBody);
+                originalIn.removeHeader(FINISHED_EXCHANGE);
+                message.setIn(originalIn);
+            } catch (Exception e) {
+                message.getIn().setBody(null);
+                throw e;
+            }
         }
     }
 
     private void processOrDie(Exchange message, String key, AggregationRepository repo) throws Exception { //NOSONAR
+        if (context.getStateCache() != null) {
+            processCachedOrDie(message, key, repo, context.getStateCache());
+            return;
+        }
         try {
             final Exchange state = repo.get(camelContext, key);
             final Exchange result = createCorrelatedCopy(super.aggregate(state, message), false);
@@ -92,8 +275,10 @@ public class CamelotAggregationStrategy extends FSMAggregationStrategy implement
             if (isCompleted(result)) {
                 message.setIn(result.getIn());
                 repo.remove(camelContext, key, result);
+                completed(key);
             } else {
                 message.getIn().setBody(null);
+                updated(key, result);
                 repo.add(camelContext, key, result);
             }
         } catch (Exception e) {
@@ -102,6 +287,198 @@ public class CamelotAggregationStrategy extends FSMAggregationStrategy implement
         }
     }
 
+    private void processCachedOrDie(Exchange message, String key, AggregationRepository repo,
+                                    AggregationStateCache cache) throws Exception { //NOSONAR
+        try {
+            final Exchange stored = repo.get(camelContext, key);
+            final Object storedBody = (stored == null) ? null : stored.getIn().getBody();
+            Object state = cache.get(key, storedBody);
+            if (state == null && stored != null) {
+                state = processAfterIn(stored).getIn().getBody();
+            }
+            state = fire(state, message);
+            message.getIn().setBody(state);
+            final Exchange result = createCorrelatedCopy(message, false);
+            copyEmptyProperties(stored, result);
+            if (isCompleted(result)) {
+                cache.invalidate(key);
+                message.setIn(processBeforeOut(result).getIn());
+                repo.remove(camelContext, key, result);
+                completed(key);
+            } else {
+                message.getIn().setBody(null);
+                updated(key, result);
+                if (!cache.defer(key, storedBody, state, result)) {
+                    repo.add(camelContext, key, processBeforeOut(result));
+                    cache.written(key, state, result.getIn().getBody());
+                }
+            }
+        } catch (Exception e) {
+            message.getIn().setBody(null);
+            cache.discard(key);
+            throw e;
+        }
+    }
+
+    private void processAndCallback(Exchange message, AsyncCallback callback, boolean doneSync) {
+        try {
+            process(message);
+        } catch (Exception e) {
+            message.setException(e);
+        } finally {
+            callback.done(doneSync);
+        }
+    }
+
+    /**
+     * Marks the state as updated for its expiry
+     */
+    private void updated(String key, Exchange result) {
+        final AggregationStateExpiry expiry = context.getExpiry();
+        if (expiry != null) {
+            result.setProperty(UPDATED_AT_PROPERTY, currentTimeMillis());
+            expiry.touch(key);
+        }
+    }
+
+    private void completed(String key) {
+        final AggregationStateExpiry expiry = context.getExpiry();
+        if (expiry != null) {
+            expiry.forget(key);
+        }
+    }
+
+    private AggregationRepository aggregationRepo() {
+        return (context.getLanes() != null)
+                ? context.getLanes().repository(context.getAggregationRepo())
+                : context.getAggregationRepo();
+    }
+
+    private void processBatchOrDie(Exchange message, List<Exchange> batch, String key, AggregationRepository repo)
+            throws Exception { //NOSONAR
+        final AggregationStateCache cache = context.getStateCache();
+        try {
+            final Exchange stored = repo.get(camelContext, key);
+            final Object storedBody = (stored == null) ? null : stored.getIn().getBody();
+            Object state = (cache != null) ? cache.get(key, storedBody) : null;
+            if (state == null && stored != null) {
+                state = processAfterIn(stored).getIn().getBody();
+            }
+            FSMEngine engine = new FSMEngine(state);
+            final List<Message> output = new ArrayList<>();
+            Exchange result = null;
+            boolean completed = false;
+            for (Exchange event : batch) {
+                event.getIn().setBody(fire(engine, event));
+                result = createCorrelatedCopy(event, false);
+                copyEmptyProperties(stored, result);
+                completed = isCompleted(result);
+                if (completed) {
+                    output.add(processBeforeOut(result).getIn());
+                    engine = new FSMEngine(null);
+                }
+            }
+            message.getIn().setBody(output);
+            if (result == null) {
+                return;
+            }
+            if (completed) {
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+                repo.remove(camelContext, key, result);
+                completed(key);
+            } else {
+                updated(key, result);
+                repo.add(camelContext, key, processBeforeOut(result));
+                if (cache != null) {
+                    cache.written(key, engine.getState(), result.getIn().getBody());
+                }
+            }
+        } catch (Exception e) {
+            message.getIn().setBody(null);
+            if (cache != null) {
+                cache.discard(key);
+            }
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Exchange> messagesOf(Exchange message) {
+        final List<Exchange> batch = message.getProperty(BATCH_PROPERTY, List.class);
+        return (batch != null) ? batch : singletonList(message);
+    }
+
+    private List<Exchange> copyAll(List<Exchange> messages) {
+        final List<Exchange> copies = new ArrayList<>(messages.size());
+        for (Exchange message : messages) {
+            copies.add(message.copy());
+        }
+        return copies;
+    }
+
+    private Object[] bodiesOf(List<Exchange> batch) {
+        final Object[] bodies = new Object[batch.size()];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = batch.get(i).getIn().getBody();
+        }
+        return bodies;
+    }
+
+    /**
+     * Resends the copies of the messages restored to the state they were received in
+     */
+    private void resendOriginals(Exchange message, Message originalIn, Object originalBody,
+                                 List<Exchange> batch, Object[] originalBatchBodies) {
+        if (batch == null) {
+            retryLater(originalCopy(message, originalIn, originalBody));
+            return;
+        }
+        for (int i = 0; i < originalBatchBodies.length; i++) {
+            final Exchange event = batch.get(i);
+            retryLater(originalCopy(event, event.getIn(), originalBatchBodies[i]));
+        }
+    }
+
+    /**
+     * Schedules the retry of the message within the process if the plugin has the local retries,
+     * resends it via the delayed route otherwise
+     */
+    private void retryLater(Exchange message) {
+        final RetryScheduler<Exchange> retries = context.getRetries();
+        if (retries != null && !context.isShuttingDown()) {
+            final int attempt = message.getIn().getHeader(MESSAGE_RETRY_ATTEMPT_HEADER, 0, Integer.class);
+            message.getIn().setHeader(MESSAGE_RETRY_ATTEMPT_HEADER, attempt + 1);
+            if (retries.schedule((String) message.getIn().getHeader(CORRELATION_KEY), message, attempt)) {
+                return;
+            }
+        }
+        resendWithDelay(message);
+    }
+
+    /**
+     * Re-injects the message scheduled for the retry into the input route of the plugin,
+     * so its result passes the same processors as the result of the received message
+     */
+    private void retryNow(Exchange message) {
+        message.getIn().setHeader(MESSAGE_RESENT_ID_HEADER, message.getExchangeId());
+        producer().send(context.getEndpoints().getConsumerUri(), message);
+        if (message.getException() != null) {
+            logger.error("Failed to retry message for plugin '{}' with id '{}'",
+                    context.getId(), message.getExchangeId(), message.getException());
+        }
+    }
+
+    private Exchange originalCopy(Exchange message, Message originalIn, Object originalBody) {
+        final Exchange copy = message.copy();
+        final Message in = originalIn.copy();
+        in.setBody(originalBody);
+        in.removeHeader(FINISHED_EXCHANGE);
+        copy.setIn(in);
+        return copy;
+    }
+
     private void copyEmptyProperties(Exchange state, Exchange result) {
         if (state != null) {
             for (String prop : state.getProperties().keySet()) {
@@ -112,17 +489,26 @@ public class CamelotAggregationStrategy extends FSMAggregationStrategy implement
         }
     }
 
-    private void resendWithDelay(Exchange message) {
-        if (retryProducer == null) {
-            retryProducer = camelContext.createProducerTemplate();
-            retryProducer.setDefaultEndpointUri(context.getEndpoints().getDelayedInputUri());
+    private void resendWithDelay(List<Exchange> messages) {
+        for (Exchange message : messages) {
+            resendWithDelay(message);
         }
+    }
+
+    private void resendWithDelay(Exchange message) {
         message.getIn().setHeader(MESSAGE_RESENT_ID_HEADER, message.getExchangeId());
-        retryProducer.send(message);
+        producer().send(context.getEndpoints().getDelayedInputUri(), message);
         logger.debug("Successfully resent message for plugin '{}' with id '{}'",
                 context.getId(), message.getExchangeId());
     }
 
+    private ProducerTemplate producer() {
+        if (retryProducer == null) {
+            retryProducer = camelContext.createProducerTemplate();
+        }
+        return retryProducer;
+    }
+
     private void unlockQuietly(AggregationRepository repo, String key) {
         if (repo instanceof AggregationRepositoryWithLocks) {
             ((AggregationRepositoryWithLocks) repo).unlockQuietly(key);
@@ -8,13 +8,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
-import ru.yandex.qatools.camelot.api.annotations.InjectHeader;
-import ru.yandex.qatools.camelot.api.annotations.InjectHeaders;
-
-import java.lang.reflect.Field;
 
+import static ru.yandex.qatools.camelot.common.InjectionPlan.injectHeaders;
 import static ru.yandex.qatools.camelot.util.ContextUtils.autowireFields;
-import static ru.yandex.qatools.camelot.util.ReflectUtil.*;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -74,24 +70,7 @@ public abstract class ClayProcessor implements CamelContextAware, ApplicationCon
         } catch (Exception e) {
             LOGGER.error("Could not autowire the Spring or Camel context fields: ", e);
         }
-        for (Field field : getFieldsInClassHierarchy(procInstance.getClass())) {
-            try {
-                boolean oldAccessible = field.isAccessible();
-                if (!field.isAccessible()) {
-                    field.setAccessible(true);
-                }
-                if (getAnnotation(field, InjectHeader.class) != null) {
-                    String headerName = (String) getAnnotationValue(field, InjectHeader.class, "value");
-                    field.set(procInstance, exchange.getIn().getHeader(headerName));
-                }
-                if (getAnnotation(field, InjectHeaders.class) != null) {
-                    field.set(procInstance, exchange.getIn().getHeaders());
-                }
-                field.setAccessible(oldAccessible);
-            } catch (Exception e) {
-                LOGGER.error("Inject field " + field.getName() + " of FSM " + procInstance + " error: ", e);
-            }
-        }
+        injectHeaders(procInstance, exchange);
     }
 
 }
@@ -0,0 +1,135 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.config.PluginContext;
+import ru.yandex.qatools.camelot.error.MetadataException;
+import ru.yandex.qatools.camelot.error.PluginsSystemException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.lang.invoke.MethodType.methodType;
+import static org.apache.commons.lang3.StringUtils.capitalize;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Calculates the aggregation key declared by the {@link ru.yandex.qatools.camelot.api.annotations.AggregationKey}
+ * annotation on the aggregator class without instantiating the aggregator.
+ * The key is either taken from the header of the message (the body is not deserialized),
+ * or from the property path of the event, which is compiled into the chain of getters once per event class.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DeclaredAggregationKeyStrategy implements AggregationKeyStrategy {
+    private static final Logger LOGGER = getLogger(DeclaredAggregationKeyStrategy.class);
+    private final PluginContext pluginContext;
+    private final String header;
+    private final String[] propertyPath;
+    private final Map<Class, MethodHandle[]> getters = new ConcurrentHashMap<>();
+
+    public DeclaredAggregationKeyStrategy(PluginContext pluginContext, String header, String property) {
+        if (isEmpty(header) == isEmpty(property)) {
+            throw new MetadataException(format(
+                    "Either header or property of the aggregation key must be set for plugin %s",
+                    pluginContext.getId()));
+        }
+        this.pluginContext = pluginContext;
+        this.header = isEmpty(header) ? null : header;
+        this.propertyPath = isEmpty(property) ? null : property.split("\\.");
+    }
+
+    /**
+     * Compiles the chain of getters of the key property for the event class in advance.
+     * The filtered classes may be the supertypes of the events (e.g. {@link Object} by default),
+     * so the classes without the property are skipped and their subclasses are compiled on the first event
+     */
+    public void compile(Class eventClass) {
+        if (propertyPath == null || Object.class.equals(eventClass)) {
+            return;
+        }
+        try {
+            getters(eventClass);
+        } catch (NoSuchFieldException e) {
+            LOGGER.debug("Skipping the aggregation key {} of the event {} for plugin {}: {}",
+                    String.join(".", propertyPath), eventClass, pluginContext.getId(), e.getMessage());
+        } catch (ReflectiveOperationException e) {
+            throw new MetadataException(format("Failed to compile the aggregation key %s of the event %s for plugin %s",
+                    String.join(".", propertyPath), eventClass, pluginContext.getId()), e);
+        }
+    }
+
+    @Override
+    public String aggregationKey(Exchange exchange) {
+        final Object key = (header != null)
+                ? exchange.getIn().getHeader(header)
+                : readProperty(exchange);
+        return (key == null) ? null : key.toString();
+    }
+
+    private Object readProperty(Exchange exchange) {
+        pluginContext.getMessagesSerializer().preProcess(exchange, pluginContext.getClassLoader());
+        Object value = exchange.getIn().getBody();
+        if (value == null) {
+            return null;
+        }
+        try {
+            for (MethodHandle getter : getters(value.getClass())) {
+                value = (Object) getter.invokeExact(value);
+                if (value == null) {
+                    return null;
+                }
+            }
+            return value;
+        } catch (Throwable e) { //NOSONAR
+            throw new PluginsSystemException(format("Failed to read the aggregation key %s of the event %s for plugin %s",
+                    String.join(".", propertyPath), exchange.getIn().getBody(), pluginContext.getId()), e);
+        }
+    }
+
+    private MethodHandle[] getters(Class eventClass) throws ReflectiveOperationException {
+        MethodHandle[] result = getters.get(eventClass);
+        if (result == null) {
+            result = new MethodHandle[propertyPath.length];
+            Class<?> type = eventClass;
+            for (int i = 0; i < propertyPath.length; i++) {
+                result[i] = getter(type, propertyPath[i]);
+                type = result[i].type().returnType();
+            }
+            for (int i = 0; i < result.length; i++) {
+                result[i] = result[i].asType(methodType(Object.class, Object.class));
+            }
+            getters.put(eventClass, result);
+        }
+        return result;
+    }
+
+    private static MethodHandle getter(Class<?> type, String property) throws ReflectiveOperationException {
+        for (String prefix : new String[]{"get", "is"}) {
+            try {
+                final Method method = type.getMethod(prefix + capitalize(property));
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method);
+            } catch (NoSuchMethodException ignored) { //NOSONAR
+                // try the next one
+            }
+        }
+        Class<?> clazz = type;
+        while (clazz != null) {
+            try {
+                final Field field = clazz.getDeclaredField(property);
+                field.setAccessible(true);
+                return MethodHandles.lookup().unreflectGetter(field);
+            } catch (NoSuchFieldException ignored) { //NOSONAR
+                clazz = clazz.getSuperclass();
+            }
+        }
+        throw new NoSuchFieldException(format("Could not find the property %s within %s", property, type));
+    }
+}
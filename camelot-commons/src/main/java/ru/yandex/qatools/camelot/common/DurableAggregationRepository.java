@@ -0,0 +1,508 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.apache.camel.spi.AggregationRepository;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+import static ru.yandex.qatools.camelot.common.WriteAheadLog.PUT;
+import static ru.yandex.qatools.camelot.common.WriteAheadLog.REMOVE;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
+
+/**
+ * The local repository surviving the restart of the node.
+ * Each add and remove is appended to the {@link WriteAheadLog} and returns once the log is durable.
+ * After the number of the records the snapshot of all the states is written in the background
+ * and the log files covered by it are deleted.
+ * The states are recovered when the repository is created (i.e. before the routes of the plugin are started):
+ * the partitions of the latest snapshot are loaded in parallel, then the log written after it is replayed.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DurableAggregationRepository implements AggregationRepository, LocalAggregationRepository,
+        PersistentAggregationRepository, AggregationRepositoryWithValuesMap, AggregationRepositoryWithIteration,
+        Closeable {
+    private static final Logger LOGGER = getLogger(DurableAggregationRepository.class);
+    private static final Pattern SNAPSHOT_DONE = Pattern.compile("snapshot-(\\d+)\\.done");
+
+    private final KeyLocks locks = new KeyLocks();
+    private final Map<String, byte[]> states = new ConcurrentHashMap<>();
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final AtomicLong sinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final ExecutorService snapshotter;
+    private final Plugin plugin;
+    private final File dir;
+    private final long waitForLockSec;
+    private final long snapshotEveryRecords;
+    private final int partitions;
+    private final WriteAheadLog wal;
+    private final long recoveryMs;
+
+    public DurableAggregationRepository(Plugin plugin, long waitForLockSec, File dir, boolean fsync,
+                                        long snapshotEveryRecords, int partitions) throws IOException {
+        this.plugin = plugin;
+        this.dir = dir;
+        this.waitForLockSec = waitForLockSec;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        this.partitions = partitions;
+        FileUtils.forceMkdir(dir);
+        final long started = currentTimeMillis();
+        final long generation = recover();
+        this.recoveryMs = currentTimeMillis() - started;
+        this.wal = new WriteAheadLog(dir, generation, fsync);
+        this.snapshotter = Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "camelot-snapshot-" + plugin.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("[{}] Recovered {} states from {} within {}ms", plugin.getId(), states.size(), dir, recoveryMs);
+    }
+
+    @Override
+    public Exchange add(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Adding the state. add/unlock(%s)", plugin.getId(), key));
+            return addWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public Exchange get(CamelContext camelContext, String key) {
+        LOGGER.debug(format("[%s] Getting the state. tryLock(%s)", plugin.getId(), key));
+        try {
+            if (!locks.tryLock(key, waitForLockSec, SECONDS)) {
+                throw new RepositoryLockWaitException(format(
+                        "Failed to acquire the lock for the key '%s' within timeout of %ds", key, waitForLockSec));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryLockWaitException(format("Interrupted while locking the key '%s'", key), e);
+        }
+        try {
+            return getWithoutLock(camelContext, key);
+        } catch (RuntimeException e) {
+            unlock(key);
+            throw e;
+        }
+    }
+
+    @Override
+    public void remove(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Removing the state. unlock(%s)", plugin.getId(), key));
+            removeWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public void confirm(CamelContext camelContext, String exchangeId) {
+        unlock(exchangeId);
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        return new HashSet<>(states.keySet());
+    }
+
+    @Override
+    public Map<String, Exchange> values(CamelContext camelContext) {
+        final Map<String, Exchange> result = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : states.entrySet()) {
+            result.put(entry.getKey(), toExchange(camelContext, entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        for (Map.Entry<String, byte[]> entry : states.entrySet()) {
+            action.accept(entry.getKey(), toExchange(camelContext, entry.getValue()));
+        }
+    }
+
+    @Override
+    public Exchange getWithoutLock(CamelContext camelContext, String key) {
+        final byte[] bytes = states.get(key);
+        return (bytes == null) ? null : toExchange(camelContext, bytes);
+    }
+
+    @Override
+    public Exchange addWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        final byte[] bytes = serializeToBytes(DefaultExchangeHolder.marshal(exchange), plugin.getContext().getClassLoader());
+        if (bytes == null) {
+            throw new RepositoryFailureException(format("Failed to serialize the state of the key '%s'", key));
+        }
+        log(PUT, key, bytes);
+        return exchange;
+    }
+
+    @Override
+    public void removeWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        log(REMOVE, key, null);
+    }
+
+    @Override
+    public void unlock(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to unlock key " + key, e);
+        }
+    }
+
+    @Override
+    public void unlockQuietly(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.trace("Sonar trick", e);
+            LOGGER.debug("Failed to quiet unlock repo key '{}' ", key);
+        }
+    }
+
+    @Override
+    public void lock(String key) {
+        try {
+            locks.lock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to lock key " + key, e);
+        }
+    }
+
+    /**
+     * Returns the locks of the keys (e.g. to watch the number of the active locks and the contention)
+     */
+    public KeyLocks getLocks() {
+        return locks;
+    }
+
+    /**
+     * Returns the write-ahead log of the repository
+     */
+    public WriteAheadLog getLog() {
+        return wal;
+    }
+
+    /**
+     * Returns the number of the snapshots written
+     */
+    public long getSnapshots() {
+        return snapshots.get();
+    }
+
+    /**
+     * Returns the time spent on the recovery of the states
+     */
+    public long getRecoveryMs() {
+        return recoveryMs;
+    }
+
+    /**
+     * Writes the snapshot of all the states and deletes the log covered by it
+     */
+    public synchronized void snapshot() throws IOException {
+        final Map<String, byte[]> copy;
+        final long generation;
+        snapshotLock.writeLock().lock();
+        try {
+            generation = wal.roll();
+            copy = new HashMap<>(states);
+            sinceSnapshot.set(0);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        writeSnapshot(generation, copy);
+        wal.deleteBefore(generation);
+        deleteSnapshotsBefore(generation);
+        snapshots.incrementAndGet();
+        LOGGER.debug("[{}] Written the snapshot {} of {} states", plugin.getId(), generation, copy.size());
+    }
+
+    /**
+     * Writes the last snapshot and closes the log
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(waitForLockSec, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        wal.close();
+        LOGGER.info("[{}] Closed the repository with {} states", plugin.getId(), states.size());
+    }
+
+    private void log(byte type, String key, byte[] bytes) {
+        try {
+            final long position;
+            snapshotLock.readLock().lock();
+            try {
+                position = wal.write(type, key, bytes);
+                if (type == PUT) {
+                    states.put(key, bytes);
+                } else {
+                    states.remove(key);
+                }
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+            wal.sync(position);
+        } catch (IOException e) {
+            throw new RepositoryFailureException(format("Failed to log the state of the key '%s'", key), e);
+        }
+        if (sinceSnapshot.incrementAndGet() >= snapshotEveryRecords && snapshotting.compareAndSet(false, true)) {
+            try {
+                snapshotter.execute(() -> {
+                    try {
+                        snapshot();
+                    } catch (Exception e) {
+                        LOGGER.error("[{}] Failed to write the snapshot", plugin.getId(), e);
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                });
+            } catch (Exception e) { //NOSONAR
+                snapshotting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and replays the log. Returns the generation of the log to continue.
+     */
+    private long recover() throws IOException {
+        final long snapshot = latestSnapshot();
+        if (snapshot > 0) {
+            loadSnapshot(snapshot);
+        }
+        WriteAheadLog.replay(dir, snapshot, (type, key, value) -> {
+            if (type == PUT) {
+                states.put(key, value);
+            } else {
+                states.remove(key);
+            }
+        });
+        final List<Long> generations = WriteAheadLog.generations(dir);
+        return generations.isEmpty() ? Math.max(snapshot, 1) : generations.get(generations.size() - 1);
+    }
+
+    private void writeSnapshot(long generation, Map<String, byte[]> copy) throws IOException {
+        final List<FileOutputStream> files = new ArrayList<>(partitions);
+        final List<OutputStream> outputs = new ArrayList<>(partitions);
+        try {
+            for (int i = 0; i < partitions; i++) {
+                files.add(new FileOutputStream(snapshotFile(generation, i)));
+                outputs.add(new BufferedOutputStream(files.get(i), 1 << 16));
+            }
+            for (Map.Entry<String, byte[]> entry : copy.entrySet()) {
+                final ByteBuffer record = WriteAheadLog.encode(PUT, entry.getKey(), entry.getValue());
+                outputs.get(partition(entry.getKey())).write(record.array(), 0, record.limit());
+            }
+            for (int i = 0; i < partitions; i++) {
+                outputs.get(i).flush();
+                files.get(i).getFD().sync();
+            }
+        } finally {
+            for (FileOutputStream file : files) {
+                file.close();
+            }
+        }
+        writeDone(generation);
+    }
+
+    /**
+     * Marks the snapshot as complete once its files are durable: the marker is written to the temporary file,
+     * synced and renamed atomically, then the directory is synced, so the log covered by the snapshot
+     * is deleted only after the marker survives the crash
+     */
+    private void writeDone(long generation) throws IOException {
+        final File done = doneFile(generation);
+        if (done.exists()) {
+            LOGGER.warn("[{}] The snapshot {} was already written", plugin.getId(), generation);
+        }
+        final File temp = new File(dir, done.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(String.valueOf(partitions).getBytes(UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), done.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        syncDir();
+    }
+
+    private void syncDir() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) { //NOSONAR
+            LOGGER.debug("[{}] The directories cannot be synced on this platform: {}", plugin.getId(), e.toString());
+        }
+    }
+
+    /**
+     * Loads the snapshot by the number of the partitions it was written with,
+     * which may differ from the current one if the setting has been changed between the runs
+     */
+    private void loadSnapshot(long generation) throws IOException {
+        final int written = snapshotPartitions(generation);
+        if (written != partitions) {
+            LOGGER.info("[{}] The snapshot {} was written with {} partitions, loading it into {}",
+                    plugin.getId(), generation, written, partitions);
+        }
+        final ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(written, partitions)));
+        try {
+            final List<Future<Long>> loaded = new ArrayList<>(written);
+            for (int i = 0; i < written; i++) {
+                final File file = snapshotFile(generation, i);
+                loaded.add(loaders.submit(() -> WriteAheadLog.read(file, (type, key, value) -> states.put(key, value))));
+            }
+            for (Future<Long> result : loaded) {
+                result.get();
+            }
+        } catch (Exception e) {
+            throw new IOException(format("Failed to load the snapshot %d of %s", generation, dir), e);
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Reads the number of the partitions from the marker of the snapshot,
+     * the markers written without it are resolved by the partition files present.
+     * Returns 0 if the marker is malformed or the snapshot has no files, i.e. the snapshot is incomplete
+     */
+    private int snapshotPartitions(long generation) throws IOException {
+        final String recorded = FileUtils.readFileToString(doneFile(generation), UTF_8).trim();
+        if (!recorded.isEmpty()) {
+            try {
+                return Math.max(Integer.parseInt(recorded), 0);
+            } catch (NumberFormatException e) { //NOSONAR
+                LOGGER.warn("[{}] Malformed marker of the snapshot {} of {}: '{}'",
+                        plugin.getId(), generation, dir, recorded);
+                return 0;
+            }
+        }
+        final Pattern files = Pattern.compile(format("snapshot-%016d-\\d+\\.dat", generation));
+        int count = 0;
+        final String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (files.matcher(name).matches()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the generation of the latest complete snapshot or 0 if there is none.
+     * The incomplete snapshots are skipped: the log covering them is deleted only after their marker is durable
+     */
+    private long latestSnapshot() throws IOException {
+        final List<Long> generations = new ArrayList<>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                final Matcher matcher = SNAPSHOT_DONE.matcher(name);
+                if (matcher.matches()) {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generations.sort(Collections.reverseOrder());
+        for (Long generation : generations) {
+            if (snapshotPartitions(generation) > 0) {
+                return generation;
+            }
+            LOGGER.warn("[{}] Skipping the incomplete snapshot {} of {}", plugin.getId(), generation, dir);
+        }
+        return 0;
+    }
+
+    private void deleteSnapshotsBefore(long generation) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith("snapshot-") && !name.startsWith(format("snapshot-%016d", generation))
+                    && !new File(dir, name).delete()) {
+                LOGGER.warn("[{}] Failed to delete the snapshot file {}", plugin.getId(), name);
+            }
+        }
+    }
+
+    private File doneFile(long generation) {
+        return new File(dir, format("snapshot-%016d.done", generation));
+    }
+
+    private File snapshotFile(long generation, int partition) {
+        return new File(dir, format("snapshot-%016d-%03d.dat", generation, partition));
+    }
+
+    private int partition(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    private Exchange toExchange(CamelContext camelContext, byte[] bytes) {
+        try {
+            final Exchange exchange = new DefaultExchange(camelContext);
+            DefaultExchangeHolder.unmarshal(exchange,
+                    (DefaultExchangeHolder) deserializeFromBytes(bytes, plugin.getContext().getClassLoader()));
+            return exchange;
+        } catch (Exception e) {
+            throw new RepositoryFailureException("Failed to read the stored state", e);
+        }
+    }
+}
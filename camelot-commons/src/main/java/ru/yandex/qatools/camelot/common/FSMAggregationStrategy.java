@@ -6,12 +6,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
 import static java.lang.Thread.currentThread;
 import static ru.yandex.qatools.camelot.api.Constants.Headers.FINISHED_EXCHANGE;
 import static ru.yandex.qatools.camelot.util.ExceptionUtil.formatStackTrace;
-import static ru.yandex.qatools.camelot.util.ReflectUtil.invokeAnyMethod;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -21,78 +19,81 @@ import static ru.yandex.qatools.camelot.util.ReflectUtil.invokeAnyMethod;
 public class FSMAggregationStrategy extends ClayProcessor implements AggregationStrategy {
 
     final protected Logger logger = LoggerFactory.getLogger(getClass());
-    private final Class fsmClass;
-    private Object fsmEngineBuilder;
-    private Method buildWithoutStateMethod;
-    private Method buildWithStateMethod;
+    private final PluginInstances<Object> fsmInstances;
+    private final FSMEngineInvokers invokers;
 
     public FSMAggregationStrategy(Class fsmClass, MessagesSerializer serializer) throws NoSuchMethodException {
         super(fsmClass.getClassLoader(), serializer);
-        initEngineBuilder(new CamelotFSMBuilder(fsmClass));
-        this.fsmClass = fsmClass;
+        this.invokers = new FSMEngineInvokers(new CamelotFSMBuilder(fsmClass));
+        this.fsmInstances = new PluginInstances<>(fsmClass);
     }
 
     public FSMAggregationStrategy(ClassLoader classLoader, Class fsmClass, Object fsmEngineBuilder, MessagesSerializer serializer)
             throws NoSuchMethodException {
         super(classLoader, serializer);
-        initEngineBuilder(fsmEngineBuilder);
-        this.fsmClass = fsmClass;
+        this.invokers = new FSMEngineInvokers(fsmEngineBuilder);
+        this.fsmInstances = new PluginInstances<>(fsmClass);
     }
 
     @Override
     public Exchange aggregate(Exchange state, Exchange message) {
-        Object result = state == null ? null : processAfterIn(state).getIn().getBody();
-        final ClassLoader originalCL = currentThread().getContextClassLoader();
+        final Object result = fire(state == null ? null : processAfterIn(state).getIn().getBody(), message);
+        message.getIn().setBody(result);
+        return processBeforeOut(message);
+    }
 
-        Object fsmEngine;
+    /**
+     * Fires the event from the message to the FSM with the given (deserialized) state.
+     * Returns the new state and sets the completion flag to the message.
+     */
+    protected Object fire(Object state, Exchange message) {
+        return fire(new FSMEngine(state), message);
+    }
+
+    /**
+     * Fires the event from the message to the FSM engine (which is built on the first event).
+     * Returns the new state and sets the completion flag to the message.
+     */
+    protected Object fire(FSMEngine engine, Exchange message) {
+        final ClassLoader originalCL = currentThread().getContextClassLoader();
 
         try {
             currentThread().setContextClassLoader(classLoader);
-            message = processAfterIn(message); //NOSONAR
-
-            Object fsm = fsmClass.newInstance();
-            injectFields(fsm, message);
+            processAfterIn(message);
 
-            if (result != null) {
-                fsmEngine = buildWithStateMethod.invoke(fsmEngineBuilder, result, fsm);
+            if (engine.fsm == null) {
+                engine.fsm = fsmInstances.get(message, fsm -> injectFields(fsm, message));
             } else {
-                fsmEngine = buildWithoutStateMethod.invoke(fsmEngineBuilder, fsm);
+                fsmInstances.inject(engine.fsm, message, fsm -> injectFields(fsm, message));
+            }
+
+            if (engine.engine == null) {
+                engine.engine = invokers.build(engine.state, engine.fsm);
             }
 
             Object event = message.getIn().getBody();
 
             try {
-                result = invokeAnyMethod(fsmEngine, "fire", new Class[]{Object.class}, event);
+                engine.state = invokers.fire(engine.engine, event);
             } catch (InvocationTargetException e) { //NOSONAR
                 logger.error("Failed to process message {} with FSM {}! \n {}",
-                                event, fsm, formatStackTrace(e.getTargetException()), e.getTargetException());
+                                event, engine.fsm, formatStackTrace(e.getTargetException()), e.getTargetException());
             } catch (Exception e) {
                 logger.error("Failed to process message {} with FSM {}! \n {}",
-                        event, fsm, formatStackTrace(e), e);
+                        event, engine.fsm, formatStackTrace(e), e);
             }
 
-            message.getIn().setHeader(FINISHED_EXCHANGE, invokeAnyMethod(fsmEngine, "isCompleted"));
+            message.getIn().setHeader(FINISHED_EXCHANGE, invokers.isCompleted(engine.engine));
 
         } catch (Exception e) {
-            logger.error("{}: \n {}", fsmEngineBuilder, formatStackTrace(e), e);
+            logger.error("{}: \n {}", invokers.getFsmEngineBuilder(), formatStackTrace(e), e);
         } finally {
             if (!message.getIn().getHeaders().containsKey(FINISHED_EXCHANGE)) {
                 message.getIn().setHeader(FINISHED_EXCHANGE, false);
             }
             currentThread().setContextClassLoader(originalCL);
         }
-
-        message.getIn().setBody(result);
-        return processBeforeOut(message);
-    }
-
-    private void initEngineBuilder(Object fsmEngineBuilder) throws NoSuchMethodException {
-        this.fsmEngineBuilder = fsmEngineBuilder;
-        final Class<?> builderClass = fsmEngineBuilder.getClass();
-        this.buildWithStateMethod = builderClass.getMethod("build", Object.class, Object.class);
-        this.buildWithStateMethod.setAccessible(true);
-        this.buildWithoutStateMethod = builderClass.getMethod("build", Object.class);
-        this.buildWithoutStateMethod.setAccessible(true);
+        return engine.state;
     }
 
     @SuppressWarnings("suspicious")
@@ -101,4 +102,21 @@ public class FSMAggregationStrategy extends ClayProcessor implements Aggregation
                 || exchange.getIn() == null
                 || (boolean) exchange.getIn().removeHeader(FINISHED_EXCHANGE);
     }
+
+    /**
+     * The FSM instance with its engine, which may be reused for the sequence of the events
+     */
+    protected static class FSMEngine {
+        private Object state;
+        private Object fsm;
+        private Object engine;
+
+        public FSMEngine(Object state) {
+            this.state = state;
+        }
+
+        public Object getState() {
+            return state;
+        }
+    }
 }
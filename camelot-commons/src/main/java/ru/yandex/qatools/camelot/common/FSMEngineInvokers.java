@@ -0,0 +1,112 @@
+package ru.yandex.qatools.camelot.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import static java.lang.invoke.MethodType.genericMethodType;
+
+/**
+ * The method handles building and firing the FSM engines.
+ * The methods are resolved once for the class of the builder and once for the class of the engine.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class FSMEngineInvokers {
+    private final Object fsmEngineBuilder;
+    private final MethodHandle buildWithState;
+    private final MethodHandle buildWithoutState;
+    private volatile EngineHandles engineHandles;
+
+    public FSMEngineInvokers(Object fsmEngineBuilder) throws NoSuchMethodException {
+        this.fsmEngineBuilder = fsmEngineBuilder;
+        final Class<?> builderClass = fsmEngineBuilder.getClass();
+        this.buildWithState = handle(builderClass.getMethod("build", Object.class, Object.class))
+                .bindTo(fsmEngineBuilder);
+        this.buildWithoutState = handle(builderClass.getMethod("build", Object.class))
+                .bindTo(fsmEngineBuilder);
+    }
+
+    public Object getFsmEngineBuilder() {
+        return fsmEngineBuilder;
+    }
+
+    /**
+     * Builds the FSM engine for the FSM instance with the state (if not null)
+     */
+    public Object build(Object state, Object fsm) throws InvocationTargetException {
+        try {
+            return (state != null)
+                    ? (Object) buildWithState.invokeExact(state, fsm)
+                    : (Object) buildWithoutState.invokeExact(fsm);
+        } catch (Throwable e) { //NOSONAR
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Fires the event to the FSM engine and returns the new state
+     */
+    public Object fire(Object engine, Object event) throws ReflectiveOperationException {
+        try {
+            return (Object) handles(engine).fire.invokeExact(engine, event);
+        } catch (ReflectiveOperationException e) {
+            throw e;
+        } catch (Throwable e) { //NOSONAR
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Returns true if the FSM engine is in the stop state
+     */
+    public boolean isCompleted(Object engine) throws ReflectiveOperationException {
+        try {
+            return (boolean) (Object) handles(engine).isCompleted.invokeExact(engine);
+        } catch (ReflectiveOperationException e) {
+            throw e;
+        } catch (Throwable e) { //NOSONAR
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    private EngineHandles handles(Object engine) throws ReflectiveOperationException {
+        EngineHandles handles = engineHandles;
+        if (handles == null || handles.engineClass != engine.getClass()) {
+            handles = new EngineHandles(engine.getClass());
+            engineHandles = handles;
+        }
+        return handles;
+    }
+
+    private static MethodHandle handle(Method method) throws NoSuchMethodException {
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method)
+                    .asType(genericMethodType(method.getParameterCount() + 1));
+        } catch (IllegalAccessException e) {
+            throw new NoSuchMethodException("Method " + method + " is not accessible: " + e.getMessage());
+        }
+    }
+
+    private static Method method(Class<?> clazz, String name, Class<?>... argTypes) throws NoSuchMethodException {
+        try {
+            return clazz.getMethod(name, argTypes);
+        } catch (NoSuchMethodException ignored) { //NOSONAR
+            return clazz.getDeclaredMethod(name, argTypes);
+        }
+    }
+
+    private static final class EngineHandles {
+        private final Class<?> engineClass;
+        private final MethodHandle fire;
+        private final MethodHandle isCompleted;
+
+        private EngineHandles(Class<?> engineClass) throws NoSuchMethodException {
+            this.engineClass = engineClass;
+            this.fire = handle(method(engineClass, "fire", Object.class));
+            this.isCompleted = handle(method(engineClass, "isCompleted"));
+        }
+    }
+}
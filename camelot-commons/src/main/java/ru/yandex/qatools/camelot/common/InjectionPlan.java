@@ -0,0 +1,196 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.qatools.camelot.api.annotations.InjectHeader;
+import ru.yandex.qatools.camelot.api.annotations.InjectHeaders;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.invoke.MethodType.methodType;
+import static ru.yandex.qatools.camelot.common.InjectionPlan.Scope.EXCHANGE;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotation;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationValue;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getFieldsInClassHierarchy;
+import static ru.yandex.qatools.camelot.util.TypesUtil.isAssignableFrom;
+
+/**
+ * The fields of the class to be injected, resolved once per class.
+ * Each injection has the pre-resolved setter and the resolver of its value.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class InjectionPlan {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InjectionPlan.class);
+    private static final Map<Class, InjectionPlan> HEADERS_PLANS = new ConcurrentHashMap<>();
+    private static final MethodHandle FIELD_SET;
+
+    static {
+        try {
+            FIELD_SET = MethodHandles.lookup().findVirtual(Field.class, "set",
+                    methodType(void.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Defines how often the value of the injection must be resolved
+     */
+    public enum Scope {
+        /**
+         * Once per plugin context
+         */
+        CONTEXT,
+        /**
+         * Once per injected instance
+         */
+        INSTANCE,
+        /**
+         * For each exchange
+         */
+        EXCHANGE
+    }
+
+    /**
+     * Resolves the value of the injection
+     */
+    public interface ValueResolver {
+        Object resolve(PluginsService service, PluginContext context, Exchange exchange) throws Exception; //NOSONAR
+    }
+
+    private final Injection[] injections;
+
+    public InjectionPlan(List<Injection> injections) {
+        this.injections = injections.toArray(new Injection[injections.size()]);
+    }
+
+    public Injection[] getInjections() {
+        return injections;
+    }
+
+    public int size() {
+        return injections.length;
+    }
+
+    /**
+     * Injects the headers of the exchange into the fields annotated with
+     * {@link InjectHeader} and {@link InjectHeaders}. The missing headers are injected as nulls.
+     */
+    public static void injectHeaders(Object instance, Exchange exchange) {
+        final InjectionPlan plan;
+        try {
+            plan = headersOf(instance.getClass());
+        } catch (ReflectiveOperationException e) {
+            LOGGER.error("Could not resolve the injected fields of " + instance + ": ", e);
+            return;
+        }
+        for (Injection injection : plan.injections) {
+            try {
+                final Object value = injection.resolve(null, null, exchange);
+                if (value != null || !injection.field.getType().isPrimitive()) {
+                    injection.set(instance, value);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Inject field " + injection.field.getName() + " of " + instance + " error: ", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the plan injecting the headers of the exchange, which is built once per class
+     */
+    public static InjectionPlan headersOf(Class<?> clazz) throws ReflectiveOperationException {
+        InjectionPlan plan = HEADERS_PLANS.get(clazz);
+        if (plan == null) {
+            final List<Injection> injections = new ArrayList<>();
+            for (Field field : getFieldsInClassHierarchy(clazz)) {
+                if (getAnnotation(field, InjectHeader.class) != null) {
+                    final String headerName = (String) getAnnotationValue(field, InjectHeader.class, "value");
+                    injections.add(new Injection(field, EXCHANGE, false,
+                            (service, context, exchange) -> exchange.getIn().getHeader(headerName)));
+                }
+                if (getAnnotation(field, InjectHeaders.class) != null) {
+                    injections.add(new Injection(field, EXCHANGE, false,
+                            (service, context, exchange) -> exchange.getIn().getHeaders()));
+                }
+            }
+            plan = new InjectionPlan(injections);
+            HEADERS_PLANS.put(clazz, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * The field with its setter and the resolver of its value
+     */
+    public static final class Injection {
+        private final Field field;
+        private final MethodHandle setter;
+        private final Scope scope;
+        private final boolean requiresContext;
+        private final ValueResolver resolver;
+
+        public Injection(Field field, Scope scope, boolean requiresContext, ValueResolver resolver) {
+            this.field = field;
+            this.scope = scope;
+            this.requiresContext = requiresContext;
+            this.resolver = resolver;
+            this.setter = setter(field);
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public Scope getScope() {
+            return scope;
+        }
+
+        public boolean isRequiresContext() {
+            return requiresContext;
+        }
+
+        public Object resolve(PluginsService service, PluginContext context, Exchange exchange) throws Exception { //NOSONAR
+            return resolver.resolve(service, context, exchange);
+        }
+
+        /**
+         * Returns true if the value may be set to the field
+         */
+        public boolean accepts(Object value) {
+            return value != null && isAssignableFrom(field.getType(), value.getClass());
+        }
+
+        /**
+         * Sets the value to the field of the instance
+         */
+        public void set(Object instance, Object value) throws Exception { //NOSONAR
+            try {
+                setter.invokeExact(instance, value);
+            } catch (Exception | Error e) { //NOSONAR
+                throw e;
+            } catch (Throwable e) { //NOSONAR
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static MethodHandle setter(Field field) {
+            field.setAccessible(true);
+            try {
+                return MethodHandles.lookup().unreflectSetter(field)
+                        .asType(methodType(void.class, Object.class, Object.class));
+            } catch (IllegalAccessException ignored) { //NOSONAR
+                return FIELD_SET.bindTo(field);
+            }
+        }
+    }
+}
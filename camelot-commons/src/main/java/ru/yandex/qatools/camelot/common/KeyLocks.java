@@ -0,0 +1,141 @@
+package ru.yandex.qatools.camelot.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The table of the reentrant locks by the keys.
+ * The lock of the key exists only while it is held or awaited: each acquisition references the lock
+ * and each release dereferences it, the lock is removed from the table once it is not referenced.
+ * The keys are not serialized through the common monitor: the table is updated atomically per key.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class KeyLocks {
+    private final Map<String, KeyLock> locks = new ConcurrentHashMap<>();
+    private final AtomicLong contended = new AtomicLong();
+    private final boolean fair;
+
+    public KeyLocks() {
+        this(false);
+    }
+
+    /**
+     * Creates the table of the locks, the fair locks are granted to the waiters of the key in the FIFO order
+     */
+    public KeyLocks(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Acquires the lock of the key waiting for it if necessary
+     */
+    public void lock(String key) {
+        final KeyLock lock = retain(key);
+        if (!tryLockAtOnce(lock)) {
+            contended.incrementAndGet();
+            try {
+                lock.lock();
+            } catch (RuntimeException | Error e) { //NOSONAR
+                release(key, lock);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Acquires the lock of the key waiting for it not longer than the timeout.
+     * Returns false if the lock was not acquired.
+     */
+    public boolean tryLock(String key, long timeout, TimeUnit unit) throws InterruptedException {
+        final KeyLock lock = retain(key);
+        boolean locked = false;
+        try {
+            locked = tryLockAtOnce(lock);
+            if (!locked) {
+                contended.incrementAndGet();
+                locked = lock.tryLock(timeout, unit);
+            }
+            return locked;
+        } finally {
+            if (!locked) {
+                release(key, lock);
+            }
+        }
+    }
+
+    /**
+     * Releases the lock of the key held by the current thread
+     *
+     * @throws IllegalMonitorStateException if the current thread does not hold the lock
+     */
+    public void unlock(String key) {
+        final KeyLock lock = locks.get(key);
+        if (lock == null) {
+            throw new IllegalMonitorStateException("Lock of the key " + key + " is not held");
+        }
+        lock.unlock();
+        release(key, lock);
+    }
+
+    /**
+     * Returns true if the lock of the key is held by any thread
+     */
+    public boolean isLocked(String key) {
+        final KeyLock lock = locks.get(key);
+        return lock != null && lock.isLocked();
+    }
+
+    /**
+     * Returns the number of the locks currently held or awaited
+     */
+    public int getActiveLocks() {
+        return locks.size();
+    }
+
+    /**
+     * Returns the number of the acquisitions which had to wait for the lock
+     */
+    public long getContended() {
+        return contended.get();
+    }
+
+    /**
+     * Acquires the lock if it is free, the fair lock is not acquired before the threads already waiting for it
+     */
+    private boolean tryLockAtOnce(KeyLock lock) {
+        if (!fair) {
+            return lock.tryLock();
+        }
+        try {
+            return lock.tryLock(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) { //NOSONAR
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private KeyLock retain(String key) {
+        return locks.compute(key, (k, lock) -> {
+            final KeyLock result = (lock != null) ? lock : new KeyLock(fair);
+            ++result.refs;
+            return result;
+        });
+    }
+
+    private void release(String key, KeyLock lock) {
+        locks.computeIfPresent(key, (k, current) ->
+                (current == lock && --current.refs == 0) ? null : current);
+    }
+
+    private static final class KeyLock extends ReentrantLock {
+        private int refs;
+
+        private KeyLock(boolean fair) {
+            super(fair);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+
+/**
+ * Marks the repository keeping the states within the current node only.
+ * The single writer of the key may access its state without locking.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface LocalAggregationRepository extends AggregationRepositoryWithLocks {
+
+    /**
+     * Add the exchange without unlocking
+     */
+    Exchange addWithoutLock(CamelContext camelContext, String key, Exchange exchange);
+
+    /**
+     * Remove the exchange without unlocking
+     */
+    void removeWithoutLock(CamelContext camelContext, String key, Exchange exchange);
+}
@@ -4,12 +4,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.yandex.qatools.camelot.api.Storage;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -19,7 +20,7 @@ public class LocalMemoryStorage<T> implements Storage<T> {
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalMemoryStorage.class);
 
     private Map<String, T> storage = new HashMap<>();
-    private Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+    private final KeyLocks locks = new KeyLocks();
 
     public LocalMemoryStorage() {
     }
@@ -30,14 +31,41 @@ public class LocalMemoryStorage<T> implements Storage<T> {
 
     @Override
     public void put(String key, T value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
         storage.put(key, value);
     }
 
+    @Override
+    public void remove(String key) {
+        storage.remove(key);
+    }
+
     @Override
     public T get(String key) {
         return storage.get(key);
     }
 
+    @Override
+    public Map<String, T> getAll(Collection<String> keys) {
+        final Map<String, T> result = new HashMap<>(keys.size(), 1);
+        for (String key : keys) {
+            final T value = storage.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        storage.keySet().removeAll(keys);
+    }
+
     @Override
     public Set<String> keys() {
         return storage.keySet();
@@ -48,10 +76,20 @@ public class LocalMemoryStorage<T> implements Storage<T> {
         return storage;
     }
 
+    /**
+     * Iterates over the snapshot of the entries, so the action may modify the storage
+     */
+    @Override
+    public void forEach(BiConsumer<String, ? super T> action) {
+        for (Map.Entry<String, T> entry : new ArrayList<>(storage.entrySet())) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public boolean lock(String key, long timeout, TimeUnit ofUnit) {
         try {
-            return getLock(key).tryLock(timeout, ofUnit);
+            return locks.tryLock(key, timeout, ofUnit);
         } catch (Exception e) {
             LOGGER.warn(String.format("Failed to lock storage by key %s", key), e);
         }
@@ -61,16 +99,16 @@ public class LocalMemoryStorage<T> implements Storage<T> {
     @Override
     public void unlock(String key) {
         try {
-            getLock(key).unlock();
+            locks.unlock(key);
         } catch (Exception e) {
             LOGGER.warn(String.format("Failed to unlock storage by key %s", key), e);
         }
     }
 
-    private synchronized ReentrantLock getLock(String key) {
-        if (!locks.containsKey(key)) {
-            locks.put(key, new ReentrantLock());
-        }
-        return locks.get(key);
+    /**
+     * Returns the locks of the keys (e.g. to watch the number of the active locks and the contention)
+     */
+    public KeyLocks getLocks() {
+        return locks;
     }
 }
@@ -0,0 +1,82 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.AggregationRepository;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The view of the local repository for the single writer of the keys (see {@link AggregationLanes}).
+ * Does not lock the keys.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class LockFreeAggregationRepository implements AggregationRepository, AggregationRepositoryWithLocks,
+        AggregationRepositoryWithIteration {
+    private final LocalAggregationRepository repo;
+
+    public LockFreeAggregationRepository(LocalAggregationRepository repo) {
+        this.repo = repo;
+    }
+
+    @Override
+    public Exchange add(CamelContext camelContext, String key, Exchange exchange) {
+        return repo.addWithoutLock(camelContext, key, exchange);
+    }
+
+    @Override
+    public Exchange get(CamelContext camelContext, String key) {
+        return repo.getWithoutLock(camelContext, key);
+    }
+
+    @Override
+    public void remove(CamelContext camelContext, String key, Exchange exchange) {
+        repo.removeWithoutLock(camelContext, key, exchange);
+    }
+
+    @Override
+    public void confirm(CamelContext camelContext, String exchangeId) {
+        // nothing to unlock
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        return ((AggregationRepository) repo).getKeys();
+    }
+
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        if (repo instanceof AggregationRepositoryWithIteration) {
+            ((AggregationRepositoryWithIteration) repo).forEach(camelContext, action);
+            return;
+        }
+        for (String key : getKeys()) {
+            final Exchange exchange = repo.getWithoutLock(camelContext, key);
+            if (exchange != null) {
+                action.accept(key, exchange);
+            }
+        }
+    }
+
+    @Override
+    public Exchange getWithoutLock(CamelContext camelContext, String key) {
+        return repo.getWithoutLock(camelContext, key);
+    }
+
+    @Override
+    public void unlockQuietly(String key) {
+        // nothing to unlock
+    }
+
+    @Override
+    public void unlock(String key) {
+        // nothing to unlock
+    }
+
+    @Override
+    public void lock(String key) {
+        // nothing to lock
+    }
+}
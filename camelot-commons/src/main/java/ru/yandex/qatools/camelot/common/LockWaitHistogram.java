@@ -0,0 +1,102 @@
+package ru.yandex.qatools.camelot.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.String.format;
+
+/**
+ * The histogram of the times spent waiting for the locks.
+ * The waits are counted within the buckets with the fixed upper bounds, so recording is lock-free.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class LockWaitHistogram {
+    private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalMs = new AtomicLong();
+    private final AtomicLong maxMs = new AtomicLong();
+
+    /**
+     * Records the wait, the wait which did not acquire the lock is also counted as the timeout
+     */
+    public void record(long waitMs, boolean acquired) {
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && waitMs > BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        totalMs.addAndGet(waitMs);
+        maxMs.accumulateAndGet(waitMs, Math::max);
+        if (!acquired) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of the recorded waits
+     */
+    public long getCount() {
+        long result = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            result += buckets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of the waits which did not acquire the lock
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getTotalMs() {
+        return totalMs.get();
+    }
+
+    public long getMaxMs() {
+        return maxMs.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile (0..100) of the waits,
+     * the maximum wait is returned for the waits longer than the last bound
+     */
+    public long getPercentileMs(double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return BOUNDS_MS[i];
+            }
+        }
+        return getMaxMs();
+    }
+
+    /**
+     * Returns the numbers of the waits by the upper bounds of the buckets (ms), the last bucket is unbounded
+     */
+    public Map<String, Long> getBuckets() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            result.put(String.valueOf(BOUNDS_MS[i]), buckets.get(i));
+        }
+        result.put("inf", buckets.get(BOUNDS_MS.length));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return format("count=%d, timeouts=%d, p50=%dms, p99=%dms, max=%dms, buckets=%s",
+                getCount(), getTimeouts(), getPercentileMs(50), getPercentileMs(99), getMaxMs(), getBuckets());
+    }
+}
@@ -0,0 +1,302 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The append-only store of the values by the keys within the memory-mapped segment files.
+ * Each value is appended to the active segment, the location of the latest value of each key is kept
+ * within the in-memory index. The space of the overwritten and removed values is reclaimed by the compaction:
+ * once the share of the live bytes of the sealed segment falls below the ratio, its live values are moved
+ * to the active segment and the segment file is deleted.
+ * The store is not persistent: the directory is cleared when the store is opened.
+ * The deleted segments are unmapped at once instead of waiting for the garbage collection of their buffers,
+ * the values are copied out of the segments under the monitor of the store, so no buffer outlives its segment.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class MappedSegmentStore implements Closeable {
+    private static final Logger LOGGER = getLogger(MappedSegmentStore.class);
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final File dir;
+    private final int segmentSize;
+    private final double compactionRatio;
+    private final Map<String, Location> index = new HashMap<>();
+    private final Map<Integer, Segment> segments = new LinkedHashMap<>();
+    private Segment active;
+    private int nextSegmentId;
+    private long compactions;
+    private long unmapped;
+    private boolean closed;
+
+    public MappedSegmentStore(File dir, long segmentSize, double compactionRatio) throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(format(
+                    "The size of the segment must be within (0, %d] bytes, but was %d", MAX_SEGMENT_SIZE, segmentSize));
+        }
+        this.dir = dir;
+        this.segmentSize = (int) segmentSize;
+        this.compactionRatio = compactionRatio;
+        if (dir.exists()) {
+            FileUtils.cleanDirectory(dir);
+        } else {
+            FileUtils.forceMkdir(dir);
+        }
+        this.active = newSegment(this.segmentSize);
+    }
+
+    /**
+     * Stores the value of the key replacing the previous one
+     */
+    public synchronized void put(String key, byte[] value) throws IOException {
+        checkOpen();
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        final Location location = append(key, keyBytes, value);
+        release(key, index.put(key, location));
+    }
+
+    /**
+     * Returns the value of the key or null if there is no value
+     */
+    public synchronized byte[] get(String key) {
+        checkOpen();
+        final Location location = index.get(key);
+        if (location == null) {
+            return null; //NOSONAR
+        }
+        final ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + RECORD_HEADER_SIZE + location.keyLength);
+        final byte[] value = new byte[location.valueLength];
+        buffer.get(value);
+        return value;
+    }
+
+    /**
+     * Removes the value of the key. Returns false if there was no value.
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkOpen();
+        final Location location = index.remove(key);
+        release(key, location);
+        return location != null;
+    }
+
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized Set<String> keys() {
+        return new HashSet<>(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of the segment files
+     */
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the number of the compacted segments
+     */
+    public synchronized long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Returns the number of the deleted segments which were unmapped explicitly
+     */
+    public synchronized long getUnmapped() {
+        return unmapped;
+    }
+
+    /**
+     * Returns the size of the live values within all the segments
+     */
+    public synchronized long getLiveBytes() {
+        long result = 0;
+        for (Segment segment : segments.values()) {
+            result += segment.liveBytes;
+        }
+        return result;
+    }
+
+    /**
+     * Closes and deletes all the segments
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            delete(segment);
+        }
+        index.clear();
+        active = null;
+    }
+
+    private Location append(String key, byte[] keyBytes, byte[] value) throws IOException {
+        final int length = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+        if (active.buffer.remaining() < length) {
+            active = newSegment(Math.max(segmentSize, length));
+        }
+        final int offset = active.buffer.position();
+        active.buffer.putInt(keyBytes.length).putInt(value.length).put(keyBytes).put(value);
+        active.liveBytes += length;
+        active.keys.add(key);
+        return new Location(active, offset, keyBytes.length, value.length);
+    }
+
+    private void release(String key, Location location) throws IOException {
+        if (location == null) {
+            return;
+        }
+        final Segment segment = location.segment;
+        segment.liveBytes -= location.length();
+        final Location current = index.get(key);
+        if (current == null || current.segment != segment) {
+            segment.keys.remove(key);
+        }
+        if (segment != active && segment.liveBytes < compactionRatio * segment.buffer.position()) {
+            compact(segment);
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        for (String key : segment.keys) {
+            final Location location = index.get(key);
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(location.offset + RECORD_HEADER_SIZE);
+            final byte[] keyBytes = new byte[location.keyLength];
+            final byte[] value = new byte[location.valueLength];
+            buffer.get(keyBytes).get(value);
+            index.put(key, append(key, keyBytes, value));
+        }
+        delete(segment);
+        ++compactions;
+        LOGGER.debug("Compacted the segment {} of {}", segment.id, dir);
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        final int id = nextSegmentId++;
+        final File file = new File(dir, format("segment-%08d.dat", id));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            final Segment segment = new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.put(id, segment);
+            return segment;
+        }
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        if (unmap(segment.buffer)) {
+            ++unmapped;
+        }
+        if (!segment.file.delete()) {
+            throw new IOException("Failed to delete the segment file " + segment.file);
+        }
+    }
+
+    /**
+     * Releases the mapping of the buffer, the buffer must not be accessed afterwards.
+     * Returns false if the buffer is left to the garbage collection.
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (NoSuchMethodException e) { //NOSONAR
+            return unmapBeforeJava9(buffer);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to unmap the segment, it is released by the garbage collection: {}", e.toString());
+            return false;
+        }
+    }
+
+    private static boolean unmapBeforeJava9(MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to unmap the segment, it is released by the garbage collection: {}", e.toString());
+            return false;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The store " + dir + " is closed");
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final Set<String> keys = new HashSet<>();
+        private long liveBytes;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int keyLength;
+        private final int valueLength;
+
+        private Location(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private int length() {
+            return RECORD_HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+}
@@ -5,10 +5,8 @@ import org.apache.camel.Exchange;
 import org.slf4j.Logger;
 import ru.yandex.qatools.camelot.config.Plugin;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
 
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -18,9 +16,9 @@ import static org.slf4j.LoggerFactory.getLogger;
  * @author smecsia
  */
 public class MemoryAggregationRepository extends org.apache.camel.processor.aggregate.MemoryAggregationRepository//NOSONAR
-        implements AggregationRepositoryWithLocks {
+        implements LocalAggregationRepository, AggregationRepositoryWithIteration {
     private static final Logger LOGGER = getLogger(MemoryAggregationRepository.class);
-    private final Map<String, Lock> locks = new ConcurrentHashMap<>();
+    private final KeyLocks locks = new KeyLocks();
     private final long waitForLockSec;
     private final Plugin plugin;
 
@@ -51,7 +49,7 @@ public class MemoryAggregationRepository extends org.apache.camel.processor.aggr
     public Exchange get(CamelContext camelContext, String key) {
         try {
             LOGGER.debug(format("[%s] Getting the state. tryLock(%s)", plugin.getId(), key));
-            getLock(key).tryLock(waitForLockSec, SECONDS);
+            locks.tryLock(key, waitForLockSec, SECONDS);
             return getWithoutLock(camelContext, key);
         } catch (Exception e) {
             LOGGER.error("Failed to get the key " + key + "! Forcing to unlock...", e);
@@ -77,12 +75,23 @@ public class MemoryAggregationRepository extends org.apache.camel.processor.aggr
         unlock(exchangeId);
     }
 
-    protected Lock getLock(String key) {
-        synchronized (locks) {
-            if (!locks.containsKey(key)) {
-                locks.put(key, new ReentrantLock());
+    /**
+     * Returns the locks of the keys (e.g. to watch the number of the active locks and the contention)
+     */
+    public KeyLocks getLocks() {
+        return locks;
+    }
+
+    /**
+     * Iterates over the snapshot of the keys, the states are copied one by one during the iteration
+     */
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        for (String key : new ArrayList<>(getKeys())) {
+            final Exchange exchange = getWithoutLock(camelContext, key);
+            if (exchange != null) {
+                action.accept(key, exchange);
             }
-            return locks.get(key);
         }
     }
 
@@ -92,10 +101,20 @@ public class MemoryAggregationRepository extends org.apache.camel.processor.aggr
         return (exchange == null) ? null : exchange.copy();
     }
 
+    @Override
+    public Exchange addWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        return super.add(camelContext, key, exchange);
+    }
+
+    @Override
+    public void removeWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        super.remove(camelContext, key, exchange);
+    }
+
     @Override
     public void unlock(String key) {
         try {
-            getLock(key).unlock();
+            locks.unlock(key);
         } catch (Exception e) {
             LOGGER.error("Failed to unlock key " + key, e);
         }
@@ -104,7 +123,7 @@ public class MemoryAggregationRepository extends org.apache.camel.processor.aggr
     @Override
     public void unlockQuietly(String key) {
         try {
-            getLock(key).unlock();
+            locks.unlock(key);
         } catch (Exception e) {
             LOGGER.trace("Sonar trick", e);
             LOGGER.debug("Failed to quiet unlock repo key '{}' ", key);
@@ -114,7 +133,7 @@ public class MemoryAggregationRepository extends org.apache.camel.processor.aggr
     @Override
     public void lock(String key) {
         try {
-            getLock(key).lock();
+            locks.lock(key);
         } catch (Exception e) {
             LOGGER.error("Failed to lock key " + key, e);
         }
@@ -13,6 +13,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
 import static ru.yandex.qatools.fsm.utils.ReflectUtils.collectAllSuperclassesAndInterfaces;
 import static ru.yandex.qatools.fsm.utils.ReflectUtils.getMethodsInClassHierarchy;
 
@@ -27,24 +29,25 @@ public abstract class Metadata {
     private static final Map<Class<?>, MetadataClassInfo> cache = new ConcurrentHashMap<>();
 
     public static <T> MetadataClassInfo getMeta(Class<T> clazz, Class<? extends MetadataClassInfo> metaClass) {
-        if (!cache.containsKey(clazz)) {
+        final MetadataClassInfo meta = cache.get(clazz);
+        return (meta != null) ? meta : cache.computeIfAbsent(clazz, c -> {
             try {
-                Constructor<? extends MetadataClassInfo> c = metaClass.getConstructor(Class.class);
-                cache.put(clazz, c.newInstance(clazz));
+                Constructor<? extends MetadataClassInfo> constructor = metaClass.getConstructor(Class.class);
+                return constructor.newInstance(c);
             } catch (Exception e) {
                 throw new MetadataException("Failed to instantiate the metadata reader for class " + metaClass, e);
             }
-        }
-        return cache.get(clazz);
+        });
     }
 
     public static <T> MetadataClassInfo getMeta(Class<T> clazz) {
-        if (!cache.containsKey(clazz)) {
-            cache.put(clazz, new ClassInfo<>(clazz));
-        }
-        return cache.get(clazz);
+        final MetadataClassInfo meta = cache.get(clazz);
+        return (meta != null) ? meta : cache.computeIfAbsent(clazz, c -> new ClassInfo<>(c));
     }
 
+    /**
+     * The annotated methods of the class. Is built within the constructor and is safe for the concurrent reads.
+     */
     @ScanMethodsAnnotatedWith({
             OnException.class, OnTransit.class, BeforeTransit.class,
             AfterTransit.class, Processor.class, AggregationKey.class, Split.class, NewState.class
@@ -53,7 +56,7 @@ public abstract class Metadata {
         private final Class<T> clazz;
         private final Map<Class<? extends Annotation>, Method[]> annotatedMethods = new HashMap<>();
         private final Map<Class<? extends Annotation>, Map<Set<Class>, Set<Method>>> paramTypesMethods = new HashMap<>();
-        private final Map<Class, Class[]> superClassesCache = new HashMap<>();
+        private final Map<Class, Class[]> superClassesCache = new ConcurrentHashMap<>();
         private final Class<? extends Annotation>[] methodAnnotations = getMethodAnnotations();
 
         public ClassInfo(Class<T> clazz) {
@@ -64,16 +67,15 @@ public abstract class Metadata {
 
         @Override
         public Method[] getAnnotatedMethods(Class aClass) {
-            if (annotatedMethods.containsKey(aClass)) {
-                return annotatedMethods.get(aClass);
-            }
-            return new Method[]{};
+            final Method[] methods = annotatedMethods.get(aClass);
+            return (methods != null) ? methods : new Method[]{};
         }
 
         @Override
         public Class[] getSuperClasses(Class clazz) {
-            if (superClassesCache.containsKey(clazz)) {
-                return superClassesCache.get(clazz);
+            final Class[] cached = superClassesCache.get(clazz);
+            if (cached != null) {
+                return cached;
             }
             final List<Class> classes = collectAllSuperclassesAndInterfaces(clazz);
             final Class[] superClasses = classes.toArray(new Class[classes.size()]);
@@ -83,15 +85,12 @@ public abstract class Metadata {
 
         @Override
         public Collection<Method> getMethodsByParamTypes(Class<? extends Annotation> aClass, Class... paramType) {
-            Set<Method> result = new HashSet<>();
-            if (paramTypesMethods.containsKey(aClass)) {
-                Set<Class> key = new HashSet<>();
-                key.addAll(asList(paramType));
-                if (paramTypesMethods.get(aClass).containsKey(key)) {
-                    result.addAll(paramTypesMethods.get(aClass).get(key));
-                }
+            final Map<Set<Class>, Set<Method>> methodsByParams = paramTypesMethods.get(aClass);
+            if (methodsByParams == null) {
+                return emptySet();
             }
-            return result;
+            final Set<Method> methods = methodsByParams.get(new HashSet<>(asList(paramType)));
+            return (methods != null) ? unmodifiableSet(methods) : emptySet();
         }
 
         private void collectStateSuperClassesCache() {
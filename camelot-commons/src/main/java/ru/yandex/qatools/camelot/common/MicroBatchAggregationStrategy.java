@@ -0,0 +1,30 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.processor.aggregate.AggregationStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the events having the same correlation key into the batch (in the order of their arrival).
+ * The events are kept within the property of the batch exchange.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class MicroBatchAggregationStrategy implements AggregationStrategy {
+    public static final String BATCH_PROPERTY = "camelotMicroBatch";
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Exchange aggregate(Exchange batch, Exchange event) {
+        Exchange result = batch;
+        if (result == null) {
+            result = event.copy();
+            result.getIn().setBody(null);
+            result.setProperty(BATCH_PROPERTY, new ArrayList<Exchange>());
+        }
+        result.getProperty(BATCH_PROPERTY, List.class).add(event);
+        return result;
+    }
+}
@@ -0,0 +1,11 @@
+package ru.yandex.qatools.camelot.common;
+
+/**
+ * Marks the repository writing the states durably (e.g. to the disk) before the add returns.
+ * The writes to such repository are never deferred by the {@link AggregationStateCache},
+ * so the acknowledged states are not kept on the heap only.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface PersistentAggregationRepository {
+}
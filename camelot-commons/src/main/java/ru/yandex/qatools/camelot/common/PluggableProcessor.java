@@ -23,17 +23,20 @@ public class PluggableProcessor extends ClayProcessor implements Processor {
     final protected Logger logger = LoggerFactory.getLogger(getClass());
     final private Class procClass;
     final private Object processor;
+    final private PluginInstances<Object> instances;
 
     public PluggableProcessor(ClassLoader classLoader, Class procClass, MessagesSerializer messagesSerializer) {
         super(classLoader, messagesSerializer);
         this.procClass = procClass;
         this.processor = null;
+        this.instances = new PluginInstances<>(procClass);
     }
 
     public PluggableProcessor(ClassLoader classLoader, Class procClass, Object processor, MessagesSerializer messagesSerializer) {
         super(classLoader, messagesSerializer);
         this.procClass = procClass;
         this.processor = processor;
+        this.instances = new PluginInstances<>(procClass);
     }
 
     public PluggableProcessor(Class procClass, MessagesSerializer messagesSerializer) {
@@ -44,6 +47,7 @@ public class PluggableProcessor extends ClayProcessor implements Processor {
         super(procClass.getClassLoader(), messagesSerializer);
         this.procClass = procClass;
         this.processor = processor;
+        this.instances = new PluginInstances<>(procClass);
     }
 
     @Override
@@ -53,10 +57,15 @@ public class PluggableProcessor extends ClayProcessor implements Processor {
 
         try {
             processAfterIn(message);
-            Object proc = (this.processor != null) ? this.processor : procClass.newInstance();
             currentThread().setContextClassLoader(classLoader);
+            final Object proc;
+            if (this.processor != null) {
+                proc = this.processor;
+                injectFields(proc, message);
+            } else {
+                proc = instances.get(message, instance -> injectFields(instance, message));
+            }
             Object event = message.getIn().getBody();
-            injectFields(proc, message);
             if (event != null) {
                 result = dispatchMessage(proc, event, message.getIn().getHeaders());
             }
@@ -7,6 +7,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.yandex.qatools.camelot.api.*;
 import ru.yandex.qatools.camelot.api.annotations.*;
+import ru.yandex.qatools.camelot.common.InjectionPlan.Injection;
+import ru.yandex.qatools.camelot.common.InjectionPlan.Scope;
+import ru.yandex.qatools.camelot.common.InjectionPlan.ValueResolver;
 import ru.yandex.qatools.camelot.config.PluginContext;
 import ru.yandex.qatools.camelot.error.MetadataException;
 
@@ -15,13 +18,18 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static java.lang.String.format;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
+import static ru.yandex.qatools.camelot.common.InjectionPlan.Scope.CONTEXT;
+import static ru.yandex.qatools.camelot.common.InjectionPlan.Scope.EXCHANGE;
+import static ru.yandex.qatools.camelot.common.InjectionPlan.Scope.INSTANCE;
 import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationValue;
-import static ru.yandex.qatools.camelot.util.ReflectUtil.getFieldsInClassHierarchy;
 import static ru.yandex.qatools.camelot.util.ServiceUtil.forEachAnnotatedField;
 import static ru.yandex.qatools.camelot.util.TypesUtil.*;
 
@@ -33,6 +41,7 @@ public class PluginContextInjectorImpl<P> implements PluginContextInjector<P> {
     protected final static Logger LOGGER = LoggerFactory.getLogger(PluginContextInjectorImpl.class);
     private static final Map<Class, Map<Class<? extends Annotation>,
             Collection<Pair<AnnotationInfo, Field>>>> cache = new ConcurrentHashMap<>();
+    private static final Map<Class, InjectionPlan> plans = new ConcurrentHashMap<>();
 
     @Override
     public void inject(P pluginObj, PluginContext pluginContext) {
@@ -51,175 +60,180 @@ public class PluginContextInjectorImpl<P> implements PluginContextInjector<P> {
 
     @Override
     public void inject(P object, PluginsService service, PluginContext context, Exchange exchange) {
-        if (!cache.containsKey(object.getClass())) {
-            try {
-                cacheClassInfo(object.getClass());
-            } catch (Exception e) {
-                LOGGER.error("Failed to cache the plugin context injection context!", e);
-            }
+        final InjectionPlan plan;
+        try {
+            plan = getPlan(object.getClass());
+        } catch (Exception e) {
+            LOGGER.error("Failed to build the plugin context injection plan!", e);
+            return;
         }
-        performInjection(object, service, context, exchange);
+        performInjection(plan, object, service, context, exchange);
     }
 
-    private void performInjection(Object object, PluginsService service,
+    /**
+     * Returns the injection plan of the class, which is built once per class
+     */
+    protected InjectionPlan getPlan(Class clazz) throws Exception { //NOSONAR
+        InjectionPlan plan = plans.get(clazz);
+        if (plan == null) {
+            plan = buildPlan(clazz);
+            plans.put(clazz, plan);
+        }
+        return plan;
+    }
+
+    private void performInjection(InjectionPlan plan, Object object, PluginsService service,
                                   PluginContext context, Exchange exchange) {
+        final Injection[] injections = plan.getInjections();
+        final Object[] values = (context != null)
+                ? context.getInjectedValues(object.getClass(), injections.length)
+                : new Object[injections.length];
+        Map<Class, Object> components = null;
         try {
-            injectField(object.getClass(), MainInput.class, object, service.getMainInput());
-            injectField(object.getClass(), Config.class, object, service.getAppConfig());
-            injectPluginRelatedField(object, PluginStorage.class, new InjectHandler<Storage>() {
-                @Override
-                public Storage onByClass(Class pluginClass) {
-                    return service.getInterop().storage(pluginClass);
-                }
-
-                @Override
-                public Storage onById(String pluginId) {
-                    return service.getInterop().storage(pluginId);
-                }
-
-                @Override
-                public Storage onDefault(Object object, Field field, Class ann) {
-                    throwNoContextIfNoContext(context, object, field, ann);
-                    return context.getStorage();
-                }
-            });
-            injectPluginRelatedField(object, Input.class, new InjectHandler<EventProducer>() {
-                @Override
-                public EventProducer onByClass(Class pluginClass) {
-                    return service.getInterop().input(pluginClass);
-                }
-
-                @Override
-                public EventProducer onById(String pluginId) {
-                    return service.getInterop().input(pluginId);
-                }
-
-                @Override
-                public EventProducer onDefault(Object object, Field field, Class ann) {
-                    throwNoContextIfNoContext(context, object, field, ann);
-                    return context.getInput();
-                }
-            });
-            injectPluginRelatedField(object, Output.class, new InjectHandler<EventProducer>() {
-                @Override
-                public EventProducer onByClass(Class pluginClass) {
-                    return service.getInterop().output(pluginClass);
-                }
-
-                @Override
-                public EventProducer onById(String pluginId) {
-                    return service.getInterop().output(pluginId);
+            for (int i = 0; i < injections.length; i++) {
+                final Injection injection = injections[i];
+                if (injection.isRequiresContext() && context == null) {
+                    continue;
                 }
-
-                @Override
-                public EventProducer onDefault(Object object, Field field, Class ann) {
-                    throwNoContextIfNoContext(context, object, field, ann);
-                    return context.getOutput();
+                Object value;
+                switch (injection.getScope()) {
+                    case CONTEXT:
+                        value = values[i];
+                        if (value == null) {
+                            value = injection.resolve(service, context, exchange);
+                            if (injection.accepts(value)) {
+                                values[i] = value;
+                            }
+                        }
+                        break;
+                    case INSTANCE:
+                        if (components == null) {
+                            components = new HashMap<>();
+                        }
+                        value = component(injection, components, service, context, exchange);
+                        break;
+                    default:
+                        if (exchange == null) {
+                            continue;
+                        }
+                        value = injection.resolve(service, context, exchange);
                 }
-            });
-            injectPluginRelatedField(object, Repository.class, new InjectHandler<AggregatorRepository>() {
-                @Override
-                public AggregatorRepository onByClass(Class pluginClass) {
-                    return service.getInterop().repo(pluginClass);
+                if (injection.accepts(value)) {
+                    injection.set(object, value);
                 }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Inject input / output / storage of FSM " + object + " error: ", e);
+        }
+    }
 
-                @Override
-                public AggregatorRepository onById(String pluginId) {
-                    return service.getInterop().repo(pluginId);
-                }
+    private Object component(Injection injection, Map<Class, Object> components, PluginsService service,
+                             PluginContext context, Exchange exchange) {
+        final Class<?> type = injection.getField().getType();
+        try {
+            if (!components.containsKey(type)) {
+                final Object instance = ((Class) injection.resolve(service, context, exchange)).newInstance();
+                performInjection(getPlan(instance.getClass()), instance, service, context, exchange);
+                components.put(type, instance);
+            }
+        } catch (Exception e) {
+            LOGGER.warn(format("Failed to inject plugin component into field %s!",
+                    injection.getField().getName()), e);
+        }
+        return components.get(type);
+    }
 
-                @Override
-                public AggregatorRepository onDefault(Object object, Field field, Class ann) {
-                    throwNoContextIfNoContext(context, object, field, ann);
-                    return context.getRepository();
-                }
-            });
-            injectField(object.getClass(), Plugins.class, object, (field, info) -> { //NOSONAR
-                return service.getInterop();
-            });
-            injectPluginRelatedField(object, Plugin.class, new InjectHandler<PluginInterop>() {
-                @Override
-                public PluginInterop onByClass(Class pluginClass) {
-                    return service.getInterop().forPlugin(pluginClass);
-                }
+    private InjectionPlan buildPlan(Class clazz) throws Exception { //NOSONAR
+        final List<Injection> plan = new ArrayList<>();
+        addInjections(plan, clazz, MainInput.class, CONTEXT, false, (field, info) ->
+                (service, context, exchange) -> service.getMainInput());
+        addInjections(plan, clazz, Config.class, CONTEXT, false, (field, info) ->
+                (service, context, exchange) -> service.getAppConfig());
+        addPluginRelated(plan, clazz, PluginStorage.class,
+                PluginsInterop::storage, PluginsInterop::storage, PluginContext::getStorage);
+        addPluginRelated(plan, clazz, Input.class,
+                PluginsInterop::input, PluginsInterop::input, PluginContext::getInput);
+        addPluginRelated(plan, clazz, Output.class,
+                PluginsInterop::output, PluginsInterop::output, PluginContext::getOutput);
+        addPluginRelated(plan, clazz, Repository.class,
+                PluginsInterop::repo, PluginsInterop::repo, PluginContext::getRepository);
+        addInjections(plan, clazz, Plugins.class, CONTEXT, false, (field, info) ->
+                (service, context, exchange) -> service.getInterop());
+        addPluginRelated(plan, clazz, Plugin.class,
+                PluginsInterop::forPlugin, PluginsInterop::forPlugin, context -> null);
+        addInjections(plan, clazz, ConfigValue.class, CONTEXT, false, (field, info) ->
+                (service, context, exchange) -> configValue(service.getAppConfig(), (String) info.value, field));
+        addInjections(plan, clazz, ClientSender.class, CONTEXT, true, (field, info) ->
+                (service, context, exchange) -> context.getClientSendersProvider().getSender(
+                        info.topic, context.getId(), context.getEndpoints().getFrontendSendUri()));
+        addInjections(plan, clazz, PluginComponent.class, INSTANCE, true, (field, info) -> {
+            final Class impl = (info.impl == Object.class) ? field.getType() : info.impl;
+            return (service, context, exchange) -> impl;
+        });
+        addInjections(plan, clazz, InjectHeader.class, EXCHANGE, false, (field, info) ->
+                (service, context, exchange) -> exchange.getIn().getHeader((String) info.value));
+        addInjections(plan, clazz, InjectHeaders.class, EXCHANGE, false, (field, info) ->
+                (service, context, exchange) -> exchange.getIn().getHeaders());
+        return new InjectionPlan(plan);
+    }
 
-                @Override
-                public PluginInterop onById(String pluginId) {
-                    return service.getInterop().forPlugin(pluginId);
-                }
+    private <A extends Annotation> void addInjections(List<Injection> plan, Class clazz, Class<A> annClass,
+                                                      Scope scope, boolean requiresContext,
+                                                      ResolverFactory factory) throws Exception { //NOSONAR
+        for (Pair<AnnotationInfo, Field> pair : getFields(clazz, annClass)) {
+            plan.add(new Injection(pair.getValue(), scope, requiresContext,
+                    factory.create(pair.getValue(), pair.getKey())));
+        }
+    }
 
-                @Override
-                public PluginInterop onDefault(Object object, Field field, Class ann) {
-                    throwNoContextIfNoContext(context, object, field, ann);
-                    return null;
+    private <A extends Annotation, T> void addPluginRelated(List<Injection> plan, Class clazz, Class<A> annClass,
+                                                            BiFunction<PluginsInterop, Class, T> byClass,
+                                                            BiFunction<PluginsInterop, String, T> byId,
+                                                            Function<PluginContext, T> byDefault)
+            throws Exception { //NOSONAR
+        addInjections(plan, clazz, annClass, CONTEXT, false, (field, info) -> (service, context, exchange) -> {
+            try {
+                if (info.value != null && info.value instanceof Class && info.value != Object.class) {
+                    return byClass.apply(service.getInterop(), (Class) info.value);
                 }
-            });
-            injectField(object.getClass(), ConfigValue.class, object, (field, annotation) -> { //NOSONAR
-                final String key = (String) annotation.value;
-                final AppConfig appConfig = service.getAppConfig();
-                Object result = appConfig.getProperty(key);
-                try { //NOSONAR
-                    field.setAccessible(true);
-                    if (result != null) {
-                        if (isInt(field.getType())) { //NOSONAR
-                            result = appConfig.getInt(key);
-                        } else if (isLong(field.getType())) {
-                            result = appConfig.getLong(key);
-                        } else if (isDouble(field.getType())) {
-                            result = appConfig.getDouble(key);
-                        } else if (isBoolean(field.getType())) {
-                            result = appConfig.getBoolean(key);
-                        }
-                    } else {
-                        LOGGER.debug(format("Property %s is not set within current context!", key));
-                    }
-                } catch (Exception ignored) {
-                    LOGGER.warn("Failed to inject config value into plugin", ignored);
+                if (!isEmpty(info.id)) {
+                    return byId.apply(service.getInterop(), info.id);
                 }
-                return (result != null) ? result : field.get(object);
-            });
-
-            if (context != null) {
-                injectField(object.getClass(), ClientSender.class, object, (field, info) -> { //NOSONAR
-                    return context.getClientSendersProvider().getSender(info.topic, context.getId(), context.getEndpoints().getFrontendSendUri());
-                });
-                final Map<Class, Object> components = new HashMap<>();
-                injectField(object.getClass(), PluginComponent.class, object, (field, info) -> { //NOSONAR
-                    final Class<?> type = field.getType();
-                    try { //NOSONAR
-                        if (!components.containsKey(type)) {
-                            final Class defaultClass = info.impl;
-                            final Object instance = (defaultClass == Object.class ? type : defaultClass).newInstance();
-                            performInjection(instance, service, context, exchange);
-                            components.put(type, instance);
-                        }
-                    } catch (Exception e) {
-                        LOGGER.warn(format("Failed to inject plugin component into field %s!",
-                                field.getName()), e);
-                    }
-                    return components.get(type);
-                });
+            } catch (Exception ignored) {
+                LOGGER.warn("Failed to inject value value into plugin", ignored);
             }
+            throwNoContextIfNoContext(context, clazz, field, annClass);
+            return byDefault.apply(context);
+        });
+    }
 
-            if (exchange != null) {
-                injectField(object.getClass(), InjectHeader.class, object, (field, annotation) -> { //NOSONAR
-                    return exchange.getIn().getHeader((String) annotation.value);
-                });
-                injectField(object.getClass(), InjectHeaders.class, object, (field, annotation) -> { //NOSONAR
-                    return exchange.getIn().getHeaders();
-                });
+    private static Object configValue(AppConfig appConfig, String key, Field field) {
+        Object result = appConfig.getProperty(key);
+        if (result == null) {
+            LOGGER.debug(format("Property %s is not set within current context!", key));
+            return null;
+        }
+        try { //NOSONAR
+            if (isInt(field.getType())) { //NOSONAR
+                result = appConfig.getInt(key);
+            } else if (isLong(field.getType())) {
+                result = appConfig.getLong(key);
+            } else if (isDouble(field.getType())) {
+                result = appConfig.getDouble(key);
+            } else if (isBoolean(field.getType())) {
+                result = appConfig.getBoolean(key);
             }
-        } catch (Exception e) {
-            LOGGER.error("Inject input / output / storage of FSM " + object + " error: ", e);
+        } catch (Exception ignored) {
+            LOGGER.warn("Failed to inject config value into plugin", ignored);
         }
-
+        return result;
     }
 
-    private void throwNoContextIfNoContext(PluginContext context, Object object, Field field, Class ann) {
+    private static void throwNoContextIfNoContext(PluginContext context, Class clazz, Field field, Class ann) {
         if (context == null) {
             throw new MetadataException(
                     format("Could not inject field %s annotated with %s without context for object of type %s!",
-                            field.getName(), ann.getName(), object.getClass().getName()));
+                            field.getName(), ann.getName(), clazz.getName()));
         }
     }
 
@@ -239,33 +253,6 @@ public class PluginContextInjectorImpl<P> implements PluginContextInjector<P> {
         return cache.get(clazz).get(annClass);
     }
 
-    @SuppressWarnings("unchecked")
-    protected synchronized void cacheClassInfo(Class clazz) throws Exception { //NOSONAR
-        for (Field field : getFieldsInClassHierarchy(clazz)) {
-            for (Annotation annotation : field.getAnnotations()) {
-                getFields(clazz, annotation.annotationType());
-            }
-        }
-    }
-
-    protected <T, U extends Annotation> void
-    injectPluginRelatedField(Object object, final Class<U> ann,
-                             final InjectHandler<T> handler) throws Exception { //NOSONAR
-        injectField(object.getClass(), ann, object, (field, info) -> { //NOSONAR
-            try {
-                if (info.value != null && info.value instanceof Class && info.value != Object.class) {
-                    return handler.onByClass((Class) info.value);
-                }
-                if (!isEmpty(info.id)) {
-                    return handler.onById(info.id);
-                }
-            } catch (Exception ignored) {
-                LOGGER.warn("Failed to inject value value into plugin", ignored);
-            }
-            return handler.onDefault(object, field, ann);
-        });
-    }
-
     protected <T, A extends Annotation> void injectField(Class clazz, Class<A> annClass,
                                                          final Object instance, final T value) throws Exception { //NOSONAR
         injectField(clazz, annClass, instance, (field, info) -> value);
@@ -290,18 +277,14 @@ public class PluginContextInjectorImpl<P> implements PluginContextInjector<P> {
         }
     }
 
-    protected interface InjectHandler<T> {
-        T onByClass(Class pluginClass);
-
-        T onById(String pluginId);
-
-        T onDefault(Object object, Field field, Class ann);
-    }
-
     protected interface FieldListener<T> {
         T found(Field field, AnnotationInfo info) throws Exception; //NOSONAR
     }
 
+    private interface ResolverFactory {
+        ValueResolver create(Field field, AnnotationInfo info);
+    }
+
     protected static class AnnotationInfo {
         String id;
         Object value;
@@ -0,0 +1,65 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import ru.yandex.qatools.camelot.api.annotations.ReusableInstances;
+import ru.yandex.qatools.camelot.error.MetadataException;
+
+import java.util.function.Consumer;
+
+import static ru.yandex.qatools.camelot.common.InjectionPlan.injectHeaders;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationWithinHierarchy;
+
+/**
+ * Provides the instances of the plugin class to process the events.
+ * A new instance is created and injected for each event unless the class is annotated with
+ * {@link ReusableInstances}. In that case the instance is created once per thread, and only
+ * its exchange headers are injected for the subsequent events.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class PluginInstances<T> {
+    private final Class<T> pluginClass;
+    private final boolean reusable;
+    private final ThreadLocal<T> instances = new ThreadLocal<>();
+
+    public PluginInstances(Class<T> pluginClass) {
+        this.pluginClass = pluginClass;
+        try {
+            this.reusable = getAnnotationWithinHierarchy(pluginClass, ReusableInstances.class) != null;
+        } catch (ReflectiveOperationException e) {
+            throw new MetadataException("Failed to read the annotations of the plugin class " + pluginClass, e);
+        }
+    }
+
+    public boolean isReusable() {
+        return reusable;
+    }
+
+    /**
+     * Returns the instance injected for the exchange
+     */
+    public T get(Exchange exchange, Consumer<T> injector) throws ReflectiveOperationException {
+        T instance = reusable ? instances.get() : null;
+        if (instance == null) {
+            instance = pluginClass.newInstance();
+            injector.accept(instance);
+            if (reusable) {
+                instances.set(instance);
+            }
+        } else {
+            injectHeaders(instance, exchange);
+        }
+        return instance;
+    }
+
+    /**
+     * Injects the instance which is used for the next exchange
+     */
+    public void inject(T instance, Exchange exchange, Consumer<T> injector) {
+        if (reusable) {
+            injectHeaders(instance, exchange);
+        } else {
+            injector.accept(instance);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The in-process scheduler of the retries based on the hashed timer wheel.
+ * The delay of each retry grows exponentially with the attempt and is randomized by the jitter.
+ * The retries scheduled for the key having the pending retry are coalesced with it.
+ * The number of the pending retries is bounded: the scheduling is rejected when the limit is reached.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RetryScheduler<T> {
+    private static final Logger LOGGER = getLogger(RetryScheduler.class);
+
+    private final String name;
+    private final long tickMs;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double jitter;
+    private final int maxPending;
+    private final TimerWheel<Retry<T>> wheel;
+    private final Map<String, Retry<T>> pending = new HashMap<>();
+    private final ExecutorService workers;
+    private final Thread ticker;
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong fired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private int pendingCount;
+    private volatile boolean stopped;
+    private volatile Consumer<T> retryHandler;
+    private volatile Consumer<T> fallbackHandler;
+
+    public RetryScheduler(String name, long tickMs, int wheelSize, long initialDelayMs, long maxDelayMs,
+                          double jitter, int maxPending, int threads) {
+        this.name = name;
+        this.tickMs = tickMs;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.maxPending = maxPending;
+        this.wheel = new TimerWheel<>(wheelSize);
+        final AtomicInteger workerIdx = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            final Thread thread = new Thread(task, "camelot-retries-" + name + "-" + workerIdx.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = TimerWheel.startTicker("camelot-retries-" + name + "-wheel", tickMs, () -> stopped, this::tick);
+    }
+
+    /**
+     * Sets the handler of the due retries and the handler of the retries pending on shutdown
+     */
+    public void handleWith(Consumer<T> retryHandler, Consumer<T> fallbackHandler) {
+        this.retryHandler = retryHandler;
+        this.fallbackHandler = fallbackHandler;
+    }
+
+    /**
+     * Schedules the retry of the item for the key.
+     * Returns false if the scheduler is stopped or too many retries are pending.
+     */
+    public boolean schedule(String key, T item, int attempt) {
+        synchronized (this) {
+            if (stopped || pendingCount >= maxPending) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            ++pendingCount;
+            final Retry<T> existing = pending.get(key);
+            if (existing != null) {
+                existing.items.add(item);
+                coalesced.incrementAndGet();
+                return true;
+            }
+            final Retry<T> retry = new Retry<>(key, item);
+            wheel.schedule(retry, (delayMs(attempt) + tickMs - 1) / tickMs);
+            pending.put(key, retry);
+        }
+        scheduled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stops the scheduler passing all the pending retries to the fallback handler
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        final List<T> left = new ArrayList<>();
+        synchronized (this) {
+            stopped = true;
+            for (Retry<T> retry : wheel.clear()) {
+                left.addAll(retry.items);
+            }
+            pending.clear();
+            pendingCount = 0;
+        }
+        ticker.interrupt();
+        workers.shutdown();
+        if (!workers.awaitTermination(timeout, unit)) {
+            LOGGER.warn("Retries of {} did not finish within {} {}", name, timeout, unit);
+        }
+        for (T item : left) {
+            handle(fallbackHandler, item);
+        }
+        LOGGER.info("Retries of {} stopped: scheduled={}, coalesced={}, fired={}, rejected={}, passed to fallback={}",
+                name, getScheduled(), getCoalesced(), getFired(), getRejected(), left.size());
+    }
+
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getFired() {
+        return fired.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public synchronized int getPending() {
+        return pendingCount;
+    }
+
+    long delayMs(int attempt) {
+        final long base = (attempt >= Long.numberOfLeadingZeros(initialDelayMs) - 1)
+                ? maxDelayMs : Math.min(maxDelayMs, initialDelayMs << attempt);
+        final double factor = 1.0 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (base * factor);
+    }
+
+    private void tick() {
+        for (Retry<T> retry : advance()) {
+            try {
+                workers.execute(() -> fire(retry));
+            } catch (RejectedExecutionException e) { //NOSONAR
+                retry.items.forEach(item -> handle(fallbackHandler, item));
+            }
+        }
+    }
+
+    private synchronized List<Retry<T>> advance() {
+        if (stopped) {
+            return Collections.emptyList();
+        }
+        final List<Retry<T>> due = wheel.advance();
+        for (Retry<T> retry : due) {
+            pending.remove(retry.key);
+            pendingCount -= retry.items.size();
+        }
+        return due;
+    }
+
+    private void fire(Retry<T> retry) {
+        for (T item : retry.items) {
+            fired.incrementAndGet();
+            handle(retryHandler, item);
+        }
+    }
+
+    private void handle(Consumer<T> handler, T item) {
+        try {
+            handler.accept(item);
+        } catch (Exception e) {
+            LOGGER.error("Failed to handle the retry of " + name + " for " + item, e);
+        }
+    }
+
+    private static final class Retry<T> {
+        private final String key;
+        private final List<T> items = new ArrayList<>(1);
+
+        private Retry(String key, T item) {
+            this.key = key;
+            this.items.add(item);
+        }
+    }
+}
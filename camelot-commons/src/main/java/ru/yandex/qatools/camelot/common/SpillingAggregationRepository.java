@@ -0,0 +1,356 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.apache.camel.spi.AggregationRepository;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
+
+/**
+ * The local repository keeping the limited number of the recently updated states on heap.
+ * The least recently used states above the limit are spilled to the {@link MappedSegmentStore} on the local disk
+ * and are read back from it when requested. The updated state always returns to the heap.
+ * The spilled states do not survive the restart as well as the states of {@link MemoryAggregationRepository}.
+ * The writes of the key are made under the lock of the key, the order of the states on heap is guarded by
+ * the narrow lock which is never held while the states are serialized or read from the disk.
+ * The state is written to the disk before it is removed from the heap and returns to the heap before
+ * it is removed from the disk, so the readers never miss it.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class SpillingAggregationRepository implements AggregationRepository, LocalAggregationRepository,
+        AggregationRepositoryWithValuesMap, AggregationRepositoryWithIteration, Closeable {
+    private static final Logger LOGGER = getLogger(SpillingAggregationRepository.class);
+    private final KeyLocks locks = new KeyLocks();
+    private final Map<String, Exchange> hot = new LinkedHashMap<>(16, 0.75f, true);
+    private final MappedSegmentStore cold;
+    private final Plugin plugin;
+    private final long waitForLockSec;
+    private final int maxHotStates;
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+
+    public SpillingAggregationRepository(Plugin plugin, long waitForLockSec, int maxHotStates,
+                                         File dir, long segmentSize, double compactionRatio) throws IOException {
+        this.plugin = plugin;
+        this.waitForLockSec = waitForLockSec;
+        this.maxHotStates = maxHotStates;
+        this.cold = new MappedSegmentStore(dir, segmentSize, compactionRatio);
+    }
+
+    /**
+     * Writes the state and unlocks the key. The failures of the segment store are thrown,
+     * so the state is never dropped silently
+     */
+    @Override
+    public Exchange add(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Adding the state. add/unlock(%s)", plugin.getId(), key));
+            return addWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public Exchange get(CamelContext camelContext, String key) {
+        LOGGER.debug(format("[%s] Getting the state. tryLock(%s)", plugin.getId(), key));
+        try {
+            if (!locks.tryLock(key, waitForLockSec, SECONDS)) {
+                throw new RepositoryLockWaitException(format(
+                        "Failed to acquire the lock for the key '%s' within timeout of %ds", key, waitForLockSec));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryLockWaitException(format("Interrupted while locking the key '%s'", key), e);
+        }
+        try {
+            return getWithoutLock(camelContext, key);
+        } catch (RuntimeException e) {
+            unlock(key);
+            throw e;
+        }
+    }
+
+    @Override
+    public void remove(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Removing the state. unlock(%s)", plugin.getId(), key));
+            removeWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public void confirm(CamelContext camelContext, String exchangeId) {
+        unlock(exchangeId);
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        synchronized (hot) {
+            final Set<String> keys = new HashSet<>(hot.keySet());
+            keys.addAll(cold.keys());
+            return keys;
+        }
+    }
+
+    @Override
+    public Map<String, Exchange> values(CamelContext camelContext) {
+        final Map<String, Exchange> result = new HashMap<>();
+        for (String key : getKeys()) {
+            final Exchange exchange = getWithoutLock(camelContext, key);
+            if (exchange != null) {
+                result.put(key, exchange);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Iterates over the snapshot of the keys, so the spilled states are read back one by one
+     */
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        for (String key : getKeys()) {
+            final Exchange exchange = getWithoutLock(camelContext, key);
+            if (exchange != null) {
+                action.accept(key, exchange);
+            }
+        }
+    }
+
+    /**
+     * Looks up the heap again if the state is not on the disk, as it may have returned to the heap in the meantime
+     */
+    @Override
+    public Exchange getWithoutLock(CamelContext camelContext, String key) {
+        Exchange exchange = hot(key);
+        if (exchange == null) {
+            final byte[] bytes = cold.get(key);
+            if (bytes != null) {
+                loaded.incrementAndGet();
+                return toExchange(camelContext, bytes);
+            }
+            exchange = hot(key);
+        }
+        return (exchange == null) ? null : exchange.copy();
+    }
+
+    @Override
+    public Exchange addWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        final Exchange previous;
+        locks.lock(key);
+        try {
+            synchronized (hot) {
+                previous = hot.put(key, exchange);
+            }
+            cold.remove(key);
+        } catch (IOException e) {
+            throw new RepositoryFailureException(format("Failed to add the state of the key '%s'", key), e);
+        } finally {
+            locks.unlock(key);
+        }
+        spillEldest();
+        return previous;
+    }
+
+    @Override
+    public void removeWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        locks.lock(key);
+        try {
+            synchronized (hot) {
+                hot.remove(key);
+            }
+            cold.remove(key);
+        } catch (IOException e) {
+            throw new RepositoryFailureException(format("Failed to remove the state of the key '%s'", key), e);
+        } finally {
+            locks.unlock(key);
+        }
+    }
+
+    @Override
+    public void unlock(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to unlock key " + key, e);
+        }
+    }
+
+    @Override
+    public void unlockQuietly(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.trace("Sonar trick", e);
+            LOGGER.debug("Failed to quiet unlock repo key '{}' ", key);
+        }
+    }
+
+    @Override
+    public void lock(String key) {
+        try {
+            locks.lock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to lock key " + key, e);
+        }
+    }
+
+    /**
+     * Returns the locks of the keys (e.g. to watch the number of the active locks and the contention)
+     */
+    public KeyLocks getLocks() {
+        return locks;
+    }
+
+    /**
+     * Returns the store of the spilled states
+     */
+    public MappedSegmentStore getStore() {
+        return cold;
+    }
+
+    /**
+     * Returns the number of the states kept on heap
+     */
+    public int getHotStates() {
+        synchronized (hot) {
+            return hot.size();
+        }
+    }
+
+    /**
+     * Returns the number of the states spilled to the disk
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Returns the number of the states read from the disk
+     */
+    public long getLoaded() {
+        return loaded.get();
+    }
+
+    /**
+     * Removes all the spilled states from the disk
+     */
+    @Override
+    public void close() throws IOException {
+        LOGGER.info("[{}] Closing the repository: hot={}, spilled now={}, spilled={}, loaded={}, compactions={}",
+                plugin.getId(), getHotStates(), cold.size(), getSpilled(), getLoaded(), cold.getCompactions());
+        synchronized (hot) {
+            hot.clear();
+        }
+        cold.close();
+    }
+
+    private Exchange hot(String key) {
+        synchronized (hot) {
+            return hot.get(key);
+        }
+    }
+
+    /**
+     * Spills the least recently used states above the limit. The keys locked by the others are skipped
+     * (they are being updated, so they are not the coldest ones anymore)
+     */
+    private void spillEldest() {
+        for (String key : eldestKeys()) {
+            try {
+                if (locks.tryLock(key, 0, SECONDS)) {
+                    try {
+                        spill(key);
+                    } finally {
+                        locks.unlock(key);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("[{}] Failed to spill the state of the key '{}', keeping it on heap",
+                        plugin.getId(), key, e);
+            }
+        }
+    }
+
+    private List<String> eldestKeys() {
+        synchronized (hot) {
+            final int excess = hot.size() - maxHotStates;
+            if (excess <= 0) {
+                return emptyList();
+            }
+            final List<String> keys = new ArrayList<>(excess);
+            final Iterator<String> eldest = hot.keySet().iterator();
+            while (keys.size() < excess && eldest.hasNext()) {
+                keys.add(eldest.next());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Moves the state to the disk, the caller must hold the lock of the key
+     */
+    private void spill(String key) throws IOException {
+        final Exchange exchange;
+        synchronized (hot) {
+            exchange = (hot.size() > maxHotStates) ? hot.get(key) : null;
+        }
+        if (exchange == null) {
+            return;
+        }
+        final byte[] bytes = serializeToBytes(DefaultExchangeHolder.marshal(exchange),
+                plugin.getContext().getClassLoader());
+        if (bytes == null) {
+            LOGGER.warn("[{}] Failed to spill the state of the key '{}', keeping it on heap", plugin.getId(), key);
+            return;
+        }
+        cold.put(key, bytes);
+        synchronized (hot) {
+            hot.remove(key);
+        }
+        spilled.incrementAndGet();
+    }
+
+    private Exchange toExchange(CamelContext camelContext, byte[] bytes) {
+        try {
+            final Exchange exchange = new DefaultExchange(camelContext);
+            DefaultExchangeHolder.unmarshal(exchange,
+                    (DefaultExchangeHolder) deserializeFromBytes(bytes, plugin.getContext().getClassLoader()));
+            return exchange;
+        } catch (Exception e) {
+            throw new RepositoryFailureException("Failed to read the spilled state", e);
+        }
+    }
+}
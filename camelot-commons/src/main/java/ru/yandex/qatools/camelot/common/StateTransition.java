@@ -0,0 +1,37 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+
+/**
+ * Applies the event to the aggregation state
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public interface StateTransition {
+
+    /**
+     * Applies the message to the state (null if the key has no state yet)
+     */
+    Result transit(Exchange state, Exchange message) throws Exception; //NOSONAR
+
+    /**
+     * The state after the transition: the state to keep or the output of the completed state
+     */
+    final class Result {
+        private final Exchange state;
+        private final boolean completed;
+
+        public Result(Exchange state, boolean completed) {
+            this.state = state;
+            this.completed = completed;
+        }
+
+        public Exchange getState() {
+            return state;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+}
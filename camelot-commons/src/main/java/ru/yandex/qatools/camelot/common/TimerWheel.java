@@ -0,0 +1,123 @@
+package ru.yandex.qatools.camelot.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The hashed timer wheel: the items are put into the slots by their deadline ticks,
+ * so each tick visits only the items of a single slot instead of all the scheduled ones.
+ * The items scheduled more than the wheel size ticks ahead stay in their slot for the next rounds.
+ * The wheel is not thread-safe, the owner must guard it.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class TimerWheel<T> {
+    private final Timeout<T>[] slots;
+    private final int mask;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int size) {
+        final int slotsCount = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.slots = new Timeout[slotsCount];
+        this.mask = slotsCount - 1;
+    }
+
+    /**
+     * Returns the number of the ticks passed
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Schedules the item to be due after the number of the ticks (at least one)
+     */
+    public void schedule(T item, long ticks) {
+        final Timeout<T> timeout = new Timeout<>(item, tick + Math.max(1, ticks));
+        final int slot = (int) (timeout.deadline & mask);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    /**
+     * Moves the wheel to the next tick and returns the items being due at it
+     */
+    public List<T> advance() {
+        ++tick;
+        final int slot = (int) (tick & mask);
+        List<T> due = Collections.emptyList();
+        Timeout<T> prev = null;
+        Timeout<T> timeout = slots[slot];
+        while (timeout != null) {
+            final Timeout<T> next = timeout.next;
+            if (timeout.deadline <= tick) {
+                if (prev == null) {
+                    slots[slot] = next;
+                } else {
+                    prev.next = next;
+                }
+                if (due.isEmpty()) {
+                    due = new ArrayList<>();
+                }
+                due.add(timeout.item);
+            } else {
+                prev = timeout;
+            }
+            timeout = next;
+        }
+        return due;
+    }
+
+    /**
+     * Removes all the scheduled items and returns them
+     */
+    public List<T> clear() {
+        final List<T> items = new ArrayList<>();
+        for (int i = 0; i < slots.length; i++) {
+            for (Timeout<T> timeout = slots[i]; timeout != null; timeout = timeout.next) {
+                items.add(timeout.item);
+            }
+            slots[i] = null;
+        }
+        return items;
+    }
+
+    /**
+     * Starts the daemon thread calling the tick action each tick until it is stopped
+     */
+    public static Thread startTicker(String threadName, long tickMs, BooleanSupplier stopped, Runnable onTick) {
+        final Thread ticker = new Thread(() -> {
+            final long tickNanos = MILLISECONDS.toNanos(tickMs);
+            long nextTick = System.nanoTime() + tickNanos;
+            while (!stopped.getAsBoolean()) {
+                final long wait = nextTick - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                nextTick += tickNanos;
+                onTick.run();
+            }
+        }, threadName);
+        ticker.setDaemon(true);
+        ticker.start();
+        return ticker;
+    }
+
+    private static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
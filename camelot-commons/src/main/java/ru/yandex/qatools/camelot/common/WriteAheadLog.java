@@ -0,0 +1,259 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The append-only log of the mutations of the states by the keys.
+ * Each record is checksummed, the torn tail of the log left by the crash is cut off on the recovery.
+ * The log is split into the generations: {@link #roll()} starts the new file, so the files of the generations
+ * covered by the snapshot can be deleted.
+ * The lock of the sync is always taken before the lock of the log.
+ * The writes are made durable by the group commit: the writer waiting for the sync is released by the single fsync
+ * covering the records of all the writers appended before it.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class WriteAheadLog implements Closeable {
+    public static final byte PUT = 1;
+    public static final byte REMOVE = 2;
+    private static final Logger LOGGER = getLogger(WriteAheadLog.class);
+    private static final Pattern FILE_NAME = Pattern.compile("wal-(\\d+)\\.log");
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File dir;
+    private final boolean fsync;
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private long generation;
+    private long written;
+    private volatile long synced;
+    private long syncs;
+
+    /**
+     * Listens to the records read from the log
+     */
+    public interface RecordListener {
+        void onRecord(byte type, String key, byte[] value);
+    }
+
+    public WriteAheadLog(File dir, long generation, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.generation = generation;
+        this.channel = open(generation);
+    }
+
+    /**
+     * Appends the record to the log without waiting for it to become durable.
+     * Returns the position to wait for with {@link #sync(long)}.
+     */
+    public synchronized long write(byte type, String key, byte[] value) throws IOException {
+        final ByteBuffer record = encode(type, key, value);
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        written += record.limit();
+        return written;
+    }
+
+    /**
+     * Waits until the log is durable up to the position
+     */
+    public void sync(long position) throws IOException {
+        if (!fsync || synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final FileChannel current;
+            final long target;
+            synchronized (this) {
+                current = channel;
+                target = written;
+            }
+            current.force(false);
+            ++syncs;
+            synced = Math.max(synced, target);
+        }
+    }
+
+    /**
+     * Starts the next generation of the log. Returns the new generation.
+     */
+    public long roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                channel.force(false);
+                channel.close();
+                synced = written;
+                channel = open(++generation);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Deletes the files of the generations older than the given one
+     */
+    public void deleteBefore(long generation) {
+        for (long gen : generations(dir)) {
+            if (gen < generation && !file(dir, gen).delete()) {
+                LOGGER.warn("Failed to delete the log file {}", file(dir, gen));
+            }
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the number of the fsync calls made
+     */
+    public long getSyncs() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                    channel.close();
+                    synced = written;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the log files of the generations starting from the given one.
+     * The torn tail of the last file is truncated.
+     */
+    public static void replay(File dir, long fromGeneration, RecordListener listener) throws IOException {
+        for (long gen : generations(dir)) {
+            if (gen >= fromGeneration) {
+                final File file = file(dir, gen);
+                final long valid = read(file, listener);
+                if (valid < file.length()) {
+                    LOGGER.warn("Truncating the torn tail of the log {} at {} of {} bytes", file, valid, file.length());
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(valid);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the generations of the log files within the directory in the ascending order
+     */
+    public static List<Long> generations(File dir) {
+        final List<Long> result = new ArrayList<>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                final Matcher matcher = FILE_NAME.matcher(name);
+                if (matcher.matches()) {
+                    result.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        result.sort(Long::compare);
+        return result;
+    }
+
+    /**
+     * Encodes the record: the length and the checksum of the payload followed by the payload
+     */
+    static ByteBuffer encode(byte type, String key, byte[] value) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        final int valueLength = (value == null) ? 0 : value.length;
+        final int payloadLength = 1 + 4 + keyBytes.length + valueLength;
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength);
+        buffer.putInt(payloadLength).putInt(0).put(type).putInt(keyBytes.length).put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the records of the file until its end or the first broken record.
+     * Returns the length of the valid part of the file.
+     */
+    static long read(File file, RecordListener listener) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final int checksum;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 5 || length > file.length() - valid) {
+                        return valid;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) { //NOSONAR
+                    return valid;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return valid;
+                }
+                final ByteBuffer buffer = ByteBuffer.wrap(payload);
+                final byte type = buffer.get();
+                final byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                final byte[] value = new byte[buffer.remaining()];
+                buffer.get(value);
+                listener.onRecord(type, new String(key, UTF_8), value);
+                valid += RECORD_HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private FileChannel open(long generation) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file(dir, generation), "rw");
+        raf.seek(raf.length());
+        return raf.getChannel();
+    }
+
+    private static File file(File dir, long generation) {
+        return new File(dir, format("wal-%016d.log", generation));
+    }
+}
@@ -1,16 +1,20 @@
 package ru.yandex.qatools.camelot.common.builders;
 
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
 import org.apache.camel.Expression;
 import org.apache.camel.Processor;
+import org.apache.camel.model.ProcessorDefinition;
 import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.support.ExpressionAdapter;
 import ru.yandex.qatools.camelot.beans.AggregatorConfig;
+import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
+import ru.yandex.qatools.camelot.common.MicroBatchAggregationStrategy;
 import ru.yandex.qatools.camelot.config.Plugin;
 import ru.yandex.qatools.camelot.config.PluginContext;
 
 import static java.lang.String.format;
 import static org.apache.camel.LoggingLevel.DEBUG;
-import static org.apache.camel.builder.ExpressionBuilder.beanExpression;
 import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
 import static ru.yandex.qatools.camelot.api.Constants.Headers.PLUGIN_ID;
 
@@ -47,11 +51,11 @@ public class AggregatorPluginRouteBuilder extends GenericPluginRouteBuilder impl
 
         final Expression aggKey = aggKeyExpression(aggregatorConfig);
         // main aggregation inputRoute
-        final RouteDefinition definition = addInterimProc(inputRoute
+        final ProcessorDefinition<?> definition = addInterimProc(appendStrategy(inputRoute
                 .setHeader(PLUGIN_ID, constant(pluginId))
                 .setHeader(CORRELATION_KEY, aggKey)
-                .log(DEBUG, format("===> INPUT FOR %s ${exchangeId} ${in.header.bodyClass}, correlationKey: ${in.header.correlationKey}", pluginId))
-                .process(strategy));
+                .log(DEBUG, format("===> INPUT FOR %s ${exchangeId} ${in.header.bodyClass}, correlationKey: ${in.header.correlationKey}", pluginId)),
+                strategy, aggregatorConfig));
 
 
         definition
@@ -77,11 +81,32 @@ public class AggregatorPluginRouteBuilder extends GenericPluginRouteBuilder impl
         this.strategyBuilder = strategyBuilder;
     }
 
+    private ProcessorDefinition<?> appendStrategy(RouteDefinition route, Processor strategy,
+                                                  AggregatorConfig aggregatorConfig) {
+        // Micro-batching (optional), the completed batches are handed to the lane of their key in order
+        if (aggregatorConfig.getBatchSize() > 0) {
+            return route.aggregate(header(CORRELATION_KEY), new MicroBatchAggregationStrategy())
+                    .completionSize(aggregatorConfig.getBatchSize())
+                    .completionTimeout(aggregatorConfig.getBatchTimeoutMs())
+                    .ignoreInvalidCorrelationKeys()
+                    .forceCompletionOnStop()
+                    .process(strategy)
+                    .split(body());
+        }
+        return route.process(strategy);
+    }
+
     private CamelotAggregationStrategyBuilder newAggregationStrategyBuilder(PluginContext context) throws Exception { //NOSONAR
         return new CamelotAggregationStrategyBuilder(camelContext, context.getPluginClass(), context);
     }
 
     private Expression aggKeyExpression(AggregatorConfig aggregatorConfig) throws Exception { //NOSONAR
-        return beanExpression(aggregatorConfig.getStrategyInstance(), "aggregationKey");
+        final AggregationKeyStrategy keyStrategy = aggregatorConfig.getStrategyInstance();
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                return keyStrategy.aggregationKey(exchange);
+            }
+        };
     }
 }
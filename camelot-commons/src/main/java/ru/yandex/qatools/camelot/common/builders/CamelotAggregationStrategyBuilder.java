@@ -1,12 +1,27 @@
 package ru.yandex.qatools.camelot.common.builders;
 
 import org.apache.camel.CamelContext;
+import ru.yandex.qatools.camelot.api.AppConfig;
 import ru.yandex.qatools.camelot.api.annotations.Aggregate;
+import ru.yandex.qatools.camelot.api.annotations.AggregationKey;
+import ru.yandex.qatools.camelot.api.annotations.ExecutionLanes;
+import ru.yandex.qatools.camelot.api.annotations.LocalRetries;
+import ru.yandex.qatools.camelot.api.annotations.OptimisticWrites;
+import ru.yandex.qatools.camelot.api.annotations.MicroBatch;
+import ru.yandex.qatools.camelot.api.annotations.StateExpiry;
+import ru.yandex.qatools.camelot.api.annotations.StateCache;
+import ru.yandex.qatools.camelot.api.annotations.TransitOnOwner;
 import ru.yandex.qatools.camelot.beans.AggregatorConfig;
 import ru.yandex.qatools.camelot.beans.AggregatorConfigImpl;
+import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
+import ru.yandex.qatools.camelot.common.AggregationLanes;
+import ru.yandex.qatools.camelot.common.AggregationStateCache;
+import ru.yandex.qatools.camelot.common.AggregationStateExpiry;
 import ru.yandex.qatools.camelot.common.CamelotAggregationStrategy;
 import ru.yandex.qatools.camelot.common.CamelotFSMBuilder;
+import ru.yandex.qatools.camelot.common.DeclaredAggregationKeyStrategy;
 import ru.yandex.qatools.camelot.common.PluginMethodAggregationKeyStrategy;
+import ru.yandex.qatools.camelot.common.RetryScheduler;
 import ru.yandex.qatools.camelot.common.RouteConfigReader;
 import ru.yandex.qatools.camelot.config.PluginContext;
 import ru.yandex.qatools.camelot.error.MetadataException;
@@ -14,6 +29,7 @@ import ru.yandex.qatools.camelot.error.MetadataException;
 import java.lang.reflect.Constructor;
 
 import static java.lang.String.format;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationValue;
 import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationWithinHierarchy;
 
 
@@ -37,6 +53,12 @@ public class CamelotAggregationStrategyBuilder implements AggregationStrategyBui
         this.pluginContext = context;
         initFsmBuilder();
         initPluginConfig();
+        initStateCache();
+        initLanes();
+        initRetries();
+        initExpiry();
+        initTransitions();
+        initOptimisticWrites();
     }
 
     /**
@@ -79,15 +101,111 @@ public class CamelotAggregationStrategyBuilder implements AggregationStrategyBui
         }
     }
 
+    private void initStateCache() throws ReflectiveOperationException {
+        Object stateCache = getAnnotationWithinHierarchy(fsmClass, StateCache.class);
+        if (stateCache != null && pluginContext.getStateCache() == null) {
+            pluginContext.setStateCache(new AggregationStateCache(camelContext, pluginContext,
+                    (int) getAnnotationValue(stateCache, "maxSize"),
+                    (int) getAnnotationValue(stateCache, "flushEveryEvents"),
+                    (long) getAnnotationValue(stateCache, "flushIntervalMs")
+            ));
+        }
+    }
+
+    /**
+     * The completed micro-batches are always processed within the lanes,
+     * so the batches of the same key are never processed concurrently or out of order
+     */
+    private void initLanes() throws ReflectiveOperationException {
+        Object lanes = getAnnotationWithinHierarchy(fsmClass, ExecutionLanes.class);
+        if ((lanes != null || config.getBatchSize() > 0) && pluginContext.getLanes() == null) {
+            final AppConfig appConfig = pluginContext.getAppConfig();
+            int count = (lanes != null) ? (int) getAnnotationValue(lanes, "count") : 0;
+            int queueSize = (lanes != null) ? (int) getAnnotationValue(lanes, "queueSize") : 0;
+            pluginContext.setLanes(new AggregationLanes(pluginContext.getId(),
+                    (count > 0) ? count : appConfig.getInt("camelot.lanes.count"),
+                    (queueSize > 0) ? queueSize : appConfig.getInt("camelot.lanes.queueSize")
+            ));
+        }
+    }
+
+    private void initRetries() throws ReflectiveOperationException {
+        Object retries = getAnnotationWithinHierarchy(fsmClass, LocalRetries.class);
+        if (retries != null && pluginContext.getRetries() == null) {
+            final AppConfig appConfig = pluginContext.getAppConfig();
+            long initialDelayMs = (long) getAnnotationValue(retries, "initialDelayMs");
+            long maxDelayMs = (long) getAnnotationValue(retries, "maxDelayMs");
+            int maxPending = (int) getAnnotationValue(retries, "maxPending");
+            pluginContext.setRetries(new RetryScheduler<>(pluginContext.getId(),
+                    appConfig.getLong("camelot.retries.tickMs"),
+                    appConfig.getInt("camelot.retries.wheelSize"),
+                    (initialDelayMs > 0) ? initialDelayMs : appConfig.getLong("camelot.retries.initialDelayMs"),
+                    (maxDelayMs > 0) ? maxDelayMs : appConfig.getLong("camelot.retries.maxDelayMs"),
+                    appConfig.getDouble("camelot.retries.jitter"),
+                    (maxPending > 0) ? maxPending : appConfig.getInt("camelot.retries.maxPending"),
+                    appConfig.getInt("camelot.retries.threads")
+            ));
+        }
+    }
+
+    private void initExpiry() throws Exception { //NOSONAR
+        Object expiry = getAnnotationWithinHierarchy(fsmClass, StateExpiry.class);
+        if (expiry != null && pluginContext.getExpiry() == null) {
+            final AppConfig appConfig = pluginContext.getAppConfig();
+            pluginContext.setExpiry(new AggregationStateExpiry(camelContext, pluginContext,
+                    (long) getAnnotationValue(expiry, "idleMs"),
+                    appConfig.getLong("camelot.expiry.tickMs"),
+                    appConfig.getInt("camelot.expiry.wheelSize")
+            ));
+        }
+    }
+
+    private void initTransitions() throws ReflectiveOperationException {
+        if (getAnnotationWithinHierarchy(fsmClass, TransitOnOwner.class) != null) {
+            pluginContext.setTransitOnOwner(true);
+        }
+    }
+
+    private void initOptimisticWrites() throws ReflectiveOperationException {
+        Object optimistic = getAnnotationWithinHierarchy(fsmClass, OptimisticWrites.class);
+        if (optimistic != null) {
+            int maxAttempts = (int) getAnnotationValue(optimistic, "maxAttempts");
+            pluginContext.setOptimisticAttempts((maxAttempts > 0) ? maxAttempts
+                    : pluginContext.getAppConfig().getInt("camelot.optimistic.maxAttempts"));
+        }
+    }
+
     private void initPluginConfig() throws ReflectiveOperationException {
         config = new AggregatorConfigImpl(new RouteConfigReader(pluginContext).read());
 
         Object aggregator = getAnnotationWithinHierarchy(fsmClass, Aggregate.class);
         if (aggregator != null) {
-            config.setStrategyInstance(new PluginMethodAggregationKeyStrategy(pluginContext));
+            config.setStrategyInstance(initKeyStrategy(config));
+            pluginContext.setKeyStrategy(config.getStrategyInstance());
         } else {
             throw new MetadataException(format("Failed to read @%s annotation on class %s",
                     Aggregate.class.getSimpleName(), fsmClass));
         }
+
+        Object batch = getAnnotationWithinHierarchy(fsmClass, MicroBatch.class);
+        if (batch != null) {
+            config.setBatchSize((int) getAnnotationValue(batch, "size"));
+            config.setBatchTimeoutMs((long) getAnnotationValue(batch, "timeoutMs"));
+        }
+    }
+
+    private AggregationKeyStrategy initKeyStrategy(AggregatorConfig config) throws ReflectiveOperationException {
+        Object key = getAnnotationWithinHierarchy(fsmClass, AggregationKey.class);
+        if (key == null) {
+            return new PluginMethodAggregationKeyStrategy(pluginContext);
+        }
+        final DeclaredAggregationKeyStrategy strategy = new DeclaredAggregationKeyStrategy(pluginContext,
+                (String) getAnnotationValue(key, "header"), (String) getAnnotationValue(key, "property"));
+        if (config.getFilterInstanceOf() != null) {
+            for (Class eventClass : config.getFilterInstanceOf()) {
+                strategy.compile(eventClass);
+            }
+        }
+        return strategy;
     }
 }
@@ -0,0 +1,39 @@
+package ru.yandex.qatools.camelot.common.builders;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.spi.AggregationRepository;
+import ru.yandex.qatools.camelot.common.DurableAggregationRepository;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.io.File;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DurableAggregationRepositoryBuilder extends MemoryAggregationRepositoryBuilder {
+
+    private final long waitForLockSec;
+    private final File baseDir;
+    private final boolean fsync;
+    private final long snapshotEveryRecords;
+    private final int partitions;
+
+    public DurableAggregationRepositoryBuilder(CamelContext camelContext, long waitForLockSec, File baseDir,
+                                               boolean fsync, long snapshotEveryRecords, int partitions) {
+        super(camelContext, waitForLockSec);
+        this.waitForLockSec = waitForLockSec;
+        this.baseDir = baseDir;
+        this.fsync = fsync;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Initialize the repository recovering the states from the directory of the plugin
+     */
+    @Override
+    public AggregationRepository initWritable(Plugin plugin) throws Exception { //NOSONAR
+        return new DurableAggregationRepository(plugin, waitForLockSec, new File(baseDir, plugin.getId()),
+                fsync, snapshotEveryRecords, partitions);
+    }
+}
@@ -0,0 +1,42 @@
+package ru.yandex.qatools.camelot.common.builders;
+
+import org.apache.camel.CamelContext;
+
+import java.io.File;
+
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+
+/**
+ * The factory of the local repositories surviving the restart via the write-ahead log and snapshots
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DurableBuildersFactoryImpl extends BuildersFactoryImpl {
+    private String dir;
+    private boolean fsync = true;
+    private long snapshotEveryRecords = 100000;
+    private int partitions = 4;
+
+    @Override
+    public AggregationRepositoryBuilder newRepositoryBuilder(CamelContext camelContext) throws Exception { //NOSONAR
+        final File baseDir = isEmpty(dir) ? new File(System.getProperty("user.dir"), "camelot-wal") : new File(dir);
+        return new DurableAggregationRepositoryBuilder(camelContext, getWaitForLockSec(), baseDir,
+                fsync, snapshotEveryRecords, partitions);
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    public void setSnapshotEveryRecords(long snapshotEveryRecords) {
+        this.snapshotEveryRecords = snapshotEveryRecords;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+}
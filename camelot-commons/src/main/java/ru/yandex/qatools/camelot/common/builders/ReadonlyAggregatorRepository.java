@@ -4,8 +4,10 @@ import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
 import org.apache.camel.spi.AggregationRepository;
 import ru.yandex.qatools.camelot.api.AggregatorRepository;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithIteration;
 import ru.yandex.qatools.camelot.common.AggregationRepositoryWithLocalKeys;
 import ru.yandex.qatools.camelot.common.AggregationRepositoryWithLocks;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithReadCache;
 import ru.yandex.qatools.camelot.common.AggregationRepositoryWithValuesMap;
 import ru.yandex.qatools.camelot.config.Plugin;
 
@@ -13,6 +15,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -32,9 +35,14 @@ public class ReadonlyAggregatorRepository<T extends Serializable> implements Agg
     public T get(String key) {
         AggregationRepository repo = plugin.getContext().getAggregationRepo();
 
-        Exchange exchange = (repo instanceof AggregationRepositoryWithLocks)
-                ? ((AggregationRepositoryWithLocks) repo).getWithoutLock(camelContext, key)
-                : repo.get(camelContext, key);
+        final Exchange exchange;
+        if (repo instanceof AggregationRepositoryWithReadCache) {
+            exchange = ((AggregationRepositoryWithReadCache) repo).getCached(camelContext, key);
+        } else if (repo instanceof AggregationRepositoryWithLocks) {
+            exchange = ((AggregationRepositoryWithLocks) repo).getWithoutLock(camelContext, key);
+        } else {
+            exchange = repo.get(camelContext, key);
+        }
 
         return deserialize(exchange);
     }
@@ -47,8 +55,10 @@ public class ReadonlyAggregatorRepository<T extends Serializable> implements Agg
     @Override
     public Map<String, T> valuesMap() {
         final AggregationRepository repo = plugin.getContext().getAggregationRepo();
-        if (repo instanceof AggregationRepositoryWithValuesMap) {
-            Map<String, Exchange> exchangeMap = ((AggregationRepositoryWithValuesMap) repo).values(camelContext);
+        if (repo instanceof AggregationRepositoryWithReadCache || repo instanceof AggregationRepositoryWithValuesMap) {
+            Map<String, Exchange> exchangeMap = (repo instanceof AggregationRepositoryWithReadCache)
+                    ? ((AggregationRepositoryWithReadCache) repo).valuesCached(camelContext)
+                    : ((AggregationRepositoryWithValuesMap) repo).values(camelContext);
             Map<String, T> result = new HashMap<>(exchangeMap.size(), 1);
             for (Map.Entry<String, Exchange> entry : exchangeMap.entrySet()) {
                 result.put(entry.getKey(), deserialize(entry.getValue()));
@@ -59,6 +69,17 @@ public class ReadonlyAggregatorRepository<T extends Serializable> implements Agg
         return AggregatorRepository.super.valuesMap();
     }
 
+    @Override
+    public void forEach(BiConsumer<String, ? super T> action) {
+        final AggregationRepository repo = plugin.getContext().getAggregationRepo();
+        if (repo instanceof AggregationRepositoryWithIteration) {
+            ((AggregationRepositoryWithIteration) repo).forEach(camelContext,
+                    (key, exchange) -> action.accept(key, deserialize(exchange)));
+            return;
+        }
+        AggregatorRepository.super.forEach(action);
+    }
+
     @Override
     public Set<String> localKeys() {
         final AggregationRepository repo = plugin.getContext().getAggregationRepo();
@@ -68,7 +89,7 @@ public class ReadonlyAggregatorRepository<T extends Serializable> implements Agg
     }
 
     @SuppressWarnings("unchecked")
-    private T deserialize(Exchange exchange) {
+    protected T deserialize(Exchange exchange) {
         ClassLoader realClassLoader = plugin.getContext().getClassLoader();
         final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
         final ClassLoader thisClassLoader = getClass().getClassLoader();
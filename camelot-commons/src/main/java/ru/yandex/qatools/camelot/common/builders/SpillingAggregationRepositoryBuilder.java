@@ -0,0 +1,39 @@
+package ru.yandex.qatools.camelot.common.builders;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.spi.AggregationRepository;
+import ru.yandex.qatools.camelot.common.SpillingAggregationRepository;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.io.File;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class SpillingAggregationRepositoryBuilder extends MemoryAggregationRepositoryBuilder {
+
+    private final long waitForLockSec;
+    private final int maxHotStates;
+    private final File baseDir;
+    private final long segmentSize;
+    private final double compactionRatio;
+
+    public SpillingAggregationRepositoryBuilder(CamelContext camelContext, long waitForLockSec, int maxHotStates,
+                                                File baseDir, long segmentSize, double compactionRatio) {
+        super(camelContext, waitForLockSec);
+        this.waitForLockSec = waitForLockSec;
+        this.maxHotStates = maxHotStates;
+        this.baseDir = baseDir;
+        this.segmentSize = segmentSize;
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * Initialize the repository spilling the states to the directory of the plugin
+     */
+    @Override
+    public AggregationRepository initWritable(Plugin plugin) throws Exception { //NOSONAR
+        return new SpillingAggregationRepository(plugin, waitForLockSec, maxHotStates,
+                new File(baseDir, plugin.getId()), segmentSize, compactionRatio);
+    }
+}
@@ -0,0 +1,42 @@
+package ru.yandex.qatools.camelot.common.builders;
+
+import org.apache.camel.CamelContext;
+
+import java.io.File;
+
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+
+/**
+ * The factory of the local repositories spilling the states exceeding the heap limit to the disk
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class SpillingBuildersFactoryImpl extends BuildersFactoryImpl {
+    private String dir;
+    private int maxHotStates = 100000;
+    private int segmentSizeMb = 64;
+    private double compactionRatio = 0.5;
+
+    @Override
+    public AggregationRepositoryBuilder newRepositoryBuilder(CamelContext camelContext) throws Exception { //NOSONAR
+        final File baseDir = isEmpty(dir) ? new File(System.getProperty("java.io.tmpdir"), "camelot-spill") : new File(dir);
+        return new SpillingAggregationRepositoryBuilder(camelContext, getWaitForLockSec(), maxHotStates,
+                baseDir, segmentSizeMb * (1L << 20), compactionRatio);
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public void setMaxHotStates(int maxHotStates) {
+        this.maxHotStates = maxHotStates;
+    }
+
+    public void setSegmentSizeMb(int segmentSizeMb) {
+        this.segmentSizeMb = segmentSizeMb;
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+}
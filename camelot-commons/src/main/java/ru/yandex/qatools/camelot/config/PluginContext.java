@@ -8,12 +8,18 @@
 
 package ru.yandex.qatools.camelot.config;
 
+import org.apache.camel.Exchange;
 import org.apache.camel.spi.AggregationRepository;
 import ru.yandex.qatools.camelot.api.*;
+import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
+import ru.yandex.qatools.camelot.common.AggregationLanes;
+import ru.yandex.qatools.camelot.common.AggregationStateExpiry;
+import ru.yandex.qatools.camelot.common.AggregationStateCache;
 import ru.yandex.qatools.camelot.common.InterimProcessor;
 import ru.yandex.qatools.camelot.common.MessagesSerializer;
 import ru.yandex.qatools.camelot.common.PluginContextInjector;
 import ru.yandex.qatools.camelot.common.PluginsService;
+import ru.yandex.qatools.camelot.common.RetryScheduler;
 import ru.yandex.qatools.camelot.common.builders.SchedulerBuilder;
 
 import javax.xml.bind.annotation.XmlAccessType;
@@ -23,6 +29,8 @@ import javax.xml.bind.annotation.XmlType;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 @XmlAccessorType(XmlAccessType.FIELD)
@@ -69,6 +77,14 @@ public class PluginContext
     protected transient MessagesSerializer messagesSerializer;
     protected transient InterimProcessor interimProcessor;
     protected transient PluginsService pluginsService;
+    protected transient AggregationStateCache stateCache;
+    protected transient AggregationLanes lanes;
+    protected transient RetryScheduler<Exchange> retries;
+    protected transient AggregationStateExpiry expiry;
+    protected transient boolean transitOnOwner;
+    protected transient int optimisticAttempts;
+    protected transient AggregationKeyStrategy keyStrategy;
+    protected transient Map<Class, Object[]> injectedValues = new ConcurrentHashMap<>();
 
     /**
      * Gets the value of the id property.
@@ -242,6 +258,7 @@ public class PluginContext
      */
     public void setRepository(AggregatorRepository value) {
         this.repository = value;
+        resetInjectedValues();
     }
 
     /**
@@ -262,6 +279,7 @@ public class PluginContext
      */
     public void setStorage(Storage value) {
         this.storage = value;
+        resetInjectedValues();
     }
 
     /**
@@ -282,6 +300,7 @@ public class PluginContext
      */
     public void setInput(EventProducer value) {
         this.input = value;
+        resetInjectedValues();
     }
 
     /**
@@ -302,6 +321,7 @@ public class PluginContext
      */
     public void setOutput(EventProducer value) {
         this.output = value;
+        resetInjectedValues();
     }
 
     /**
@@ -322,6 +342,7 @@ public class PluginContext
      */
     public void setMainInput(EventProducer value) {
         this.mainInput = value;
+        resetInjectedValues();
     }
 
     /**
@@ -362,6 +383,7 @@ public class PluginContext
      */
     public void setClientSendersProvider(ClientSendersProvider value) {
         this.clientSendersProvider = value;
+        resetInjectedValues();
     }
 
     /**
@@ -382,6 +404,7 @@ public class PluginContext
      */
     public void setEndpoints(PluginEndpoints value) {
         this.endpoints = value;
+        resetInjectedValues();
     }
 
     /**
@@ -422,6 +445,7 @@ public class PluginContext
      */
     public void setInterop(PluginsInterop value) {
         this.interop = value;
+        resetInjectedValues();
     }
 
     /**
@@ -491,6 +515,7 @@ public class PluginContext
 
     public void setAppConfig(AppConfig appConfig) {
         this.appConfig = appConfig;
+        resetInjectedValues();
     }
 
     public SchedulerBuilder getSchedulerBuilder() {
@@ -531,5 +556,82 @@ public class PluginContext
 
     public void setPluginsService(PluginsService pluginsService) {
         this.pluginsService = pluginsService;
+        resetInjectedValues();
+    }
+
+    public AggregationStateCache getStateCache() {
+        return stateCache;
+    }
+
+    public void setStateCache(AggregationStateCache stateCache) {
+        this.stateCache = stateCache;
+    }
+
+    public AggregationLanes getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(AggregationLanes lanes) {
+        this.lanes = lanes;
+    }
+
+    public RetryScheduler<Exchange> getRetries() {
+        return retries;
+    }
+
+    public void setRetries(RetryScheduler<Exchange> retries) {
+        this.retries = retries;
+    }
+
+    public AggregationStateExpiry getExpiry() {
+        return expiry;
+    }
+
+    public void setExpiry(AggregationStateExpiry expiry) {
+        this.expiry = expiry;
+    }
+
+    public boolean isTransitOnOwner() {
+        return transitOnOwner;
+    }
+
+    public void setTransitOnOwner(boolean transitOnOwner) {
+        this.transitOnOwner = transitOnOwner;
+    }
+
+    public int getOptimisticAttempts() {
+        return optimisticAttempts;
+    }
+
+    public void setOptimisticAttempts(int optimisticAttempts) {
+        this.optimisticAttempts = optimisticAttempts;
+    }
+
+    /**
+     * Returns the strategy calculating the aggregation key of the events (null if the plugin is not an aggregator)
+     */
+    public AggregationKeyStrategy getKeyStrategy() {
+        return keyStrategy;
+    }
+
+    public void setKeyStrategy(AggregationKeyStrategy keyStrategy) {
+        this.keyStrategy = keyStrategy;
+    }
+
+    /**
+     * Returns the values injected into the instances of the class within this context
+     */
+    public Object[] getInjectedValues(Class clazz, int size) {
+        if (injectedValues == null) {
+            injectedValues = new ConcurrentHashMap<>();
+        }
+        final Object[] values = injectedValues.get(clazz);
+        return (values != null) ? values : injectedValues.computeIfAbsent(clazz, c -> new Object[size]);
+    }
+
+    private void resetInjectedValues() {
+        if (injectedValues != null) {
+            injectedValues.clear();
+        }
     }
 }
@@ -0,0 +1,183 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.Thread.currentThread;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationLanesTest {
+
+    public static final String KEY = "KEY";
+
+    private final AggregationLanes lanes = new AggregationLanes("test", 4, 10);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        lanes.shutdown(1, SECONDS);
+    }
+
+    @Test
+    public void testTasksForKeyAreExecutedInOrder() throws Exception {
+        final List<Integer> executed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final int task = i;
+            lanes.execute(KEY, () -> executed.add(task));
+        }
+        lanes.call(KEY, () -> null);
+        assertThat(executed, contains(0, 1, 2, 3, 4));
+        assertThat(lanes.getProcessed(lanes.lane(KEY)), equalTo(6L));
+    }
+
+    @Test
+    public void testCallWithinLaneIsExecutedInline() throws Exception {
+        final Thread laneThread = lanes.call(KEY, () -> lanes.call(KEY, Thread::currentThread));
+        assertThat(laneThread.getName(), equalTo("camelot-lane-test-" + lanes.lane(KEY)));
+        assertTrue(laneThread != currentThread());
+    }
+
+    @Test
+    public void testDepthOfLane() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        lanes.execute(KEY, () -> {
+            started.countDown();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+            }
+        });
+        started.await();
+        lanes.execute(KEY, () -> {
+        });
+        lanes.execute(KEY, () -> {
+        });
+        assertThat(lanes.getDepth(lanes.lane(KEY)), equalTo(2));
+        assertThat(lanes.getDepths()[lanes.lane(KEY)], equalTo(2));
+        latch.countDown();
+        lanes.call(KEY, () -> null);
+        assertThat(lanes.getDepth(lanes.lane(KEY)), equalTo(0));
+    }
+
+    @Test
+    public void testCallAfterShutdownWaitsForQueuedTasks() throws Exception {
+        final List<String> executed = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        lanes.execute(KEY, () -> {
+            started.countDown();
+            await(latch);
+            executed.add("queued");
+        });
+        started.await();
+        final Thread stopping = new Thread(() -> {
+            try {
+                lanes.shutdown(5, SECONDS);
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+            }
+        });
+        stopping.start();
+        while (!lanes.isShutdown()) {
+            Thread.sleep(10);
+        }
+        new Thread(() -> {
+            sleep(200);
+            latch.countDown();
+        }).start();
+
+        lanes.call(KEY, () -> executed.add("inline"));
+
+        assertThat(executed, contains("queued", "inline"));
+        stopping.join();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testCallAfterShutdownIsRejectedIfLaneIsStuck() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        lanes.execute(KEY, () -> {
+            started.countDown();
+            await(latch);
+        });
+        started.await();
+        try {
+            lanes.shutdown(100, MILLISECONDS);
+            lanes.call(KEY, () -> null);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testWaiterForSpaceIsRejectedOnShutdown() throws Exception {
+        final AggregationLanes single = new AggregationLanes("single", 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        single.execute(KEY, () -> {
+            started.countDown();
+            await(latch);
+        });
+        started.await();
+        single.execute(KEY, () -> {
+        });
+        final AtomicReference<Exception> rejected = new AtomicReference<>();
+        final Thread waiter = new Thread(() -> {
+            try {
+                single.execute(KEY, () -> {
+                });
+            } catch (RejectedExecutionException e) {
+                rejected.set(e);
+            }
+        });
+        waiter.start();
+        sleep(200);
+
+        single.shutdown(100, MILLISECONDS);
+        waiter.join(5000);
+        latch.countDown();
+
+        assertThat(waiter.isAlive(), equalTo(false));
+        assertThat(rejected.get(), instanceOf(RejectedExecutionException.class));
+    }
+
+    @Test
+    public void testLocalRepositoryIsAccessedWithoutLocks() {
+        final MemoryAggregationRepository repo = new MemoryAggregationRepository(null, 1);
+        assertThat(lanes.repository(repo), instanceOf(LockFreeAggregationRepository.class));
+        assertThat(lanes.repository(repo), sameInstance(lanes.repository(repo)));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            currentThread().interrupt();
+        }
+    }
+}
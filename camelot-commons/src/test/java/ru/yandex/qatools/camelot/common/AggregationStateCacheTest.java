@@ -0,0 +1,144 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationStateCacheTest {
+
+    public static final String KEY = "KEY";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CamelContext camelContext;
+    private Plugin plugin;
+    private PluginContext context;
+    private MemoryAggregationRepository repo;
+    private BasicMessagesSerializer serializer;
+
+    @Before
+    public void setUp() {
+        camelContext = new DefaultCamelContext();
+        serializer = new BasicMessagesSerializer();
+        plugin = new Plugin();
+        plugin.setId("plugin");
+        context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setMessagesSerializer(serializer);
+        plugin.setContext(context);
+        repo = new MemoryAggregationRepository(plugin, 1);
+        context.setAggregationRepo(repo);
+    }
+
+    @Test
+    public void testDeferredStateIsFlushed() throws Exception {
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 10, 10, 60000);
+        final Object storedBody = store("state-0");
+
+        assertThat(cache.get(KEY, storedBody), nullValue());
+        assertTrue("Write must be deferred", cache.defer(KEY, storedBody, "state-1", exchange("state-1")));
+        assertThat(cache.get(KEY, storedBody), equalTo((Object) "state-1"));
+        assertThat(stored(), equalTo((Object) "state-0"));
+
+        cache.flushAll();
+        assertThat(stored(), equalTo((Object) "state-1"));
+        assertThat(cache.get(KEY, repo.getWithoutLock(camelContext, KEY).getIn().getBody()), equalTo((Object) "state-1"));
+        assertThat(cache.getHits(), equalTo(2L));
+        assertThat(cache.getFlushes(), equalTo(1L));
+    }
+
+    @Test
+    public void testStateIsWrittenEveryNEvents() throws Exception {
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 10, 3, 60000);
+        final Object storedBody = store("state-0");
+
+        assertTrue(cache.defer(KEY, storedBody, "state-1", exchange("state-1")));
+        assertTrue(cache.defer(KEY, storedBody, "state-2", exchange("state-2")));
+        assertFalse("Write must not be deferred", cache.defer(KEY, storedBody, "state-3", exchange("state-3")));
+    }
+
+    @Test
+    public void testStateChangedInRepoIsNotUsed() throws Exception {
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 10, 10, 60000);
+        cache.written(KEY, "state-1", store("state-1"));
+
+        assertThat(cache.get(KEY, store("state-2")), nullValue());
+        assertThat(cache.getMisses(), equalTo(1L));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testMaterializeReturnsDeferredState() throws Exception {
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 10, 10, 60000);
+        final Object storedBody = store("state-0");
+        cache.defer(KEY, storedBody, "state-1", exchange("state-1"));
+
+        final Exchange exchange = cache.materialize(KEY, repo.getWithoutLock(camelContext, KEY));
+        assertThat(serializer.deserialize(exchange.getIn().getBody(), getClass().getClassLoader()),
+                equalTo((Object) "state-1"));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testEvictedDeferredStateIsFlushed() throws Exception {
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 1, 10, 60000);
+        cache.defer(KEY, store("state-0"), "state-1", exchange("state-1"));
+        cache.written("OTHER", "other", "other");
+
+        assertThat(cache.size(), equalTo(1));
+        cache.flushAll();
+        assertThat(stored(), equalTo((Object) "state-1"));
+    }
+
+    @Test
+    public void testStateOfPersistentRepoIsWrittenThrough() throws Exception {
+        final DurableAggregationRepository durable = new DurableAggregationRepository(
+                plugin, 1, folder.newFolder("durable"), true, 1000, 2);
+        context.setAggregationRepo(durable);
+        final AggregationStateCache cache = new AggregationStateCache(camelContext, context, 10, 10, 60000);
+        final Exchange stored = serializer.postProcess(exchange("state-0"), getClass().getClassLoader());
+        durable.get(camelContext, KEY);
+        durable.add(camelContext, KEY, stored);
+
+        assertFalse("Write must not be deferred",
+                cache.defer(KEY, stored.getIn().getBody(), "state-1", exchange("state-1")));
+        assertThat(cache.getDeferredWrites(), equalTo(0L));
+        durable.close();
+    }
+
+    private Exchange exchange(Object body) {
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+
+    private Object store(Object state) {
+        final Exchange exchange = serializer.postProcess(exchange(state), getClass().getClassLoader());
+        repo.get(camelContext, KEY);
+        repo.add(camelContext, KEY, exchange);
+        return exchange.getIn().getBody();
+    }
+
+    private Object stored() {
+        return serializer.deserialize(repo.getWithoutLock(camelContext, KEY).getIn().getBody(),
+                getClass().getClassLoader());
+    }
+}
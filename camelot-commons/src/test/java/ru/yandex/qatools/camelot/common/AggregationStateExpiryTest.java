@@ -0,0 +1,121 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.api.annotations.OnExpire;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class AggregationStateExpiryTest {
+
+    public static final String KEY = "KEY";
+    static final List<CounterFSM.Counter> EXPIRED = new CopyOnWriteArrayList<>();
+
+    private CamelContext camelContext;
+    private PluginContext context;
+    private MemoryAggregationRepository repo;
+    private BasicMessagesSerializer serializer;
+
+    public static class ExpiringCounterFSM extends CounterFSM {
+        @OnExpire
+        public void expired(Counter state) {
+            EXPIRED.add(state);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        EXPIRED.clear();
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        serializer = new BasicMessagesSerializer();
+        final Plugin plugin = new Plugin();
+        plugin.setId("plugin");
+        context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setPluginClass(ExpiringCounterFSM.class.getName());
+        context.setMessagesSerializer(serializer);
+        context.setInjector(new PluginContextInjectorImpl());
+        plugin.setContext(context);
+        repo = new MemoryAggregationRepository(plugin, 1);
+        context.setAggregationRepo(repo);
+        context.setExpiry(new AggregationStateExpiry(camelContext, context, 100, 5, 16));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        context.getExpiry().shutdown(1, SECONDS);
+        camelContext.stop();
+    }
+
+    @Test
+    public void testIdleStateIsEvictedWithCallback() throws Exception {
+        strategy().process(event());
+        assertThat(repo.getWithoutLock(camelContext, KEY), notNullValue());
+
+        waitForEviction(2000);
+
+        assertThat(EXPIRED, hasSize(1));
+        assertThat(EXPIRED.get(0).count, equalTo(1));
+        assertThat(context.getExpiry().getExpired(), equalTo(1L));
+        assertThat(context.getExpiry().getCallbackFailures(), equalTo(0L));
+        assertThat(context.getExpiry().getTracked(), equalTo(0));
+    }
+
+    @Test
+    public void testUpdatedStateIsNotEvicted() throws Exception {
+        final CamelotAggregationStrategy strategy = strategy();
+        for (int i = 0; i < 6; i++) {
+            strategy.process(event());
+            Thread.sleep(50);
+        }
+        final Exchange stored = repo.getWithoutLock(camelContext, KEY);
+        assertThat(stored, notNullValue());
+        assertThat(context.getExpiry().getExpired(), equalTo(0L));
+
+        waitForEviction(2000);
+
+        assertThat(EXPIRED, hasSize(1));
+        assertThat(EXPIRED.get(0).count, equalTo(6));
+    }
+
+    private void waitForEviction(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (context.getExpiry().getExpired() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(repo.getKeys(), hasSize(0));
+    }
+
+    private CamelotAggregationStrategy strategy() throws Exception {
+        return new CamelotAggregationStrategy(camelContext, getClass().getClassLoader(),
+                new CamelotFSMBuilder<>(CounterFSM.class), context);
+    }
+
+    private Exchange event() {
+        final Exchange message = new DefaultExchange(camelContext);
+        message.getIn().setHeader(CORRELATION_KEY, KEY);
+        message.getIn().setBody(serializer.processBodyAndHeadersBeforeSend("event",
+                message.getIn().getHeaders(), getClass().getClassLoader()));
+        return message;
+    }
+}
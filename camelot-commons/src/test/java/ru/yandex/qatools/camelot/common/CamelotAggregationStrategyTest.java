@@ -0,0 +1,226 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.api.PluginEndpoints;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.api.error.RepositoryUnreachableException;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.FINISHED_EXCHANGE;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class CamelotAggregationStrategyTest {
+
+    public static final String KEY = "KEY";
+    public static final String DELAYED_URI = "mock:delayed";
+    public static final String CONSUMER_URI = "direct:consumer";
+    public static final String PRODUCER_URI = "mock:producer";
+
+    private CamelContext camelContext;
+    private PluginContext context;
+    private BasicMessagesSerializer serializer;
+    private final AtomicInteger failures = new AtomicInteger(1);
+    private final AtomicInteger adds = new AtomicInteger();
+    private final Set<Integer> brokenAdds = new HashSet<>();
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        serializer = new BasicMessagesSerializer();
+        final Plugin plugin = new Plugin();
+        plugin.setId("plugin");
+        context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setPluginClass(CounterFSM.class.getName());
+        context.setMessagesSerializer(serializer);
+        context.setInjector(new PluginContextInjectorImpl());
+        final PluginEndpoints endpoints = mock(PluginEndpoints.class);
+        when(endpoints.getDelayedInputUri()).thenReturn(DELAYED_URI);
+        when(endpoints.getConsumerUri()).thenReturn(CONSUMER_URI);
+        context.setEndpoints(endpoints);
+        plugin.setContext(context);
+        context.setAggregationRepo(new MemoryAggregationRepository(plugin, 1) {
+            @Override
+            public Exchange add(CamelContext camelContext, String key, Exchange exchange) {
+                if (failures.getAndDecrement() > 0) {
+                    unlock(key);
+                    throw new RepositoryUnreachableException("Failed to add");
+                }
+                if (brokenAdds.contains(adds.incrementAndGet())) {
+                    unlock(key);
+                    throw new RepositoryFailureException("Failed to write");
+                }
+                return super.add(camelContext, key, exchange);
+            }
+
+            @Override
+            public void remove(CamelContext camelContext, String key, Exchange exchange) {
+                if (failures.getAndDecrement() > 0) {
+                    unlock(key);
+                    throw new RepositoryUnreachableException("Failed to remove");
+                }
+                super.remove(camelContext, key, exchange);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context.getRetries() != null) {
+            context.getRetries().shutdown(1, SECONDS);
+        }
+        camelContext.stop();
+    }
+
+    @Test
+    public void testResentMessageIsRestoredToTheReceivedState() throws Exception {
+        final MockEndpoint delayed = camelContext.getEndpoint(DELAYED_URI, MockEndpoint.class);
+        delayed.expectedMessageCount(1);
+        final Exchange message = event();
+        final Object body = message.getIn().getBody();
+
+        strategy().process(message);
+
+        delayed.assertIsSatisfied();
+        final Exchange resent = delayed.getExchanges().get(0);
+        assertThat(resent.getIn().getBody(), sameInstance(body));
+        assertThat(resent.getIn().getHeader(FINISHED_EXCHANGE), nullValue());
+        assertThat(resent.getIn().getHeader(CORRELATION_KEY), equalTo((Object) KEY));
+        assertThat(message.getIn().getBody(), nullValue());
+    }
+
+    @Test
+    public void testFailedMessageIsRetriedWithinTheProcess() throws Exception {
+        final MockEndpoint delayed = camelContext.getEndpoint(DELAYED_URI, MockEndpoint.class);
+        delayed.expectedMessageCount(0);
+        context.setRetries(new RetryScheduler<>("plugin", 5, 8, 10, 100, 0.2, 10, 1));
+        failures.set(2);
+        final CamelotAggregationStrategy strategy = strategy();
+        final AtomicInteger routed = inputRoute(strategy);
+
+        strategy.process(event());
+
+        final Exchange stored = waitForState(KEY, 2000);
+        assertThat(processAfterIn(stored).getIn().getBody(CounterFSM.Counter.class).count, equalTo(1));
+        assertThat(context.getRetries().getFired(), equalTo(2L));
+        delayed.assertIsSatisfied();
+        assertThat("the retried messages must pass the input route", routed.get(), equalTo(2));
+    }
+
+    @Test
+    public void testResultOfRetriedMessageIsRoutedByInputRoute() throws Exception {
+        final MockEndpoint producer = camelContext.getEndpoint(PRODUCER_URI, MockEndpoint.class);
+        producer.expectedMessageCount(1);
+        context.setRetries(new RetryScheduler<>("plugin", 5, 8, 10, 100, 0.2, 10, 1));
+        failures.set(1);
+        final CamelotAggregationStrategy strategy = strategy();
+        final AtomicInteger routed = inputRoute(strategy);
+
+        strategy.process(event(1));
+
+        producer.assertIsSatisfied();
+        assertThat(routed.get(), equalTo(1));
+        assertThat(context.getRetries().getFired(), equalTo(1L));
+    }
+
+    @Test
+    public void testFailedBatchIsProcessedEventByEvent() throws Exception {
+        failures.set(0);
+        brokenAdds.addAll(asList(1, 4));
+        final Exchange batch = batch(event(), event(), event());
+
+        strategy().process(batch);
+
+        final Exchange stored = waitForState(KEY, 2000);
+        assertThat(processAfterIn(stored).getIn().getBody(CounterFSM.Counter.class).count, equalTo(2));
+        assertThat(adds.get(), equalTo(4));
+    }
+
+    /**
+     * Builds the input route of the plugin, returns the counter of the messages passed it
+     */
+    private AtomicInteger inputRoute(CamelotAggregationStrategy strategy) throws Exception {
+        final AtomicInteger routed = new AtomicInteger();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception { //NOSONAR
+                from(CONSUMER_URI)
+                        .process(exchange -> routed.incrementAndGet())
+                        .process(strategy)
+                        .choice()
+                        .when(body().isNull()).stop()
+                        .otherwise().to(PRODUCER_URI);
+            }
+        });
+        return routed;
+    }
+
+    private Exchange batch(Exchange... events) {
+        final MicroBatchAggregationStrategy batching = new MicroBatchAggregationStrategy();
+        Exchange batch = null;
+        for (Exchange event : events) {
+            batch = batching.aggregate(batch, event);
+        }
+        return batch;
+    }
+
+    private Exchange waitForState(String key, long timeoutMs) throws InterruptedException {
+        final AggregationRepositoryWithLocks repo = (AggregationRepositoryWithLocks) context.getAggregationRepo();
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        Exchange stored = repo.getWithoutLock(camelContext, key);
+        while (stored == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            stored = repo.getWithoutLock(camelContext, key);
+        }
+        assertThat(stored, notNullValue());
+        return stored;
+    }
+
+    private Exchange processAfterIn(Exchange stored) {
+        return serializer.preProcess(stored, getClass().getClassLoader());
+    }
+
+    private CamelotAggregationStrategy strategy() throws Exception {
+        return new CamelotAggregationStrategy(camelContext, getClass().getClassLoader(),
+                new CamelotFSMBuilder<>(CounterFSM.class), context);
+    }
+
+    private Exchange event() {
+        return event("event");
+    }
+
+    private Exchange event(Object body) {
+        final Exchange message = new DefaultExchange(camelContext);
+        message.getIn().setHeader(CORRELATION_KEY, KEY);
+        message.getIn().setBody(serializer.processBodyAndHeadersBeforeSend(body,
+                message.getIn().getHeaders(), getClass().getClassLoader()));
+        return message;
+    }
+}
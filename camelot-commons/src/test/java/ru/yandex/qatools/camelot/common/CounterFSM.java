@@ -0,0 +1,28 @@
+package ru.yandex.qatools.camelot.common;
+
+import ru.yandex.qatools.fsm.annotations.FSM;
+import ru.yandex.qatools.fsm.annotations.OnTransit;
+import ru.yandex.qatools.fsm.annotations.Transit;
+import ru.yandex.qatools.fsm.annotations.Transitions;
+
+import java.io.Serializable;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@FSM(start = CounterFSM.Counter.class)
+@Transitions({
+        @Transit(on = String.class),
+        @Transit(on = Integer.class, stop = true),
+})
+public class CounterFSM {
+
+    @OnTransit
+    public void transit(Counter newState, String event) {
+        newState.count++;
+    }
+
+    public static class Counter implements Serializable {
+        public int count;
+    }
+}
@@ -0,0 +1,132 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.api.annotations.Aggregate;
+import ru.yandex.qatools.camelot.api.annotations.AggregationKey;
+import ru.yandex.qatools.camelot.api.annotations.Filter;
+import ru.yandex.qatools.camelot.beans.AggregatorConfig;
+import ru.yandex.qatools.camelot.common.builders.CamelotAggregationStrategyBuilder;
+import ru.yandex.qatools.camelot.config.PluginContext;
+import ru.yandex.qatools.camelot.error.MetadataException;
+import ru.yandex.qatools.camelot.error.PluginsSystemException;
+
+import java.io.Serializable;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DeclaredAggregationKeyStrategyTest {
+
+    public static class TestInfo implements Serializable {
+        private String method;
+
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    public static class Event implements Serializable {
+        TestInfo test;
+        boolean passed;
+
+        public boolean isPassed() {
+            return passed;
+        }
+    }
+
+    @Filter
+    @Aggregate
+    @AggregationKey(property = "test.method")
+    public static class DeclaredKeyFSM extends CounterFSM {
+    }
+
+    private PluginContext context;
+    private BasicMessagesSerializer serializer;
+
+    @Before
+    public void setUp() {
+        serializer = new BasicMessagesSerializer();
+        context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setMessagesSerializer(serializer);
+    }
+
+    @Test
+    public void testKeyFromHeaderDoesNotDeserializeTheBody() throws Exception {
+        final DeclaredAggregationKeyStrategy strategy = new DeclaredAggregationKeyStrategy(context, "key", "");
+        final Exchange exchange = exchange(event("method"));
+        exchange.getIn().setHeader("key", 42);
+
+        assertThat(strategy.aggregationKey(exchange), equalTo("42"));
+        assertThat(exchange.getIn().getBody(), instanceOf(byte[].class));
+    }
+
+    @Test
+    public void testKeyFromPropertyPath() throws Exception {
+        final DeclaredAggregationKeyStrategy strategy = new DeclaredAggregationKeyStrategy(context, null, "test.method");
+        strategy.compile(Event.class);
+
+        assertThat(strategy.aggregationKey(exchange(event("method1"))), equalTo("method1"));
+        assertThat(strategy.aggregationKey(exchange(event("method2"))), equalTo("method2"));
+        assertThat(strategy.aggregationKey(exchange(new Event())), nullValue());
+        assertThat(new DeclaredAggregationKeyStrategy(context, null, "passed")
+                .aggregationKey(exchange(event("method"))), equalTo("false"));
+    }
+
+    @Test
+    public void testClassesWithoutPropertyAreSkipped() throws Exception {
+        final DeclaredAggregationKeyStrategy strategy = new DeclaredAggregationKeyStrategy(context, null, "test.method");
+        strategy.compile(Object.class);
+        strategy.compile(Serializable.class);
+        strategy.compile(TestInfo.class);
+
+        assertThat(strategy.aggregationKey(exchange(event("method"))), equalTo("method"));
+    }
+
+    @Test(expected = PluginsSystemException.class)
+    public void testUnknownPropertyFailsToRead() throws Exception {
+        final DeclaredAggregationKeyStrategy strategy = new DeclaredAggregationKeyStrategy(context, null, "test.unknown");
+        strategy.compile(Event.class);
+        strategy.aggregationKey(exchange(event("method")));
+    }
+
+    @Test
+    public void testAggregatorWithDefaultFilterIsBuilt() throws Exception {
+        context.setPluginClass(DeclaredKeyFSM.class.getName());
+        final AggregatorConfig config = new CamelotAggregationStrategyBuilder(new DefaultCamelContext(),
+                DeclaredKeyFSM.class.getName(), context).getConfig();
+
+        assertThat(config.getFilterInstanceOf(), arrayContaining((Class) Object.class));
+        assertThat(config.getStrategyInstance().aggregationKey(exchange(event("method"))), equalTo("method"));
+    }
+
+    @Test(expected = MetadataException.class)
+    public void testEitherHeaderOrPropertyMustBeSet() throws Exception {
+        new DeclaredAggregationKeyStrategy(context, "key", "test.method");
+    }
+
+    private Event event(String method) {
+        final Event event = new Event();
+        event.test = new TestInfo();
+        event.test.method = method;
+        return event;
+    }
+
+    private Exchange exchange(Object event) {
+        final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(serializer.processBodyAndHeadersBeforeSend(
+                event, exchange.getIn().getHeaders(), getClass().getClassLoader()));
+        return exchange;
+    }
+}
@@ -0,0 +1,226 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class DurableAggregationRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CamelContext camelContext;
+    private Plugin plugin;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        plugin = new Plugin();
+        plugin.setId("plugin");
+        final PluginContext context = new PluginContext();
+        context.setClassLoader(getClass().getClassLoader());
+        plugin.setContext(context);
+        dir = new File(folder.getRoot(), "plugin");
+    }
+
+    @Test
+    public void testStatesAreRecoveredFromLogAfterCrash() throws Exception {
+        final DurableAggregationRepository repo = open(1000);
+        for (int i = 0; i < 10; i++) {
+            repo.get(camelContext, "key" + i);
+            repo.add(camelContext, "key" + i, state(i));
+        }
+        repo.get(camelContext, "key3");
+        repo.remove(camelContext, "key3", null);
+        repo.get(camelContext, "key5");
+        repo.add(camelContext, "key5", state(50));
+
+        final DurableAggregationRepository recovered = open(1000);
+
+        assertThat(recovered.getKeys(), hasSize(9));
+        assertThat(recovered.getWithoutLock(camelContext, "key3"), nullValue());
+        assertThat(recovered.getWithoutLock(camelContext, "key5").getIn().getBody(), equalTo((Object) 50));
+        assertThat(recovered.getWithoutLock(camelContext, "key9").getProperty("index"), equalTo((Object) 9));
+        recovered.close();
+    }
+
+    @Test
+    public void testStatesAreRecoveredFromSnapshotAndLog() throws Exception {
+        final DurableAggregationRepository repo = open(1000);
+        for (int i = 0; i < 12; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        repo.snapshot();
+        repo.removeWithoutLock(camelContext, "key0", null);
+        repo.addWithoutLock(camelContext, "key1", state(10));
+
+        final DurableAggregationRepository recovered = open(1000);
+
+        assertThat(repo.getSnapshots(), equalTo(1L));
+        assertThat(WriteAheadLog.generations(dir), hasSize(1));
+        assertThat(recovered.getKeys(), hasSize(11));
+        assertThat(recovered.getWithoutLock(camelContext, "key0"), nullValue());
+        assertThat(recovered.getWithoutLock(camelContext, "key1").getIn().getBody(), equalTo((Object) 10));
+        assertThat(recovered.getWithoutLock(camelContext, "key11").getIn().getBody(), equalTo((Object) 11));
+        recovered.close();
+    }
+
+    @Test
+    public void testSnapshotIsRecoveredAfterPartitionsAreLowered() throws Exception {
+        assertRecoveredAfterPartitionsChange(4, 2);
+    }
+
+    @Test
+    public void testSnapshotIsRecoveredAfterPartitionsAreRaised() throws Exception {
+        assertRecoveredAfterPartitionsChange(2, 4);
+    }
+
+    @Test
+    public void testSnapshotWithoutRecordedPartitionsIsRecovered() throws Exception {
+        final DurableAggregationRepository repo = open(1000, 3);
+        for (int i = 0; i < 12; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        repo.snapshot();
+        for (File done : dir.listFiles((parent, name) -> name.endsWith(".done"))) {
+            new FileOutputStream(done).close();
+        }
+
+        final DurableAggregationRepository recovered = open(1000, 2);
+
+        assertThat(recovered.getKeys(), hasSize(12));
+        recovered.close();
+    }
+
+    @Test
+    public void testIncompleteSnapshotsAreSkipped() throws Exception {
+        final DurableAggregationRepository repo = open(1000);
+        for (int i = 0; i < 6; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        repo.snapshot();
+        repo.removeWithoutLock(camelContext, "key0", null);
+        repo.addWithoutLock(camelContext, "key6", state(6));
+        new FileOutputStream(new File(dir, String.format("snapshot-%016d.done", 1000))).close();
+        appendGarbage(new File(dir, String.format("snapshot-%016d-%03d.dat", 1001, 0)));
+        appendGarbage(new File(dir, String.format("snapshot-%016d.done.tmp", 1001)));
+
+        final DurableAggregationRepository recovered = open(1000);
+
+        assertThat(recovered.getKeys(), containsInAnyOrder("key1", "key2", "key3", "key4", "key5", "key6"));
+        assertThat(recovered.getWithoutLock(camelContext, "key6").getIn().getBody(), equalTo((Object) 6));
+        recovered.close();
+        assertThat(dir.list((parent, name) -> name.endsWith(".done")).length, equalTo(1));
+        assertThat(open(1000).getKeys(), hasSize(6));
+    }
+
+    @Test
+    public void testSnapshotIsWrittenInBackground() throws Exception {
+        final DurableAggregationRepository repo = open(5);
+        for (int i = 0; i < 5; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        final long deadline = System.currentTimeMillis() + 2000;
+        while (repo.getSnapshots() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(repo.getSnapshots(), equalTo(1L));
+        assertThat(open(5).getKeys(), hasSize(5));
+    }
+
+    @Test
+    public void testTornTailOfLogIsTruncated() throws Exception {
+        final DurableAggregationRepository repo = open(1000);
+        repo.addWithoutLock(camelContext, "key0", state(0));
+        repo.addWithoutLock(camelContext, "key1", state(1));
+        final List<Long> generations = WriteAheadLog.generations(dir);
+        final File log = new File(dir, String.format("wal-%016d.log", generations.get(generations.size() - 1)));
+        final long validLength = log.length();
+        appendGarbage(log);
+
+        final DurableAggregationRepository recovered = open(1000);
+
+        assertThat(recovered.getKeys(), containsInAnyOrder("key0", "key1"));
+        assertThat(log.length(), equalTo(validLength));
+        recovered.addWithoutLock(camelContext, "key2", state(2));
+        recovered.close();
+        assertThat(open(1000).getKeys(), containsInAnyOrder("key0", "key1", "key2"));
+    }
+
+    @Test(expected = RepositoryLockWaitException.class)
+    public void testLockWaitTimeoutIsThrown() throws Exception {
+        final DurableAggregationRepository repo = open(1000);
+        final ExecutorService owner = newSingleThreadExecutor();
+        try {
+            owner.submit(() -> repo.get(camelContext, "key")).get();
+            repo.get(camelContext, "key");
+        } finally {
+            owner.submit(() -> repo.unlock("key")).get();
+            owner.shutdown();
+            repo.close();
+        }
+    }
+
+    private void assertRecoveredAfterPartitionsChange(int before, int after) throws Exception {
+        final DurableAggregationRepository repo = open(1000, before);
+        for (int i = 0; i < 20; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        repo.close();
+
+        final DurableAggregationRepository recovered = open(1000, after);
+        assertThat(recovered.getKeys(), hasSize(20));
+        assertThat(recovered.getWithoutLock(camelContext, "key19").getIn().getBody(), equalTo((Object) 19));
+        recovered.addWithoutLock(camelContext, "key20", state(20));
+        recovered.close();
+
+        assertThat(open(1000, after).getKeys(), hasSize(21));
+    }
+
+    private void appendGarbage(File log) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 5, 6});
+        }
+    }
+
+    private DurableAggregationRepository open(long snapshotEveryRecords) throws IOException {
+        return open(snapshotEveryRecords, 2);
+    }
+
+    private DurableAggregationRepository open(long snapshotEveryRecords, int partitions) throws IOException {
+        return new DurableAggregationRepository(plugin, 1, dir, true, snapshotEveryRecords, partitions);
+    }
+
+    private Exchange state(int index) {
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(index);
+        exchange.setProperty("index", index);
+        return exchange;
+    }
+}
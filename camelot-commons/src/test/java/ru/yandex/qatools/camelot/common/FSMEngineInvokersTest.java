@@ -0,0 +1,45 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class FSMEngineInvokersTest {
+
+    private final FSMEngineInvokers invokers = new FSMEngineInvokers(new CamelotFSMBuilder<>(CounterFSM.class));
+
+    public FSMEngineInvokersTest() throws NoSuchMethodException {
+    }
+
+    @Test
+    public void testFireEvents() throws Exception {
+        final Object engine = invokers.build(null, new CounterFSM());
+        invokers.fire(engine, "event");
+        final Object state = invokers.fire(engine, "event");
+        assertThat(((CounterFSM.Counter) state).count, equalTo(2));
+        assertFalse(invokers.isCompleted(engine));
+        invokers.fire(engine, 1);
+        assertTrue(invokers.isCompleted(engine));
+    }
+
+    @Test
+    public void testBuildWithState() throws Exception {
+        final CounterFSM.Counter state = new CounterFSM.Counter();
+        state.count = 5;
+        final Object engine = invokers.build(state, new CounterFSM());
+        assertThat(((CounterFSM.Counter) invokers.fire(engine, "event")).count, equalTo(6));
+    }
+
+    @Test(expected = InvocationTargetException.class)
+    public void testBuildFailureIsWrapped() throws Exception {
+        new FSMEngineInvokers(new CamelotFSMBuilder<>(Object.class)).build(null, new Object());
+    }
+}
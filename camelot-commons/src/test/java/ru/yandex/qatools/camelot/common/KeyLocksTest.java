@@ -0,0 +1,108 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class KeyLocksTest {
+
+    public static final String KEY = "KEY";
+
+    private final KeyLocks locks = new KeyLocks();
+
+    @Test
+    public void testLockIsRemovedWhenReleased() throws Exception {
+        locks.lock(KEY);
+        assertTrue(locks.tryLock(KEY, 0, SECONDS));
+        assertThat(locks.getActiveLocks(), equalTo(1));
+
+        locks.unlock(KEY);
+        assertTrue(locks.isLocked(KEY));
+        locks.unlock(KEY);
+        assertFalse(locks.isLocked(KEY));
+        assertThat(locks.getActiveLocks(), equalTo(0));
+        assertThat(locks.getContended(), equalTo(0L));
+    }
+
+    @Test
+    public void testFailedAcquisitionDoesNotLeakTheLock() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        locks.lock(KEY);
+        final Future<Boolean> locked = executor.submit(() -> locks.tryLock(KEY, 10, MILLISECONDS));
+        assertFalse(locked.get());
+        assertThat(locks.getContended(), equalTo(1L));
+
+        locks.unlock(KEY);
+        assertThat(locks.getActiveLocks(), equalTo(0));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWaitingThreadAcquiresTheLockAfterRelease() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch started = new CountDownLatch(1);
+        locks.lock(KEY);
+        final Future<?> waiting = executor.submit(() -> {
+            started.countDown();
+            locks.lock(KEY);
+            locks.unlock(KEY);
+        });
+        started.await();
+        while (locks.getContended() == 0) {
+            Thread.sleep(1);
+        }
+        locks.unlock(KEY);
+        waiting.get(1, SECONDS);
+        assertThat(locks.getActiveLocks(), equalTo(0));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFairLocksAreGrantedInArrivalOrder() throws Exception {
+        final KeyLocks fairLocks = new KeyLocks(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        final List<Future<?>> waiting = new ArrayList<>();
+        fairLocks.lock(KEY);
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            waiting.add(executor.submit(() -> {
+                fairLocks.lock(KEY);
+                order.add(index);
+                fairLocks.unlock(KEY);
+            }));
+            while (fairLocks.getContended() <= i) {
+                Thread.sleep(1);
+            }
+        }
+        fairLocks.unlock(KEY);
+        for (Future<?> future : waiting) {
+            future.get(1, SECONDS);
+        }
+        assertThat(order, contains(0, 1, 2));
+        assertThat(fairLocks.getActiveLocks(), equalTo(0));
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockWithoutLockFails() throws Exception {
+        locks.unlock(KEY);
+    }
+}
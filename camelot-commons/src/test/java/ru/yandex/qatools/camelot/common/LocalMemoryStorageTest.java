@@ -1,12 +1,21 @@
 package ru.yandex.qatools.camelot.common;
 
 import org.junit.Test;
-import ru.yandex.qatools.camelot.api.Storage;
 import ru.yandex.qatools.camelot.common.LocalMemoryStorage;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
 import static java.lang.Thread.sleep;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -18,7 +27,7 @@ public class LocalMemoryStorageTest {
 
     @Test
     public void testLock() throws InterruptedException {
-        final Storage storage = new LocalMemoryStorage<>();
+        final LocalMemoryStorage storage = new LocalMemoryStorage<>();
 
         new Thread() {
             @Override
@@ -37,5 +46,88 @@ public class LocalMemoryStorageTest {
         assertFalse("Should not allow lock of the key", storage.lock(KEY, 1, SECONDS));
         sleep(SECONDS.toMillis(2));
         assertTrue("Should allow lock of the key", storage.lock(KEY, 1, SECONDS));
+        storage.unlock(KEY);
+        assertThat("Should not keep the released lock", storage.getLocks().getActiveLocks(), equalTo(0));
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        final LocalMemoryStorage<Integer> storage = new LocalMemoryStorage<>();
+        final Map<String, Integer> values = new HashMap<>();
+        values.put("key1", 1);
+        values.put("key2", 2);
+        values.put("key3", 3);
+        storage.putAll(values);
+
+        final Map<String, Integer> read = storage.getAll(Arrays.asList("key1", "key3", "key4"));
+
+        assertThat(read.keySet(), containsInAnyOrder("key1", "key3"));
+        assertThat(read.get("key3"), is(3));
+        storage.removeAll(Arrays.asList("key1", "key2"));
+        assertThat(storage.keys(), containsInAnyOrder("key3"));
+    }
+
+    @Test
+    public void testNullValuesRemoveKeys() throws Exception {
+        final LocalMemoryStorage<Integer> storage = new LocalMemoryStorage<>();
+        storage.put("key1", 1);
+        storage.put("key2", 2);
+        storage.put("key3", 3);
+        final Map<String, Integer> values = new HashMap<>();
+        values.put("key2", null);
+        values.put("key4", 4);
+
+        storage.put("key1", null);
+        storage.putAll(values);
+        storage.remove("key3");
+
+        assertThat(storage.keys(), containsInAnyOrder("key4"));
+        assertThat(storage.valuesMap().containsKey("key1"), is(false));
+    }
+
+    @Test
+    public void testLockAllReleasesLockedKeysOnFailure() throws Exception {
+        final LocalMemoryStorage<Integer> storage = new LocalMemoryStorage<>();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(() -> {
+            storage.lock("key2", 0, SECONDS);
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                storage.unlock("key2");
+            }
+        });
+        holder.start();
+        locked.await();
+
+        assertFalse("Should not lock the batch with the locked key",
+                storage.lockAll(Arrays.asList("key3", "key2", "key1"), 100, MILLISECONDS));
+        assertThat("Should release the locked keys of the batch", storage.getLocks().getActiveLocks(), equalTo(1));
+        release.countDown();
+        holder.join();
+        assertTrue("Should lock the batch", storage.lockAll(Arrays.asList("key3", "key2", "key1"), 1, SECONDS));
+        storage.unlockAll(Arrays.asList("key1", "key2", "key3"));
+        assertThat("Should not keep the released locks", storage.getLocks().getActiveLocks(), equalTo(0));
+    }
+
+    @Test
+    public void testIterationAllowsModifications() throws Exception {
+        final LocalMemoryStorage<Integer> storage = new LocalMemoryStorage<>();
+        storage.put("key1", 1);
+        storage.put("key2", 2);
+        final Map<String, Integer> iterated = new HashMap<>();
+
+        storage.forEach((key, value) -> {
+            iterated.put(key, value);
+            storage.put(key, null);
+            storage.put(key + "-copy", value);
+        });
+
+        assertThat(iterated.keySet(), containsInAnyOrder("key1", "key2"));
+        assertThat(storage.get("key2-copy"), is(2));
     }
 }
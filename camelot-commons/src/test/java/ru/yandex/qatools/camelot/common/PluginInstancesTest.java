@@ -0,0 +1,71 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.api.annotations.InjectHeader;
+import ru.yandex.qatools.camelot.api.annotations.ReusableInstances;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class PluginInstancesTest {
+
+    @ReusableInstances
+    public static class ReusablePlugin {
+        @InjectHeader("header")
+        String header;
+    }
+
+    public static class Plugin {
+    }
+
+    private final AtomicInteger injected = new AtomicInteger();
+
+    @Test
+    public void testReusableInstanceIsInjectedOnceAndRefreshedWithHeaders() throws Exception {
+        final PluginInstances<ReusablePlugin> instances = new PluginInstances<>(ReusablePlugin.class);
+        final ReusablePlugin first = instances.get(exchange("value1"), instance -> injected.incrementAndGet());
+        final ReusablePlugin second = instances.get(exchange("value2"), instance -> injected.incrementAndGet());
+        assertThat(second, sameInstance(first));
+        assertThat(second.header, equalTo("value2"));
+        assertThat(injected.get(), equalTo(1));
+        instances.get(exchange(null), instance -> injected.incrementAndGet());
+        assertThat(first.header, nullValue());
+    }
+
+    @Test
+    public void testReusableInstancesArePerThread() throws Exception {
+        final PluginInstances<ReusablePlugin> instances = new PluginInstances<>(ReusablePlugin.class);
+        final ReusablePlugin first = instances.get(exchange("value"), instance -> injected.incrementAndGet());
+        final ReusablePlugin other = Executors.newSingleThreadExecutor().submit(
+                () -> instances.get(exchange("value"), instance -> injected.incrementAndGet())).get();
+        assertThat(other, not(sameInstance(first)));
+        assertThat(injected.get(), equalTo(2));
+    }
+
+    @Test
+    public void testInstanceIsCreatedForEachEventByDefault() throws Exception {
+        final PluginInstances<Plugin> instances = new PluginInstances<>(Plugin.class);
+        final Plugin first = instances.get(exchange("value"), instance -> injected.incrementAndGet());
+        final Plugin second = instances.get(exchange("value"), instance -> injected.incrementAndGet());
+        assertThat(second, not(sameInstance(first)));
+        assertThat(injected.get(), equalTo(2));
+    }
+
+    private Exchange exchange(String header) {
+        final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader("header", header);
+        return exchange;
+    }
+}
@@ -0,0 +1,82 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RetrySchedulerTest {
+
+    private final List<String> retried = new CopyOnWriteArrayList<>();
+    private final List<String> fallen = new CopyOnWriteArrayList<>();
+    private RetryScheduler<String> retries;
+
+    @After
+    public void tearDown() throws Exception {
+        retries.shutdown(1, SECONDS);
+    }
+
+    @Test
+    public void testRetriesOfTheSameKeyAreCoalesced() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        retries = new RetryScheduler<>("test", 5, 8, 50, 1000, 0.2, 10, 1);
+        retries.handleWith(item -> {
+            retried.add(item);
+            latch.countDown();
+        }, fallen::add);
+
+        assertTrue(retries.schedule("key", "first", 0));
+        assertTrue(retries.schedule("key", "second", 0));
+        assertTrue(retries.schedule("other", "third", 0));
+        assertThat(retries.getPending(), equalTo(3));
+
+        assertTrue(latch.await(2, SECONDS));
+        assertThat(retried.subList(retried.indexOf("first"), retried.indexOf("first") + 2),
+                contains("first", "second"));
+        assertThat(retries.getScheduled(), equalTo(2L));
+        assertThat(retries.getCoalesced(), equalTo(1L));
+        assertThat(retries.getFired(), equalTo(3L));
+        assertThat(retries.getPending(), equalTo(0));
+    }
+
+    @Test
+    public void testPendingRetriesAreBoundedAndPassedToFallbackOnShutdown() throws Exception {
+        retries = new RetryScheduler<>("test", 5, 8, 60000, 60000, 0, 2, 1);
+        retries.handleWith(retried::add, fallen::add);
+
+        assertTrue(retries.schedule("key", "first", 0));
+        assertTrue(retries.schedule("other", "second", 0));
+        assertFalse(retries.schedule("key", "third", 0));
+        assertThat(retries.getRejected(), equalTo(1L));
+
+        retries.shutdown(1, SECONDS);
+        assertThat(fallen.size(), equalTo(2));
+        assertTrue(retried.isEmpty());
+        assertFalse(retries.schedule("key", "fourth", 0));
+    }
+
+    @Test
+    public void testDelayGrowsExponentiallyWithinJitterUpToMaximum() throws Exception {
+        retries = new RetryScheduler<>("test", 5, 8, 100, 1000, 0.2, 10, 1);
+        for (int i = 0; i < 100; i++) {
+            assertThat(retries.delayMs(0), allOf(greaterThanOrEqualTo(80L), lessThanOrEqualTo(120L)));
+            assertThat(retries.delayMs(2), allOf(greaterThanOrEqualTo(320L), lessThanOrEqualTo(480L)));
+            assertThat(retries.delayMs(100), allOf(greaterThanOrEqualTo(800L), lessThanOrEqualTo(1200L)));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ru.yandex.qatools.camelot.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class SpillingAggregationRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CamelContext camelContext;
+    private SpillingAggregationRepository repo;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        final Plugin plugin = new Plugin();
+        plugin.setId("plugin");
+        final PluginContext context = new PluginContext();
+        context.setClassLoader(getClass().getClassLoader());
+        plugin.setContext(context);
+        dir = new File(folder.getRoot(), "plugin");
+        repo = new SpillingAggregationRepository(plugin, 1, 2, dir, 1024, 0.5);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repo.close();
+    }
+
+    @Test
+    public void testColdStatesAreSpilledAndReadBack() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            repo.get(camelContext, "key" + i);
+            repo.add(camelContext, "key" + i, state(i));
+        }
+
+        assertThat(repo.getHotStates(), equalTo(2));
+        assertThat(repo.getSpilled(), equalTo(3L));
+        assertThat(repo.getStore().size(), equalTo(3));
+        assertThat(repo.getKeys(), containsInAnyOrder("key0", "key1", "key2", "key3", "key4"));
+        for (int i = 0; i < 5; i++) {
+            assertThat(repo.getWithoutLock(camelContext, "key" + i).getIn().getBody(), equalTo((Object) i));
+            assertThat(repo.getWithoutLock(camelContext, "key" + i).getProperty("index"), equalTo((Object) i));
+        }
+        assertThat(repo.values(camelContext).get("key0").getIn().getBody(), equalTo((Object) 0));
+    }
+
+    @Test
+    public void testUpdatedStateReturnsToHeap() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        final Exchange spilled = repo.get(camelContext, "key0");
+        spilled.getIn().setBody(10);
+        repo.add(camelContext, "key0", spilled);
+
+        assertThat(repo.getStore().size(), equalTo(1));
+        assertThat(repo.getStore().contains("key1"), equalTo(true));
+        assertThat(repo.getWithoutLock(camelContext, "key0").getIn().getBody(), equalTo((Object) 10));
+        assertThat(repo.getLocks().getActiveLocks(), equalTo(0));
+
+        repo.get(camelContext, "key1");
+        repo.remove(camelContext, "key1", null);
+        assertThat(repo.getWithoutLock(camelContext, "key1"), nullValue());
+        assertThat(repo.getKeys(), containsInAnyOrder("key0", "key2"));
+    }
+
+    @Test
+    public void testRemovedStatesAreCompacted() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        final int segments = repo.getStore().getSegments();
+        for (int i = 0; i < 90; i++) {
+            repo.removeWithoutLock(camelContext, "key" + i, null);
+        }
+
+        assertThat(repo.getStore().getCompactions(), greaterThan(0L));
+        assertThat(repo.getStore().getUnmapped(), equalTo(repo.getStore().getCompactions()));
+        assertThat(repo.getStore().getSegments(), lessThan(segments));
+        assertThat(dir.list().length, equalTo(repo.getStore().getSegments()));
+        for (int i = 90; i < 100; i++) {
+            assertThat(repo.getWithoutLock(camelContext, "key" + i).getIn().getBody(), equalTo((Object) i));
+        }
+
+        repo.close();
+        assertThat(dir.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testConcurrentWritersNeverHideTheStates() throws Exception {
+        final int writers = 4;
+        final int keys = 50;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(writers);
+        for (int writer = 0; writer < writers; writer++) {
+            final int offset = writer * keys;
+            new Thread(() -> {
+                try {
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = offset; i < offset + keys; i++) {
+                            final Exchange state = repo.get(camelContext, "key" + i);
+                            if (round > 0 && (state == null || !state.getIn().getBody().equals(round - 1))) {
+                                throw new AssertionError("Unexpected state of key" + i + ": " + state);
+                            }
+                            repo.add(camelContext, "key" + i, state(round));
+                        }
+                    }
+                } catch (Throwable e) { //NOSONAR
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        assertThat(done.await(30, SECONDS), equalTo(true));
+        assertThat(failure.get(), nullValue());
+        assertThat(repo.getKeys(), hasSize(writers * keys));
+        assertThat(repo.getHotStates(), lessThanOrEqualTo(2 + writers));
+        assertThat(repo.getLocks().getActiveLocks(), equalTo(0));
+    }
+
+    @Test
+    public void testFailedWriteIsThrown() throws Exception {
+        repo.get(camelContext, "key");
+        repo.getStore().close();
+        try {
+            repo.add(camelContext, "key", state(0));
+            fail("The failed write must be thrown");
+        } catch (IllegalStateException e) { //NOSONAR
+            // the strategy must see the failure
+        }
+        assertThat(repo.getLocks().getActiveLocks(), equalTo(0));
+    }
+
+    @Test(expected = RepositoryLockWaitException.class)
+    public void testLockWaitTimeoutIsThrown() throws Exception {
+        final ExecutorService owner = newSingleThreadExecutor();
+        try {
+            owner.submit(() -> repo.get(camelContext, "key")).get();
+            repo.get(camelContext, "key");
+        } finally {
+            owner.submit(() -> repo.unlock("key")).get();
+            owner.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentOfTwoGigabytesIsRejected() throws Exception {
+        new MappedSegmentStore(new File(folder.getRoot(), "large"), 2048L << 20, 0.5);
+    }
+
+    private Exchange state(int index) {
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(index);
+        exchange.setProperty("index", index);
+        return exchange;
+    }
+}
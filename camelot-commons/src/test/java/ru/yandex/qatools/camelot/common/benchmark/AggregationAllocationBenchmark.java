@@ -0,0 +1,120 @@
+package ru.yandex.qatools.camelot.common.benchmark;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.qatools.camelot.common.BasicMessagesSerializer;
+import ru.yandex.qatools.camelot.common.CamelotAggregationStrategy;
+import ru.yandex.qatools.camelot.common.CamelotFSMBuilder;
+import ru.yandex.qatools.camelot.common.CounterFSM;
+import ru.yandex.qatools.camelot.common.MemoryAggregationRepository;
+import ru.yandex.qatools.camelot.common.PluginContextInjectorImpl;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
+
+/**
+ * Measures the allocations per event on the successful aggregation path:
+ * the eager copy of the received message (as it was made for the retry before)
+ * against the references to the received message kept by the aggregation strategy.
+ * See the {@code gc.alloc.rate.norm} of the results.
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ru.yandex.qatools.camelot.common.benchmark.AggregationAllocationBenchmark}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationAllocationBenchmark {
+
+    private static final String KEY = "KEY";
+
+    private CamelContext camelContext;
+    private CamelotAggregationStrategy strategy;
+    private Object body;
+    private Map<String, Object> headers;
+
+    @Setup
+    public void setUp() throws Exception { //NOSONAR
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        final BasicMessagesSerializer serializer = new BasicMessagesSerializer();
+        final Plugin plugin = new Plugin();
+        plugin.setId("plugin");
+        final PluginContext context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setPluginClass(CounterFSM.class.getName());
+        context.setMessagesSerializer(serializer);
+        context.setInjector(new PluginContextInjectorImpl());
+        plugin.setContext(context);
+        context.setAggregationRepo(new MemoryAggregationRepository(plugin, 1));
+        strategy = new CamelotAggregationStrategy(camelContext, getClass().getClassLoader(),
+                new CamelotFSMBuilder<>(CounterFSM.class), context);
+        final Exchange exchange = event();
+        body = serializer.processBodyAndHeadersBeforeSend("event",
+                exchange.getIn().getHeaders(), getClass().getClassLoader());
+        headers = exchange.getIn().getHeaders();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception { //NOSONAR
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public void eagerCopy(Blackhole blackhole) {
+        final Exchange message = event();
+        blackhole.consume(message.copy());
+        strategy.process(message);
+        blackhole.consume(message);
+    }
+
+    @Benchmark
+    public void lazyCopy(Blackhole blackhole) {
+        final Exchange message = event();
+        strategy.process(message);
+        blackhole.consume(message);
+    }
+
+    private Exchange event() {
+        final Exchange message = new DefaultExchange(camelContext);
+        if (headers != null) {
+            message.getIn().getHeaders().putAll(headers);
+        }
+        message.getIn().setHeader(CORRELATION_KEY, KEY);
+        message.getIn().setBody(body);
+        return message;
+    }
+
+    public static void main(String[] args) throws Exception { //NOSONAR
+        new Runner(new OptionsBuilder()
+                .include(AggregationAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
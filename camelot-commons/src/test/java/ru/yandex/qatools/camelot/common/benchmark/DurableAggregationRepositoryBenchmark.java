@@ -0,0 +1,151 @@
+package ru.yandex.qatools.camelot.common.benchmark;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.qatools.camelot.common.DurableAggregationRepository;
+import ru.yandex.qatools.camelot.common.WriteAheadLog;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures the throughput of the durable writes to the write-ahead log by the single and by the concurrent writers
+ * (the concurrent writers share the fsync calls via the group commit),
+ * and the time of the recovery of the repository from the snapshot and the log.
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ru.yandex.qatools.camelot.common.benchmark.DurableAggregationRepositoryBenchmark}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DurableAggregationRepositoryBenchmark {
+
+    private static final byte[] STATE = new byte[512];
+
+    @State(Scope.Benchmark)
+    public static class Log {
+        @Param({"true", "false"})
+        public boolean fsync;
+
+        private final AtomicLong keys = new AtomicLong();
+        private File dir;
+        private WriteAheadLog wal;
+
+        @Setup
+        public void setUp() throws Exception { //NOSONAR
+            dir = Files.createTempDirectory("camelot-wal-bench").toFile();
+            wal = new WriteAheadLog(dir, 1, fsync);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception { //NOSONAR
+            wal.close();
+            FileUtils.deleteDirectory(dir);
+        }
+
+        private void append() throws Exception { //NOSONAR
+            wal.sync(wal.write(WriteAheadLog.PUT, "key" + keys.incrementAndGet(), STATE));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Stored {
+        @Param({"100000"})
+        public int states;
+
+        private CamelContext camelContext;
+        private Plugin plugin;
+        private File dir;
+
+        @Setup
+        public void setUp() throws Exception { //NOSONAR
+            camelContext = new DefaultCamelContext();
+            plugin = new Plugin();
+            plugin.setId("plugin");
+            final PluginContext context = new PluginContext();
+            context.setClassLoader(getClass().getClassLoader());
+            plugin.setContext(context);
+            dir = Files.createTempDirectory("camelot-recovery-bench").toFile();
+            final DurableAggregationRepository repo = open();
+            for (int i = 0; i < states; i++) {
+                repo.addWithoutLock(camelContext, "key" + i, state(i));
+                if (i == states * 9 / 10) {
+                    repo.snapshot();
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws Exception { //NOSONAR
+            FileUtils.deleteDirectory(dir);
+        }
+
+        private DurableAggregationRepository open() throws Exception { //NOSONAR
+            return new DurableAggregationRepository(plugin, 1, dir, false, Long.MAX_VALUE, 4);
+        }
+
+        private Exchange state(int index) {
+            final Exchange exchange = new DefaultExchange(camelContext);
+            exchange.getIn().setBody(STATE);
+            exchange.setProperty("index", index);
+            return exchange;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(SECONDS)
+    @Threads(1)
+    public void appendSingleWriter(Log log) throws Exception { //NOSONAR
+        log.append();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(SECONDS)
+    @Threads(8)
+    public void appendEightWriters(Log log) throws Exception { //NOSONAR
+        log.append();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public int recover(Stored stored) throws Exception { //NOSONAR
+        return stored.open().getKeys().size();
+    }
+
+    public static void main(String[] args) throws Exception { //NOSONAR
+        new Runner(new OptionsBuilder()
+                .include(DurableAggregationRepositoryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
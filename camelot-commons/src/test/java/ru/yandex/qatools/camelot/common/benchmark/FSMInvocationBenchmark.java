@@ -0,0 +1,88 @@
+package ru.yandex.qatools.camelot.common.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.qatools.camelot.common.CamelotFSMBuilder;
+import ru.yandex.qatools.camelot.common.CounterFSM;
+import ru.yandex.qatools.camelot.common.FSMEngineInvokers;
+
+import java.lang.reflect.Method;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.invokeAnyMethod;
+
+/**
+ * Measures the per-event overhead of building and firing the FSM engine:
+ * the reflective invocation against the method handles resolved once per plugin class.
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ru.yandex.qatools.camelot.common.benchmark.FSMInvocationBenchmark}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FSMInvocationBenchmark {
+
+    private CamelotFSMBuilder<CounterFSM> builder;
+    private Method buildWithStateMethod;
+    private FSMEngineInvokers invokers;
+    private CounterFSM.Counter state;
+    private CounterFSM fsm;
+    private Object engine;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        builder = new CamelotFSMBuilder<>(CounterFSM.class);
+        buildWithStateMethod = builder.getClass().getMethod("build", Object.class, Object.class);
+        buildWithStateMethod.setAccessible(true);
+        invokers = new FSMEngineInvokers(builder);
+        state = new CounterFSM.Counter();
+        fsm = new CounterFSM();
+        engine = builder.build(fsm);
+    }
+
+    @Benchmark
+    public void reflection(Blackhole blackhole) throws Exception { //NOSONAR
+        final Object engine = buildWithStateMethod.invoke(builder, state, fsm);
+        blackhole.consume(invokeAnyMethod(engine, "fire", new Class[]{Object.class}, "event"));
+        blackhole.consume(invokeAnyMethod(engine, "isCompleted"));
+    }
+
+    @Benchmark
+    public void methodHandles(Blackhole blackhole) throws Exception { //NOSONAR
+        final Object engine = invokers.build(state, fsm);
+        blackhole.consume(invokers.fire(engine, "event"));
+        blackhole.consume(invokers.isCompleted(engine));
+    }
+
+    @Benchmark
+    public void reflectionFireOnly(Blackhole blackhole) throws Exception { //NOSONAR
+        blackhole.consume(invokeAnyMethod(engine, "fire", new Class[]{Object.class}, "event"));
+        blackhole.consume(invokeAnyMethod(engine, "isCompleted"));
+    }
+
+    @Benchmark
+    public void methodHandlesFireOnly(Blackhole blackhole) throws Exception { //NOSONAR
+        blackhole.consume(invokers.fire(engine, "event"));
+        blackhole.consume(invokers.isCompleted(engine));
+    }
+
+    public static void main(String[] args) throws Exception { //NOSONAR
+        new Runner(new OptionsBuilder().include(FSMInvocationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -20,9 +20,11 @@ import ru.yandex.qatools.camelot.config.PluginsConfig;
 import ru.yandex.qatools.camelot.config.PluginsSource;
 import ru.yandex.qatools.camelot.core.builders.NoSchedulerBuildersFactory;
 
+import java.io.Closeable;
 import java.util.*;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.camel.LoggingLevel.DEBUG;
 import static ru.yandex.qatools.camelot.util.NameUtil.routeId;
 import static ru.yandex.qatools.camelot.util.ServiceUtil.gracefullyRemoveRoute;
@@ -100,8 +102,12 @@ public class ProcessingEngineImpl extends GenericPluginsEngine implements Proces
         } catch (Exception e) {
             logger.error("Failed to stop plugins!", e);
         }
-        if (quartzInitializer != null) {
-            quartzInitializer.stop();
+        try {
+            closeRepositories();
+        } finally {
+            if (quartzInitializer != null) {
+                quartzInitializer.stop();
+            }
         }
     }
 
@@ -247,6 +253,46 @@ public class ProcessingEngineImpl extends GenericPluginsEngine implements Proces
     protected void unInitPlugin(Plugin plugin) throws Exception { //NOSONAR
         plugin.getContext().setShuttingDown(true);
         plugin.getContext().getSchedulerBuilder().unschedule();
+        if (plugin.getContext().getRetries() != null) {
+            plugin.getContext().getRetries().shutdown(
+                    plugin.getContext().getAppConfig().getLong("camelot.retries.shutdownTimeoutSec"), SECONDS);
+        }
+        if (plugin.getContext().getExpiry() != null) {
+            plugin.getContext().getExpiry().shutdown(
+                    plugin.getContext().getAppConfig().getLong("camelot.expiry.shutdownTimeoutSec"), SECONDS);
+        }
+        if (plugin.getContext().getStateCache() != null) {
+            plugin.getContext().getStateCache().close();
+        }
+        if (plugin.getContext().getLanes() != null) {
+            plugin.getContext().getLanes().shutdown(
+                    plugin.getContext().getAppConfig().getLong("camelot.lanes.shutdownTimeoutSec"), SECONDS);
+        }
+    }
+
+    /**
+     * Releases the resources of the repositories (e.g. the files of the spilled states) once the routes are stopped.
+     * All the repositories are closed even if some of them fail, then the first failure is thrown
+     * (e.g. the states of the write-behind failed to be written), so the shutdown does not lose them silently
+     */
+    protected void closeRepositories() {
+        RuntimeException failure = null;
+        for (Plugin plugin : getPluginsMap().values()) {
+            if (plugin.getContext().getAggregationRepo() instanceof Closeable) {
+                try {
+                    ((Closeable) plugin.getContext().getAggregationRepo()).close();
+                } catch (Exception e) {
+                    logger.error(format("Failed to close the repository of the plugin %s", plugin.getId()), e);
+                    if (failure == null) {
+                        failure = new IllegalStateException(
+                                format("Failed to close the repository of the plugin %s", plugin.getId()), e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
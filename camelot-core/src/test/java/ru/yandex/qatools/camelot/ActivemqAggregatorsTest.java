@@ -43,6 +43,15 @@ public abstract class ActivemqAggregatorsTest extends BasicPluginsTest {
     @EndpointInject(uri = "mock:direct:plugin.test-started.output")
     protected MockEndpoint endpointTestStartedOutput;
 
+    @EndpointInject(uri = "mock:direct:plugin.laned-counter.output")
+    protected MockEndpoint endpointLanedCounterOutput;
+
+    @EndpointInject(uri = "mock:direct:plugin.batched-counter.output")
+    protected MockEndpoint endpointBatchedCounterOutput;
+
+    @EndpointInject(uri = "mock:direct:plugin.declared-key-counter.output")
+    protected MockEndpoint endpointDeclaredKeyCounterOutput;
+
     @EndpointInject(uri = "mock:direct:plugin.by-method.output")
     protected MockEndpoint endpointByMethodOutput;
 
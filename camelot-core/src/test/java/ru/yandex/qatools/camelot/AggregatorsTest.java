@@ -97,6 +97,81 @@ public class AggregatorsTest extends ActivemqAggregatorsTest {
                 });
     }
 
+    @Test
+    public void testLanedCounterAggregator() throws Exception {
+        endpointLanedCounterOutput.reset();
+        endpointLanedCounterOutput.expectedMessageCount(1);
+
+        String uuid = uuid();
+        TestStarted testStarted = createTestStarted(uuid);
+        for (int i = 0; i < 10; i++) {
+            sendTestEvent("laned-counter", testStarted, uuid);
+        }
+        sendStopEvent("laned-counter", copyOf(testStarted, StopTestStartedCounter.class));
+
+        endpointLanedCounterOutput.assertIsSatisfied(3000);
+
+        expectExchangeExists(endpointLanedCounterOutput,
+                "Must receive counter with 10",
+                exchange -> {
+                    Object first = getInput((Exchange) exchange, CounterState.class);
+                    return first != null && ((CounterState) first).count == 10;
+                });
+    }
+
+    @Test
+    public void testDeclaredKeyCounterAggregator() throws Exception {
+        endpointDeclaredKeyCounterOutput.reset();
+        endpointDeclaredKeyCounterOutput.expectedMessageCount(1);
+
+        String uuid = uuid();
+        TestStarted testStarted = createTestStarted(uuid);
+        sendTestEvent("declared-key-counter", testStarted, uuid());
+        sendTestEvent("declared-key-counter", testStarted, uuid());
+        sendStopEvent("declared-key-counter", copyOf(testStarted, StopTestStartedCounter.class));
+
+        endpointDeclaredKeyCounterOutput.assertIsSatisfied(3000);
+
+        expectExchangeExists(endpointDeclaredKeyCounterOutput,
+                "Must receive counter with 2",
+                exchange -> {
+                    Object first = getInput((Exchange) exchange, CounterState.class);
+                    return first != null && ((CounterState) first).count == 2;
+                });
+    }
+
+    @Test
+    public void testBatchedCounterAggregator() throws Exception {
+        endpointBatchedCounterOutput.reset();
+        endpointBatchedCounterOutput.expectedMessageCount(2);
+
+        String uuid = uuid();
+        TestStarted testStarted = createTestStarted(uuid);
+        for (int i = 0; i < 5; i++) {
+            sendTestEvent("batched-counter", testStarted, uuid);
+        }
+        sendStopEvent("batched-counter", copyOf(testStarted, StopTestStartedCounter.class));
+        for (int i = 0; i < 2; i++) {
+            sendTestEvent("batched-counter", testStarted, uuid);
+        }
+        sendStopEvent("batched-counter", copyOf(testStarted, StopTestStartedCounter.class));
+
+        endpointBatchedCounterOutput.assertIsSatisfied(3000);
+
+        expectExchangeExists(endpointBatchedCounterOutput,
+                "Must receive counter with 5",
+                exchange -> {
+                    Object first = getInput((Exchange) exchange, CounterState.class);
+                    return first != null && ((CounterState) first).count == 5;
+                });
+        expectExchangeExists(endpointBatchedCounterOutput,
+                "Must receive counter with 2",
+                exchange -> {
+                    Object first = getInput((Exchange) exchange, CounterState.class);
+                    return first != null && ((CounterState) first).count == 2;
+                });
+    }
+
     @Test
     public void testByMethodAggregator() throws Exception {
         endpointByMethodOutput.reset();
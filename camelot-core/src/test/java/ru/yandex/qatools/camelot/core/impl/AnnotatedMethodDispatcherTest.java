@@ -9,6 +9,7 @@ import java.lang.reflect.Method;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 import static ru.yandex.qatools.camelot.common.Metadata.getMeta;
 
@@ -141,4 +142,31 @@ public class AnnotatedMethodDispatcherTest {
         verifyNoMoreInteractions(obj);
     }
 
+    @Test
+    public void testRepeatedDispatchUsesResolvedMethods() throws Throwable {
+        SomeClass obj = mock(SomeClass.class);
+        BaseState state = mock(BaseState.class);
+        ConcreteEvent event = mock(ConcreteEvent.class);
+        Object param = mock(Object.class);
+
+        new AnnotatedMethodDispatcher(obj, getMeta(SomeClass.class)).dispatch(OnException.class, false, state, event, param);
+        new AnnotatedMethodDispatcher(obj, getMeta(SomeClass.class)).dispatch(OnException.class, false, state, event, param);
+        verify(obj, times(2)).mBaseStateDerivedEventObject(state, event, param);
+        verify(obj, times(2)).mBaseStateBaseEventObject(state, event, param);
+        verify(obj, times(2)).mBaseStateConcreteEvent(state, event);
+        verify(obj, times(2)).mBaseStateEvent(state, event);
+        verify(obj, times(2)).mBaseState(state);
+        verify(obj, times(2)).mConcreteEventObject(event, param);
+        verifyNoMoreInteractions(obj);
+    }
+
+    @Test
+    public void testNoSuitableMethod() throws Throwable {
+        SomeClass obj = mock(SomeClass.class);
+        AnnotatedMethodDispatcher caller = new AnnotatedMethodDispatcher(obj, getMeta(SomeClass.class));
+
+        assertTrue(caller.dispatch(OnException.class, true, "event").isEmpty());
+        assertTrue(caller.dispatch(OnException.class, true, "event").isEmpty());
+        verifyNoMoreInteractions(obj);
+    }
 }
@@ -22,6 +22,8 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -72,6 +74,32 @@ public class PluginContextInjectorTest {
         Assert.assertEquals("Plugin storage must be injected", agg.storage1, ((InjectableInterfaceImpl) agg.injectableInterface).otherPluginStorage);
     }
 
+    @Test
+    public void testContextValuesAreReusedAndHeadersAreInjectedPerMessage() {
+        PluginContextInjectorImpl injector = new PluginContextInjectorImpl();
+        PluginContext context = processingEngine.getPlugin(AggregatorWithTimer.class).getContext();
+        Map<String, Object> headers1 = new HashMap<>();
+        Map<String, Object> headers2 = new HashMap<>();
+        headers2.put("header", "value");
+        AggregatorWithContext agg1 = new AggregatorWithContext();
+        AggregatorWithContext agg2 = new AggregatorWithContext();
+        injector.inject(agg1, context, exchangeWithHeaders(headers1));
+        injector.inject(agg2, context, exchangeWithHeaders(headers2));
+        assertSame("Headers must be injected per message", headers1, agg1.headers);
+        assertSame("Headers must be injected per message", headers2, agg2.headers);
+        assertSame("Context values must be reused", agg1.storage, agg2.storage);
+        assertSame("Context values must be reused", agg1.clientSender, agg2.clientSender);
+        assertNotSame("Components must be created per instance", agg1.injectableComponent, agg2.injectableComponent);
+    }
+
+    private Exchange exchangeWithHeaders(Map<String, Object> headers) {
+        Exchange exchange = mock(Exchange.class);
+        Message in = mock(Message.class);
+        when(exchange.getIn()).thenReturn(in);
+        when(in.getHeaders()).thenReturn(headers);
+        return exchange;
+    }
+
     private void assertBasicContextInjected(TestBeanWithContext object) {
         PluginContext allSkippedContext = processingEngine.getPluginContext(AllSkippedAggregator.class);
         assertNotNull("Context must be injected", object.repo2);
@@ -0,0 +1,56 @@
+package ru.yandex.qatools.camelot.hazelcast;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Sets the new state on the member owning the key only if the version stamp of the current state
+ * equals to the expected one, so the current state is never sent back to the caller to be compared.
+ * The null state removes the entry. Returns true if the state was set.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class CompareAndSetEntryProcessor implements EntryProcessor<String, DefaultExchangeHolder> {
+
+    private final String versionProperty;
+    private final Object expectedVersion;
+    private final DefaultExchangeHolder state;
+    private transient boolean changed;
+
+    public CompareAndSetEntryProcessor(String versionProperty, Object expectedVersion, DefaultExchangeHolder state) {
+        this.versionProperty = versionProperty;
+        this.expectedVersion = expectedVersion;
+        this.state = state;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, DefaultExchangeHolder> entry) {
+        if (!Objects.equals(expectedVersion, versionOf(entry.getValue()))) {
+            return false;
+        }
+        entry.setValue(state);
+        changed = true;
+        return true;
+    }
+
+    @Override
+    public EntryBackupProcessor<String, DefaultExchangeHolder> getBackupProcessor() {
+        return changed ? new TransitionEntryProcessor.BackupProcessor(state) : null;
+    }
+
+    private Object versionOf(DefaultExchangeHolder holder) {
+        if (holder == null) {
+            return null;
+        }
+        final Exchange exchange = new DefaultExchange((CamelContext) null);
+        DefaultExchangeHolder.unmarshal(exchange, holder);
+        return exchange.getProperty(versionProperty);
+    }
+}
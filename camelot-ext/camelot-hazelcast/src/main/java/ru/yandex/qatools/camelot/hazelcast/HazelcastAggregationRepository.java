@@ -3,6 +3,7 @@ package ru.yandex.qatools.camelot.hazelcast;
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.Generators;
 import com.fasterxml.uuid.impl.TimeBasedGenerator;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastException;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
@@ -11,23 +12,31 @@ import org.apache.camel.Exchange;
 import org.apache.camel.impl.DefaultExchange;
 import org.apache.camel.impl.DefaultExchangeHolder;
 import org.apache.camel.spi.AggregationRepository;
-import org.apache.camel.spi.OptimisticLockingAggregationRepository;
 import org.apache.camel.support.ServiceSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.yandex.qatools.camelot.api.error.*;
-import ru.yandex.qatools.camelot.common.AggregationRepositoryWithLocks;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithIteration;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithOptimisticLocking;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithReadCache;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithTransitions;
+import ru.yandex.qatools.camelot.common.KeyLocks;
+import ru.yandex.qatools.camelot.common.LockWaitHistogram;
+import ru.yandex.qatools.camelot.common.StateTransition;
 
 import java.util.Collections;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
 
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
-import static ru.yandex.qatools.camelot.util.DateUtil.isTimePassedSince;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -35,8 +44,10 @@ import static ru.yandex.qatools.camelot.util.DateUtil.isTimePassedSince;
  */
 public class HazelcastAggregationRepository extends ServiceSupport
         implements AggregationRepository,
-        OptimisticLockingAggregationRepository,
-        AggregationRepositoryWithLocks {
+        AggregationRepositoryWithOptimisticLocking,
+        AggregationRepositoryWithReadCache,
+        AggregationRepositoryWithTransitions,
+        AggregationRepositoryWithIteration {
 
     private static final TimeBasedGenerator UUID_GENERATOR
             = Generators.timeBasedGenerator(EthernetAddress.fromInterface());
@@ -49,8 +60,13 @@ public class HazelcastAggregationRepository extends ServiceSupport
     private String repository;
     private IMap<String, DefaultExchangeHolder> map;
 
-    private long lockWaitHeartbeatSec = 5; // 5 seconds between lock trials
+    private final KeyLocks localLocks = new KeyLocks(true);
+    private final LockWaitHistogram lockWaits = new LockWaitHistogram();
     private long waitForLockSec = MINUTES.toSeconds(5);
+    private ClassLoader transitionClassLoader;
+    private NearCacheConfig nearCacheConfig;
+    private HazelcastNearCache<DefaultExchangeHolder> nearCache;
+    private int iterationPageSize = HazelcastPaging.DEFAULT_PAGE_SIZE;
 
     @Override
     public Exchange get(CamelContext camelContext, String key) {
@@ -74,33 +90,39 @@ public class HazelcastAggregationRepository extends ServiceSupport
                 key, waitForLockSec));
     }
 
+    /**
+     * Writes the new state without locking the key if the state was not updated since the old exchange was read
+     */
     @Override
     public Exchange add(CamelContext camelContext, String key, Exchange oldExchange, Exchange newExchange)
             throws OptimisticLockingException {
-        return add(camelContext, key, newExchange);
+        try {
+            debug("Performing optimistic write for key '{}'", key);
+            final DefaultExchangeHolder holder = stamped(newExchange);
+            if (compareAndSet(key, getLastUpdateUuid(oldExchange), holder)) {
+                return toExchange(camelContext, holder);
+            }
+        } catch (IllegalStateException e) {
+            error("Hazelcast is in invalid state while processing key '{}'", key, e);
+            throw new RepositoryNeedRestartException(e);
+        } catch (HazelcastException e) {
+            throw new RepositoryUnreachableException(e);
+        }
+        debug("Entry for key '{}' was updated in the meantime", key);
+        throw new OptimisticLockingException();
     }
 
     @Override
     public Exchange add(final CamelContext camelContext, final String key, final Exchange exchange) {
-        return writeAttempt(camelContext, exchange, key, new Callable<Exchange>() {
-            @Override
-            public Exchange call() throws Exception {
-                DefaultExchangeHolder holder = DefaultExchangeHolder.marshal(exchange);
-                map.put(key, holder);
-                return toExchange(camelContext, holder);
-            }
-        });
+        final Object expected = getLastUpdateUuid(exchange);
+        final DefaultExchangeHolder holder = stamped(exchange);
+        writeAttempt(key, expected, holder);
+        return toExchange(camelContext, holder);
     }
 
     @Override
     public void remove(CamelContext camelContext, final String key, final Exchange exchange) {
-        writeAttempt(camelContext, exchange, key, new Callable<Exchange>() {
-            @Override
-            public Exchange call() throws Exception {
-                map.remove(key);
-                return exchange;
-            }
-        });
+        writeAttempt(key, getLastUpdateUuid(exchange), null);
     }
 
     @Override
@@ -108,6 +130,39 @@ public class HazelcastAggregationRepository extends ServiceSupport
         return toExchange(camelContext, map.get(key));
     }
 
+    @Override
+    public Exchange getCached(CamelContext camelContext, String key) {
+        return toExchange(camelContext, (nearCache != null) ? nearCache.get(key) : map.get(key));
+    }
+
+    @Override
+    public Map<String, Exchange> valuesCached(CamelContext camelContext) {
+        final Set<String> keys = map.keySet();
+        final Map<String, DefaultExchangeHolder> holders = (nearCache != null) ? nearCache.getAll(keys)
+                : map.getAll(keys);
+        final Map<String, Exchange> result = new HashMap<>(holders.size(), 1);
+        for (Map.Entry<String, DefaultExchangeHolder> entry : holders.entrySet()) {
+            result.put(entry.getKey(), toExchange(camelContext, entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the states from the cluster by the pages of the configured size
+     */
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        HazelcastPaging.forEach(map, iterationPageSize,
+                (key, holder) -> action.accept(key, toExchange(camelContext, holder)));
+    }
+
+    /**
+     * Returns the near cache (e.g. to watch its hits and misses) or null if the near cache is not enabled
+     */
+    public HazelcastNearCache<DefaultExchangeHolder> getNearCache() {
+        return nearCache;
+    }
+
     @Override
     public void lock(String key) {
         try {
@@ -136,6 +191,8 @@ public class HazelcastAggregationRepository extends ServiceSupport
         } catch (Exception e) {
             logger.trace("Sonar trick", e);
             debug("Failed to quiet unlock repo key '{}'", key, e);
+        } finally {
+            unlockLocally(key);
         }
     }
 
@@ -150,6 +207,57 @@ public class HazelcastAggregationRepository extends ServiceSupport
             warn("Failed to unlock the key '{}'", key, e);
         } catch (Exception e) {
             error("Failed to unlock the key '{}'", key, e);
+        } finally {
+            unlockLocally(key);
+        }
+    }
+
+    @Override
+    public void registerTransition(CamelContext camelContext, ClassLoader classLoader, StateTransition transition) {
+        hazelcastInstance.getUserContext().put(TransitionEntryProcessor.Transition.key(repository),
+                new TransitionEntryProcessor.Transition(camelContext, classLoader, transition));
+        this.transitionClassLoader = classLoader;
+    }
+
+    /**
+     * Sends the message to the member owning the key and applies the transition there without locking the key.
+     * The transition waits for the key to be unlocked if it is locked by the usual processing.
+     */
+    @Override
+    public StateTransition.Result transit(CamelContext camelContext, String key, Exchange message) {
+        final byte[] bytes = (transitionClassLoader == null) ? null
+                : serializeToBytes(DefaultExchangeHolder.marshal(message), transitionClassLoader);
+        if (bytes == null) {
+            return null;
+        }
+        final TransitionEntryProcessor.Outcome outcome;
+        try {
+            debug("Applying the transition on the owner of the key '{}'", key);
+            outcome = (TransitionEntryProcessor.Outcome) map.executeOnKey(key,
+                    new TransitionEntryProcessor(repository, bytes));
+            invalidateCached(key);
+        } catch (IllegalStateException e) {
+            error("Hazelcast is in invalid state while processing key '{}'", key, e);
+            throw new RepositoryNeedRestartException(e);
+        } catch (HazelcastException e) {
+            throw new RepositoryUnreachableException(e);
+        }
+        if (!outcome.isSupported()) {
+            debug("The owner of the key '{}' does not have the transition, locking the key", key);
+            return null;
+        }
+        if (outcome.getFailure() != null) {
+            throw new RepositoryFailureException(format(
+                    "Failed to apply the transition to the key '%s' on its owner: %s", key, outcome.getFailure()));
+        }
+        if (!outcome.isCompleted()) {
+            return new StateTransition.Result(null, false);
+        }
+        try {
+            return new StateTransition.Result(toExchange(camelContext,
+                    (DefaultExchangeHolder) deserializeFromBytes(outcome.getOutput(), transitionClassLoader)), true);
+        } catch (Exception e) {
+            throw new RepositoryFailureException(format("Failed to read the completed state of the key '%s'", key), e);
         }
     }
 
@@ -166,23 +274,33 @@ public class HazelcastAggregationRepository extends ServiceSupport
     @Override
     public void doStart() throws Exception { //NOSONAR
         map = hazelcastInstance.getMap(repository);
+        if (nearCacheConfig != null) {
+            nearCache = new HazelcastNearCache<>(map, nearCacheConfig);
+        }
     }
 
     @Override
     public void doStop() throws Exception { //NOSONAR
-        /* Nothing to do */
+        if (nearCache != null) {
+            nearCache.destroy();
+        }
+        if (transitionClassLoader != null) {
+            hazelcastInstance.getUserContext().remove(TransitionEntryProcessor.Transition.key(repository));
+        }
     }
 
-    private Exchange writeAttempt(CamelContext camelContext, Exchange exchange, String key,
-                                  Callable<Exchange> perform) {
+    /**
+     * Locks the key and sets the new state (removes the entry if the state is null)
+     * if the state was not updated since it was read
+     */
+    private void writeAttempt(String key, Object expectedUuid, DefaultExchangeHolder holder) {
         boolean lockSuccess = true;
         try {
             debug("Performing write attempt for key '{}'", key);
             if (lockSuccess = tryLock(key)) { //NOSONAR
                 debug("Successfully locked the key '{}' (write)", key);
-                if (exchangeNotUpdated(exchange, toExchange(camelContext, map.get(key)))) {
-                    setLastUpdateUuidHeader(exchange);
-                    return perform.call();
+                if (compareAndSet(key, expectedUuid, holder)) {
+                    return;
                 }
             }
         } catch (IllegalStateException e) {
@@ -208,8 +326,29 @@ public class HazelcastAggregationRepository extends ServiceSupport
                 key));
     }
 
-    private boolean exchangeNotUpdated(Exchange exchange, Exchange oldExchange) {
-        return Objects.equals(getLastUpdateUuid(exchange), getLastUpdateUuid(oldExchange));
+    /**
+     * Compares the version of the current state with the expected one on the owner of the key,
+     * so the current state is not transferred to be compared
+     */
+    private boolean compareAndSet(String key, Object expectedUuid, DefaultExchangeHolder holder) {
+        final boolean result = (Boolean) map.executeOnKey(key,
+                new CompareAndSetEntryProcessor(LAST_UPDATE_UUID_HEADER, expectedUuid, holder));
+        invalidateCached(key);
+        return result;
+    }
+
+    /**
+     * Invalidates the value cached on the current node at once, without waiting for the event of the map
+     */
+    private void invalidateCached(String key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    private DefaultExchangeHolder stamped(Exchange exchange) {
+        setLastUpdateUuidHeader(exchange);
+        return DefaultExchangeHolder.marshal(exchange);
     }
 
     private Object getLastUpdateUuid(Exchange exchange) {
@@ -217,16 +356,41 @@ public class HazelcastAggregationRepository extends ServiceSupport
     }
 
     private void setLastUpdateUuidHeader(Exchange exchange) {
-        exchange.setProperty(LAST_UPDATE_UUID_HEADER, UUID_GENERATOR.generate());
+        exchange.setProperty(LAST_UPDATE_UUID_HEADER, UUID_GENERATOR.generate().toString());
     }
 
+    /**
+     * Waits for the lock of the key on the current node first: the waiters of the node are queued in the FIFO order
+     * and each one is resumed when the previous one unlocks the key, so only the head of the queue waits for the lock
+     * of the cluster. The waiting lock operation is parked by Hazelcast on the owner of the key
+     * and is resumed when the key is unlocked, so the lock is not polled.
+     */
     private boolean tryLock(String key) throws InterruptedException {
-        long startedTime = currentTimeMillis();
-        boolean timeout = false;
-        while (!map.tryLock(key, lockWaitHeartbeatSec, SECONDS) && !timeout) {
-            timeout = isTimePassedSince(SECONDS.toMillis(waitForLockSec), startedTime);
+        final long started = currentTimeMillis();
+        final long timeoutMs = SECONDS.toMillis(waitForLockSec);
+        boolean locked = false;
+        try {
+            if (localLocks.tryLock(key, timeoutMs, MILLISECONDS)) {
+                try {
+                    locked = map.tryLock(key, Math.max(0, started + timeoutMs - currentTimeMillis()), MILLISECONDS);
+                } finally {
+                    if (!locked) {
+                        localLocks.unlock(key);
+                    }
+                }
+            }
+            return locked;
+        } finally {
+            lockWaits.record(currentTimeMillis() - started, locked);
+        }
+    }
+
+    private void unlockLocally(String key) {
+        try {
+            localLocks.unlock(key);
+        } catch (IllegalMonitorStateException e) { //NOSONAR
+            logger.trace("[{}] The key '{}' is not locked on the current node", repository, key);
         }
-        return !timeout;
     }
 
     public String getRepository() {
@@ -245,14 +409,36 @@ public class HazelcastAggregationRepository extends ServiceSupport
         this.hazelcastInstance = hazelcastInstance;
     }
 
+    /**
+     * @deprecated the lock is not polled anymore, the waiters are resumed when the key is unlocked
+     */
+    @Deprecated
     public void setLockWaitHeartbeatSec(long lockWaitHeartbeat) {
-        this.lockWaitHeartbeatSec = lockWaitHeartbeat;
+        logger.debug("[{}] The lock wait heartbeat ({}s) is ignored", repository, lockWaitHeartbeat);
+    }
+
+    /**
+     * Returns the histogram of the times spent waiting for the locks of the keys
+     */
+    public LockWaitHistogram getLockWaits() {
+        return lockWaits;
     }
 
     public void setWaitForLockSec(long waitForLockSec) {
         this.waitForLockSec = waitForLockSec;
     }
 
+    /**
+     * Enables the near cache for the readonly reads, must be set before the repository is started
+     */
+    public void setNearCache(NearCacheConfig nearCacheConfig) {
+        this.nearCacheConfig = nearCacheConfig;
+    }
+
+    public void setIterationPageSize(int iterationPageSize) {
+        this.iterationPageSize = iterationPageSize;
+    }
+
     protected IMap getMap() {
         return map;
     }
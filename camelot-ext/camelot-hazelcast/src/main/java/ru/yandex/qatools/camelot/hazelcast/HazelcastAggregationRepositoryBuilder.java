@@ -1,13 +1,17 @@
 package ru.yandex.qatools.camelot.hazelcast;
 
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastInstance;
 import org.apache.camel.CamelContext;
 import org.apache.camel.spi.AggregationRepository;
 import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.api.annotations.NearCache;
 import ru.yandex.qatools.camelot.common.builders.MemoryAggregationRepositoryBuilder;
 import ru.yandex.qatools.camelot.config.Plugin;
 
 import static ru.yandex.qatools.camelot.util.NameUtil.pluginStorageKey;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationValue;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationWithinHierarchy;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -16,14 +20,23 @@ public class HazelcastAggregationRepositoryBuilder extends MemoryAggregationRepo
 
     private final HazelcastInstance hazelcastInstance;
     private final long waitForLockSec;
-    private final long lockWaitHeartBeatSec;
+    private final NearCacheConfig nearCacheDefaults;
 
+    /**
+     * @deprecated the lock wait heartbeat is not used anymore
+     */
+    @Deprecated
     public HazelcastAggregationRepositoryBuilder(HazelcastInstance hazelcastInstance, CamelContext camelContext,
                                                  long waitForLockSec, long lockWaitHeartBeatSec) {
+        this(hazelcastInstance, camelContext, waitForLockSec, new NearCacheConfig());
+    }
+
+    public HazelcastAggregationRepositoryBuilder(HazelcastInstance hazelcastInstance, CamelContext camelContext,
+                                                 long waitForLockSec, NearCacheConfig nearCacheDefaults) {
         super(camelContext, waitForLockSec);
         this.hazelcastInstance = hazelcastInstance;
         this.waitForLockSec = waitForLockSec;
-        this.lockWaitHeartBeatSec = lockWaitHeartBeatSec;
+        this.nearCacheDefaults = nearCacheDefaults;
     }
 
     /**
@@ -35,7 +48,7 @@ public class HazelcastAggregationRepositoryBuilder extends MemoryAggregationRepo
         aggregationRepository.setRepository(plugin.getId());
         aggregationRepository.setHazelcastInstance(hazelcastInstance);
         aggregationRepository.setWaitForLockSec(waitForLockSec);
-        aggregationRepository.setLockWaitHeartbeatSec(lockWaitHeartBeatSec);
+        aggregationRepository.setNearCache(nearCache(plugin));
         aggregationRepository.doStart();
         return aggregationRepository;
     }
@@ -43,6 +56,35 @@ public class HazelcastAggregationRepositoryBuilder extends MemoryAggregationRepo
     @Override
     @SuppressWarnings("unchecked")
     public <T> Storage<T> initStorage(Plugin plugin) throws Exception { //NOSONAR
-        return new HazelcastStorage<>(hazelcastInstance, pluginStorageKey(plugin.getId()));
+        return new HazelcastStorage<>(hazelcastInstance, pluginStorageKey(plugin.getId()), nearCache(plugin));
+    }
+
+    /**
+     * Returns the near cache configuration of the plugin or null if the plugin does not have the near cache
+     */
+    private NearCacheConfig nearCache(Plugin plugin) throws ReflectiveOperationException {
+        final String pluginClass = plugin.getContext().getPluginClass();
+        if (pluginClass == null) {
+            return null;
+        }
+        final Object nearCache = getAnnotationWithinHierarchy(
+                plugin.getContext().getClassLoader().loadClass(pluginClass), NearCache.class);
+        if (nearCache == null) {
+            return null;
+        }
+        final int maxSize = (int) getAnnotationValue(nearCache, "maxSize");
+        final int timeToLiveSec = (int) getAnnotationValue(nearCache, "timeToLiveSec");
+        final int maxIdleSec = (int) getAnnotationValue(nearCache, "maxIdleSec");
+        final NearCacheConfig result = new NearCacheConfig(nearCacheDefaults);
+        if (maxSize > 0) {
+            result.setMaxSize(maxSize);
+        }
+        if (timeToLiveSec >= 0) {
+            result.setTimeToLiveSeconds(timeToLiveSec);
+        }
+        if (maxIdleSec >= 0) {
+            result.setMaxIdleSeconds(maxIdleSec);
+        }
+        return result;
     }
 }
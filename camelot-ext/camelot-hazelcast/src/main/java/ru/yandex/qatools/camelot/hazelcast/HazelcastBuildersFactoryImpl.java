@@ -1,5 +1,6 @@
 package ru.yandex.qatools.camelot.hazelcast;
 
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastInstance;
 import org.apache.camel.CamelContext;
 import ru.yandex.qatools.camelot.common.builders.AggregationRepositoryBuilder;
@@ -10,19 +11,40 @@ import ru.yandex.qatools.camelot.common.builders.BuildersFactoryImpl;
  */
 public class HazelcastBuildersFactoryImpl extends BuildersFactoryImpl {
 
-    protected long lockWaitHeartBeatSec = 5;
     protected final HazelcastInstance hazelcastInstance;
+    protected final NearCacheConfig nearCacheDefaults = new NearCacheConfig();
 
     public HazelcastBuildersFactoryImpl(HazelcastInstance hazelcastInstance) {
         this.hazelcastInstance = hazelcastInstance;
     }
 
+    /**
+     * @deprecated the lock is not polled anymore, the waiters are resumed when the key is unlocked
+     */
+    @Deprecated
     public void setLockWaitHeartBeatSec(long lockWaitHeartBeatSec) {
-        this.lockWaitHeartBeatSec = lockWaitHeartBeatSec;
+        // the lock wait heartbeat is not used anymore
+    }
+
+    public void setNearCacheMaxSize(int maxSize) {
+        nearCacheDefaults.setMaxSize(maxSize);
+    }
+
+    public void setNearCacheTimeToLiveSec(int timeToLiveSec) {
+        nearCacheDefaults.setTimeToLiveSeconds(timeToLiveSec);
+    }
+
+    public void setNearCacheMaxIdleSec(int maxIdleSec) {
+        nearCacheDefaults.setMaxIdleSeconds(maxIdleSec);
+    }
+
+    public void setNearCacheInvalidateOnChange(boolean invalidateOnChange) {
+        nearCacheDefaults.setInvalidateOnChange(invalidateOnChange);
     }
 
     @Override
     public AggregationRepositoryBuilder newRepositoryBuilder(CamelContext camelContext) throws Exception { //NOSONAR
-        return new HazelcastAggregationRepositoryBuilder(hazelcastInstance, camelContext, getWaitForLockSec(), lockWaitHeartBeatSec);
+        return new HazelcastAggregationRepositoryBuilder(hazelcastInstance, camelContext, getWaitForLockSec(),
+                nearCacheDefaults);
     }
 }
@@ -0,0 +1,206 @@
+package ru.yandex.qatools.camelot.hazelcast;
+
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * The cache of the values of the map on the current member for the readonly reads.
+ * The values are invalidated by the events of the map listened without the values, so the cached value
+ * may be outdated until the event arrives. The native near cache of Hazelcast is not used,
+ * because it is not invalidated when the entries are updated by the entry processors.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class HazelcastNearCache<V> {
+
+    private final IMap<String, V> map;
+    private final int maxSize;
+    private final long timeToLiveMs;
+    private final long maxIdleMs;
+    private final Map<String, Cached<V>> entries;
+    private final Map<String, Object> reads = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final String listenerId;
+
+    public HazelcastNearCache(IMap<String, V> map, NearCacheConfig config) {
+        this.map = map;
+        this.maxSize = (config.getMaxSize() > 0) ? config.getMaxSize() : Integer.MAX_VALUE;
+        this.timeToLiveMs = SECONDS.toMillis(config.getTimeToLiveSeconds());
+        this.maxIdleMs = SECONDS.toMillis(config.getMaxIdleSeconds());
+        this.entries = new LinkedHashMap<String, Cached<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached<V>> eldest) {
+                return size() > HazelcastNearCache.this.maxSize;
+            }
+        };
+        this.listenerId = config.isInvalidateOnChange() ? map.addEntryListener(new Invalidator(), false) : null;
+    }
+
+    /**
+     * Returns the value of the key from the cache or reads it from the map
+     */
+    public V get(String key) {
+        final long now = currentTimeMillis();
+        synchronized (entries) {
+            final Cached<V> cached = entries.get(key);
+            if (cached != null && isValid(cached, now)) {
+                cached.readAt = now;
+                hits.incrementAndGet();
+                return cached.value;
+            }
+        }
+        misses.incrementAndGet();
+        final Object read = startRead(key);
+        final V value = map.get(key);
+        cache(read, key, value);
+        return value;
+    }
+
+    /**
+     * Returns the values of the keys from the cache, the missing values are read from the map at once
+     */
+    public Map<String, V> getAll(Collection<String> keys) {
+        final long now = currentTimeMillis();
+        final Map<String, V> result = new HashMap<>(keys.size(), 1);
+        final List<String> missing = new ArrayList<>();
+        synchronized (entries) {
+            for (String key : keys) {
+                final Cached<V> cached = entries.get(key);
+                if (cached != null && isValid(cached, now)) {
+                    cached.readAt = now;
+                    result.put(key, cached.value);
+                } else {
+                    missing.add(key);
+                }
+            }
+        }
+        hits.addAndGet(result.size());
+        misses.addAndGet(missing.size());
+        if (!missing.isEmpty()) {
+            final Map<String, Object> started = new HashMap<>(missing.size(), 1);
+            for (String key : missing) {
+                started.put(key, startRead(key));
+            }
+            final Map<String, V> values = map.getAll(new HashSet<>(missing));
+            for (String key : missing) {
+                final V value = values.get(key);
+                cache(started.get(key), key, value);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the value of the key from the cache
+     */
+    public void invalidate(String key) {
+        reads.remove(key);
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all the values from the cache
+     */
+    public void invalidateAll() {
+        reads.clear();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Stops listening to the changes of the map and clears the cache
+     */
+    public void destroy() {
+        if (listenerId != null) {
+            map.removeEntryListener(listenerId);
+        }
+        invalidateAll();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Marks the start of the read of the key from the map, the mark is removed when the key is invalidated
+     */
+    private Object startRead(String key) {
+        final Object read = new Object();
+        reads.put(key, read);
+        return read;
+    }
+
+    /**
+     * Caches the value read from the map unless the key was invalidated since the read was started,
+     * so the value replaced in the meantime is never cached
+     */
+    private void cache(Object read, String key, V value) {
+        synchronized (entries) {
+            if (reads.remove(key, read)) {
+                entries.put(key, new Cached<>(value, currentTimeMillis()));
+            }
+        }
+    }
+
+    private boolean isValid(Cached<V> cached, long now) {
+        return (timeToLiveMs <= 0 || now - cached.cachedAt < timeToLiveMs)
+                && (maxIdleMs <= 0 || now - cached.readAt < maxIdleMs);
+    }
+
+    private static final class Cached<V> {
+        private final V value;
+        private final long cachedAt;
+        private long readAt;
+
+        private Cached(V value, long cachedAt) {
+            this.value = value;
+            this.cachedAt = cachedAt;
+            this.readAt = cachedAt;
+        }
+    }
+
+    private final class Invalidator extends EntryAdapter<String, V> {
+        @Override
+        public void onEntryEvent(EntryEvent<String, V> event) {
+            invalidate(event.getKey());
+        }
+
+        @Override
+        public void onMapEvent(MapEvent event) {
+            invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.yandex.qatools.camelot.hazelcast;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.PagingPredicate;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Iterates over the entries of the map by the pages ordered by the keys,
+ * so only the single page of the entries is fetched from the cluster at once.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public final class HazelcastPaging {
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private HazelcastPaging() {
+    }
+
+    public static <V> void forEach(IMap<String, V> map, int pageSize, BiConsumer<String, ? super V> action) {
+        final PagingPredicate page = new PagingPredicate(new KeyComparator(), pageSize);
+        Set<Map.Entry<String, V>> entries = map.entrySet(page);
+        while (!entries.isEmpty()) {
+            for (Map.Entry<String, V> entry : entries) {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+            if (entries.size() < pageSize) {
+                return;
+            }
+            page.nextPage();
+            entries = map.entrySet(page);
+        }
+    }
+
+    /**
+     * Orders the entries by their keys. Is sent to the members of the cluster along with the predicate
+     */
+    @SuppressWarnings("rawtypes")
+    static final class KeyComparator implements Comparator<Map.Entry>, Serializable {
+        @Override
+        public int compare(Map.Entry first, Map.Entry second) {
+            return ((String) first.getKey()).compareTo((String) second.getKey());
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package ru.yandex.qatools.camelot.hazelcast;
 
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -18,14 +30,50 @@ public class HazelcastStorage<T> implements Storage<T> {
     private static final Logger LOGGER = LoggerFactory.getLogger(HazelcastStorage.class);
 
     protected final IMap<String, T> map;
+    private final HazelcastNearCache<T> nearCache;
+    private final Set<String> lockedKeys = ConcurrentHashMap.newKeySet();
 
     public HazelcastStorage(HazelcastInstance hazelcastInstance, String repo) {
+        this(hazelcastInstance, repo, null);
+    }
+
+    /**
+     * Creates the storage with the near cache if its configuration is not null.
+     * The values are read bypassing the near cache while the key is locked on the current node.
+     */
+    public HazelcastStorage(HazelcastInstance hazelcastInstance, String repo, NearCacheConfig nearCacheConfig) {
         this.map = hazelcastInstance.getMap(repo);
+        this.nearCache = (nearCacheConfig != null) ? new HazelcastNearCache<>(map, nearCacheConfig) : null;
     }
 
     @Override
     public T get(String key) {
-        return map.get(key);
+        return (nearCache != null && !lockedKeys.contains(key)) ? nearCache.get(key) : map.get(key);
+    }
+
+    /**
+     * Reads the values of the keys by the single call of the map (or of the near cache).
+     * The values of the keys locked on the current node are read bypassing the near cache.
+     */
+    @Override
+    public Map<String, T> getAll(Collection<String> keys) {
+        if (nearCache == null) {
+            return map.getAll(new HashSet<>(keys));
+        }
+        final Set<String> locked = new HashSet<>();
+        final List<String> cached = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (lockedKeys.contains(key)) {
+                locked.add(key);
+            } else {
+                cached.add(key);
+            }
+        }
+        final Map<String, T> result = new HashMap<>(nearCache.getAll(cached));
+        if (!locked.isEmpty()) {
+            result.putAll(map.getAll(locked));
+        }
+        return result;
     }
 
     @Override
@@ -38,15 +86,89 @@ public class HazelcastStorage<T> implements Storage<T> {
         return map.localKeySet();
     }
 
+    /**
+     * Fetches the values from the cluster by the pages, bypassing the near cache
+     */
+    @Override
+    public void forEach(BiConsumer<String, ? super T> action) {
+        HazelcastPaging.forEach(map, HazelcastPaging.DEFAULT_PAGE_SIZE, action);
+    }
+
     @Override
     public void put(String key, T value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
         map.put(key, value);
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        map.delete(key);
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Writes the values by the single call of the map, the keys having the null value are removed
+     */
+    @Override
+    public void putAll(Map<String, T> values) {
+        final Map<String, T> written = new HashMap<>(values.size(), 1);
+        final List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                removed.add(entry.getKey());
+            } else {
+                written.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!removed.isEmpty()) {
+            removeAll(removed);
+        }
+        map.putAll(written);
+        if (nearCache != null) {
+            written.keySet().forEach(nearCache::invalidate);
+        }
+    }
+
+    /**
+     * Sends the removals of all the keys before waiting for any of them
+     */
+    @Override
+    public void removeAll(Collection<String> keys) {
+        final List<Future<T>> removals = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            removals.add(map.removeAsync(key));
+        }
+        try {
+            for (Future<T> removal : removals) {
+                removal.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryFailureException("Interrupted while removing the keys of the storage", e);
+        } catch (ExecutionException e) {
+            throw new RepositoryFailureException("Failed to remove the keys of the storage", e);
+        } finally {
+            if (nearCache != null) {
+                keys.forEach(nearCache::invalidate);
+            }
+        }
     }
 
     @Override
     public boolean lock(String key, long timeout, TimeUnit ofUnit) {
         try {
-            return map.tryLock(key, timeout, ofUnit);
+            if (map.tryLock(key, timeout, ofUnit)) {
+                lockedKeys.add(key);
+                return true;
+            }
         } catch (Exception e) {
             LOGGER.warn(String.format("Failed to lock storage by key %s", key), e);
         }
@@ -56,9 +178,17 @@ public class HazelcastStorage<T> implements Storage<T> {
     @Override
     public void unlock(String key) {
         try {
+            lockedKeys.remove(key);
             map.unlock(key);
         } catch (Exception e) {
             LOGGER.warn(String.format("Failed to lock storage by key %s", key), e);
         }
     }
+
+    /**
+     * Returns the near cache (e.g. to watch its hits and misses) or null if the near cache is not enabled
+     */
+    public HazelcastNearCache<T> getNearCache() {
+        return nearCache;
+    }
 }
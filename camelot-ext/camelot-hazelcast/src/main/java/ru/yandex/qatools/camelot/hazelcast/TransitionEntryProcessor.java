@@ -0,0 +1,171 @@
+package ru.yandex.qatools.camelot.hazelcast;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import ru.yandex.qatools.camelot.common.StateTransition;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import static ru.yandex.qatools.camelot.util.ExceptionUtil.formatStackTrace;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
+
+/**
+ * Applies the event to the state on the member owning the key.
+ * The event is carried as bytes and is deserialized with the classloader of the plugin registered on the owner.
+ * The backup replicas receive the resulting state instead of running the transition again.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class TransitionEntryProcessor implements EntryProcessor<String, DefaultExchangeHolder>,
+        HazelcastInstanceAware {
+
+    private final String repository;
+    private final byte[] message;
+    private transient HazelcastInstance hazelcastInstance;
+    private transient boolean changed;
+    private transient DefaultExchangeHolder newState;
+
+    public TransitionEntryProcessor(String repository, byte[] message) {
+        this.repository = repository;
+        this.message = message;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, DefaultExchangeHolder> entry) {
+        final Object registered = (hazelcastInstance == null) ? null
+                : hazelcastInstance.getUserContext().get(Transition.key(repository));
+        if (!(registered instanceof Transition)) {
+            return Outcome.unsupported();
+        }
+        final Transition transition = (Transition) registered;
+        try {
+            final StateTransition.Result result = transition.transition.transit(
+                    toExchange(transition.camelContext, entry.getValue()),
+                    toExchange(transition.camelContext,
+                            (DefaultExchangeHolder) deserializeFromBytes(message, transition.classLoader))
+            );
+            changed = true;
+            if (result.isCompleted()) {
+                entry.setValue(null);
+                return Outcome.completed(serializeToBytes(DefaultExchangeHolder.marshal(result.getState()),
+                        transition.classLoader));
+            }
+            newState = DefaultExchangeHolder.marshal(result.getState());
+            entry.setValue(newState);
+            return Outcome.updated();
+        } catch (Exception e) {
+            return Outcome.failed(formatStackTrace(e));
+        }
+    }
+
+    @Override
+    public EntryBackupProcessor<String, DefaultExchangeHolder> getBackupProcessor() {
+        return changed ? new BackupProcessor(newState) : null;
+    }
+
+    @Override
+    public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+        this.hazelcastInstance = hazelcastInstance;
+    }
+
+    private static Exchange toExchange(CamelContext camelContext, DefaultExchangeHolder holder) {
+        if (holder == null) {
+            return null;
+        }
+        final Exchange exchange = new DefaultExchange(camelContext);
+        DefaultExchangeHolder.unmarshal(exchange, holder);
+        return exchange;
+    }
+
+    /**
+     * The transition of the plugin registered on the member
+     */
+    static final class Transition {
+        private final CamelContext camelContext;
+        private final ClassLoader classLoader;
+        private final StateTransition transition;
+
+        Transition(CamelContext camelContext, ClassLoader classLoader, StateTransition transition) {
+            this.camelContext = camelContext;
+            this.classLoader = classLoader;
+            this.transition = transition;
+        }
+
+        static String key(String repository) {
+            return "camelot.transition." + repository;
+        }
+    }
+
+    /**
+     * Sets the state computed on the owner to the backup replica
+     */
+    static final class BackupProcessor implements EntryBackupProcessor<String, DefaultExchangeHolder> {
+        private final DefaultExchangeHolder state;
+
+        BackupProcessor(DefaultExchangeHolder state) {
+            this.state = state;
+        }
+
+        @Override
+        public void processBackup(Map.Entry<String, DefaultExchangeHolder> entry) {
+            entry.setValue(state);
+        }
+    }
+
+    /**
+     * The outcome of the transition returned to the caller
+     */
+    static final class Outcome implements Serializable {
+        private final boolean supported;
+        private final boolean completed;
+        private final byte[] output;
+        private final String failure;
+
+        private Outcome(boolean supported, boolean completed, byte[] output, String failure) {
+            this.supported = supported;
+            this.completed = completed;
+            this.output = output;
+            this.failure = failure;
+        }
+
+        static Outcome unsupported() {
+            return new Outcome(false, false, null, null);
+        }
+
+        static Outcome updated() {
+            return new Outcome(true, false, null, null);
+        }
+
+        static Outcome completed(byte[] output) {
+            return new Outcome(true, true, output, null);
+        }
+
+        static Outcome failed(String failure) {
+            return new Outcome(true, false, null, failure);
+        }
+
+        boolean isSupported() {
+            return supported;
+        }
+
+        boolean isCompleted() {
+            return completed;
+        }
+
+        byte[] getOutput() {
+            return output;
+        }
+
+        String getFailure() {
+            return failure;
+        }
+    }
+}
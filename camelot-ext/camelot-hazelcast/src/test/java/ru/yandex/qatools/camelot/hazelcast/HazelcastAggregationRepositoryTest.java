@@ -0,0 +1,289 @@
+package ru.yandex.qatools.camelot.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.spi.OptimisticLockingAggregationRepository.OptimisticLockingException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.common.StateTransition;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class HazelcastAggregationRepositoryTest {
+
+    private static HazelcastInstance member;
+    private static HazelcastInstance other;
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    @BeforeClass
+    public static void startMembers() {
+        final String group = UUID.randomUUID().toString();
+        member = Hazelcast.newHazelcastInstance(config(group));
+        other = Hazelcast.newHazelcastInstance(config(group));
+    }
+
+    @AfterClass
+    public static void stopMembers() {
+        other.shutdown();
+        member.shutdown();
+    }
+
+    @Test
+    public void testTransitionIsAppliedOnOwner() throws Exception {
+        final HazelcastAggregationRepository repo = repository(member, "sum");
+        final HazelcastAggregationRepository otherRepo = repository(other, "sum");
+        repo.registerTransition(camelContext, getClass().getClassLoader(), this::sum);
+        otherRepo.registerTransition(camelContext, getClass().getClassLoader(), this::sum);
+
+        assertThat(repo.transit(camelContext, "key", event(4)).isCompleted(), is(false));
+        assertThat(otherRepo.transit(camelContext, "key", event(5)).isCompleted(), is(false));
+        assertThat(repo.getWithoutLock(camelContext, "key").getIn().getBody(), equalTo((Object) 9));
+
+        final StateTransition.Result completed = otherRepo.transit(camelContext, "key", event(1));
+
+        assertThat(completed.isCompleted(), is(true));
+        assertThat(completed.getState().getIn().getBody(), equalTo((Object) 10));
+        assertThat(repo.getWithoutLock(camelContext, "key"), nullValue());
+    }
+
+    @Test
+    public void testTransitionFallsBackWhenOwnerDoesNotHavePlugin() throws Exception {
+        final HazelcastAggregationRepository repo = repository(member, "partial");
+        repository(other, "partial");
+        repo.registerTransition(camelContext, getClass().getClassLoader(), this::sum);
+        final String local = keyOwnedBy(true);
+        final String remote = keyOwnedBy(false);
+
+        assertThat(repo.transit(camelContext, local, event(1)), notNullValue());
+        assertThat(repo.transit(camelContext, remote, event(1)), nullValue());
+        assertThat(repo.getWithoutLock(camelContext, local).getIn().getBody(), equalTo((Object) 1));
+        assertThat(repo.getWithoutLock(camelContext, remote), nullValue());
+    }
+
+    @Test
+    public void testOptimisticWriteFailsIfStateWasUpdated() throws Exception {
+        final HazelcastAggregationRepository repo = repository(member, "optimistic");
+        final HazelcastAggregationRepository otherRepo = repository(other, "optimistic");
+        repo.add(camelContext, "key", null, event(1));
+        final Exchange state = repo.getWithoutLock(camelContext, "key");
+        otherRepo.add(camelContext, "key", otherRepo.getWithoutLock(camelContext, "key"), event(2));
+
+        try {
+            repo.add(camelContext, "key", state, event(3));
+            fail("Optimistic write of the outdated state must fail");
+        } catch (OptimisticLockingException e) {
+            assertThat(repo.getWithoutLock(camelContext, "key").getIn().getBody(), equalTo((Object) 2));
+        }
+        try {
+            repo.add(camelContext, "key", null, event(4));
+            fail("Optimistic write of the new state must fail if the state exists");
+        } catch (OptimisticLockingException e) {
+            assertThat(repo.getWithoutLock(camelContext, "key").getIn().getBody(), equalTo((Object) 2));
+        }
+        repo.remove(camelContext, "key", repo.getWithoutLock(camelContext, "key"));
+        assertThat(repo.getWithoutLock(camelContext, "key"), nullValue());
+    }
+
+    @Test
+    public void testNearCacheIsUsedForReadonlyReadsOnly() throws Exception {
+        final HazelcastAggregationRepository otherRepo = repository(other, "cached");
+        final String key = keyOwnedBy(false);
+        otherRepo.add(camelContext, key, null, event(1));
+        final HazelcastAggregationRepository repo = repository(member, "cached", new NearCacheConfig());
+
+        assertThat(repo.getCached(camelContext, key).getIn().getBody(), equalTo((Object) 1));
+        assertThat(repo.getCached(camelContext, key).getIn().getBody(), equalTo((Object) 1));
+        assertThat(repo.getNearCache().getHits(), is(1L));
+        assertThat(repo.getNearCache().getMisses(), is(1L));
+
+        otherRepo.add(camelContext, key, otherRepo.getWithoutLock(camelContext, key), event(2));
+
+        assertThat(repo.getWithoutLock(camelContext, key).getIn().getBody(), equalTo((Object) 2));
+        final long started = currentTimeMillis();
+        while (!Objects.equals(repo.getCached(camelContext, key).getIn().getBody(), 2)
+                && currentTimeMillis() - started < 5000) {
+            Thread.sleep(10);
+        }
+        assertThat(repo.getCached(camelContext, key).getIn().getBody(), equalTo((Object) 2));
+        assertThat(repo.valuesCached(camelContext).get(key).getIn().getBody(), equalTo((Object) 2));
+        assertThat(otherRepo.getNearCache(), nullValue());
+    }
+
+    @Test
+    public void testLockWaiterIsResumedWhenKeyIsUnlocked() throws Exception {
+        final HazelcastAggregationRepository repo = repository(member, "locked");
+        repo.setWaitForLockSec(10);
+        final IMap<String, Object> map = other.getMap("locked");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final Thread holder = new Thread(() -> {
+            map.lock("key");
+            locked.countDown();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                map.unlock("key");
+            }
+        });
+        holder.start();
+        locked.await();
+
+        final long started = currentTimeMillis();
+        repo.get(camelContext, "key");
+        final long waited = currentTimeMillis() - started;
+        repo.unlock("key");
+        holder.join();
+
+        assertThat(waited, lessThan(5000L));
+        assertThat(repo.getLockWaits().getCount(), is(1L));
+        assertThat(repo.getLockWaits().getTimeouts(), is(0L));
+        assertThat(repo.getLockWaits().getMaxMs(), greaterThanOrEqualTo(400L));
+        assertThat(map.isLocked("key"), is(false));
+    }
+
+    @Test
+    public void testStorageBulkOperations() throws Exception {
+        final HazelcastStorage<Integer> storage = new HazelcastStorage<>(member, "bulk", new NearCacheConfig());
+        final HazelcastStorage<Integer> otherStorage = new HazelcastStorage<>(other, "bulk");
+        final Map<String, Integer> values = new HashMap<>();
+        values.put("key1", 1);
+        values.put("key2", 2);
+        values.put("key3", 3);
+        otherStorage.putAll(values);
+
+        assertThat(storage.getAll(Arrays.asList("key1", "key2", "key4")).keySet(), containsInAnyOrder("key1", "key2"));
+        assertThat(storage.lock("key1", 1, SECONDS), is(true));
+        storage.putAll(Collections.singletonMap("key1", 10));
+        assertThat(storage.getAll(Arrays.asList("key1", "key3")).get("key1"), is(10));
+        storage.unlock("key1");
+
+        otherStorage.removeAll(Arrays.asList("key1", "key2"));
+
+        assertThat(otherStorage.keys(), containsInAnyOrder("key3"));
+        assertThat(otherStorage.valuesMap().get("key3"), is(3));
+    }
+
+    @Test
+    public void testStorageNullValuesRemoveKeys() throws Exception {
+        final HazelcastStorage<Integer> storage = new HazelcastStorage<>(member, "nulls", new NearCacheConfig());
+        final HazelcastStorage<Integer> otherStorage = new HazelcastStorage<>(other, "nulls");
+        final Map<String, Integer> values = new HashMap<>();
+        values.put("key1", 1);
+        values.put("key2", 2);
+        values.put("key3", 3);
+        otherStorage.putAll(values);
+        assertThat(storage.get("key1"), is(1));
+        values.clear();
+        values.put("key1", null);
+        values.put("key4", 4);
+
+        storage.putAll(values);
+        storage.put("key2", null);
+        otherStorage.remove("key3");
+
+        assertThat(otherStorage.keys(), containsInAnyOrder("key4"));
+        assertThat(storage.get("key1"), nullValue());
+    }
+
+    @Test
+    public void testIterationFetchesStatesByPages() throws Exception {
+        final HazelcastAggregationRepository repo = repository(member, "paged");
+        final HazelcastStorage<Integer> storage = new HazelcastStorage<>(other, "paged-storage");
+        repo.setIterationPageSize(2);
+        for (int i = 0; i < 5; i++) {
+            repo.add(camelContext, "key" + i, null, event(i));
+            storage.put("key" + i, i);
+        }
+        final Map<String, Object> states = new HashMap<>();
+        final Map<String, Integer> values = new HashMap<>();
+
+        repo.forEach(camelContext, (key, state) -> states.put(key, state.getIn().getBody()));
+        storage.forEach(values::put);
+
+        assertThat(states.keySet(), containsInAnyOrder("key0", "key1", "key2", "key3", "key4"));
+        assertThat(states.get("key3"), equalTo((Object) 3));
+        assertThat(values.keySet(), containsInAnyOrder("key0", "key1", "key2", "key3", "key4"));
+        assertThat(values.get("key4"), is(4));
+    }
+
+    private StateTransition.Result sum(Exchange state, Exchange message) {
+        final int sum = ((state == null) ? 0 : state.getIn().getBody(Integer.class))
+                + message.getIn().getBody(Integer.class);
+        message.getIn().setBody(sum);
+        return new StateTransition.Result(message, sum >= 10);
+    }
+
+    private Exchange event(int value) {
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(value);
+        return exchange;
+    }
+
+    private String keyOwnedBy(boolean member) {
+        for (int i = 0; ; i++) {
+            final String key = "key" + i;
+            if (HazelcastAggregationRepositoryTest.member.getPartitionService()
+                    .getPartition(key).getOwner().localMember() == member) {
+                return key;
+            }
+        }
+    }
+
+    private static HazelcastAggregationRepository repository(HazelcastInstance instance, String name)
+            throws Exception {
+        return repository(instance, name, null);
+    }
+
+    private static HazelcastAggregationRepository repository(HazelcastInstance instance, String name,
+                                                             NearCacheConfig nearCache) throws Exception {
+        final HazelcastAggregationRepository repo = new HazelcastAggregationRepository();
+        repo.setRepository(name);
+        repo.setHazelcastInstance(instance);
+        repo.setWaitForLockSec(1);
+        repo.setNearCache(nearCache);
+        repo.doStart();
+        return repo;
+    }
+
+    private static Config config(String group) {
+        final Config config = new Config();
+        config.getGroupConfig().setName(group);
+        config.setProperty("hazelcast.logging.type", "slf4j");
+        config.getNetworkConfig().setPort(15901).setPortAutoIncrement(true);
+        final JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}
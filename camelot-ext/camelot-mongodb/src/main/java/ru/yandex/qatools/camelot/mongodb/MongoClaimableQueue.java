@@ -0,0 +1,237 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.orderBy;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static java.lang.Math.abs;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.String.format;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The queue of the messages shared by the competing consumers of all the nodes.
+ * The consumer claims the batch of the messages by the lease: the claimed messages are not visible to the other
+ * consumers until the lease expires, so the messages of the failed consumer are delivered again.
+ * The processed messages are removed by the consumer (i.e. the messages are delivered at least once).
+ * If the partitions are set the messages are assigned to the partitions by the hash of their routing key and
+ * each partition is claimed by the single consumer at a time, so the messages with the same key are processed
+ * in the order of their addition: the later messages of the partition are not claimed while the earlier one
+ * is claimed (e.g. failed to be processed) until its lease expires.
+ *
+ * @author Ilya Sadykov
+ */
+public class MongoClaimableQueue {
+    public static final String PARTITIONS_SUFFIX = "_partitions";
+    private static final Logger LOGGER = getLogger(MongoClaimableQueue.class);
+    private static final String ID_FIELD = "_id";
+    private static final String MESSAGE_FIELD = "message";
+    private static final String PARTITION_FIELD = "partition";
+    private static final String LEASE_UNTIL_FIELD = "leaseUntil";
+    private static final String LEASE_TOKEN_FIELD = "leaseToken";
+    private static final String ATTEMPTS_FIELD = "attempts";
+    private static final String OWNER_FIELD = "owner";
+
+    private final MongoCollection<Document> messages;
+    private final MongoCollection<Document> partitionLeases;
+    private final MongoSerializer serializer;
+    private final String name;
+    private final long leaseMs;
+    private final int partitions;
+
+    public MongoClaimableQueue(MongoClient mongoClient, String dbName, String colName, MongoSerializer serializer,
+                               long leaseMs, int partitions) {
+        final MongoDatabase database = mongoClient.getDatabase(dbName);
+        this.messages = database.getCollection(colName);
+        this.partitionLeases = database.getCollection(colName + PARTITIONS_SUFFIX);
+        this.serializer = serializer;
+        this.name = colName;
+        this.leaseMs = leaseMs;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Creates the indexes of the messages and the leases of the partitions.
+     * The messages are claimed by the partition in the order of their ids, so the index serves the sort
+     * and the expired leases are filtered while scanning it
+     */
+    public void init() {
+        messages.createIndex(ascending(PARTITION_FIELD, ID_FIELD));
+        messages.createIndex(ascending(LEASE_TOKEN_FIELD));
+        for (int partition = 0; partition < partitions; partition++) {
+            try {
+                partitionLeases.insertOne(new Document(ID_FIELD, partition).append(LEASE_UNTIL_FIELD, 0L));
+            } catch (DuplicateKeyException | MongoWriteException e) { //NOSONAR
+                LOGGER.trace("[{}] Partition {} already exists", name, partition);
+            }
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Adds the message routed by the key (the message is not bound to any partition if the key is null)
+     */
+    public void add(MongoQueueMessage message, String routingKey) {
+        messages.insertOne(new Document(MESSAGE_FIELD, serializer.toDBObject(message))
+                .append(PARTITION_FIELD, partition(routingKey))
+                .append(LEASE_UNTIL_FIELD, 0L)
+                .append(ATTEMPTS_FIELD, 0));
+    }
+
+    /**
+     * Claims the batch of the oldest available messages of the partition (the messages without the routing key
+     * if the partition is null). The partition is ignored if the queue is not partitioned.
+     * The messages of the partition are claimed only up to the first one which is still claimed, so the messages
+     * of the same key are never processed ahead of the earlier ones.
+     * The batch is claimed by the single update, so the concurrent claims never return the same message
+     */
+    public List<Claimed> claim(Integer partition, int batchSize) {
+        final long now = currentTimeMillis();
+        final Integer claimed = (partitions > 0) ? partition : null;
+        final List<Object> ids = (claimed != null)
+                ? availableInOrder(claimed, batchSize, now)
+                : available(batchSize, now);
+        final List<Claimed> result = new ArrayList<>(ids.size());
+        if (ids.isEmpty()) {
+            return result;
+        }
+        final String token = UUID.randomUUID().toString();
+        messages.updateMany(and(in(ID_FIELD, ids), lt(LEASE_UNTIL_FIELD, now)), combine(
+                set(LEASE_UNTIL_FIELD, now + leaseMs), set(LEASE_TOKEN_FIELD, token), inc(ATTEMPTS_FIELD, 1)));
+        for (Document document : messages.find(eq(LEASE_TOKEN_FIELD, token)).sort(orderBy(ascending(ID_FIELD)))) {
+            result.add(new Claimed(document.getObjectId(ID_FIELD), document.getInteger(ATTEMPTS_FIELD, 1),
+                    read(document)));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the processed messages
+     */
+    public void ack(Collection<ObjectId> ids) {
+        if (!ids.isEmpty()) {
+            messages.deleteMany(in(ID_FIELD, ids));
+        }
+    }
+
+    /**
+     * Claims the partition which has been free for the longest time.
+     * Returns null if all the partitions are claimed by the other consumers
+     */
+    public Integer claimPartition(String owner) {
+        final long now = currentTimeMillis();
+        final Document claimed = partitionLeases.findOneAndUpdate(lt(LEASE_UNTIL_FIELD, now),
+                combine(set(OWNER_FIELD, owner), set(LEASE_UNTIL_FIELD, now + leaseMs)),
+                new FindOneAndUpdateOptions().sort(orderBy(ascending(LEASE_UNTIL_FIELD))));
+        return (claimed != null) ? claimed.getInteger(ID_FIELD) : null;
+    }
+
+    /**
+     * Prolongs the lease of the partition. Returns false if the partition is not owned by the consumer anymore
+     */
+    public boolean renewPartition(int partition, String owner) {
+        return partitionLeases.updateOne(and(eq(ID_FIELD, partition), eq(OWNER_FIELD, owner)),
+                set(LEASE_UNTIL_FIELD, currentTimeMillis() + leaseMs)).getMatchedCount() > 0;
+    }
+
+    /**
+     * Releases the partition, the released partition is claimed after the ones which have been free for longer
+     */
+    public void releasePartition(int partition, String owner) {
+        partitionLeases.updateOne(and(eq(ID_FIELD, partition), eq(OWNER_FIELD, owner)),
+                set(LEASE_UNTIL_FIELD, currentTimeMillis()));
+    }
+
+    /**
+     * Returns the oldest messages without the partition which are not claimed
+     */
+    private List<Object> available(int batchSize, long now) {
+        final List<Object> ids = new ArrayList<>(batchSize);
+        for (Document document : messages.find(and(eq(PARTITION_FIELD, null), lt(LEASE_UNTIL_FIELD, now)))
+                .projection(include(ID_FIELD)).sort(orderBy(ascending(ID_FIELD))).limit(batchSize)) {
+            ids.add(document.get(ID_FIELD));
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the oldest messages of the partition up to the first one which is still claimed
+     */
+    private List<Object> availableInOrder(int partition, int batchSize, long now) {
+        final List<Object> ids = new ArrayList<>(batchSize);
+        for (Document document : messages.find(eq(PARTITION_FIELD, partition))
+                .projection(include(ID_FIELD, LEASE_UNTIL_FIELD)).sort(orderBy(ascending(ID_FIELD)))
+                .limit(batchSize)) {
+            final Number leaseUntil = (Number) document.get(LEASE_UNTIL_FIELD);
+            if (leaseUntil != null && leaseUntil.longValue() >= now) {
+                break;
+            }
+            ids.add(document.get(ID_FIELD));
+        }
+        return ids;
+    }
+
+    private Integer partition(String routingKey) {
+        return (partitions > 0 && routingKey != null) ? abs(routingKey.hashCode() % partitions) : null;
+    }
+
+    private MongoQueueMessage read(Document document) {
+        try {
+            return serializer.fromDBObject((Document) document.get(MESSAGE_FIELD), MongoQueueMessage.class);
+        } catch (Exception e) {
+            throw new IllegalStateException(format("Failed to read the message %s of the queue %s",
+                    document.get(ID_FIELD), name), e);
+        }
+    }
+
+    /**
+     * The message claimed by the consumer
+     */
+    public static final class Claimed {
+        private final ObjectId id;
+        private final int attempts;
+        private final MongoQueueMessage message;
+
+        Claimed(ObjectId id, int attempts, MongoQueueMessage message) {
+            this.id = id;
+            this.attempts = attempts;
+            this.message = message;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public MongoQueueMessage getMessage() {
+            return message;
+        }
+    }
+}
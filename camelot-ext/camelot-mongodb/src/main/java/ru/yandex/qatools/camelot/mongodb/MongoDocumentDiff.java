@@ -0,0 +1,136 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Computes the update of the stored document turning it into the new one.
+ * The changed fields of the nested documents are set one by one ({@code $set}),
+ * the changed integer counters are incremented ({@code $inc}) and the removed fields are unset ({@code $unset}).
+ * The fields of the stored document absent on the top level of the new one are left intact.
+ *
+ * @author Ilya Sadykov
+ */
+public final class MongoDocumentDiff {
+    private static final String SET = "$set";
+    private static final String INC = "$inc";
+    private static final String UNSET = "$unset";
+
+    private MongoDocumentDiff() {
+    }
+
+    /**
+     * Returns the update of the stored document or the empty document if nothing has changed
+     */
+    public static Document update(Document stored, Document document) {
+        final Document update = new Document();
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            diff(update, entry.getKey(), stored.containsKey(entry.getKey()), stored.get(entry.getKey()),
+                    entry.getValue());
+        }
+        return update;
+    }
+
+    /**
+     * Converts the serialized object (e.g. {@link com.mongodb.BasicDBObject}) into the document,
+     * the nested maps become the documents too, so they are compared with the documents read from the database
+     */
+    @SuppressWarnings("unchecked")
+    public static Document toDocument(Map<String, ?> fields) {
+        final Document result = new Document();
+        for (Map.Entry<String, ?> entry : fields.entrySet()) {
+            result.put(entry.getKey(), toValue(entry.getValue()));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object toValue(Object value) {
+        if (value instanceof Map) {
+            return toDocument((Map<String, ?>) value);
+        }
+        if (value instanceof List) {
+            final List<Object> result = new ArrayList<>(((List) value).size());
+            for (Object item : (List<Object>) value) {
+                result.add(toValue(item));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void diff(Document update, String path, boolean existed, Object before, Object after) {
+        if (existed && before instanceof Map && after instanceof Map) {
+            final Map<String, Object> beforeFields = (Map<String, Object>) before;
+            final Map<String, Object> afterFields = (Map<String, Object>) after;
+            for (Map.Entry<String, Object> entry : afterFields.entrySet()) {
+                diff(update, path + "." + entry.getKey(), beforeFields.containsKey(entry.getKey()),
+                        beforeFields.get(entry.getKey()), entry.getValue());
+            }
+            for (String key : beforeFields.keySet()) {
+                if (!afterFields.containsKey(key)) {
+                    operator(update, UNSET).put(path + "." + key, "");
+                }
+            }
+        } else if (existed && isCounter(before, after)) {
+            increment(update, path, before, after);
+        } else if (!existed || !isSame(before, after)) {
+            operator(update, SET).put(path, after);
+        }
+    }
+
+    /**
+     * Compares the values, the binary values read from the database are compared with the new byte arrays
+     */
+    private static boolean isSame(Object before, Object after) {
+        final byte[] beforeBytes = bytes(before);
+        final byte[] afterBytes = bytes(after);
+        if (beforeBytes != null || afterBytes != null) {
+            return Arrays.equals(beforeBytes, afterBytes);
+        }
+        return Objects.equals(before, after);
+    }
+
+    private static byte[] bytes(Object value) {
+        if (value instanceof Binary) {
+            return ((Binary) value).getData();
+        }
+        return (value instanceof byte[]) ? (byte[]) value : null;
+    }
+
+    private static boolean isCounter(Object before, Object after) {
+        return before != null && after != null && before.getClass().equals(after.getClass())
+                && (before instanceof Integer || before instanceof Long);
+    }
+
+    private static void increment(Document update, String path, Object before, Object after) {
+        if (before.equals(after)) {
+            return;
+        }
+        try {
+            if (after instanceof Integer) {
+                operator(update, INC).put(path, Math.subtractExact((Integer) after, (Integer) before));
+            } else {
+                operator(update, INC).put(path, Math.subtractExact((Long) after, (Long) before));
+            }
+        } catch (ArithmeticException e) { //NOSONAR
+            operator(update, SET).put(path, after);
+        }
+    }
+
+    private static Document operator(Document update, String name) {
+        Document fields = (Document) update.get(name);
+        if (fields == null) {
+            fields = new Document();
+            update.put(name, fields);
+        }
+        return fields;
+    }
+}
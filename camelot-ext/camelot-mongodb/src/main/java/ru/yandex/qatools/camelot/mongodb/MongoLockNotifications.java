@@ -0,0 +1,257 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.common.LockWaitHistogram;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static com.mongodb.client.model.Filters.gt;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The notifications about the released MongoDB locks.
+ * Each release is published to the capped collection which is tailed by every node, so the waiters of the lock
+ * are woken up by the release instead of polling the lock. The waiters still try the lock once per
+ * the fallback interval in case the notification is lost (e.g. the lock has expired or the node has died).
+ * The releases made by the current node wake up its waiters without the round trip to the database.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class MongoLockNotifications implements Closeable {
+    public static final String COLLECTION = "camelot_locks_released";
+    private static final Logger LOGGER = getLogger(MongoLockNotifications.class);
+    private static final String ID_FIELD = "_id";
+    private static final String LOCK_FIELD = "lock";
+    private static final String NODE_FIELD = "node";
+
+    private final MongoClient mongoClient;
+    private final String dbName;
+    private final boolean enabled;
+    private final long cappedSizeBytes;
+    private final long fallbackPollMs;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    private final LockWaitHistogram lockWaits = new LockWaitHistogram();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong notifiedWakeups = new AtomicLong();
+    private final AtomicLong fallbackWakeups = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private MongoCollection<Document> collection;
+    private Thread tailer;
+    private volatile boolean closed = false;
+
+    public MongoLockNotifications(MongoClient mongoClient, String dbName, boolean enabled,
+                                  long cappedSizeBytes, long fallbackPollMs) {
+        if (fallbackPollMs <= 0) {
+            throw new IllegalArgumentException(
+                    "The fallback poll interval must be positive to bound the waits for the lost notifications");
+        }
+        this.mongoClient = mongoClient;
+        this.dbName = dbName;
+        this.enabled = enabled;
+        this.cappedSizeBytes = cappedSizeBytes;
+        this.fallbackPollMs = fallbackPollMs;
+    }
+
+    /**
+     * Creates the capped collection of the releases if necessary and starts tailing it
+     */
+    public synchronized void start() {
+        if (!enabled || tailer != null) {
+            return;
+        }
+        final MongoDatabase database = mongoClient.getDatabase(dbName);
+        try {
+            database.createCollection(COLLECTION, new CreateCollectionOptions().capped(true).sizeInBytes(cappedSizeBytes));
+        } catch (MongoCommandException e) {
+            LOGGER.debug("Collection '{}' already exists: {}", COLLECTION, e.toString());
+        }
+        collection = database.getCollection(COLLECTION);
+        tailer = new Thread(this::tail, "camelot-mongodb-lock-notifications");
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (tailer != null) {
+            tailer.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Tries to acquire the lock by the given attempt until it succeeds or the timeout elapses.
+     * The attempt is repeated when the lock is released or once per the fallback interval.
+     * Returns false if the lock was not acquired within the timeout.
+     */
+    public boolean tryLock(String lockName, long timeoutMs, BooleanSupplier attempt) throws InterruptedException {
+        final long started = currentTimeMillis();
+        final long deadline = started + timeoutMs;
+        boolean locked = false;
+        try {
+            while (true) {
+                final Waiters subscribed = subscribe(lockName);
+                try {
+                    attempts.incrementAndGet();
+                    if (attempt.getAsBoolean()) {
+                        locked = true;
+                        return true;
+                    }
+                    final long remaining = deadline - currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    if (subscribed.released.await(min(remaining, fallbackPollMs), MILLISECONDS)) {
+                        notifiedWakeups.incrementAndGet();
+                    } else {
+                        fallbackWakeups.incrementAndGet();
+                    }
+                } finally {
+                    unsubscribe(lockName, subscribed);
+                }
+            }
+        } finally {
+            lockWaits.record(currentTimeMillis() - started, locked);
+        }
+    }
+
+    /**
+     * Notifies the waiters of all the nodes that the lock is released
+     */
+    public void released(String lockName) {
+        wakeUp(lockName);
+        if (collection == null) {
+            return;
+        }
+        try {
+            collection.insertOne(new Document(LOCK_FIELD, lockName).append(NODE_FIELD, nodeId));
+            published.incrementAndGet();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to publish the release of the lock '{}': {}", lockName, e.toString());
+        }
+    }
+
+    public LockWaitHistogram getLockWaits() {
+        return lockWaits;
+    }
+
+    /**
+     * Returns the number of the lock attempts (i.e. the lock queries to the database)
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getNotifiedWakeups() {
+        return notifiedWakeups.get();
+    }
+
+    public long getFallbackWakeups() {
+        return fallbackWakeups.get();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    private Waiters subscribe(String lockName) {
+        return waiters.compute(lockName, (name, current) -> {
+            final Waiters result = (current != null) ? current : new Waiters();
+            result.refs++;
+            return result;
+        });
+    }
+
+    private void unsubscribe(String lockName, Waiters subscribed) {
+        waiters.computeIfPresent(lockName, (name, current) ->
+                (current == subscribed && --current.refs == 0) ? null : current);
+    }
+
+    private void wakeUp(String lockName) {
+        final Waiters released = waiters.remove(lockName);
+        if (released != null) {
+            released.released.countDown();
+        }
+    }
+
+    /**
+     * Reads the releases published after the start, the cursor awaits the new documents on the server side
+     */
+    private void tail() {
+        ObjectId last = lastId();
+        while (!closed) {
+            try (MongoCursor<Document> cursor = collection
+                    .find(last != null ? gt(ID_FIELD, last) : new Document())
+                    .cursorType(CursorType.TailableAwait).noCursorTimeout(true).iterator()) {
+                while (!closed && cursor.hasNext()) {
+                    final Document document = cursor.next();
+                    last = document.getObjectId(ID_FIELD);
+                    received.incrementAndGet();
+                    if (!nodeId.equals(document.getString(NODE_FIELD))) {
+                        wakeUp(document.getString(LOCK_FIELD));
+                    }
+                }
+            } catch (Exception e) {
+                if (!closed) {
+                    LOGGER.warn("Failed to read the lock releases: {}", e.toString());
+                }
+            }
+            pause();
+        }
+    }
+
+    private ObjectId lastId() {
+        try {
+            final Document latest = collection.find().sort(new Document("$natural", -1)).first();
+            return (latest != null) ? latest.getObjectId(ID_FIELD) : null;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read the last lock release: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * The tailable cursor over the empty collection is closed at once, so the tailer waits before reopening it
+     */
+    private void pause() {
+        try {
+            Thread.sleep(fallbackPollMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    private static final class Waiters {
+        private final CountDownLatch released = new CountDownLatch(1);
+        private int refs;
+    }
+}
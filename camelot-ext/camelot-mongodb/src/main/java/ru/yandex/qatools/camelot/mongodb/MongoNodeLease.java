@@ -0,0 +1,112 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.slf4j.Logger;
+
+import java.util.UUID;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The lease of the resource which must be used by the single node at a time (e.g. the write-behind of the plugin).
+ * The holder prolongs the lease while it is alive, so the lease of the failed node is taken over once it expires.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class MongoNodeLease {
+    public static final String COLLECTION = "camelot_node_leases";
+    private static final Logger LOGGER = getLogger(MongoNodeLease.class);
+    private static final String ID_FIELD = "_id";
+    private static final String NODE_FIELD = "node";
+    private static final String LEASE_UNTIL_FIELD = "leaseUntil";
+    private static final long ACQUIRE_POLL_MS = 1000;
+
+    private final MongoCollection<Document> leases;
+    private final String name;
+    private final long leaseMs;
+    private final String nodeId = getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+
+    public MongoNodeLease(MongoCollection<Document> leases, String name, long leaseMs) {
+        this.leases = leases;
+        this.name = name;
+        this.leaseMs = leaseMs;
+    }
+
+    /**
+     * Tries to acquire the lease until the timeout elapses.
+     * Returns false if the lease is still held by another node
+     */
+    public boolean acquire(long timeoutMs) throws InterruptedException {
+        final long deadline = currentTimeMillis() + timeoutMs;
+        while (!tryAcquire()) {
+            final long remaining = deadline - currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(min(remaining, ACQUIRE_POLL_MS));
+        }
+        return true;
+    }
+
+    /**
+     * Acquires the lease if it is free, expired or already held by the current node
+     */
+    public boolean tryAcquire() {
+        final long now = currentTimeMillis();
+        try {
+            final UpdateResult result = leases.updateOne(
+                    and(eq(ID_FIELD, name), or(eq(NODE_FIELD, nodeId), lt(LEASE_UNTIL_FIELD, now))),
+                    combine(set(NODE_FIELD, nodeId), set(LEASE_UNTIL_FIELD, now + leaseMs)),
+                    new UpdateOptions().upsert(true));
+            return result.getMatchedCount() > 0 || result.getUpsertedId() != null;
+        } catch (DuplicateKeyException | MongoWriteException e) { //NOSONAR
+            LOGGER.trace("The lease '{}' is held by another node", name);
+            return false;
+        }
+    }
+
+    /**
+     * Prolongs the lease. Returns false if the lease is not held by the current node anymore
+     */
+    public boolean renew() {
+        return leases.updateOne(and(eq(ID_FIELD, name), eq(NODE_FIELD, nodeId)),
+                set(LEASE_UNTIL_FIELD, currentTimeMillis() + leaseMs)).getMatchedCount() > 0;
+    }
+
+    /**
+     * Releases the lease, so another node acquires it without waiting for its expiry
+     */
+    public void release() {
+        leases.updateOne(and(eq(ID_FIELD, name), eq(NODE_FIELD, nodeId)), set(LEASE_UNTIL_FIELD, 0L));
+    }
+
+    /**
+     * Returns the node holding the lease or null if the lease has never been acquired
+     */
+    public String getHolder() {
+        final Document lease = leases.find(eq(ID_FIELD, name)).first();
+        return (lease != null) ? lease.getString(NODE_FIELD) : null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+}
@@ -0,0 +1,166 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The pool of the consumers competing for the messages of the {@link MongoClaimableQueue}.
+ * Each consumer claims the batches of the messages and removes them once they are handled; the messages
+ * failed to be handled are delivered again after their lease expires.
+ * If the queue is partitioned the consumer handles the partition it has claimed until the partition is empty,
+ * then releases it and handles the messages without the routing key before claiming the next partition.
+ *
+ * @author Ilya Sadykov
+ */
+public class MongoQueueConsumers implements Closeable {
+    private static final Logger LOGGER = getLogger(MongoQueueConsumers.class);
+
+    private final MongoClaimableQueue queue;
+    private final String name;
+    private final int consumers;
+    private final int claimBatchSize;
+    private final long minPollIntervalMs;
+    private final Consumer<MongoQueueMessage> handler;
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong claims = new AtomicLong();
+    private ExecutorService pool;
+    private volatile boolean closed = false;
+
+    public MongoQueueConsumers(MongoClaimableQueue queue, String name, int consumers, int claimBatchSize,
+                               long minPollIntervalMs, Consumer<MongoQueueMessage> handler) {
+        this.queue = queue;
+        this.name = name;
+        this.consumers = consumers;
+        this.claimBatchSize = claimBatchSize;
+        this.minPollIntervalMs = minPollIntervalMs;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the consumers
+     */
+    public synchronized void start() {
+        if (pool != null) {
+            return;
+        }
+        final AtomicInteger index = new AtomicInteger();
+        pool = newFixedThreadPool(consumers, task -> {
+            final Thread thread = new Thread(task,
+                    "camelot-mongodb-consumer-" + name + "-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumers; i++) {
+            pool.submit(this::consume);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(30, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getClaimsCount() {
+        return claims.get();
+    }
+
+    private void consume() {
+        final String owner = name + "-" + UUID.randomUUID();
+        Integer partition = null;
+        while (!closed) {
+            try {
+                if (queue.getPartitions() > 0) {
+                    if (partition != null && !queue.renewPartition(partition, owner)) {
+                        partition = null;
+                    }
+                    if (partition == null) {
+                        partition = queue.claimPartition(owner);
+                    }
+                }
+                int count = (partition != null) ? handle(queue.claim(partition, claimBatchSize)) : 0;
+                if (count == 0 && partition != null) {
+                    queue.releasePartition(partition, owner);
+                    partition = null;
+                }
+                if (count == 0) {
+                    count = handle(queue.claim(null, claimBatchSize));
+                }
+                if (count == 0) {
+                    Thread.sleep(minPollIntervalMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("[{}] Failed to consume the messages", name, e);
+                pause();
+            }
+        }
+        if (partition != null) {
+            queue.releasePartition(partition, owner);
+        }
+    }
+
+    /**
+     * Handles the claimed batch and removes the handled messages, returns the size of the batch
+     */
+    private int handle(List<MongoClaimableQueue.Claimed> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        claims.incrementAndGet();
+        final List<ObjectId> done = new ArrayList<>(batch.size());
+        for (MongoClaimableQueue.Claimed claimed : batch) {
+            try {
+                handler.accept(claimed.getMessage());
+                done.add(claimed.getId());
+                handled.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOGGER.warn("[{}] Failed to handle the message {} (attempt {}), it will be delivered again",
+                        name, claimed.getId(), claimed.getAttempts(), e);
+            }
+        }
+        queue.ack(done);
+        return batch.size();
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(minPollIntervalMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+}
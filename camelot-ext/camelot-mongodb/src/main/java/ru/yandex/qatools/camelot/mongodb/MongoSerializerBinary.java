@@ -37,14 +37,16 @@ public class MongoSerializerBinary implements MongoSerializer {
     }
 
     /**
-     * Deserialize the input bytes into object
+     * Deserialize the input bytes into object (the bytes are the binary if the document is read from the database)
      */
     @Override
     @SuppressWarnings("unchecked")
     public <T> T fromDBObject(Document input, Class<T> expected)
             throws Exception { //NOSONAR
         final Object value = input.get(OBJECT_FIELD);
-        return (T) ((value != null && value instanceof Binary) ?
-                serializer.deserialize(((Binary) value).getData(), classLoader) : null);
+        if (value instanceof Binary) {
+            return (T) serializer.deserialize(((Binary) value).getData(), classLoader);
+        }
+        return (T) ((value instanceof byte[]) ? serializer.deserialize(value, classLoader) : null);
     }
 }
@@ -0,0 +1,228 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectMapper.DefaultTypeResolverBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper.DefaultTyping;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.mongodb.BasicDBObject;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.qatools.camelot.common.MessagesSerializer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the state of the aggregator as the native BSON document under the {@value #STATE_FIELD} field,
+ * so the state is queryable within MongoDB and can be updated partially (see {@link MongoDocumentDiff}).
+ * The rest of the exchange (headers and properties) is kept as the binary object.
+ * The state is mapped by its fields. Each state is mapped back and compared with the original one including
+ * the runtime types of the values, so the states which cannot be restored exactly (e.g. having the fields
+ * declared as {@link Object}, the interfaces or the base classes) are kept as the binary objects
+ * as well as all the objects except the states (e.g. the queue messages).
+ *
+ * @author Ilya Sadykov
+ */
+public class MongoSerializerDocument extends MongoSerializerBinary {
+    public static final String STATE_FIELD = "state";
+    public static final String STATE_CLASS_FIELD = "stateClass";
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoSerializerDocument.class);
+    private static final TypeReference<Map<String, Object>> FIELDS = new TypeReference<Map<String, Object>>() {
+    };
+    private static final CamelContext CAMEL_CONTEXT = new DefaultCamelContext();
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, Visibility.ANY)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+    private static final ObjectMapper TYPED_MAPPER = MAPPER.copy().setDefaultTyping(new ValueTypes()
+            .init(JsonTypeInfo.Id.CLASS, null).inclusion(JsonTypeInfo.As.PROPERTY));
+    private final Map<Class<?>, Boolean> mappable = new ConcurrentHashMap<>();
+
+    public MongoSerializerDocument(MessagesSerializer serializer, ClassLoader classLoader) {
+        super(serializer, classLoader);
+    }
+
+    @Override
+    public BasicDBObject toDBObject(Object object) {
+        if (object instanceof DefaultExchangeHolder) {
+            final BasicDBObject document = toStateDocument((DefaultExchangeHolder) object);
+            if (document != null) {
+                return document;
+            }
+        }
+        final BasicDBObject result = super.toDBObject(object);
+        result.put(STATE_FIELD, null);
+        result.put(STATE_CLASS_FIELD, null);
+        return result;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T fromDBObject(Document input, Class<T> expected) throws Exception { //NOSONAR
+        final String stateClass = input.getString(STATE_CLASS_FIELD);
+        if (stateClass == null) {
+            return super.fromDBObject(input, expected);
+        }
+        final Object state = MAPPER.convertValue(input.get(STATE_FIELD), Class.forName(stateClass, true, classLoader));
+        final Exchange exchange = new DefaultExchange(CAMEL_CONTEXT);
+        final DefaultExchangeHolder holder = super.fromDBObject(input, DefaultExchangeHolder.class);
+        if (holder != null) {
+            DefaultExchangeHolder.unmarshal(exchange, holder);
+        }
+        exchange.getIn().setBody(serializer.serialize(state, classLoader));
+        return (T) DefaultExchangeHolder.marshal(exchange);
+    }
+
+    /**
+     * Returns true if the document keeps the state as the BSON document
+     */
+    public static boolean isStateDocument(Map<String, Object> document) {
+        return document.get(STATE_CLASS_FIELD) != null && document.get(STATE_FIELD) instanceof Map;
+    }
+
+    private BasicDBObject toStateDocument(DefaultExchangeHolder holder) {
+        final Exchange exchange = new DefaultExchange(CAMEL_CONTEXT);
+        DefaultExchangeHolder.unmarshal(exchange, holder);
+        final Object body = exchange.getIn().getBody();
+        final Object state = (body == null) ? null : serializer.deserialize(body, classLoader);
+        if (state == null || state instanceof byte[] || Boolean.FALSE.equals(mappable.get(state.getClass()))) {
+            return null;
+        }
+        final Map<String, Object> fields = toFields(state);
+        if (fields == null) {
+            return null;
+        }
+        exchange.getIn().setBody(null);
+        final BasicDBObject result = super.toDBObject(DefaultExchangeHolder.marshal(exchange));
+        result.put(STATE_FIELD, new BasicDBObject(fields));
+        result.put(STATE_CLASS_FIELD, state.getClass().getName());
+        return result;
+    }
+
+    /**
+     * Maps the state to its fields. Checks for each state that the fields are mapped back to the equal state
+     * having the same runtime types of the values, otherwise the polymorphic values would be restored
+     * as the maps or would fail to be restored at all.
+     * The states having the numbers which do not fit into BSON (e.g. {@link java.math.BigDecimal}) are not mapped,
+     * otherwise they would be silently rounded to doubles
+     */
+    private Map<String, Object> toFields(Object state) {
+        final Class<?> stateClass = state.getClass();
+        try {
+            final TokenBuffer tokens = new TokenBuffer(MAPPER, false);
+            MAPPER.writeValue(tokens, state);
+            if (!isBsonCompatible(tokens)) {
+                LOGGER.debug("The state of {} is kept as binary: its values are not compatible with BSON", stateClass);
+                return null;
+            }
+            final Map<String, Object> fields = MAPPER.readValue(tokens.asParser(), FIELDS);
+            if (!isBsonCompatible(fields)) {
+                LOGGER.debug("The state of {} is kept as binary: its fields are not compatible with BSON", stateClass);
+                return null;
+            }
+            if (!isSameValue(state, MAPPER.convertValue(fields, stateClass))) {
+                LOGGER.debug("The state of {} is kept as binary: it is not restored from its fields", stateClass);
+                return null;
+            }
+            return fields;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.info("The states of {} are kept as binary: they cannot be mapped to documents", stateClass, e);
+            mappable.put(stateClass, false);
+            return null;
+        }
+    }
+
+    /**
+     * Compares the token streams of the values including the runtime types of the values
+     */
+    private static boolean isSameValue(Object expected, Object actual) throws IOException {
+        final TokenBuffer expectedTokens = new TokenBuffer(TYPED_MAPPER, false);
+        final TokenBuffer actualTokens = new TokenBuffer(TYPED_MAPPER, false);
+        TYPED_MAPPER.writeValue(expectedTokens, expected);
+        TYPED_MAPPER.writeValue(actualTokens, actual);
+        try (JsonParser expectedParser = expectedTokens.asParser(); JsonParser actualParser = actualTokens.asParser()) {
+            for (JsonToken token = expectedParser.nextToken(); token != null; token = expectedParser.nextToken()) {
+                if (token != actualParser.nextToken()
+                        || token.isScalarValue() && !expectedParser.getText().equals(actualParser.getText())
+                        || token == JsonToken.FIELD_NAME
+                        && !expectedParser.getCurrentName().equals(actualParser.getCurrentName())) {
+                    return false;
+                }
+            }
+            return actualParser.nextToken() == null;
+        }
+    }
+
+    private static boolean isBsonCompatible(TokenBuffer tokens) throws IOException {
+        try (JsonParser parser = tokens.asParser()) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token == JsonToken.VALUE_EMBEDDED_OBJECT || token.isNumeric()
+                        && (parser.getNumberType() == NumberType.BIG_INTEGER
+                        || parser.getNumberType() == NumberType.BIG_DECIMAL)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isBsonCompatible(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Double) {
+            return true;
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                final String key = entry.getKey();
+                if (key.contains(".") || key.startsWith("$") || !isBsonCompatible(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof List) {
+            for (Object item : (List<Object>) value) {
+                if (!isBsonCompatible(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the runtime types of the values of the non-final declared types.
+     * The types of the collections and maps are not written: they are restored as the equal ones
+     */
+    private static class ValueTypes extends DefaultTypeResolverBuilder {
+        ValueTypes() {
+            super(DefaultTyping.NON_FINAL);
+        }
+
+        @Override
+        public boolean useForType(JavaType type) {
+            return !type.isContainerType() && super.useForType(type);
+        }
+    }
+}
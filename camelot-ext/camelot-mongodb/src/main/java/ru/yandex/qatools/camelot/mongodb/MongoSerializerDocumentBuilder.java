@@ -0,0 +1,15 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import ru.yandex.qatools.camelot.common.MessagesSerializer;
+
+/**
+ * Builds the serializers keeping the states as the native BSON documents
+ *
+ * @author Ilya Sadykov
+ */
+public class MongoSerializerDocumentBuilder extends MongoSerializerBuilder {
+    @Override
+    public MongoSerializer build(MessagesSerializer msgSerializer, ClassLoader classLoader) {
+        return new MongoSerializerDocument(msgSerializer, classLoader);
+    }
+}
@@ -0,0 +1,266 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.bson.Document;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The buffer of the pending writes of the aggregation states.
+ * The new state of the key replaces the pending one, so only the latest state of the key is written.
+ * The pending states are written by the unordered bulk writes when the batch is full or when the flush interval
+ * elapses. The states failed to be written stay pending until the next flush unless they are replaced.
+ * The pending states are visible to the current node only, so the write-behind holds the {@link MongoNodeLease}
+ * of the plugin while it is running and reports loudly if the lease is taken over by another node.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class MongoWriteBehind implements Closeable {
+    private static final Logger LOGGER = getLogger(MongoWriteBehind.class);
+    private static final String ID_FIELD = "_id";
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+    private static final int CLOSE_FLUSH_ATTEMPTS = 3;
+    private static final long CLOSE_RETRY_PAUSE_MS = 500;
+
+    private final MongoCollection<Document> collection;
+    private final MongoSerializer serializer;
+    private final String repoName;
+    private final long flushIntervalMs;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    private final Map<String, Optional<DefaultExchangeHolder>> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile MongoNodeLease lease;
+    private volatile boolean closed = false;
+
+    public MongoWriteBehind(MongoCollection<Document> collection, MongoSerializer serializer, String repoName,
+                            long flushIntervalMs, int batchSize, ScheduledExecutorService flusher) {
+        this.collection = collection;
+        this.serializer = serializer;
+        this.repoName = repoName;
+        this.flushIntervalMs = flushIntervalMs;
+        this.batchSize = batchSize;
+        this.flusher = flusher;
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, MILLISECONDS);
+    }
+
+    /**
+     * Sets the lease of the plugin held by the current node, the lease is prolonged by the background flushes
+     */
+    public void setLease(MongoNodeLease lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * Returns the pending state of the key (empty if the key is pending removal)
+     * or null if there is no pending write of the key
+     */
+    public Optional<DefaultExchangeHolder> pending(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * Returns the copy of the pending writes
+     */
+    public Map<String, Optional<DefaultExchangeHolder>> pending() {
+        return new HashMap<>(pending);
+    }
+
+    /**
+     * Schedules the write of the state of the key
+     */
+    public void put(String key, DefaultExchangeHolder holder) {
+        schedule(key, Optional.of(holder));
+    }
+
+    /**
+     * Schedules the removal of the key
+     */
+    public void remove(String key) {
+        schedule(key, Optional.empty());
+    }
+
+    /**
+     * Returns the stored keys with the pending writes applied
+     */
+    public Set<String> keys(Set<String> stored) {
+        final Set<String> result = new HashSet<>(stored);
+        for (Map.Entry<String, Optional<DefaultExchangeHolder>> entry : pending.entrySet()) {
+            if (entry.getValue().isPresent()) {
+                result.add(entry.getKey());
+            } else {
+                result.remove(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes all the pending states by the batches
+     */
+    public synchronized void flush() {
+        flushRequested.set(false);
+        final List<Map.Entry<String, Optional<DefaultExchangeHolder>>> batch = new ArrayList<>(batchSize);
+        for (Map.Entry<String, Optional<DefaultExchangeHolder>> entry : pending.entrySet()) {
+            batch.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            if (batch.size() >= batchSize) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes the remaining pending states retrying the failed writes.
+     * Throws {@link IllegalStateException} if some of the pending states are still not written,
+     * so the stop of the node fails instead of losing them silently
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(CLOSE_TIMEOUT_MS, MILLISECONDS);
+        } catch (InterruptedException e) {
+            LOGGER.warn("[{}] Interrupted while waiting for the background flush", repoName, e);
+            Thread.currentThread().interrupt();
+        }
+        for (int attempt = 1; attempt <= CLOSE_FLUSH_ATTEMPTS && !pending.isEmpty(); ++attempt) {
+            if (attempt > 1 && !pauseBeforeRetry()) {
+                break;
+            }
+            flushQuietly();
+        }
+        if (!pending.isEmpty()) {
+            throw new IllegalStateException(format("[%s] Failed to write %d pending states on close",
+                    repoName, pending.size()));
+        }
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getBatchesCount() {
+        return batches.get();
+    }
+
+    private void schedule(String key, Optional<DefaultExchangeHolder> value) {
+        pending.put(key, value);
+        if (pending.size() >= batchSize && !closed && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOGGER.error("[{}] Failed to flush the pending states", repoName, e);
+        }
+        renewLease();
+    }
+
+    private void renewLease() {
+        final MongoNodeLease current = lease;
+        try {
+            if (current != null && !current.renew() && !current.tryAcquire()) {
+                LOGGER.error("[{}] The write-behind lease is taken over by the node {}: the plugin with the " +
+                        "write-behind must run on the single node, the states may be lost", repoName,
+                        current.getHolder());
+            }
+        } catch (Exception e) {
+            LOGGER.error("[{}] Failed to renew the write-behind lease", repoName, e);
+        }
+    }
+
+    private boolean pauseBeforeRetry() {
+        try {
+            Thread.sleep(CLOSE_RETRY_PAUSE_MS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the batch and removes the written keys from the pending ones unless they were replaced meanwhile
+     */
+    private void write(List<Map.Entry<String, Optional<DefaultExchangeHolder>>> batch) {
+        final UpdateOptions upsert = new UpdateOptions().upsert(true);
+        final List<WriteModel<Document>> writes = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Optional<DefaultExchangeHolder>> entry : batch) {
+            if (entry.getValue().isPresent()) {
+                writes.add(new UpdateOneModel<>(eq(ID_FIELD, entry.getKey()),
+                        new Document("$set", serializer.toDBObject(entry.getValue().get())), upsert));
+            } else {
+                writes.add(new DeleteOneModel<>(eq(ID_FIELD, entry.getKey())));
+            }
+        }
+        final Set<Integer> failed = new HashSet<>();
+        try {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failed.add(error.getIndex());
+            }
+            LOGGER.error("[{}] Failed to write {} of {} pending states", repoName, failed.size(), batch.size(), e);
+        } catch (Exception e) {
+            LOGGER.error("[{}] Failed to write {} pending states", repoName, batch.size(), e);
+            return;
+        }
+        for (int i = 0; i < batch.size(); ++i) {
+            if (!failed.contains(i)) {
+                pending.remove(batch.get(i).getKey(), batch.get(i).getValue());
+            }
+        }
+        written.addAndGet(batch.size() - (long) failed.size());
+        batches.incrementAndGet();
+    }
+}
@@ -1,6 +1,8 @@
 package ru.yandex.qatools.camelot.mongodb;
 
 import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
 import org.apache.camel.impl.DefaultExchange;
@@ -8,6 +10,7 @@ import org.apache.camel.impl.DefaultExchangeHolder;
 import org.apache.camel.spi.AggregationRepository;
 import org.apache.camel.spi.OptimisticLockingAggregationRepository;
 import org.apache.camel.support.ServiceSupport;
+import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.qatools.mongodb.MongoPessimisticLocking;
@@ -17,18 +20,32 @@ import ru.qatools.mongodb.error.PessimisticException;
 import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
 import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
 import ru.yandex.qatools.camelot.api.error.RepositoryUnreachableException;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithIteration;
 import ru.yandex.qatools.camelot.common.AggregationRepositoryWithLocks;
 import ru.yandex.qatools.camelot.common.AggregationRepositoryWithValuesMap;
+import ru.yandex.qatools.camelot.common.KeyLocks;
+import ru.yandex.qatools.camelot.common.LockWaitHistogram;
 
+import java.io.Closeable;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.include;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.String.format;
 import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static ru.yandex.qatools.camelot.mongodb.MongoDocumentDiff.toDocument;
 
 /**
+ * The aggregation repository within MongoDB.
+ * When the collection is set, the repository keeps the states there itself by the key as {@code _id}
+ * and uses the pessimistic locking for the locks only, otherwise the states are kept by {@link MongoPessimisticRepo}.
+ *
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  * @author Innokenty Shuvalov (mailto: innokenty@yandex-team.ru)
  */
@@ -37,7 +54,11 @@ public class MongodbAggregationRepository extends ServiceSupport
         implements AggregationRepository,
         OptimisticLockingAggregationRepository,
         AggregationRepositoryWithLocks,
-        AggregationRepositoryWithValuesMap {
+        AggregationRepositoryWithValuesMap,
+        AggregationRepositoryWithIteration,
+        Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String ID_FIELD = "_id";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongodbAggregationRepository.class);
 
@@ -47,6 +68,13 @@ public class MongodbAggregationRepository extends ServiceSupport
     private final MongoSerializer serializer;
 
     private MongoPessimisticRepo<DefaultExchangeHolder> mongoRepo;
+    private MongoCollection<Document> collection;
+    private int iterationBatchSize = DEFAULT_BATCH_SIZE;
+    private final Map<String, Document> loaded = new ConcurrentHashMap<>();
+    private final KeyLocks localLocks = new KeyLocks();
+    private MongoWriteBehind writeBehind;
+    private MongoLockNotifications lockNotifications;
+    private final LockWaitHistogram lockWaits = new LockWaitHistogram();
 
     public MongodbAggregationRepository(MongoSerializer serializer, String repoName,
                                         MongoPessimisticLocking mongoLocking, long waitForLockSec) {
@@ -60,13 +88,25 @@ public class MongodbAggregationRepository extends ServiceSupport
     public Exchange get(CamelContext camelContext, String key) {
         try {
             debug("Getting exchange for key '{}'", key);
-            return toExchange(camelContext, mongoRepo.tryLockAndGet(key, SECONDS.toMillis(waitForLockSec)));
+            if (writeBehind != null) {
+                return getLocally(camelContext, key);
+            }
+            lockRemote(key);
+            return toExchange(camelContext, load(key));
         } catch (LockWaitTimeoutException e) {
             throw new RepositoryLockWaitException(format(
                     "Failed to acquire the lock for the key '%s' within timeout of %ds",
                     key, waitForLockSec), e);
         } catch (PessimisticException | MongoException e) {
             throw new RepositoryUnreachableException(e);
+        } catch (RepositoryLockWaitException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryLockWaitException(format("Interrupted while locking the key '%s'", key), e);
+        } catch (Exception e) {
+            error("Failed to read the state of the key '{}'", key, e);
+            throw new RepositoryFailureException(format("Failed to get exchange for key '%s'", key), e);
         }
     }
 
@@ -79,7 +119,18 @@ public class MongodbAggregationRepository extends ServiceSupport
     public Exchange add(final CamelContext camelContext, final String key, final Exchange exchange) {
         return writeAttempt(key, () -> {
             DefaultExchangeHolder holder = DefaultExchangeHolder.marshal(exchange);
-            mongoRepo.putAndUnlock(key, holder);
+            if (writeBehind != null) {
+                writeBehind.put(key, holder);
+                unlockLocally(key);
+                return toExchange(camelContext, holder);
+            }
+            final Document stored = loaded.remove(key);
+            if (collection != null) {
+                updateAndUnlock(key, stored, toDocument(serializer.toDBObject(holder)));
+            } else {
+                mongoRepo.putAndUnlock(key, holder);
+                released(key);
+            }
             return toExchange(camelContext, holder);
         });
     }
@@ -87,21 +138,31 @@ public class MongodbAggregationRepository extends ServiceSupport
     @Override
     public void remove(CamelContext camelContext, final String key, final Exchange exchange) {
         writeAttempt(key, () -> {
-            mongoRepo.removeAndUnlock(key);
+            if (writeBehind != null) {
+                writeBehind.remove(key);
+                unlockLocally(key);
+                return exchange;
+            }
+            loaded.remove(key);
+            removeAndUnlock(key);
             return exchange;
         });
     }
 
     @Override
     public Exchange getWithoutLock(CamelContext camelContext, String key) {
-        return toExchange(camelContext, mongoRepo.get(key));
+        return toExchange(camelContext, readPending(key));
     }
 
     @Override
     public void lock(String key) {
         try {
             debug("Locking key '{}'", key);
-            mongoLocking.tryLock(key, SECONDS.toMillis(waitForLockSec));
+            if (writeBehind != null) {
+                lockLocally(key);
+                return;
+            }
+            lockRemote(key);
         } catch (LockWaitTimeoutException e) {
             throw new RepositoryLockWaitException(format(
                     "Failed to acquire the lock for the key '%s' within timeout of %ds",
@@ -109,13 +170,22 @@ public class MongodbAggregationRepository extends ServiceSupport
         } catch (PessimisticException | MongoException e) {
             LOGGER.warn("Failed to lock the key: ", e);
             throw new RepositoryUnreachableException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryLockWaitException(format("Interrupted while locking the key '%s'", key), e);
         }
     }
 
     @Override
     public void unlockQuietly(String key) {
+        loaded.remove(key);
         try {
+            if (writeBehind != null) {
+                localLocks.unlock(key);
+                return;
+            }
             mongoLocking.unlock(key);
+            released(key);
         } catch (Exception e) {
             LOGGER.trace("Sonar trick", e);
             debug("Failed to quiet unlock repo key '{}'", key, e);
@@ -127,7 +197,13 @@ public class MongodbAggregationRepository extends ServiceSupport
     public void unlock(String key) {
         try {
             debug("Unlocking the key '{}'", key);
-            mongoLocking.unlock(key);
+            loaded.remove(key);
+            if (writeBehind != null) {
+                localLocks.unlock(key);
+            } else {
+                mongoLocking.unlock(key);
+                released(key);
+            }
             debug("Successfully unlocked the key '{}'", key);
         } catch (IllegalMonitorStateException e) { //NOSONAR
             warn("Failed to unlock the key '{}'", key, e);
@@ -143,7 +219,10 @@ public class MongodbAggregationRepository extends ServiceSupport
 
     @Override
     public Set<String> getKeys() {
-        return unmodifiableSet(new LinkedHashSet<>(mongoRepo.keySet()));
+        if (writeBehind != null) {
+            return unmodifiableSet(writeBehind.keys(storedKeys()));
+        }
+        return unmodifiableSet(storedKeys());
     }
 
     @Override
@@ -153,9 +232,215 @@ public class MongodbAggregationRepository extends ServiceSupport
         mongoRepo.setDeserializer(serializer);
     }
 
+    /**
+     * Reads the state of the key locked within the current node preferring the pending write of the state
+     */
+    private Exchange getLocally(CamelContext camelContext, String key) throws InterruptedException {
+        lockLocally(key);
+        try {
+            return toExchange(camelContext, readPending(key));
+        } catch (RuntimeException e) {
+            localLocks.unlock(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the pending state of the key if there is one or the stored state otherwise
+     */
+    private DefaultExchangeHolder readPending(String key) {
+        final Optional<DefaultExchangeHolder> pending = (writeBehind != null) ? writeBehind.pending(key) : null;
+        if (pending != null) {
+            return pending.orElse(null);
+        }
+        if (collection == null) {
+            return mongoRepo.get(key);
+        }
+        final Document document = collection.find(eq(ID_FIELD, key)).first();
+        return (document != null) ? fromDocument(key, document) : null;
+    }
+
+    private Set<String> storedKeys() {
+        if (collection == null) {
+            return new LinkedHashSet<>(mongoRepo.keySet());
+        }
+        final Set<String> result = new LinkedHashSet<>();
+        for (Document document : collection.find().projection(include(ID_FIELD)).batchSize(iterationBatchSize)) {
+            result.add(document.getString(ID_FIELD));
+        }
+        return result;
+    }
+
+    /**
+     * Acquires the distributed lock of the key waiting for the notification about its release if the notifications
+     * are enabled or polling the lock otherwise
+     */
+    private void lockRemote(String key) throws InterruptedException {
+        final long timeoutMs = SECONDS.toMillis(waitForLockSec);
+        if (lockNotifications == null) {
+            final long started = currentTimeMillis();
+            boolean locked = false;
+            try {
+                mongoLocking.tryLock(key, timeoutMs);
+                locked = true;
+            } finally {
+                lockWaits.record(currentTimeMillis() - started, locked);
+            }
+            return;
+        }
+        final long started = currentTimeMillis();
+        final boolean locked = lockNotifications.tryLock(lockName(key), timeoutMs, () -> tryLockOnce(key));
+        lockWaits.record(currentTimeMillis() - started, locked);
+        if (!locked) {
+            throw new RepositoryLockWaitException(format(
+                    "Failed to acquire the lock for the key '%s' within timeout of %ds", key, waitForLockSec));
+        }
+    }
+
+    private boolean tryLockOnce(String key) {
+        try {
+            mongoLocking.tryLock(key, 0);
+            return true;
+        } catch (LockWaitTimeoutException e) { //NOSONAR
+            return false;
+        }
+    }
+
+    private void released(String key) {
+        if (lockNotifications != null) {
+            lockNotifications.released(lockName(key));
+        }
+    }
+
+    private String lockName(String key) {
+        return repoName + "/" + key;
+    }
+
+    private void lockLocally(String key) throws InterruptedException {
+        if (!localLocks.tryLock(key, waitForLockSec, SECONDS)) {
+            throw new RepositoryLockWaitException(format(
+                    "Failed to acquire the local lock for the key '%s' within timeout of %ds", key, waitForLockSec));
+        }
+    }
+
+    private void unlockLocally(String key) {
+        try {
+            localLocks.unlock(key);
+        } catch (IllegalMonitorStateException e) { //NOSONAR
+            debug("The key '{}' was not locked locally", key);
+        }
+    }
+
+    /**
+     * The states are updated partially if they are kept as the documents within the known collection
+     */
+    private boolean isPartialUpdates() {
+        return collection != null && serializer instanceof MongoSerializerDocument;
+    }
+
+    /**
+     * Reads the state of the locked key remembering the stored document to update it partially later
+     */
+    private DefaultExchangeHolder load(String key) {
+        if (collection == null) {
+            return mongoRepo.get(key);
+        }
+        final Document document = collection.find(eq(ID_FIELD, key)).first();
+        if (document == null) {
+            loaded.remove(key);
+            return null;
+        }
+        if (isPartialUpdates() && MongoSerializerDocument.isStateDocument(document)) {
+            loaded.put(key, document);
+        }
+        return fromDocument(key, document);
+    }
+
+    /**
+     * Writes only the difference between the stored document and the new one, then unlocks the key.
+     * The whole document is written if the state was not loaded or the new state is not kept as the document
+     */
+    private void updateAndUnlock(String key, Document stored, Document document) {
+        try {
+            if (stored != null && MongoSerializerDocument.isStateDocument(document)) {
+                final Document update = MongoDocumentDiff.update(stored, document);
+                if (!update.isEmpty()) {
+                    collection.updateOne(eq(ID_FIELD, key), update);
+                }
+            } else {
+                collection.updateOne(eq(ID_FIELD, key), new Document("$set", document),
+                        new UpdateOptions().upsert(true));
+            }
+        } finally {
+            mongoLocking.unlock(key);
+            released(key);
+        }
+    }
+
+    private void removeAndUnlock(String key) {
+        if (collection == null) {
+            mongoRepo.removeAndUnlock(key);
+            released(key);
+            return;
+        }
+        try {
+            collection.deleteOne(eq(ID_FIELD, key));
+        } finally {
+            mongoLocking.unlock(key);
+            released(key);
+        }
+    }
+
+    /**
+     * Sets the collection to keep the states in, the states are iterated by the server-side cursor
+     */
+    public void setCollection(MongoCollection<Document> collection) {
+        this.collection = collection;
+    }
+
+    public void setIterationBatchSize(int iterationBatchSize) {
+        this.iterationBatchSize = iterationBatchSize;
+    }
+
+    /**
+     * Enables the write-behind of the states: the keys are locked within the current node only and
+     * the states are written to the database in background by the given buffer of the pending writes
+     */
+    public void setWriteBehind(MongoWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public MongoWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Enables the waiting for the notifications about the released locks instead of polling them
+     */
+    public void setLockNotifications(MongoLockNotifications lockNotifications) {
+        this.lockNotifications = lockNotifications;
+    }
+
+    /**
+     * Returns the statistics of the waits for the distributed locks
+     */
+    public LockWaitHistogram getLockWaits() {
+        return lockWaits;
+    }
+
     @Override
     public void doStop() throws Exception { //NOSONAR
-        /* Nothing to do */
+        close();
+    }
+
+    /**
+     * Writes the pending states if the write-behind is enabled
+     */
+    @Override
+    public void close() {
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
     }
 
     private Exchange writeAttempt(String key, Callable<Exchange> perform) {
@@ -185,8 +470,14 @@ public class MongodbAggregationRepository extends ServiceSupport
 
     private void forceUnlockKey(String key) {
         debug("Forcing unlock for key '{}'", key);
+        loaded.remove(key);
+        if (writeBehind != null) {
+            unlockLocally(key);
+            return;
+        }
         try {
             mongoLocking.forceUnlock(key);
+            released(key);
         } catch (Exception e) {
             error("Failed to force unlock the key '{}'", key, e);
         }
@@ -210,11 +501,52 @@ public class MongodbAggregationRepository extends ServiceSupport
 
     @Override
     public Map<String, Exchange> values(CamelContext camelContext) {
-        Map<String, DefaultExchangeHolder> holderMap = new LinkedHashMap<>(mongoRepo.keyValueMap());
-        Map<String, Exchange> result = new HashMap<>(holderMap.size(), 1);
-        for (Map.Entry<String, DefaultExchangeHolder> entry : holderMap.entrySet()) {
-            result.put(entry.getKey(), toExchange(camelContext, entry.getValue()));
-        }
+        final Map<String, Exchange> result = new HashMap<>();
+        forEach(camelContext, result::put);
         return unmodifiableMap(result);
     }
+
+    /**
+     * Reads the states by the server-side cursor fetching the batches of the configured size.
+     * Falls back to reading all the states at once if the collection is not set.
+     * The pending writes of the states replace the stored states
+     */
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        final Map<String, Optional<DefaultExchangeHolder>> pending = (writeBehind != null)
+                ? writeBehind.pending() : Collections.<String, Optional<DefaultExchangeHolder>>emptyMap();
+        if (collection == null) {
+            for (Map.Entry<String, DefaultExchangeHolder> entry : mongoRepo.keyValueMap().entrySet()) {
+                if (!pending.containsKey(entry.getKey())) {
+                    action.accept(entry.getKey(), toExchange(camelContext, entry.getValue()));
+                }
+            }
+        } else {
+            forEachStored(camelContext, pending.keySet(), action);
+        }
+        for (Map.Entry<String, Optional<DefaultExchangeHolder>> entry : pending.entrySet()) {
+            if (entry.getValue().isPresent()) {
+                action.accept(entry.getKey(), toExchange(camelContext, entry.getValue().get()));
+            }
+        }
+    }
+
+    private void forEachStored(CamelContext camelContext, Set<String> skipped,
+                               BiConsumer<String, Exchange> action) {
+        for (Document document : collection.find().batchSize(iterationBatchSize)) {
+            final String key = document.getString(ID_FIELD);
+            if (skipped.contains(key)) {
+                continue;
+            }
+            action.accept(key, toExchange(camelContext, fromDocument(key, document)));
+        }
+    }
+
+    private DefaultExchangeHolder fromDocument(String key, Document document) {
+        try {
+            return serializer.fromDBObject(document, DefaultExchangeHolder.class);
+        } catch (Exception e) {
+            throw new RepositoryFailureException(format("Failed to read the state of the key '%s'", key), e);
+        }
+    }
 }
@@ -1,18 +1,24 @@
 package ru.yandex.qatools.camelot.mongodb;
 
 import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
 import org.apache.camel.CamelContext;
 import org.apache.camel.spi.AggregationRepository;
+import org.bson.Document;
 import ru.qatools.mongodb.MongoPessimisticLocking;
 import ru.qatools.mongodb.MongoPessimisticRepo;
 import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.api.annotations.WriteBehind;
 import ru.yandex.qatools.camelot.common.MessagesSerializer;
 import ru.yandex.qatools.camelot.common.builders.MemoryAggregationRepositoryBuilder;
 import ru.yandex.qatools.camelot.config.Plugin;
 
 import java.io.Serializable;
 
+import static java.lang.String.format;
 import static ru.yandex.qatools.camelot.util.NameUtil.pluginStorageKey;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationValue;
+import static ru.yandex.qatools.camelot.util.ReflectUtil.getAnnotationWithinHierarchy;
 
 /**
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
@@ -25,12 +31,29 @@ public class MongodbAggregationRepositoryBuilder extends MemoryAggregationReposi
     private final long lockPollMaxIntervalMs;
     private final MessagesSerializer serializer;
     private final MongoSerializerBuilder serializerBuilder;
+    private final CamelContext camelContext;
+    private final long writeBehindFlushIntervalMs;
+    private final int writeBehindBatchSize;
+    private MongoLockNotifications lockNotifications;
+    private long writeBehindLeaseMs = 30000;
 
     public MongodbAggregationRepositoryBuilder(MongoClient mongoClient, MessagesSerializer serializer,
                                                MongoSerializerBuilder serializerBuilder,
                                                String dbName, CamelContext camelContext,
                                                long waitForLockSec, long lockPollMaxIntervalMs) {
+        this(mongoClient, serializer, serializerBuilder, dbName, camelContext,
+                waitForLockSec, lockPollMaxIntervalMs, 1000, 500);
+    }
+
+    public MongodbAggregationRepositoryBuilder(MongoClient mongoClient, MessagesSerializer serializer,
+                                               MongoSerializerBuilder serializerBuilder,
+                                               String dbName, CamelContext camelContext,
+                                               long waitForLockSec, long lockPollMaxIntervalMs,
+                                               long writeBehindFlushIntervalMs, int writeBehindBatchSize) {
         super(camelContext, waitForLockSec);
+        this.camelContext = camelContext;
+        this.writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+        this.writeBehindBatchSize = writeBehindBatchSize;
         this.mongoClient = mongoClient;
         this.waitForLockSec = waitForLockSec;
         this.lockPollMaxIntervalMs = lockPollMaxIntervalMs;
@@ -45,10 +68,16 @@ public class MongodbAggregationRepositoryBuilder extends MemoryAggregationReposi
     @Override
     public AggregationRepository initWritable(Plugin plugin) throws Exception { //NOSONAR
         final MongoPessimisticLocking locking = initLocking(plugin.getId());
+        final MongoSerializer repoSerializer = serializerBuilder.build(serializer,
+                plugin.getContext().getClassLoader());
         final MongodbAggregationRepository repo = new MongodbAggregationRepository(
-                serializerBuilder.build(serializer, plugin.getContext().getClassLoader()),
-                plugin.getId(), locking, waitForLockSec
+                repoSerializer, plugin.getId(), locking, waitForLockSec
         );
+        final MongoCollection<Document> collection = mongoClient.getDatabase(dbName)
+                .getCollection(plugin.getId() + MongodbStorage.COLLECTION_SUFFIX);
+        repo.setCollection(collection);
+        repo.setWriteBehind(writeBehind(plugin, collection, repoSerializer, repo));
+        repo.setLockNotifications(lockNotifications);
         repo.doStart();
         return repo;
     }
@@ -56,9 +85,75 @@ public class MongodbAggregationRepositoryBuilder extends MemoryAggregationReposi
     @Override
     @SuppressWarnings("unchecked")
     public Storage initStorage(Plugin plugin) throws Exception { //NOSONAR
-        return new MongodbStorage<>(
-                new MongoPessimisticRepo<>(initLocking(pluginStorageKey(plugin.getId())), Serializable.class)
-        );
+        final String id = pluginStorageKey(plugin.getId());
+        final MongoSerializer storageSerializer = serializerBuilder.build(serializer,
+                plugin.getContext().getClassLoader());
+        final MongoPessimisticRepo<Serializable> repo = new MongoPessimisticRepo<>(initLocking(id), Serializable.class);
+        repo.setSerializer(storageSerializer);
+        repo.setDeserializer(storageSerializer);
+        return new MongodbStorage<>(repo,
+                mongoClient.getDatabase(dbName).getCollection(id + MongodbStorage.COLLECTION_SUFFIX),
+                storageSerializer, Serializable.class);
+    }
+
+    /**
+     * Sets the notifications about the released locks to be awaited by the repositories instead of polling
+     */
+    public void setLockNotifications(MongoLockNotifications lockNotifications) {
+        this.lockNotifications = (lockNotifications != null && lockNotifications.isEnabled())
+                ? lockNotifications : null;
+    }
+
+    /**
+     * Sets the lease of the plugin with the write-behind: the node holding the lease must prolong it within the
+     * lease, otherwise the plugin can be started by another node
+     */
+    public void setWriteBehindLeaseMs(long writeBehindLeaseMs) {
+        this.writeBehindLeaseMs = writeBehindLeaseMs;
+    }
+
+    /**
+     * Returns the buffer of the pending writes of the plugin or null if the plugin does not have the write-behind
+     */
+    private MongoWriteBehind writeBehind(Plugin plugin, MongoCollection<Document> collection,
+                                         MongoSerializer repoSerializer, Object source)
+            throws ReflectiveOperationException, InterruptedException {
+        final String pluginClass = plugin.getContext().getPluginClass();
+        if (pluginClass == null) {
+            return null;
+        }
+        final Object writeBehind = getAnnotationWithinHierarchy(
+                plugin.getContext().getClassLoader().loadClass(pluginClass), WriteBehind.class);
+        if (writeBehind == null) {
+            return null;
+        }
+        final long flushIntervalMs = (long) getAnnotationValue(writeBehind, "flushIntervalMs");
+        final int batchSize = (int) getAnnotationValue(writeBehind, "batchSize");
+        final long interval = (flushIntervalMs > 0) ? flushIntervalMs : writeBehindFlushIntervalMs;
+        final MongoNodeLease lease = acquireWriteBehindLease(plugin.getId(), interval);
+        final MongoWriteBehind result = new MongoWriteBehind(collection, repoSerializer, plugin.getId(), interval,
+                (batchSize > 0) ? batchSize : writeBehindBatchSize,
+                camelContext.getExecutorServiceManager()
+                        .newSingleThreadScheduledExecutor(source, "camelot-write-behind-" + plugin.getId()));
+        result.setLease(lease);
+        return result;
+    }
+
+    /**
+     * Acquires the lease of the plugin with the write-behind: its pending states are visible to the current node
+     * only, so the plugin is rejected if it is already running on another node
+     */
+    private MongoNodeLease acquireWriteBehindLease(String pluginId, long flushIntervalMs)
+            throws InterruptedException {
+        final MongoNodeLease lease = new MongoNodeLease(
+                mongoClient.getDatabase(dbName).getCollection(MongoNodeLease.COLLECTION),
+                "write-behind/" + pluginId, Math.max(writeBehindLeaseMs, 3 * flushIntervalMs));
+        if (!lease.acquire(lease.getLeaseMs())) {
+            throw new IllegalStateException(format("Plugin %s with the write-behind is already running on the " +
+                    "node %s: the plugin with the write-behind must run on the single node", pluginId,
+                    lease.getHolder()));
+        }
+        return lease;
     }
 
     private MongoPessimisticLocking initLocking(String id) {
@@ -16,6 +16,10 @@ public class MongodbBuildersFactoryImpl extends BuildersFactoryImpl {
     protected final MessagesSerializer serializer;
     protected final MongoSerializerBuilder serializerBuilder;
     protected long lockPollMaxIntervalMs = 20;
+    protected long writeBehindFlushIntervalMs = 1000;
+    protected int writeBehindBatchSize = 500;
+    protected long writeBehindLeaseMs = 30000;
+    protected MongoLockNotifications lockNotifications;
 
     public MongodbBuildersFactoryImpl(MongoClient mongoClient, MessagesSerializer serializer, String dbName,
                                       MongoSerializerBuilder serializerBuilder) {
@@ -29,9 +33,29 @@ public class MongodbBuildersFactoryImpl extends BuildersFactoryImpl {
         this.lockPollMaxIntervalMs = lockPollMaxIntervalMs;
     }
 
+    public void setWriteBehindFlushIntervalMs(long writeBehindFlushIntervalMs) {
+        this.writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public void setWriteBehindLeaseMs(long writeBehindLeaseMs) {
+        this.writeBehindLeaseMs = writeBehindLeaseMs;
+    }
+
+    public void setLockNotifications(MongoLockNotifications lockNotifications) {
+        this.lockNotifications = lockNotifications;
+    }
+
     @Override
     public AggregationRepositoryBuilder newRepositoryBuilder(CamelContext camelContext) throws Exception { //NOSONAR
-        return new MongodbAggregationRepositoryBuilder(mongoClient, serializer, serializerBuilder,
-                dbName, camelContext, getWaitForLockSec(), lockPollMaxIntervalMs);
+        final MongodbAggregationRepositoryBuilder builder = new MongodbAggregationRepositoryBuilder(mongoClient,
+                serializer, serializerBuilder, dbName, camelContext, getWaitForLockSec(), lockPollMaxIntervalMs,
+                writeBehindFlushIntervalMs, writeBehindBatchSize);
+        builder.setLockNotifications(lockNotifications);
+        builder.setWriteBehindLeaseMs(writeBehindLeaseMs);
+        return builder;
     }
 }
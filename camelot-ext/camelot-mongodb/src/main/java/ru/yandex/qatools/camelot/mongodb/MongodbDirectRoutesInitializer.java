@@ -3,6 +3,7 @@ package ru.yandex.qatools.camelot.mongodb;
 import com.mongodb.MongoClient;
 import org.apache.camel.CamelContext;
 import org.apache.camel.CamelContextAware;
+import org.apache.camel.Exchange;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.model.ProcessorDefinition;
 import org.slf4j.Logger;
@@ -12,12 +13,18 @@ import ru.qatools.mongodb.TailableQueue;
 import ru.yandex.qatools.camelot.api.EventProducer;
 import ru.yandex.qatools.camelot.api.PluginEndpoints;
 import ru.yandex.qatools.camelot.api.annotations.Processor;
+import ru.yandex.qatools.camelot.common.AggregationKeyStrategy;
+import ru.yandex.qatools.camelot.common.ClayProcessor;
+import ru.yandex.qatools.camelot.common.MessagesSerializer;
 import ru.yandex.qatools.camelot.common.PluggableProcessor;
 import ru.yandex.qatools.camelot.common.PluginsService;
 import ru.yandex.qatools.camelot.config.Plugin;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static java.text.MessageFormat.format;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
@@ -35,6 +42,7 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
     public static final String URI_PREFIX = "mongodb://topic";
     public static final String NEW_INPUT_URI_PREFIX = "direct://mongodb.topic.";
     public static final String COL_SUFFIX = "_direct_queue";
+    public static final String CLAIMABLE_COL_SUFFIX = "_claimable_queue";
     private static final Logger LOGGER = LoggerFactory.getLogger(MongodbDirectRoutesInitializer.class);
     private final PluginsService pluginsService;
     private final MongoClient mongoClient;
@@ -42,6 +50,12 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
     private final MongoSerializerBuilder serializerBuilder;
     private final long maxSize;
     private final int minPollIntervalMs;
+    private final List<MongoQueueConsumers> consumerPools = new CopyOnWriteArrayList<>();
+    private boolean claimable = false;
+    private int consumers = 1;
+    private int claimBatchSize = 100;
+    private long leaseMs = 30000;
+    private int partitions = 0;
     private CamelContext camelContext;
 
     public MongodbDirectRoutesInitializer(PluginsService pluginsService, MongoClient mongoClient,
@@ -80,17 +94,61 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
         this.camelContext = camelContext;
     }
 
+    /**
+     * Enables the queues shared by the competing consumers of all the nodes instead of the tailable queues
+     * delivering every message to every node
+     */
+    public void setClaimable(boolean claimable) {
+        this.claimable = claimable;
+    }
+
+    /**
+     * Sets the number of the consumers of the claimable queue per plugin on the current node
+     */
+    public void setConsumers(int consumers) {
+        this.consumers = consumers;
+    }
+
+    /**
+     * Sets the maximum number of the messages claimed by the consumer at once
+     */
+    public void setClaimBatchSize(int claimBatchSize) {
+        this.claimBatchSize = claimBatchSize;
+    }
+
+    /**
+     * Sets the time the claimed message (or partition) stays invisible to the other consumers
+     */
+    public void setLeaseMs(long leaseMs) {
+        this.leaseMs = leaseMs;
+    }
+
+    /**
+     * Sets the number of the partitions of the claimable queue routing the messages by their aggregation key
+     * (the messages are not partitioned if not set)
+     */
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
     @PostConstruct
     public void init() {
         initRoutes(camelContext);
     }
 
+    @PreDestroy
+    public void stop() {
+        consumerPools.forEach(MongoQueueConsumers::close);
+    }
+
     private void initRoutes(CamelContext camelContext) {
         LOGGER.info("Initializing MongoDB direct routes");
         pluginsService.getPluginsMap().values().forEach(plugin -> {
             final PluginEndpoints endpoints = plugin.getContext().getEndpoints();
             final String inputUri = endpoints.getInputUri();
-            if (inputUri.startsWith(NEW_INPUT_URI_PREFIX)) {
+            if (inputUri.startsWith(NEW_INPUT_URI_PREFIX) && claimable) {
+                initClaimableRoute(camelContext, plugin, endpoints);
+            } else if (inputUri.startsWith(NEW_INPUT_URI_PREFIX)) {
                 LOGGER.info("Initializing MongoDB direct route for {}", plugin.getId());
                 final String colName = calcColName(plugin);
                 final MongoTailableQueue<MongoQueueMessage> queue = initQueue(colName, plugin.getContext().getClassLoader());
@@ -108,6 +166,38 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
         });
     }
 
+    private void initClaimableRoute(CamelContext camelContext, Plugin plugin, PluginEndpoints endpoints) {
+        LOGGER.info("Initializing MongoDB claimable route for {} with {} consumers", plugin.getId(), consumers);
+        final String colName = plugin.getId() + CLAIMABLE_COL_SUFFIX;
+        final MongoClaimableQueue queue = new MongoClaimableQueue(mongoClient, dbName, colName,
+                serializerBuilder.build(pluginsService.getMessagesSerializer(), plugin.getContext().getClassLoader()),
+                leaseMs, partitions);
+        queue.init();
+        try {
+            addRoute(camelContext, plugin, endpoints, colName, new ClaimableSaver(queue, plugin,
+                    pluginsService.getMessagesSerializer()));
+            final EventProducer producer = initEventProducer(camelContext, overridenUri(plugin, INPUT_SUFFIX),
+                    pluginsService.getMessagesSerializer());
+            final MongoQueueConsumers pool = new MongoQueueConsumers(queue, plugin.getId(), consumers,
+                    claimBatchSize, minPollIntervalMs, m -> produce(producer, m));
+            pool.start();
+            consumerPools.add(pool);
+        } catch (Exception e) {
+            throw new RuntimeException(format("Failed to initialize MongoDB claimable route for %s!",//NOSONAR
+                    plugin.getId()), e);
+        }
+    }
+
+    private void produce(EventProducer producer, MongoQueueMessage m) {
+        if (!pluginsService.isInitialized()) {
+            throw new IllegalStateException("The plugins are not initialized yet");
+        }
+        producer.produce(m.object, map(
+                BODY_CLASS, m.object.getClass().getName(),
+                PLUGIN_ID, m.pluginId
+        ));
+    }
+
     private MongoTailableQueue<MongoQueueMessage> initQueue(String colName, ClassLoader classLoader) {
         final MongoTailableQueue<MongoQueueMessage> queue = new MongoTailableQueue<>(
                 MongoQueueMessage.class, mongoClient, dbName, colName, maxSize
@@ -141,6 +231,13 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
     private void addSaverRoute(CamelContext camelContext, final Plugin plugin, PluginEndpoints endpoints,
                                final String colName, final MongoTailableQueue<MongoQueueMessage> queue)
             throws Exception {//NOSONAR
+        addRoute(camelContext, plugin, endpoints, colName,
+                new PluggableProcessor(Saver.class, new Saver(queue, plugin), pluginsService.getMessagesSerializer()));
+    }
+
+    private void addRoute(CamelContext camelContext, final Plugin plugin, PluginEndpoints endpoints,
+                          final String colName, final org.apache.camel.Processor saver)
+            throws Exception {//NOSONAR
         final String fromUri = calcFromUri(endpoints.getConsumerUri());
         final String consumerUri = endpoints.getConsumerUri();
         final String consumerRouteId = endpoints.getConsumerRouteId();
@@ -150,10 +247,7 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
             public void configure() throws Exception {
                 interimProc(plugin, from(consumerUri)
                         .log(DEBUG, format("===> ROUTE %s ===> [MongoDB].%s", fromUri, colName)))
-                        .process(
-                                new PluggableProcessor(Saver.class, new Saver(queue, plugin),
-                                        pluginsService.getMessagesSerializer())
-                        ).stop().routeId(consumerRouteId);
+                        .process(saver).stop().routeId(consumerRouteId);
             }
         });
     }
@@ -180,4 +274,36 @@ public class MongodbDirectRoutesInitializer implements CamelContextAware {
         }
     }
 
+    /**
+     * Adds the events to the claimable queue routing them by their aggregation key.
+     * The key is calculated by the key strategy of the plugin itself: the correlation key header is set only later
+     * by the input route of the plugin (or belongs to the upstream plugin at this point)
+     */
+    public static class ClaimableSaver extends ClayProcessor implements org.apache.camel.Processor {
+        final MongoClaimableQueue queue;
+        final Plugin plugin;
+
+        ClaimableSaver(MongoClaimableQueue queue, Plugin plugin, MessagesSerializer messagesSerializer) {
+            super(plugin.getContext().getClassLoader(), messagesSerializer);
+            this.queue = queue;
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void process(Exchange exchange) {
+            processAfterIn(exchange);
+            final Object event = exchange.getIn().getBody();
+            if (event != null) {
+                queue.add(msg(event, plugin), routingKey(exchange));
+            }
+            exchange.getIn().setBody(null);
+            processBeforeOut(exchange);
+        }
+
+        private String routingKey(Exchange exchange) {
+            final AggregationKeyStrategy keyStrategy = plugin.getContext().getKeyStrategy();
+            return (queue.getPartitions() > 0 && keyStrategy != null) ? keyStrategy.aggregationKey(exchange) : null;
+        }
+    }
+
 }
@@ -25,6 +25,7 @@ public class MongodbQuartzInitializer extends AbstractQuartzInitializer<MongoPes
     public static final int MAX_CHECK_INTERVAL_MS = 20000;
 
     private final MongoPessimisticRepo repo;
+    private MongoLockNotifications lockNotifications;
 
     @SuppressWarnings("unchecked")
     public MongodbQuartzInitializer(MongoClient mongoClient, String dbName, Scheduler scheduler, AppConfig config) {
@@ -36,6 +37,25 @@ public class MongodbQuartzInitializer extends AbstractQuartzInitializer<MongoPes
         );
     }
 
+    /**
+     * Sets the notifications about the released locks to wake up the standby nodes when the master lock is released
+     */
+    public void setLockNotifications(MongoLockNotifications lockNotifications) {
+        this.lockNotifications = lockNotifications;
+    }
+
+    /**
+     * Waits for the release of the master lock within the heartbeat interval if the notifications are enabled
+     */
+    @Override
+    public boolean lock() throws InterruptedException {
+        if (lockNotifications == null) {
+            return super.lock();
+        }
+        return lockNotifications.tryLock(INITIALIZER_KS + "/" + DEFAULT_QUARTZ_LOCK, heartBeatInterval,
+                () -> getLock().tryLock());
+    }
+
     @Override
     protected MongoPessimisticLock initLock() {
         return new MongoPessimisticLock(repo.getLock(), DEFAULT_QUARTZ_LOCK);
@@ -44,6 +64,9 @@ public class MongodbQuartzInitializer extends AbstractQuartzInitializer<MongoPes
     @Override
     public void unlock() {
         getLock().forceUnlock();
+        if (lockNotifications != null) {
+            lockNotifications.released(INITIALIZER_KS + "/" + DEFAULT_QUARTZ_LOCK);
+        }
     }
 
     @Override
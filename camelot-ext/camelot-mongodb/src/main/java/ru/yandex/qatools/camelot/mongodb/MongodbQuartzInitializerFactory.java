@@ -12,14 +12,23 @@ import ru.yandex.qatools.camelot.common.builders.QuartzInitializerFactory;
 public class MongodbQuartzInitializerFactory implements QuartzInitializerFactory {
     private final MongoClient mongoClient;
     private final String dbName;
+    private MongoLockNotifications lockNotifications;
 
     public MongodbQuartzInitializerFactory(MongoClient mongoClient, String dbName) {
         this.mongoClient = mongoClient;
         this.dbName = dbName;
     }
 
+    public void setLockNotifications(MongoLockNotifications lockNotifications) {
+        this.lockNotifications = lockNotifications;
+    }
+
     @Override
     public QuartzInitializer newQuartzInitilizer(Scheduler scheduler, AppConfig config) {
-        return new MongodbQuartzInitializer(mongoClient, dbName, scheduler, config);
+        final MongodbQuartzInitializer initializer = new MongodbQuartzInitializer(mongoClient, dbName, scheduler, config);
+        if (lockNotifications != null && lockNotifications.isEnabled()) {
+            initializer.setLockNotifications(lockNotifications);
+        }
+        return initializer;
     }
 }
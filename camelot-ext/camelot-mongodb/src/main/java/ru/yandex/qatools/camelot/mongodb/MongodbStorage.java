@@ -1,40 +1,178 @@
 package ru.yandex.qatools.camelot.mongodb;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
 import org.slf4j.Logger;
 import ru.qatools.mongodb.MongoPessimisticRepo;
 import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+import static java.lang.String.format;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
+ * The storage of the plugin within MongoDB.
+ * When the collection is given, the storage keeps the values there itself by the key as {@code _id}
+ * and uses the repository for the locks only, so the bulk operations are performed by the single query
+ * ({@code $in} for the reads and {@code bulkWrite} for the writes) instead of the query per key.
+ *
  * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
  * @author Innokenty Shuvalov (mailto: innokenty@yandex-team.ru)
  */
 public class MongodbStorage<T extends Serializable> implements Storage<T> {
+    /**
+     * The suffix of the collection keeping the values of the storage
+     */
+    public static final String COLLECTION_SUFFIX = "_repo";
+    private static final String ID_FIELD = "_id";
+    private static final int BATCH_SIZE = 1000;
     private static final Logger LOGGER = getLogger(MongodbStorage.class);
     private final MongoPessimisticRepo<T> mongoRepo;
+    private final MongoCollection<Document> collection;
+    private final MongoSerializer serializer;
+    private final Class<T> valueClass;
 
     public MongodbStorage(MongoPessimisticRepo<T> mongoRepo) {
+        this(mongoRepo, null, null, null);
+    }
+
+    /**
+     * Creates the storage keeping the values within the given collection, the repository is used for the locks only
+     */
+    public MongodbStorage(MongoPessimisticRepo<T> mongoRepo, MongoCollection<Document> collection,
+                          MongoSerializer serializer, Class<T> valueClass) {
         this.mongoRepo = mongoRepo;
+        this.collection = collection;
+        this.serializer = serializer;
+        this.valueClass = valueClass;
     }
 
     @Override
     public T get(String key) {
-        return mongoRepo.get(key);
+        if (collection == null) {
+            return mongoRepo.get(key);
+        }
+        final Document document = collection.find(eq(ID_FIELD, key)).first();
+        return (document != null) ? fromDocument(document) : null;
+    }
+
+    @Override
+    public Map<String, T> getAll(Collection<String> keys) {
+        if (collection == null) {
+            return Storage.super.getAll(keys);
+        }
+        final Map<String, T> result = new HashMap<>(keys.size(), 1);
+        for (Document document : collection.find(in(ID_FIELD, keys))) {
+            final T value = fromDocument(document);
+            if (value != null) {
+                result.put(document.getString(ID_FIELD), value);
+            }
+        }
+        return result;
     }
 
     @Override
     public Set<String> keys() {
-        return mongoRepo.keySet();
+        if (collection == null) {
+            return mongoRepo.keySet();
+        }
+        final Set<String> result = new LinkedHashSet<>();
+        for (Document document : collection.find().projection(include(ID_FIELD)).batchSize(BATCH_SIZE)) {
+            result.add(document.getString(ID_FIELD));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the values by the server-side cursor instead of loading them at once
+     */
+    @Override
+    public void forEach(BiConsumer<String, ? super T> action) {
+        if (collection == null) {
+            Storage.super.forEach(action);
+            return;
+        }
+        for (Document document : collection.find().batchSize(BATCH_SIZE)) {
+            final T value = fromDocument(document);
+            if (value != null) {
+                action.accept(document.getString(ID_FIELD), value);
+            }
+        }
     }
 
     @Override
     public void put(String key, T value) {
-        mongoRepo.put(key, value);
+        if (value == null) {
+            remove(key);
+        } else if (collection == null) {
+            mongoRepo.put(key, value);
+        } else {
+            collection.updateOne(eq(ID_FIELD, key), new Document("$set", serializer.toDBObject(value)),
+                    new UpdateOptions().upsert(true));
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        if (collection == null) {
+            mongoRepo.remove(key);
+        } else {
+            collection.deleteOne(eq(ID_FIELD, key));
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, T> values) {
+        if (collection == null) {
+            Storage.super.putAll(values);
+            return;
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        final UpdateOptions upsert = new UpdateOptions().upsert(true);
+        final List<WriteModel<Document>> writes = new ArrayList<>(values.size());
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                writes.add(new DeleteOneModel<>(eq(ID_FIELD, entry.getKey())));
+            } else {
+                writes.add(new UpdateOneModel<>(eq(ID_FIELD, entry.getKey()),
+                        new Document("$set", serializer.toDBObject(entry.getValue())), upsert));
+            }
+        }
+        collection.bulkWrite(writes);
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        if (collection == null) {
+            Storage.super.removeAll(keys);
+            return;
+        }
+        if (!keys.isEmpty()) {
+            final List<WriteModel<Document>> writes = new ArrayList<>(1);
+            writes.add(new DeleteManyModel<>(in(ID_FIELD, keys)));
+            collection.bulkWrite(writes);
+        }
     }
 
     @Override
@@ -56,4 +194,13 @@ public class MongodbStorage<T extends Serializable> implements Storage<T> {
             LOGGER.warn(String.format("Failed to lock storage by key %s", key), e);
         }
     }
+
+    private T fromDocument(Document document) {
+        try {
+            return serializer.fromDBObject(document, valueClass);
+        } catch (Exception e) {
+            throw new RepositoryFailureException(format("Failed to read the value of the key '%s'",
+                    document.get(ID_FIELD)), e);
+        }
+    }
 }
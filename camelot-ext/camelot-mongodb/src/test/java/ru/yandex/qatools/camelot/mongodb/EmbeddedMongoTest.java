@@ -0,0 +1,39 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.MongoClient;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import ru.yandex.qatools.embed.service.MongoEmbeddedService;
+
+import static ru.yandex.qatools.camelot.util.SocketUtil.findFreePort;
+
+/**
+ * Starts the embedded MongoDB for the tests of the class, each test starts with the empty database
+ *
+ * @author Ilya Sadykov
+ */
+public abstract class EmbeddedMongoTest {
+    public static final String DB_NAME = "camelot";
+
+    protected static MongoEmbeddedService mongo;
+    protected static MongoClient mongoClient;
+
+    @BeforeClass
+    public static void startMongo() throws Exception {
+        mongo = new MongoEmbeddedService("localhost:" + findFreePort(), DB_NAME);
+        mongo.start();
+        mongoClient = new MongoClient(mongo.getHost(), mongo.getPort());
+    }
+
+    @AfterClass
+    public static void stopMongo() {
+        mongoClient.close();
+        mongo.stop();
+    }
+
+    @Before
+    public void dropDatabase() {
+        mongoClient.getDatabase(DB_NAME).drop();
+    }
+}
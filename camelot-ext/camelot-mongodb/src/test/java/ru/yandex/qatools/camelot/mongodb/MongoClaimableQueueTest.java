@@ -0,0 +1,266 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.common.BasicMessagesSerializer;
+import ru.yandex.qatools.camelot.common.DeclaredAggregationKeyStrategy;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.lang.System.currentTimeMillis;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static ru.yandex.qatools.camelot.api.Constants.Headers.CORRELATION_KEY;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongoClaimableQueueTest extends EmbeddedMongoTest {
+    private static final String QUEUE = "queue";
+    private static final int MESSAGES = 200;
+
+    @Test
+    public void testCompetingConsumersHandleEachMessageOnce() throws Exception {
+        final MongoClaimableQueue node1 = queue(30000, 0);
+        final MongoClaimableQueue node2 = queue(30000, 0);
+        for (int i = 0; i < MESSAGES; i++) {
+            node1.add(new MongoQueueMessage("plugin", i), null);
+        }
+
+        final Queue<Object> handled = new ConcurrentLinkedQueue<>();
+        final MongoQueueConsumers consumers1 = consumers(node1, handled::add);
+        final MongoQueueConsumers consumers2 = consumers(node2, handled::add);
+        try {
+            await(() -> handled.size() >= MESSAGES, 30000);
+            Thread.sleep(500);
+        } finally {
+            consumers1.close();
+            consumers2.close();
+        }
+
+        assertThat(handled.size(), is(MESSAGES));
+        assertThat(new HashSet<>(handled).size(), is(MESSAGES));
+        assertThat(consumers1.getHandledCount(), greaterThan(0L));
+        assertThat(consumers2.getHandledCount(), greaterThan(0L));
+        assertThat(consumers1.getHandledCount() + consumers2.getHandledCount(), is((long) MESSAGES));
+        assertThat(messagesCount(), is(0L));
+    }
+
+    @Test
+    public void testPartitionsKeepOrderOfKeyAcrossConsumers() throws Exception {
+        final MongoClaimableQueue node1 = queue(30000, 4);
+        final MongoClaimableQueue node2 = queue(30000, 4);
+        for (int i = 0; i < MESSAGES; i++) {
+            node1.add(new MongoQueueMessage("plugin", new Event("key" + (i % 8), i)), "key" + (i % 8));
+        }
+
+        assertHandledInOrderOfKeys(node1, node2);
+    }
+
+    @Test
+    public void testSaverRoutesEventsByAggregationKeyOfPlugin() throws Exception {
+        final MongoClaimableQueue node1 = queue(30000, 4);
+        final MongoClaimableQueue node2 = queue(30000, 4);
+        final BasicMessagesSerializer serializer = new BasicMessagesSerializer();
+        final PluginContext context = new PluginContext();
+        context.setId("plugin");
+        context.setClassLoader(getClass().getClassLoader());
+        context.setMessagesSerializer(serializer);
+        context.setKeyStrategy(new DeclaredAggregationKeyStrategy(context, null, "key"));
+        final Plugin plugin = new Plugin();
+        plugin.setId("plugin");
+        plugin.setContext(context);
+
+        final CamelContext camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from("direct:upstream").process(
+                        new MongodbDirectRoutesInitializer.ClaimableSaver(node1, plugin, serializer));
+            }
+        });
+        camelContext.start();
+        try {
+            final ProducerTemplate producer = camelContext.createProducerTemplate();
+            for (int i = 0; i < MESSAGES; i++) {
+                producer.sendBodyAndHeader("direct:upstream", new Event("key" + (i % 8), i),
+                        CORRELATION_KEY, "upstream");
+            }
+        } finally {
+            camelContext.stop();
+        }
+
+        final MongoCollection<Document> messages = mongoClient.getDatabase(DB_NAME).getCollection(QUEUE);
+        assertThat(messages.count(eq("partition", null)), is(0L));
+        assertThat(messages.distinct("partition", Integer.class).into(new HashSet<>()).size(), greaterThan(1));
+        assertHandledInOrderOfKeys(node1, node2);
+    }
+
+    @Test
+    public void testClaimOfDeadConsumerExpires() throws Exception {
+        final MongoClaimableQueue queue = queue(300, 0);
+        queue.add(new MongoQueueMessage("plugin", "first"), null);
+        queue.add(new MongoQueueMessage("plugin", "second"), null);
+
+        final List<MongoClaimableQueue.Claimed> claimed = queue.claim(null, 10);
+        assertThat(ids(claimed).size(), is(2));
+        assertThat(claimed.stream().map(MongoClaimableQueue.Claimed::getAttempts).collect(toList()),
+                everyItem(is(1)));
+        assertThat(queue.claim(null, 10), empty());
+
+        Thread.sleep(400);
+        final List<MongoClaimableQueue.Claimed> reclaimed = queue.claim(null, 10);
+        assertThat(ids(reclaimed), is(ids(claimed)));
+        assertThat(reclaimed.stream().map(MongoClaimableQueue.Claimed::getAttempts).collect(toList()),
+                everyItem(is(2)));
+        assertThat(reclaimed.stream().map(c -> c.getMessage().object).collect(toList()),
+                contains((Object) "first", "second"));
+    }
+
+    @Test
+    public void testClaimedMessageBlocksLaterMessagesOfPartition() throws Exception {
+        final MongoClaimableQueue queue = queue(300, 2);
+        queue.add(new MongoQueueMessage("plugin", "first"), "key");
+        queue.add(new MongoQueueMessage("plugin", "second"), "key");
+        queue.add(new MongoQueueMessage("plugin", "third"), "key");
+        final int partition = Math.abs("key".hashCode() % 2);
+
+        final List<MongoClaimableQueue.Claimed> failed = queue.claim(partition, 1);
+        assertThat(failed.size(), is(1));
+        assertThat(queue.claim(partition, 10), empty());
+
+        Thread.sleep(400);
+        final List<MongoClaimableQueue.Claimed> reclaimed = queue.claim(partition, 10);
+        assertThat(reclaimed.stream().map(c -> c.getMessage().object).collect(toList()),
+                contains((Object) "first", "second", "third"));
+        assertThat(reclaimed.get(0).getId(), is(failed.get(0).getId()));
+        assertThat(reclaimed.get(0).getAttempts(), is(2));
+    }
+
+    @Test
+    public void testMessagesOfDeadConsumerAreHandledByAnotherNode() throws Exception {
+        final MongoClaimableQueue dead = queue(500, 0);
+        final MongoClaimableQueue alive = queue(500, 0);
+        dead.add(new MongoQueueMessage("plugin", "first"), null);
+        dead.add(new MongoQueueMessage("plugin", "second"), null);
+        assertThat(dead.claim(null, 10).size(), is(2));
+
+        final Queue<Object> handled = new ConcurrentLinkedQueue<>();
+        final long started = currentTimeMillis();
+        final MongoQueueConsumers consumers = consumers(alive, handled::add);
+        try {
+            await(() -> handled.size() >= 2, 10000);
+        } finally {
+            consumers.close();
+        }
+
+        assertThat(currentTimeMillis() - started, greaterThan(300L));
+        assertThat(handled, containsInAnyOrder((Object) "first", "second"));
+        assertThat(messagesCount(), is(0L));
+    }
+
+    private static void assertHandledInOrderOfKeys(MongoClaimableQueue node1, MongoClaimableQueue node2)
+            throws InterruptedException {
+        final Map<String, List<Integer>> handled = new ConcurrentHashMap<>();
+        final Consumer<Object> handler = event -> handled.computeIfAbsent(((Event) event).getKey(),
+                key -> new CopyOnWriteArrayList<>()).add(((Event) event).getIndex());
+        final MongoQueueConsumers consumers1 = consumers(node1, handler);
+        final MongoQueueConsumers consumers2 = consumers(node2, handler);
+        try {
+            await(() -> handled.values().stream().mapToInt(List::size).sum() >= MESSAGES, 30000);
+        } finally {
+            consumers1.close();
+            consumers2.close();
+        }
+
+        assertThat(handled.size(), is(8));
+        for (List<Integer> sequence : handled.values()) {
+            final List<Integer> sorted = new ArrayList<>(sequence);
+            sorted.sort(Integer::compare);
+            assertThat(sequence, is(sorted));
+            assertThat(sequence.size(), is(MESSAGES / 8));
+        }
+        assertThat(messagesCount(), is(0L));
+    }
+
+    private MongoClaimableQueue queue(long leaseMs, int partitions) {
+        final MongoClaimableQueue queue = new MongoClaimableQueue(mongoClient, DB_NAME, QUEUE,
+                new MongoSerializerBinary(new BasicMessagesSerializer(), getClass().getClassLoader()),
+                leaseMs, partitions);
+        queue.init();
+        return queue;
+    }
+
+    private static MongoQueueConsumers consumers(MongoClaimableQueue queue, Consumer<Object> handler) {
+        final MongoQueueConsumers consumers = new MongoQueueConsumers(queue, QUEUE, 3, 10, 10, message -> {
+            handler.accept(message.object);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumers.start();
+        return consumers;
+    }
+
+    private static long messagesCount() {
+        return mongoClient.getDatabase(DB_NAME).getCollection(QUEUE).count();
+    }
+
+    private static List<ObjectId> ids(List<MongoClaimableQueue.Claimed> claimed) {
+        return claimed.stream().map(MongoClaimableQueue.Claimed::getId).collect(toList());
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        final long deadline = currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue("The condition is not met within " + timeoutMs + "ms", currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public static class Event implements Serializable {
+        private final String key;
+        private final int index;
+
+        public Event(String key, int index) {
+            this.key = key;
+            this.index = index;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+    }
+}
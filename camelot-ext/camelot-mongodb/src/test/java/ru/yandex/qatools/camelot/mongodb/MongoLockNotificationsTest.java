@@ -0,0 +1,112 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongoLockNotificationsTest extends EmbeddedMongoTest {
+
+    @Test
+    public void testWaiterIsWokenUpByRelease() throws Exception {
+        final MongoLockNotifications notifications = new MongoLockNotifications(null, "camelot", false, 0, 10000);
+        final AtomicBoolean free = new AtomicBoolean(false);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                assertTrue(waiting.await(5, SECONDS));
+                Thread.sleep(200);
+                free.set(true);
+                notifications.released("repo/key");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start();
+
+        final long started = currentTimeMillis();
+        final boolean locked = notifications.tryLock("repo/key", 5000, () -> {
+            waiting.countDown();
+            return free.get();
+        });
+        assertThat(locked, is(true));
+        assertThat(currentTimeMillis() - started, lessThan(5000L));
+        assertThat(notifications.getNotifiedWakeups(), is(1L));
+        assertThat(notifications.getFallbackWakeups(), is(0L));
+        assertThat(notifications.getAttempts(), is(2L));
+        assertThat(notifications.getLockWaits().getCount(), is(1L));
+    }
+
+    @Test
+    public void testWaiterFallsBackToPollingWithoutRelease() throws Exception {
+        final MongoLockNotifications notifications = new MongoLockNotifications(null, "camelot", false, 0, 50);
+        final boolean locked = notifications.tryLock("repo/key", 300, () -> false);
+        assertThat(locked, is(false));
+        assertThat(notifications.getFallbackWakeups(), greaterThanOrEqualTo(3L));
+        assertThat(notifications.getLockWaits().getTimeouts(), is(1L));
+    }
+
+    @Test
+    public void testWaiterIsWokenUpByReleaseOfAnotherNode() throws Exception {
+        final MongoLockNotifications node1 = new MongoLockNotifications(mongoClient, DB_NAME, true, 1048576, 10000);
+        final MongoLockNotifications node2 = new MongoLockNotifications(mongoClient, DB_NAME, true, 1048576, 10000);
+        node1.start();
+        node2.start();
+        try {
+            node1.released("repo/warmup");
+            await(() -> node2.getReceived() >= 1, 15000);
+
+            final AtomicBoolean free = new AtomicBoolean(false);
+            final CountDownLatch waiting = new CountDownLatch(1);
+            new Thread(() -> {
+                try {
+                    assertTrue(waiting.await(5, SECONDS));
+                    Thread.sleep(200);
+                    free.set(true);
+                    node1.released("repo/key");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }).start();
+
+            final long started = currentTimeMillis();
+            final boolean locked = node2.tryLock("repo/key", 5000, () -> {
+                waiting.countDown();
+                return free.get();
+            });
+            assertThat(locked, is(true));
+            assertThat(currentTimeMillis() - started, lessThan(5000L));
+            assertThat(node2.getNotifiedWakeups(), is(1L));
+            assertThat(node2.getFallbackWakeups(), is(0L));
+            assertThat(node1.getPublished(), is(2L));
+            assertThat(node2.getReceived(), greaterThanOrEqualTo(2L));
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFallbackPollingMustBeBounded() throws Exception {
+        new MongoLockNotifications(null, "camelot", false, 0, 0);
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        final long deadline = currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue("The condition is not met within " + timeoutMs + "ms", currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
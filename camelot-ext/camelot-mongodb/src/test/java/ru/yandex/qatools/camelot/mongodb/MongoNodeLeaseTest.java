@@ -0,0 +1,54 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongoNodeLeaseTest extends EmbeddedMongoTest {
+
+    private MongoCollection<Document> leases;
+
+    @Before
+    public void setUp() {
+        leases = mongoClient.getDatabase(DB_NAME).getCollection(MongoNodeLease.COLLECTION);
+    }
+
+    @Test
+    public void testLeaseIsHeldBySingleNode() throws Exception {
+        final MongoNodeLease node1 = new MongoNodeLease(leases, "write-behind/plugin", 30000);
+        final MongoNodeLease node2 = new MongoNodeLease(leases, "write-behind/plugin", 30000);
+
+        assertThat(node1.acquire(1000), is(true));
+        assertThat(node1.tryAcquire(), is(true));
+        assertThat(node2.acquire(300), is(false));
+        assertThat(node2.renew(), is(false));
+        assertThat(node2.getHolder(), is(node1.getNodeId()));
+
+        node2.release();
+        assertThat(node1.renew(), is(true));
+
+        node1.release();
+        assertThat(node2.tryAcquire(), is(true));
+        assertThat(node1.renew(), is(false));
+        assertThat(node1.getHolder(), is(node2.getNodeId()));
+    }
+
+    @Test
+    public void testLeaseOfFailedNodeExpires() throws Exception {
+        final MongoNodeLease failed = new MongoNodeLease(leases, "write-behind/plugin", 200);
+        final MongoNodeLease other = new MongoNodeLease(leases, "write-behind/plugin", 30000);
+
+        assertThat(failed.tryAcquire(), is(true));
+        assertThat(other.tryAcquire(), is(false));
+        assertThat(other.acquire(3000), is(true));
+        assertThat(other.getHolder(), is(other.getNodeId()));
+        assertThat(failed.renew(), is(false));
+    }
+}
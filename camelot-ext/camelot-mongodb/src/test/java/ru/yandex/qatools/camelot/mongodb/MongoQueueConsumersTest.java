@@ -0,0 +1,76 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongoQueueConsumersTest {
+
+    @Test
+    public void testPartitionIsHandledInOrderAndReleased() throws Exception {
+        final MongoClaimableQueue queue = mock(MongoClaimableQueue.class);
+        final MongoClaimableQueue.Claimed first = claimed("first");
+        final MongoClaimableQueue.Claimed second = claimed("second");
+        when(queue.getPartitions()).thenReturn(4);
+        when(queue.claimPartition(anyString())).thenReturn(2, (Integer) null);
+        when(queue.renewPartition(eq(2), anyString())).thenReturn(true);
+        when(queue.claim(eq(2), anyInt())).thenReturn(asList(first, second), emptyList());
+        when(queue.claim((Integer) isNull(), anyInt())).thenReturn(emptyList());
+
+        final List<Object> handled = new CopyOnWriteArrayList<>();
+        final MongoQueueConsumers consumers = new MongoQueueConsumers(queue, "plugin", 1, 10, 10,
+                m -> handled.add(m.object));
+        consumers.start();
+        verify(queue, timeout(3000)).releasePartition(eq(2), anyString());
+        consumers.close();
+
+        assertThat(handled, contains((Object) "first", "second"));
+        verify(queue).ack(asList(first.getId(), second.getId()));
+        assertThat(consumers.getHandledCount(), is(2L));
+    }
+
+    @Test
+    public void testFailedMessageIsNotAcknowledged() throws Exception {
+        final MongoClaimableQueue queue = mock(MongoClaimableQueue.class);
+        final MongoClaimableQueue.Claimed failing = claimed("failing");
+        final MongoClaimableQueue.Claimed passing = claimed("passing");
+        when(queue.claim((Integer) isNull(), anyInt())).thenReturn(asList(failing, passing), emptyList());
+
+        final MongoQueueConsumers consumers = new MongoQueueConsumers(queue, "plugin", 2, 10, 10, m -> {
+            if ("failing".equals(m.object)) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        consumers.start();
+        verify(queue, timeout(3000)).ack(singletonList(passing.getId()));
+        consumers.close();
+
+        verify(queue, atLeastOnce()).claim((Integer) isNull(), anyInt());
+        assertThat(consumers.getFailedCount(), is(1L));
+    }
+
+    private static MongoClaimableQueue.Claimed claimed(String event) {
+        return new MongoClaimableQueue.Claimed(new ObjectId(), 1, new MongoQueueMessage("plugin", event));
+    }
+}
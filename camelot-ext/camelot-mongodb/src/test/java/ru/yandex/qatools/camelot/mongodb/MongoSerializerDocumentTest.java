@@ -0,0 +1,142 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.BasicDBObject;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.bson.Document;
+import org.junit.Test;
+import ru.yandex.qatools.camelot.common.BasicMessagesSerializer;
+import ru.yandex.qatools.camelot.common.MessagesSerializer;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongoSerializerDocumentTest {
+
+    private final MessagesSerializer messagesSerializer = new BasicMessagesSerializer();
+    private final ClassLoader classLoader = getClass().getClassLoader();
+    private final MongoSerializerDocument serializer = new MongoSerializerDocument(messagesSerializer, classLoader);
+
+    @Test
+    public void testStateIsKeptAsDocument() throws Exception {
+        final Counter counter = new Counter();
+        counter.count = 5;
+        counter.name = "counter";
+        counter.tags.put("color", "red");
+
+        final BasicDBObject document = serializer.toDBObject(holder(counter));
+        final Counter restored = state(serializer.fromDBObject(new Document(document), DefaultExchangeHolder.class));
+
+        assertThat(document.get(MongoSerializerDocument.STATE_CLASS_FIELD), equalTo((Object) Counter.class.getName()));
+        assertThat(((Map) document.get(MongoSerializerDocument.STATE_FIELD)).get("count"), equalTo((Object) 5));
+        assertThat(restored.count, is(5));
+        assertThat(restored.name, is("counter"));
+        assertThat(restored.tags.get("color"), is("red"));
+    }
+
+    @Test
+    public void testIncompatibleStateIsKeptAsBinary() throws Exception {
+        final Amount amount = new Amount();
+        amount.value = new BigDecimal("1.5");
+
+        final BasicDBObject document = serializer.toDBObject(holder(amount));
+        final Amount restored = state(serializer.fromDBObject(new Document(document), DefaultExchangeHolder.class));
+
+        assertThat(document.get(MongoSerializerDocument.STATE_CLASS_FIELD), nullValue());
+        assertThat(restored.value, equalTo(new BigDecimal("1.5")));
+    }
+
+    @Test
+    public void testPolymorphicStateIsKeptAsBinary() throws Exception {
+        final Shapes plain = new Shapes();
+        plain.main = "circle";
+        final Shapes polymorphic = new Shapes();
+        polymorphic.main = new Circle();
+        polymorphic.shapes.add(new Circle());
+
+        final BasicDBObject plainDocument = serializer.toDBObject(holder(plain));
+        final BasicDBObject document = serializer.toDBObject(holder(polymorphic));
+        final Shapes restored = state(serializer.fromDBObject(new Document(document), DefaultExchangeHolder.class));
+
+        assertThat(plainDocument.get(MongoSerializerDocument.STATE_CLASS_FIELD), equalTo((Object) Shapes.class.getName()));
+        assertThat(document.get(MongoSerializerDocument.STATE_CLASS_FIELD), nullValue());
+        assertThat(restored.main, instanceOf(Circle.class));
+        assertThat(restored.shapes.get(0), instanceOf(Circle.class));
+        assertThat(((Circle) restored.shapes.get(0)).radius, is(1));
+    }
+
+    @Test
+    public void testDiffIncrementsCountersAndSetsChangedFields() throws Exception {
+        final Counter counter = new Counter();
+        counter.count = 5;
+        counter.name = "counter";
+        counter.tags.put("color", "red");
+        counter.tags.put("size", "big");
+        final Document stored = MongoDocumentDiff.toDocument(serializer.toDBObject(holder(counter)));
+        counter.count = 7;
+        counter.tags.put("color", "green");
+        counter.tags.remove("size");
+
+        final Document update = MongoDocumentDiff.update(stored,
+                MongoDocumentDiff.toDocument(serializer.toDBObject(holder(counter))));
+
+        assertThat(((Document) update.get("$inc")).get("state.count"), equalTo((Object) 2));
+        assertThat(((Document) update.get("$set")).get("state.tags.color"), equalTo((Object) "green"));
+        assertThat((Document) update.get("$set"), not(hasKey("state.name")));
+        assertThat((Document) update.get("$unset"), hasKey("state.tags.size"));
+        assertThat(MongoDocumentDiff.update(stored, stored).isEmpty(), is(true));
+    }
+
+    private DefaultExchangeHolder holder(Object state) {
+        final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(messagesSerializer.serialize(state, classLoader));
+        return DefaultExchangeHolder.marshal(exchange);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T state(DefaultExchangeHolder holder) {
+        final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        DefaultExchangeHolder.unmarshal(exchange, holder);
+        return (T) messagesSerializer.deserialize(exchange.getIn().getBody(), classLoader);
+    }
+
+    public static class Counter implements Serializable {
+        int count;
+        String name;
+        Map<String, String> tags = new HashMap<>();
+    }
+
+    public static class Amount implements Serializable {
+        BigDecimal value;
+    }
+
+    public static class Shapes implements Serializable {
+        Object main;
+        List<Shape> shapes = new ArrayList<>();
+    }
+
+    public abstract static class Shape implements Serializable {
+        String color = "red";
+    }
+
+    public static class Circle extends Shape {
+        int radius = 1;
+    }
+}
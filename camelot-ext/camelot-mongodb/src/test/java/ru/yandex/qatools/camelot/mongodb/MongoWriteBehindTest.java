@@ -0,0 +1,139 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Ilya Sadykov
+ */
+@SuppressWarnings("unchecked")
+public class MongoWriteBehindTest {
+
+    private MongoCollection<Document> collection;
+    private MongoSerializer serializer;
+    private ScheduledExecutorService flusher;
+
+    @Before
+    public void setUp() {
+        collection = mock(MongoCollection.class);
+        serializer = mock(MongoSerializer.class);
+        when(serializer.toDBObject(any())).thenReturn(new BasicDBObject("object", "value"));
+        flusher = newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        flusher.shutdownNow();
+    }
+
+    @Test
+    public void testPendingWritesAreCoalescedPerKey() throws Exception {
+        final MongoWriteBehind writeBehind = new MongoWriteBehind(collection, serializer, "repo", 60000, 100, flusher);
+        final DefaultExchangeHolder first = new DefaultExchangeHolder();
+        final DefaultExchangeHolder last = new DefaultExchangeHolder();
+        writeBehind.put("key1", first);
+        writeBehind.put("key1", last);
+        writeBehind.put("key2", first);
+        writeBehind.remove("key2");
+
+        assertThat(writeBehind.pending("key1"), is(Optional.of(last)));
+        assertThat(writeBehind.pending("key2"), is(Optional.<DefaultExchangeHolder>empty()));
+        assertThat(writeBehind.pending("key3"), nullValue());
+        assertThat(writeBehind.keys(new HashSet<>(asList("key2", "key3"))), containsInAnyOrder("key1", "key3"));
+
+        writeBehind.close();
+        final ArgumentCaptor<List> writes = ArgumentCaptor.forClass(List.class);
+        verify(collection).bulkWrite(writes.capture(), any(BulkWriteOptions.class));
+        final List<WriteModel<Document>> written = writes.getValue();
+        assertThat(written.size(), is(2));
+        assertThat(written.stream().filter(w -> w instanceof UpdateOneModel).count(), is(1L));
+        assertThat(written.stream().filter(w -> w instanceof DeleteOneModel).count(), is(1L));
+        assertThat(writeBehind.getPendingCount(), is(0));
+        assertThat(writeBehind.getWrittenCount(), is(2L));
+    }
+
+    @Test
+    public void testFullBatchIsWrittenBeforeFlushInterval() throws Exception {
+        final MongoWriteBehind writeBehind = new MongoWriteBehind(collection, serializer, "repo", 60000, 2, flusher);
+        writeBehind.put("key1", new DefaultExchangeHolder());
+        verify(collection, never()).bulkWrite(any(List.class), any(BulkWriteOptions.class));
+        writeBehind.put("key2", new DefaultExchangeHolder());
+        verify(collection, timeout(3000)).bulkWrite(any(List.class), any(BulkWriteOptions.class));
+    }
+
+    @Test
+    public void testFailedWritesStayPending() throws Exception {
+        when(collection.bulkWrite(any(List.class), any(BulkWriteOptions.class)))
+                .thenThrow(new IllegalStateException("unreachable"));
+        final MongoWriteBehind writeBehind = new MongoWriteBehind(collection, serializer, "repo", 60000, 100, flusher);
+        writeBehind.put("key1", new DefaultExchangeHolder());
+        writeBehind.flush();
+        assertThat(writeBehind.getPendingCount(), is(1));
+        assertThat(writeBehind.getWrittenCount(), is(0L));
+    }
+
+    @Test
+    public void testCloseRetriesFailedWrites() throws Exception {
+        final MongoNodeLease lease = mock(MongoNodeLease.class);
+        when(collection.bulkWrite(any(List.class), any(BulkWriteOptions.class)))
+                .thenThrow(new IllegalStateException("unreachable")).thenReturn(null);
+        final MongoWriteBehind writeBehind = new MongoWriteBehind(collection, serializer, "repo", 60000, 100, flusher);
+        writeBehind.setLease(lease);
+        writeBehind.put("key1", new DefaultExchangeHolder());
+        writeBehind.close();
+
+        verify(collection, times(2)).bulkWrite(any(List.class), any(BulkWriteOptions.class));
+        assertThat(writeBehind.getPendingCount(), is(0));
+        verify(lease).release();
+    }
+
+    @Test
+    public void testCloseFailsIfWritesRemainPending() throws Exception {
+        final MongoNodeLease lease = mock(MongoNodeLease.class);
+        when(collection.bulkWrite(any(List.class), any(BulkWriteOptions.class)))
+                .thenThrow(new IllegalStateException("unreachable"));
+        final MongoWriteBehind writeBehind = new MongoWriteBehind(collection, serializer, "repo", 60000, 100, flusher);
+        writeBehind.setLease(lease);
+        writeBehind.put("key1", new DefaultExchangeHolder());
+        try {
+            writeBehind.close();
+            fail("Close must fail while the states are pending");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("1 pending states"));
+        }
+        verify(collection, times(3)).bulkWrite(any(List.class), any(BulkWriteOptions.class));
+        assertThat(writeBehind.getPendingCount(), is(1));
+        verify(lease, never()).release();
+    }
+}
@@ -0,0 +1,148 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.bson.Document;
+import org.junit.Test;
+import ru.qatools.mongodb.MongoPessimisticLocking;
+import ru.yandex.qatools.camelot.common.BasicMessagesSerializer;
+import ru.yandex.qatools.camelot.common.MessagesSerializer;
+import ru.yandex.qatools.camelot.mongodb.MongoSerializerDocumentTest.Counter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongodbAggregationRepositoryTest extends EmbeddedMongoTest {
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+    private final MessagesSerializer messagesSerializer = new BasicMessagesSerializer();
+    private final ClassLoader classLoader = getClass().getClassLoader();
+
+    @Test
+    public void testForEachReadsAllStatesByBatches() throws Exception {
+        final MongodbAggregationRepository repo = repository(binarySerializer());
+        final MongodbAggregationRepository otherNode = repository(binarySerializer());
+        otherNode.setIterationBatchSize(2);
+        for (int i = 0; i < 5; i++) {
+            put(repo, "key" + i, i);
+        }
+        remove(repo, "key4");
+
+        final Map<String, Object> states = new HashMap<>();
+        otherNode.forEach(camelContext, (key, exchange) -> states.put(key, state(exchange)));
+
+        assertThat(states.keySet(), containsInAnyOrder("key0", "key1", "key2", "key3"));
+        assertThat(states.get("key3"), equalTo((Object) 3));
+        assertThat(otherNode.values(camelContext).size(), is(4));
+        assertThat(otherNode.getKeys(), containsInAnyOrder("key0", "key1", "key2", "key3"));
+        assertThat(state(otherNode.getWithoutLock(camelContext, "key2")), equalTo((Object) 2));
+    }
+
+    @Test
+    public void testStatesAreUpdatedByDiffs() throws Exception {
+        final MongodbAggregationRepository repo = repository(documentSerializer());
+        final MongodbAggregationRepository otherNode = repository(documentSerializer());
+        final Counter counter = new Counter();
+        counter.count = 5;
+        counter.name = "counter";
+        counter.tags.put("color", "red");
+        counter.tags.put("size", "big");
+        put(repo, "key", counter);
+
+        final Counter loaded = state(otherNode.get(camelContext, "key"));
+        collection().updateOne(eq("_id", "key"), new Document("$set", new Document("state.name", "renamed")));
+        loaded.count = 7;
+        loaded.tags.put("color", "green");
+        loaded.tags.remove("size");
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(messagesSerializer.serialize(loaded, classLoader));
+        otherNode.add(camelContext, "key", exchange);
+
+        final Document stored = collection().find(eq("_id", "key")).first();
+        final Document state = (Document) stored.get(MongoSerializerDocument.STATE_FIELD);
+        assertThat(state.get("count"), equalTo((Object) 7));
+        assertThat("the unchanged fields must not be rewritten", state.get("name"), equalTo((Object) "renamed"));
+        assertThat(state.get("tags"), equalTo((Object) new Document("color", "green")));
+        final Counter restored = state(repo.getWithoutLock(camelContext, "key"));
+        assertThat(restored.count, is(7));
+        assertThat(restored.tags.keySet(), containsInAnyOrder("color"));
+    }
+
+    @Test
+    public void testDiffTurnsStoredDocumentIntoNewOne() throws Exception {
+        final Document before = new Document("_id", "key")
+                .append("count", 1).append("total", 10L).append("name", "before").append("removed", true)
+                .append("nested", new Document("value", 1).append("list", asList(1, 2)))
+                .append("bytes", new byte[]{1, 2});
+        final Document after = new Document("_id", "key")
+                .append("count", 3).append("total", 7L).append("name", "after")
+                .append("nested", new Document("value", 1).append("list", asList(1, 2, 3))
+                        .append("added", new Document("value", "new")))
+                .append("bytes", new byte[]{1, 2});
+        collection().insertOne(before);
+        final Document stored = collection().find(eq("_id", "key")).first();
+
+        final Document update = MongoDocumentDiff.update(stored, after);
+        collection().updateOne(eq("_id", "key"), update);
+
+        final Document updated = collection().find(eq("_id", "key")).first();
+        assertThat(update.get("$set"), equalTo((Object) new Document("name", "after")
+                .append("nested.list", asList(1, 2, 3)).append("nested.added", new Document("value", "new"))));
+        assertThat(update.get("$inc"), equalTo((Object) new Document("count", 2).append("total", -3L)));
+        assertThat(updated.keySet(), containsInAnyOrder("_id", "count", "total", "name", "removed", "nested", "bytes"));
+        assertThat(updated.get("count"), equalTo((Object) 3));
+        assertThat(updated.get("total"), equalTo((Object) 7L));
+        assertThat(updated.get("nested"), equalTo(after.get("nested")));
+        assertThat("the top level fields absent in the new document are left intact",
+                updated.get("removed"), equalTo((Object) true));
+    }
+
+    private MongodbAggregationRepository repository(MongoSerializer serializer) throws Exception {
+        final MongodbAggregationRepository repo = new MongodbAggregationRepository(serializer, "plugin",
+                new MongoPessimisticLocking(mongoClient, DB_NAME, "plugin", 20), 5);
+        repo.setCollection(collection());
+        repo.doStart();
+        return repo;
+    }
+
+    private MongoSerializer binarySerializer() {
+        return new MongoSerializerBinary(messagesSerializer, classLoader);
+    }
+
+    private MongoSerializer documentSerializer() {
+        return new MongoSerializerDocument(messagesSerializer, classLoader);
+    }
+
+    private MongoCollection<Document> collection() {
+        return mongoClient.getDatabase(DB_NAME).getCollection("plugin" + MongodbStorage.COLLECTION_SUFFIX);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T state(Exchange exchange) {
+        return (T) messagesSerializer.deserialize(exchange.getIn().getBody(), classLoader);
+    }
+
+    private void put(MongodbAggregationRepository repo, String key, Object state) {
+        repo.get(camelContext, key);
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(messagesSerializer.serialize(state, classLoader));
+        repo.add(camelContext, key, exchange);
+    }
+
+    private void remove(MongodbAggregationRepository repo, String key) {
+        repo.remove(camelContext, key, repo.get(camelContext, key));
+    }
+}
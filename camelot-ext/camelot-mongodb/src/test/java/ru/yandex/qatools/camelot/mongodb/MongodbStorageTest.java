@@ -0,0 +1,121 @@
+package ru.yandex.qatools.camelot.mongodb;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.qatools.mongodb.MongoPessimisticLocking;
+import ru.qatools.mongodb.MongoPessimisticRepo;
+import ru.yandex.qatools.camelot.common.BasicMessagesSerializer;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Ilya Sadykov
+ */
+public class MongodbStorageTest extends EmbeddedMongoTest {
+
+    private MongodbStorage<Serializable> storage;
+    private MongodbStorage<Serializable> otherNode;
+
+    @Before
+    public void setUp() {
+        storage = storage("storage");
+        otherNode = storage("storage");
+    }
+
+    @Test
+    public void testBulkWritesAreReadByKeys() throws Exception {
+        storage.putAll(values("key1", 1, "key2", 2, "key3", 3));
+        storage.put("key4", 4);
+
+        assertThat(otherNode.get("key2"), equalTo((Serializable) 2));
+        assertThat(otherNode.getAll(asList("key1", "key3", "key5")), equalTo(values("key1", 1, "key3", 3)));
+        assertThat(otherNode.valuesMap(), equalTo(values("key1", 1, "key2", 2, "key3", 3, "key4", 4)));
+
+        storage.removeAll(asList("key1", "key2"));
+        storage.put("key3", null);
+
+        assertThat(otherNode.keys(), containsInAnyOrder("key4"));
+        assertThat(otherNode.get("key1"), nullValue());
+        assertThat(otherNode.getAll(asList("key1", "key2", "key3")).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testNullValuesRemoveKeys() throws Exception {
+        storage.putAll(values("key1", 1, "key2", 2, "key3", 3));
+        final Map<String, Serializable> values = values("key4", 4);
+        values.put("key2", null);
+
+        storage.putAll(values);
+        storage.remove("key3");
+
+        assertThat(otherNode.keys(), containsInAnyOrder("key1", "key4"));
+    }
+
+    @Test
+    public void testForEachReadsAllValues() throws Exception {
+        storage.putAll(values("key1", 1, "key2", 2, "key3", 3));
+        storage.removeAll(asList("key2"));
+
+        final Map<String, Serializable> read = new HashMap<>();
+        otherNode.forEach(read::put);
+
+        assertThat(read, equalTo(values("key1", 1, "key3", 3)));
+    }
+
+    @Test
+    public void testBatchedLockIsExclusiveAcrossNodes() throws Exception {
+        final ExecutorService other = newSingleThreadExecutor();
+        try {
+            assertThat(storage.lockAll(asList("key1", "key2"), 1, SECONDS), is(true));
+            assertThat(on(other, () -> otherNode.lockAll(asList("key0", "key2"), 300, MILLISECONDS)), is(false));
+            assertThat("the keys locked by the failed batch must be released",
+                    storage.lock("key0", 0, SECONDS), is(true));
+
+            storage.unlockAll(asList("key0", "key1", "key2"));
+            assertThat(on(other, () -> otherNode.lockAll(asList("key2", "key3"), 1, SECONDS)), is(true));
+            on(other, () -> {
+                otherNode.unlockAll(asList("key2", "key3"));
+                return true;
+            });
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    private static <T> T on(ExecutorService node, Callable<T> action) throws Exception {
+        return node.submit(action).get(10, SECONDS);
+    }
+
+    private MongodbStorage<Serializable> storage(String id) {
+        final MongoSerializer serializer = new MongoSerializerBinary(new BasicMessagesSerializer(),
+                getClass().getClassLoader());
+        final MongoPessimisticRepo<Serializable> repo = new MongoPessimisticRepo<>(
+                new MongoPessimisticLocking(mongoClient, DB_NAME, id, 20), Serializable.class);
+        repo.setSerializer(serializer);
+        repo.setDeserializer(serializer);
+        return new MongodbStorage<>(repo, mongoClient.getDatabase(DB_NAME)
+                .getCollection(id + MongodbStorage.COLLECTION_SUFFIX), serializer, Serializable.class);
+    }
+
+    private static Map<String, Serializable> values(Object... keysAndValues) {
+        final Map<String, Serializable> result = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            result.put((String) keysAndValues[i], (Serializable) keysAndValues[i + 1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,186 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultExchangeHolder;
+import org.apache.camel.spi.AggregationRepository;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithIteration;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithValuesMap;
+import ru.yandex.qatools.camelot.common.KeyLocks;
+import ru.yandex.qatools.camelot.common.LocalAggregationRepository;
+import ru.yandex.qatools.camelot.common.PersistentAggregationRepository;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+import static ru.yandex.qatools.camelot.rocksdb.RocksdbDatabase.key;
+import static ru.yandex.qatools.camelot.rocksdb.RocksdbDatabase.prefix;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
+
+/**
+ * The local repository keeping the states of the plugin within the embedded RocksDB database,
+ * so the states survive the restart of the node and are not limited by the heap.
+ * The keys are locked within the current process.
+ * The keys and the values are read lazily by the iterator of the database and are never loaded at once.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbAggregationRepository implements AggregationRepository, LocalAggregationRepository,
+        PersistentAggregationRepository, AggregationRepositoryWithValuesMap, AggregationRepositoryWithIteration {
+    public static final String KIND = "repo";
+    private static final Logger LOGGER = getLogger(RocksdbAggregationRepository.class);
+    private final KeyLocks locks = new KeyLocks();
+    private final RocksdbDatabase database;
+    private final Plugin plugin;
+    private final long waitForLockSec;
+    private final byte[] prefix;
+
+    public RocksdbAggregationRepository(RocksdbDatabase database, Plugin plugin, long waitForLockSec) {
+        this.database = database;
+        this.plugin = plugin;
+        this.waitForLockSec = waitForLockSec;
+        this.prefix = prefix(KIND, plugin.getId());
+    }
+
+    /**
+     * Writes the state and unlocks the key. The failures of the write are thrown,
+     * so the state is never dropped silently
+     */
+    @Override
+    public Exchange add(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Adding the state. add/unlock(%s)", plugin.getId(), key));
+            return addWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public Exchange get(CamelContext camelContext, String key) {
+        LOGGER.debug(format("[%s] Getting the state. tryLock(%s)", plugin.getId(), key));
+        try {
+            if (!locks.tryLock(key, waitForLockSec, SECONDS)) {
+                throw new RepositoryLockWaitException(format(
+                        "Failed to acquire the lock for the key '%s' within timeout of %ds", key, waitForLockSec));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryLockWaitException(format("Interrupted while locking the key '%s'", key), e);
+        }
+        try {
+            return getWithoutLock(camelContext, key);
+        } catch (RuntimeException e) {
+            unlock(key);
+            throw e;
+        }
+    }
+
+    @Override
+    public void remove(CamelContext camelContext, String key, Exchange exchange) {
+        try {
+            LOGGER.debug(format("[%s] Removing the state. unlock(%s)", plugin.getId(), key));
+            removeWithoutLock(camelContext, key, exchange);
+        } finally {
+            unlock(key);
+        }
+    }
+
+    @Override
+    public void confirm(CamelContext camelContext, String exchangeId) {
+        unlock(exchangeId);
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        return database.keys(prefix);
+    }
+
+    @Override
+    public Map<String, Exchange> values(final CamelContext camelContext) {
+        return database.values(prefix, bytes -> toExchange(camelContext, bytes));
+    }
+
+    @Override
+    public void forEach(CamelContext camelContext, BiConsumer<String, Exchange> action) {
+        database.forEach(prefix, (key, bytes) -> action.accept(key, toExchange(camelContext, bytes)));
+    }
+
+    @Override
+    public Exchange getWithoutLock(CamelContext camelContext, String key) {
+        final byte[] bytes = database.get(key(prefix, key));
+        return (bytes == null) ? null : toExchange(camelContext, bytes);
+    }
+
+    @Override
+    public Exchange addWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        final byte[] bytes = serializeToBytes(DefaultExchangeHolder.marshal(exchange),
+                plugin.getContext().getClassLoader());
+        if (bytes == null) {
+            throw new RepositoryFailureException(format("Failed to serialize the state of the key '%s'", key));
+        }
+        database.put(key(prefix, key), bytes);
+        return null;
+    }
+
+    @Override
+    public void removeWithoutLock(CamelContext camelContext, String key, Exchange exchange) {
+        database.delete(key(prefix, key));
+    }
+
+    @Override
+    public void unlock(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to unlock key " + key, e);
+        }
+    }
+
+    @Override
+    public void unlockQuietly(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.trace("Sonar trick", e);
+            LOGGER.debug("Failed to quiet unlock repo key '{}' ", key);
+        }
+    }
+
+    @Override
+    public void lock(String key) {
+        try {
+            locks.lock(key);
+        } catch (Exception e) {
+            LOGGER.error("Failed to lock key " + key, e);
+        }
+    }
+
+    /**
+     * Returns the locks of the keys (e.g. to watch the number of the active locks and the contention)
+     */
+    public KeyLocks getLocks() {
+        return locks;
+    }
+
+    private Exchange toExchange(CamelContext camelContext, byte[] bytes) {
+        try {
+            final Exchange exchange = new DefaultExchange(camelContext);
+            DefaultExchangeHolder.unmarshal(exchange,
+                    (DefaultExchangeHolder) deserializeFromBytes(bytes, plugin.getContext().getClassLoader()));
+            return exchange;
+        } catch (Exception e) {
+            throw new RepositoryFailureException(format("[%s] Failed to read the state", plugin.getId()), e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.spi.AggregationRepository;
+import ru.yandex.qatools.camelot.api.AggregatorRepository;
+import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.common.builders.MemoryAggregationRepositoryBuilder;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import static ru.yandex.qatools.camelot.util.NameUtil.pluginStorageKey;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbAggregationRepositoryBuilder extends MemoryAggregationRepositoryBuilder {
+
+    private final RocksdbDatabase database;
+    private final CamelContext camelContext;
+    private final long waitForLockSec;
+
+    public RocksdbAggregationRepositoryBuilder(RocksdbDatabase database, CamelContext camelContext,
+                                               long waitForLockSec) {
+        super(camelContext, waitForLockSec);
+        this.database = database;
+        this.camelContext = camelContext;
+        this.waitForLockSec = waitForLockSec;
+    }
+
+    /**
+     * Initialize the repository of the plugin within the database
+     */
+    @Override
+    public AggregationRepository initWritable(Plugin plugin) throws Exception { //NOSONAR
+        return new RocksdbAggregationRepository(database, plugin, waitForLockSec);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Storage initStorage(Plugin plugin) throws Exception { //NOSONAR
+        return new RocksdbStorage(database, pluginStorageKey(plugin.getId()), plugin.getContext().getClassLoader());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public AggregatorRepository initReadonly(Plugin plugin) throws Exception { //NOSONAR
+        return new RocksdbAggregatorRepository(camelContext, plugin);
+    }
+}
@@ -0,0 +1,84 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.AggregationRepository;
+import ru.yandex.qatools.camelot.common.builders.ReadonlyAggregatorRepository;
+import ru.yandex.qatools.camelot.config.Plugin;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The readonly repository of the states within the RocksDB database.
+ * The values map is the live view of the database deserializing the states on access.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbAggregatorRepository<T extends Serializable> extends ReadonlyAggregatorRepository<T> {
+
+    private final Plugin plugin;
+    private final CamelContext camelContext;
+
+    public RocksdbAggregatorRepository(CamelContext camelContext, Plugin plugin) {
+        super(camelContext, plugin);
+        this.plugin = plugin;
+        this.camelContext = camelContext;
+    }
+
+    @Override
+    public Map<String, T> valuesMap() {
+        final AggregationRepository repo = plugin.getContext().getAggregationRepo();
+        if (!(repo instanceof RocksdbAggregationRepository)) {
+            return super.valuesMap();
+        }
+        final Map<String, Exchange> states = ((RocksdbAggregationRepository) repo).values(camelContext);
+        return new AbstractMap<String, T>() {
+            @Override
+            public Set<Entry<String, T>> entrySet() {
+                return new AbstractSet<Entry<String, T>>() {
+                    @Override
+                    public Iterator<Entry<String, T>> iterator() {
+                        final Iterator<Entry<String, Exchange>> iterator = states.entrySet().iterator();
+                        return new Iterator<Entry<String, T>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return iterator.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, T> next() {
+                                final Entry<String, Exchange> entry = iterator.next();
+                                return new SimpleImmutableEntry<>(entry.getKey(), deserialize(entry.getValue()));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return states.size();
+                    }
+                };
+            }
+
+            @Override
+            public T get(Object key) {
+                return deserialize(states.get(key));
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return states.containsKey(key);
+            }
+
+            @Override
+            public Set<String> keySet() {
+                return states.keySet();
+            }
+        };
+    }
+}
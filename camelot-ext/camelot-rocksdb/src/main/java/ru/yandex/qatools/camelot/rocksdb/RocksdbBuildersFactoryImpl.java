@@ -0,0 +1,24 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.apache.camel.CamelContext;
+import ru.yandex.qatools.camelot.common.builders.AggregationRepositoryBuilder;
+import ru.yandex.qatools.camelot.common.builders.BuildersFactoryImpl;
+
+/**
+ * The factory of the local repositories and storages kept within the embedded RocksDB database
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbBuildersFactoryImpl extends BuildersFactoryImpl {
+
+    protected final RocksdbDatabase database;
+
+    public RocksdbBuildersFactoryImpl(RocksdbDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public AggregationRepositoryBuilder newRepositoryBuilder(CamelContext camelContext) throws Exception { //NOSONAR
+        return new RocksdbAggregationRepositoryBuilder(database, camelContext, getWaitForLockSec());
+    }
+}
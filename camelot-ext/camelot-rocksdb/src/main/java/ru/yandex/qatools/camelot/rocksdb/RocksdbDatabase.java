@@ -0,0 +1,358 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The embedded RocksDB database shared by the repositories and the storages of the plugins.
+ * The data of each repository is kept under its own key prefix.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbDatabase implements Closeable {
+    private static final Logger LOGGER = getLogger(RocksdbDatabase.class);
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    private final String path;
+    private final AtomicInteger openIterators = new AtomicInteger();
+    private long blockCacheMb = 256;
+    private long writeBufferMb = 64;
+    private int maxWriteBuffers = 3;
+    private int parallelism = 4;
+    private int bloomBitsPerKey = 10;
+    private boolean sync;
+    private Options options;
+    private LRUCache blockCache;
+    private BloomFilter bloomFilter;
+    private WriteOptions writeOptions;
+    private RocksDB db;
+
+    public RocksdbDatabase(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens the database creating it if necessary
+     */
+    public synchronized void open() throws Exception { //NOSONAR
+        Files.createDirectories(Paths.get(path));
+        blockCache = new LRUCache(blockCacheMb << 20);
+        bloomFilter = new BloomFilter(bloomBitsPerKey, false);
+        options = new Options()
+                .setCreateIfMissing(true)
+                .setIncreaseParallelism(parallelism)
+                .setMaxBackgroundJobs(parallelism)
+                .setWriteBufferSize(writeBufferMb << 20)
+                .setMaxWriteBufferNumber(maxWriteBuffers)
+                .setCompressionType(CompressionType.LZ4_COMPRESSION)
+                .setTableFormatConfig(new BlockBasedTableConfig()
+                        .setBlockCache(blockCache)
+                        .setFilter(bloomFilter)
+                        .setCacheIndexAndFilterBlocks(true)
+                        .setPinL0FilterAndIndexBlocksInCache(true));
+        writeOptions = new WriteOptions().setSync(sync);
+        db = RocksDB.open(options, path);
+        LOGGER.info("Opened RocksDB at {}: block cache={}MB, write buffer={}MBx{}",
+                path, blockCacheMb, writeBufferMb, maxWriteBuffers);
+    }
+
+    public byte[] get(byte[] key) {
+        try {
+            return db.get(key);
+        } catch (RocksDBException e) {
+            throw new RepositoryFailureException(format("Failed to read the key of %s", path), e);
+        }
+    }
+
+    public void put(byte[] key, byte[] value) {
+        try {
+            db.put(writeOptions, key, value);
+        } catch (RocksDBException e) {
+            throw new RepositoryFailureException(format("Failed to write the key of %s", path), e);
+        }
+    }
+
+    public void delete(byte[] key) {
+        try {
+            db.delete(writeOptions, key);
+        } catch (RocksDBException e) {
+            throw new RepositoryFailureException(format("Failed to delete the key of %s", path), e);
+        }
+    }
+
+    /**
+     * Reads the values of the keys at once. The result is keyed by the same arrays as the given keys
+     * and does not contain the absent keys
+     */
+    public Map<byte[], byte[]> getAll(List<byte[]> keys) {
+        try {
+            return db.multiGet(keys);
+        } catch (RocksDBException e) {
+            throw new RepositoryFailureException(format("Failed to read the keys of %s", path), e);
+        }
+    }
+
+    /**
+     * Writes the values within the single atomic batch. The keys having the null value are deleted
+     */
+    public void write(Map<byte[], byte[]> values) {
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Map.Entry<byte[], byte[]> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    batch.delete(entry.getKey());
+                } else {
+                    batch.put(entry.getKey(), entry.getValue());
+                }
+            }
+            db.write(writeOptions, batch);
+        } catch (RocksDBException e) {
+            throw new RepositoryFailureException(format("Failed to write the batch of %s", path), e);
+        }
+    }
+
+    /**
+     * Iterates over the entries having the key prefix, the prefix is stripped from the keys.
+     * The entries are read by the native iterator one by one, the iterator is released even if the action fails.
+     */
+    public void forEach(byte[] prefix, BiConsumer<String, byte[]> action) {
+        try (PrefixIterator entries = new PrefixIterator(prefix, true)) {
+            while (entries.hasNext()) {
+                final Map.Entry<String, byte[]> entry = entries.next();
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the keys having the prefix, the prefix is stripped from the keys.
+     * The keys are read at once, so no native iterator outlives the call.
+     */
+    public Set<String> keys(byte[] prefix) {
+        final Set<String> result = new LinkedHashSet<>();
+        try (PrefixIterator entries = new PrefixIterator(prefix, false)) {
+            while (entries.hasNext()) {
+                result.add(entries.next().getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the view of the values having the key prefix decoded on access.
+     * The entries are iterated over the keys read at once, each value is read by the key when it is reached.
+     */
+    public <T> Map<String, T> values(final byte[] prefix, final Function<byte[], T> decoder) {
+        return new AbstractMap<String, T>() {
+            @Override
+            public Set<Entry<String, T>> entrySet() {
+                final Set<String> keys = keys(prefix);
+                return new AbstractSet<Entry<String, T>>() {
+                    @Override
+                    public Iterator<Entry<String, T>> iterator() {
+                        final Iterator<String> names = keys.iterator();
+                        return new Iterator<Entry<String, T>>() {
+                            private Entry<String, T> next;
+
+                            @Override
+                            public boolean hasNext() {
+                                while (next == null && names.hasNext()) {
+                                    final String key = names.next();
+                                    final T value = get(key);
+                                    if (value != null) {
+                                        next = new SimpleImmutableEntry<>(key, value);
+                                    }
+                                }
+                                return next != null;
+                            }
+
+                            @Override
+                            public Entry<String, T> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final Entry<String, T> result = next;
+                                next = null;
+                                return result;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return keys.size();
+                    }
+                };
+            }
+
+            @Override
+            public T get(Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                final byte[] bytes = RocksdbDatabase.this.get(key(prefix, (String) key));
+                return (bytes == null) ? null : decoder.apply(bytes);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof String && RocksdbDatabase.this.get(key(prefix, (String) key)) != null;
+            }
+
+            @Override
+            public Set<String> keySet() {
+                return keys(prefix);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of the native iterators which are not released yet
+     */
+    public int getOpenIterators() {
+        return openIterators.get();
+    }
+
+    /**
+     * Returns the key having the prefix
+     */
+    public static byte[] key(byte[] prefix, String key) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        final byte[] result = Arrays.copyOf(prefix, prefix.length + keyBytes.length);
+        System.arraycopy(keyBytes, 0, result, prefix.length, keyBytes.length);
+        return result;
+    }
+
+    /**
+     * Returns the prefix of the keys of the namespace (e.g. the repository of the plugin)
+     */
+    public static byte[] prefix(String kind, String namespace) {
+        return (kind + ":" + namespace + "\0").getBytes(UTF_8);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (db != null) {
+            db.close();
+            writeOptions.close();
+            options.close();
+            bloomFilter.close();
+            blockCache.close();
+            db = null;
+            LOGGER.info("Closed RocksDB at {}", path);
+        }
+    }
+
+    public void setBlockCacheMb(long blockCacheMb) {
+        this.blockCacheMb = blockCacheMb;
+    }
+
+    public void setWriteBufferMb(long writeBufferMb) {
+        this.writeBufferMb = writeBufferMb;
+    }
+
+    public void setMaxWriteBuffers(int maxWriteBuffers) {
+        this.maxWriteBuffers = maxWriteBuffers;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setBloomBitsPerKey(int bloomBitsPerKey) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+    }
+
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterates over the entries having the key prefix, the native iterator is released by {@link #close()}
+     */
+    private final class PrefixIterator implements Iterator<Map.Entry<String, byte[]>>, AutoCloseable {
+        private final RocksIterator iterator;
+        private final byte[] prefix;
+        private final boolean withValues;
+        private boolean closed;
+
+        private PrefixIterator(byte[] prefix, boolean withValues) {
+            this.iterator = db.newIterator();
+            this.prefix = prefix;
+            this.withValues = withValues;
+            openIterators.incrementAndGet();
+            iterator.seek(prefix);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && iterator.isValid() && startsWith(iterator.key(), prefix);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                iterator.close();
+                openIterators.decrementAndGet();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final byte[] key = iterator.key();
+            final Map.Entry<String, byte[]> entry = new AbstractMap.SimpleImmutableEntry<>(
+                    new String(key, prefix.length, key.length - prefix.length, UTF_8),
+                    withValues ? iterator.value() : null);
+            iterator.next();
+            return entry;
+        }
+    }
+}
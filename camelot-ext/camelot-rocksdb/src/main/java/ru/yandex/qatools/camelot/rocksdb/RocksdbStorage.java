@@ -0,0 +1,149 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.slf4j.Logger;
+import ru.yandex.qatools.camelot.api.Storage;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.common.KeyLocks;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+import static org.slf4j.LoggerFactory.getLogger;
+import static ru.yandex.qatools.camelot.rocksdb.RocksdbDatabase.key;
+import static ru.yandex.qatools.camelot.rocksdb.RocksdbDatabase.prefix;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.deserializeFromBytes;
+import static ru.yandex.qatools.camelot.util.SerializeUtil.serializeToBytes;
+
+/**
+ * The storage of the plugin within the embedded RocksDB database.
+ * The keys are locked within the current process.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbStorage<T extends Serializable> implements Storage<T> {
+    public static final String KIND = "storage";
+    private static final Logger LOGGER = getLogger(RocksdbStorage.class);
+    private final KeyLocks locks = new KeyLocks();
+    private final RocksdbDatabase database;
+    private final ClassLoader classLoader;
+    private final byte[] prefix;
+
+    public RocksdbStorage(RocksdbDatabase database, String name, ClassLoader classLoader) {
+        this.database = database;
+        this.classLoader = classLoader;
+        this.prefix = prefix(KIND, name);
+    }
+
+    @Override
+    public T get(String key) {
+        final byte[] bytes = database.get(key(prefix, key));
+        return (bytes == null) ? null : deserialize(bytes);
+    }
+
+    @Override
+    public Map<String, T> getAll(Collection<String> keys) {
+        final Map<byte[], String> names = new LinkedHashMap<>(keys.size(), 1);
+        for (String key : keys) {
+            names.put(key(prefix, key), key);
+        }
+        final Map<byte[], byte[]> values = database.getAll(new ArrayList<>(names.keySet()));
+        final Map<String, T> result = new HashMap<>(values.size(), 1);
+        for (Map.Entry<byte[], byte[]> entry : values.entrySet()) {
+            result.put(names.get(entry.getKey()), deserialize(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> keys() {
+        return database.keys(prefix);
+    }
+
+    @Override
+    public Map<String, T> valuesMap() {
+        return database.values(prefix, this::deserialize);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ? super T> action) {
+        database.forEach(prefix, (key, bytes) -> action.accept(key, deserialize(bytes)));
+    }
+
+    @Override
+    public void put(String key, T value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        database.put(key(prefix, key), serialize(key, value));
+    }
+
+    @Override
+    public void remove(String key) {
+        database.delete(key(prefix, key));
+    }
+
+    @Override
+    public void putAll(Map<String, T> values) {
+        final Map<byte[], byte[]> batch = new LinkedHashMap<>(values.size(), 1);
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            batch.put(key(prefix, entry.getKey()), serialize(entry.getKey(), entry.getValue()));
+        }
+        database.write(batch);
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        final Map<byte[], byte[]> batch = new LinkedHashMap<>(keys.size(), 1);
+        for (String key : keys) {
+            batch.put(key(prefix, key), null);
+        }
+        database.write(batch);
+    }
+
+    @Override
+    public boolean lock(String key, long timeout, TimeUnit ofUnit) {
+        try {
+            return locks.tryLock(key, timeout, ofUnit);
+        } catch (Exception e) {
+            LOGGER.warn(format("Failed to lock storage by key %s", key), e);
+        }
+        return false;
+    }
+
+    @Override
+    public void unlock(String key) {
+        try {
+            locks.unlock(key);
+        } catch (Exception e) {
+            LOGGER.warn(format("Failed to unlock storage by key %s", key), e);
+        }
+    }
+
+    private byte[] serialize(String key, T value) {
+        if (value == null) {
+            return null;
+        }
+        final byte[] bytes = serializeToBytes(value, classLoader);
+        if (bytes == null) {
+            throw new RepositoryFailureException(format("Failed to serialize the value of the key '%s'", key));
+        }
+        return bytes;
+    }
+
+    private T deserialize(byte[] bytes) {
+        try {
+            return deserializeFromBytes(bytes, classLoader);
+        } catch (Exception e) {
+            throw new RepositoryFailureException("Failed to read the value of the storage", e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ru.yandex.qatools.camelot.rocksdb;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.yandex.qatools.camelot.api.error.RepositoryFailureException;
+import ru.yandex.qatools.camelot.api.error.RepositoryLockWaitException;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+public class RocksdbAggregationRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CamelContext camelContext;
+    private Plugin plugin;
+    private RocksdbDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        plugin = plugin("plugin");
+        database = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    public void testStatesSurviveReopen() throws Exception {
+        final RocksdbAggregationRepository repo = new RocksdbAggregationRepository(database, plugin, 1);
+        for (int i = 0; i < 5; i++) {
+            repo.get(camelContext, "key" + i);
+            repo.add(camelContext, "key" + i, state(i));
+        }
+        repo.get(camelContext, "key2");
+        repo.remove(camelContext, "key2", null);
+        database.close();
+        database = open();
+
+        final RocksdbAggregationRepository reopened = new RocksdbAggregationRepository(database, plugin, 1);
+
+        assertThat(reopened.getKeys(), containsInAnyOrder("key0", "key1", "key3", "key4"));
+        assertThat(reopened.getWithoutLock(camelContext, "key2"), nullValue());
+        assertThat(reopened.getWithoutLock(camelContext, "key3").getIn().getBody(), equalTo((Object) 3));
+        assertThat(reopened.getLocks().getActiveLocks(), is(0));
+    }
+
+    @Test
+    public void testRepositoriesOfPluginsDoNotIntersect() throws Exception {
+        final RocksdbAggregationRepository repo = new RocksdbAggregationRepository(database, plugin, 1);
+        final RocksdbAggregationRepository other = new RocksdbAggregationRepository(database, plugin("plugin2"), 1);
+        final RocksdbStorage<Integer> storage = new RocksdbStorage<>(database, "plugin",
+                getClass().getClassLoader());
+        repo.addWithoutLock(camelContext, "key", state(1));
+        other.addWithoutLock(camelContext, "key", state(2));
+        other.addWithoutLock(camelContext, "key2", state(3));
+        storage.put("key", 4);
+
+        final Map<String, Exchange> values = repo.values(camelContext);
+
+        assertThat(repo.getKeys(), hasSize(1));
+        assertThat(values.size(), is(1));
+        assertThat(values.get("key").getIn().getBody(), equalTo((Object) 1));
+        assertThat(other.getKeys(), containsInAnyOrder("key", "key2"));
+        assertThat(storage.valuesMap().get("key"), is(4));
+        assertThat(storage.keys(), hasSize(1));
+    }
+
+    @Test
+    public void testStorageRemovesNullValues() throws Exception {
+        final RocksdbStorage<String> storage = new RocksdbStorage<>(database, "storage", getClass().getClassLoader());
+        storage.put("key1", "value1");
+        storage.put("key2", "value2");
+        storage.put("key3", "value3");
+        storage.put("key1", null);
+        storage.remove("key3");
+
+        assertThat(storage.get("key1"), nullValue());
+        assertThat(storage.keys(), containsInAnyOrder("key2"));
+        assertThat(storage.valuesMap().entrySet(), hasSize(1));
+    }
+
+    @Test
+    public void testStorageBulkOperations() throws Exception {
+        final RocksdbStorage<String> storage = new RocksdbStorage<>(database, "storage", getClass().getClassLoader());
+        final Map<String, String> values = new HashMap<>();
+        values.put("key1", "value1");
+        values.put("key2", "value2");
+        values.put("key3", "value3");
+        storage.putAll(values);
+        storage.removeAll(Arrays.asList("key2", "key4"));
+        values.clear();
+        values.put("key1", null);
+        values.put("key4", "value4");
+        storage.putAll(values);
+
+        final Map<String, String> read = storage.getAll(Arrays.asList("key1", "key2", "key3"));
+
+        assertThat(read.keySet(), containsInAnyOrder("key3"));
+        assertThat(read.get("key3"), is("value3"));
+        assertThat(storage.keys(), containsInAnyOrder("key3", "key4"));
+    }
+
+    @Test
+    public void testIteratorsAreReleasedOnEarlyExit() throws Exception {
+        final RocksdbAggregationRepository repo = new RocksdbAggregationRepository(database, plugin, 1);
+        for (int i = 0; i < 5; i++) {
+            repo.addWithoutLock(camelContext, "key" + i, state(i));
+        }
+        final AtomicInteger visited = new AtomicInteger();
+        try {
+            repo.forEach(camelContext, (key, state) -> {
+                if (visited.incrementAndGet() == 2) {
+                    throw new IllegalStateException("Stop the iteration");
+                }
+            });
+        } catch (IllegalStateException e) { //NOSONAR
+            // the iterator must be released anyway
+        }
+        repo.values(camelContext).entrySet().iterator().next();
+        repo.getKeys().iterator().next();
+
+        assertThat(visited.get(), is(2));
+        assertThat(database.getOpenIterators(), is(0));
+    }
+
+    @Test
+    public void testFailedWriteIsThrown() throws Exception {
+        final RocksdbAggregationRepository repo = new RocksdbAggregationRepository(database, plugin, 1);
+        final Exchange unserializable = new DefaultExchange(camelContext);
+        unserializable.getIn().setBody(new Unserializable());
+        repo.get(camelContext, "key");
+        try {
+            repo.add(camelContext, "key", unserializable);
+            fail("The failed write must be thrown");
+        } catch (RepositoryFailureException e) { //NOSONAR
+            // the strategy must see the failure
+        }
+        assertThat(repo.getLocks().getActiveLocks(), is(0));
+        assertThat(repo.getKeys(), hasSize(0));
+    }
+
+    @Test(expected = RepositoryLockWaitException.class)
+    public void testLockWaitTimeoutIsThrown() throws Exception {
+        final RocksdbAggregationRepository repo = new RocksdbAggregationRepository(database, plugin, 1);
+        final ExecutorService owner = newSingleThreadExecutor();
+        try {
+            owner.submit(() -> repo.get(camelContext, "key")).get();
+            repo.get(camelContext, "key");
+        } finally {
+            owner.submit(() -> repo.unlock("key")).get();
+            owner.shutdown();
+        }
+    }
+
+    private RocksdbDatabase open() throws Exception {
+        final RocksdbDatabase result = new RocksdbDatabase(folder.getRoot().getAbsolutePath());
+        result.setBlockCacheMb(8);
+        result.setWriteBufferMb(4);
+        result.open();
+        return result;
+    }
+
+    private Plugin plugin(String id) {
+        final Plugin result = new Plugin();
+        result.setId(id);
+        final PluginContext context = new PluginContext();
+        context.setClassLoader(getClass().getClassLoader());
+        result.setContext(context);
+        return result;
+    }
+
+    private Exchange state(int index) {
+        final Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(index);
+        return exchange;
+    }
+
+    private static class Unserializable implements Serializable {
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new NotSerializableException("The state cannot be written");
+        }
+    }
+}
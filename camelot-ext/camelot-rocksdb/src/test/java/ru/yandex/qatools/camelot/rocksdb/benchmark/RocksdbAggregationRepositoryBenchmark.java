@@ -0,0 +1,156 @@
+package ru.yandex.qatools.camelot.rocksdb.benchmark;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.spi.AggregationRepository;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.qatools.camelot.common.AggregationRepositoryWithValuesMap;
+import ru.yandex.qatools.camelot.common.DurableAggregationRepository;
+import ru.yandex.qatools.camelot.common.LocalAggregationRepository;
+import ru.yandex.qatools.camelot.common.MemoryAggregationRepository;
+import ru.yandex.qatools.camelot.config.Plugin;
+import ru.yandex.qatools.camelot.config.PluginContext;
+import ru.yandex.qatools.camelot.rocksdb.RocksdbAggregationRepository;
+import ru.yandex.qatools.camelot.rocksdb.RocksdbDatabase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compares the throughput of the updates of the states and of the iteration over the states
+ * of the RocksDB repository with the memory repository and the durable repository backed by the write-ahead log.
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ru.yandex.qatools.camelot.rocksdb.benchmark.RocksdbAggregationRepositoryBenchmark}.
+ *
+ * @author Ilya Sadykov (mailto: smecsia@yandex-team.ru)
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RocksdbAggregationRepositoryBenchmark {
+
+    private static final byte[] STATE = new byte[512];
+
+    @State(Scope.Benchmark)
+    public static class Repository {
+        @Param({"memory", "durable", "rocksdb"})
+        public String repository;
+
+        @Param({"100000"})
+        public int states;
+
+        private CamelContext camelContext;
+        private File dir;
+        private RocksdbDatabase database;
+        private AggregationRepository repo;
+
+        @Setup
+        public void setUp() throws Exception { //NOSONAR
+            camelContext = new DefaultCamelContext();
+            final Plugin plugin = new Plugin();
+            plugin.setId("plugin");
+            final PluginContext context = new PluginContext();
+            context.setClassLoader(getClass().getClassLoader());
+            plugin.setContext(context);
+            dir = Files.createTempDirectory("camelot-rocksdb-bench").toFile();
+            switch (repository) {
+                case "memory":
+                    repo = new MemoryAggregationRepository(plugin, 1);
+                    break;
+                case "durable":
+                    repo = new DurableAggregationRepository(plugin, 1, dir, false, 1000000, 4);
+                    break;
+                default:
+                    database = new RocksdbDatabase(dir.getAbsolutePath());
+                    database.open();
+                    repo = new RocksdbAggregationRepository(database, plugin, 1);
+            }
+            for (int i = 0; i < states; i++) {
+                ((LocalAggregationRepository) repo).addWithoutLock(camelContext, "key" + i, state());
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws Exception { //NOSONAR
+            if (repo instanceof Closeable) {
+                ((Closeable) repo).close();
+            }
+            if (database != null) {
+                database.close();
+            }
+            FileUtils.deleteDirectory(dir);
+        }
+
+        private Exchange state() {
+            final Exchange exchange = new DefaultExchange(camelContext);
+            exchange.getIn().setBody(STATE);
+            return exchange;
+        }
+
+        private Exchange update() {
+            final String key = "key" + ThreadLocalRandom.current().nextInt(states);
+            final Exchange exchange = repo.get(camelContext, key);
+            repo.add(camelContext, key, exchange);
+            return exchange;
+        }
+
+        private int iterate() {
+            int count = 0;
+            if (repo instanceof AggregationRepositoryWithValuesMap) {
+                final Map<String, Exchange> values = ((AggregationRepositoryWithValuesMap) repo).values(camelContext);
+                for (Map.Entry<String, Exchange> entry : values.entrySet()) {
+                    count += entry.getValue().getIn().getBody(byte[].class).length;
+                }
+                return count;
+            }
+            for (String key : repo.getKeys()) {
+                count += ((LocalAggregationRepository) repo).getWithoutLock(camelContext, key)
+                        .getIn().getBody(byte[].class).length;
+            }
+            return count;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(SECONDS)
+    @Threads(4)
+    public Exchange update(Repository repository) {
+        return repository.update();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(SECONDS)
+    public int iterate(Repository repository) {
+        return repository.iterate();
+    }
+
+    public static void main(String[] args) throws Exception { //NOSONAR
+        new Runner(new OptionsBuilder()
+                .include(RocksdbAggregationRepositoryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}